@@ -0,0 +1,75 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the count file benchmarks with the allocation profiler enabled. The
+ * tracks are generated before the first fork so that generation is not
+ * timed, and the bench system properties are passed on to the forks so
+ * that they open the same tracks. Arguments are the usual JMH command line
+ * options, for example a benchmark regex or -p mFormat=brt2,bam to restrict
+ * the formats.
+ *
+ * @author Antony Holmes
+ */
+public class BenchmarkRunner {
+
+  /**
+   * The main method.
+   *
+   * @param args the arguments
+   * @throws CommandLineOptionException the command line option exception
+   * @throws RunnerException the runner exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException, IOException {
+    new TrackGenerator().generate();
+
+    ChainedOptionsBuilder builder = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class);
+
+    List<String> jvmArgs = new ArrayList<String>();
+
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("bench.")) {
+        jvmArgs.add("-D" + name + "=" + System.getProperty(name));
+      }
+    }
+
+    if (!jvmArgs.isEmpty()) {
+      builder.jvmArgsAppend(jvmArgs.toArray(new String[jvmArgs.size()]));
+    }
+
+    Options options = builder.build();
+
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.edb.ngs.CountAssembly;
+
+/**
+ * Measures how the throughput of one reader shared by several threads
+ * scales as threads are added, at a window that every format holds. Each
+ * thread cycles through the same regions from its own position, and the
+ * reader is opened before timing starts so that opening files is not
+ * measured. That the counts are the same on any number of threads is
+ * checked by the unit tests.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+
+  /** The number of random regions cycled through. */
+  public static final int REGIONS = 64;
+
+  /** The length of each region. */
+  public static final int REGION_LENGTH = 100000;
+
+  /** The window. */
+  public static final int WINDOW = 1000;
+
+  /** The m format. */
+  @Param({ "brt2", "bc", "32bit" })
+  public String mFormat;
+
+  /** The m assembly. */
+  private CountAssembly mAssembly;
+
+  /** The m regions. */
+  private GenomicRegion[] mRegions;
+
+  /**
+   * The position of each thread in the regions.
+   */
+  @State(Scope.Thread)
+  public static class Position {
+
+    /** The index of the next region. */
+    private int mNext = 0;
+  }
+
+  /**
+   * Generate the tracks if necessary, open the format and read each region
+   * once so that the chromosome files are open.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    TrackGenerator generator = new TrackGenerator();
+
+    mAssembly = TrackGenerator.open(generator.generate(), mFormat);
+    mRegions = generator.regions(REGIONS, REGION_LENGTH, 7);
+
+    for (GenomicRegion region : mRegions) {
+      mAssembly.getCounts(region, WINDOW);
+    }
+  }
+
+  /**
+   * Close the format.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mAssembly.close();
+  }
+
+  /**
+   * Reads on one thread.
+   *
+   * @param position the position of the thread
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  @Threads(1)
+  public int[] threads1(Position position) throws IOException {
+    return getCounts(position);
+  }
+
+  /**
+   * Reads on two threads.
+   *
+   * @param position the position of the thread
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  @Threads(2)
+  public int[] threads2(Position position) throws IOException {
+    return getCounts(position);
+  }
+
+  /**
+   * Reads on four threads.
+   *
+   * @param position the position of the thread
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  @Threads(4)
+  public int[] threads4(Position position) throws IOException {
+    return getCounts(position);
+  }
+
+  /**
+   * Reads on eight threads.
+   *
+   * @param position the position of the thread
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  @Threads(8)
+  public int[] threads8(Position position) throws IOException {
+    return getCounts(position);
+  }
+
+  /**
+   * Reads the next region of a thread.
+   *
+   * @param position the position of the thread
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int[] getCounts(Position position) throws IOException {
+    GenomicRegion region = mRegions[position.mNext];
+
+    position.mNext = (position.mNext + 1) % mRegions.length;
+
+    return mAssembly.getCounts(region, WINDOW);
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.edb.ngs.CountAssembly;
+
+/**
+ * Measures the throughput and latency of reading the counts of random
+ * regions from each count file format across windows and region sizes. A
+ * region size of 0 reads the whole chromosome. Combinations a format cannot
+ * serve, such as BC files at windows below 100, fail at setup and are
+ * reported as errors by the runner.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CountsBenchmark {
+
+  /** The number of random regions cycled through. */
+  public static final int REGIONS = 1024;
+
+  /** The m format. */
+  @Param({ "brt", "brt2", "brtz", "brtc", "bvt", "bc", "byte", "4bit", "8bit",
+      "12bit", "16bit", "20bit", "24bit", "32bit", "bam" })
+  public String mFormat;
+
+  /** The m window. */
+  @Param({ "1", "100", "1000", "10000", "100000", "1000000" })
+  public int mWindow;
+
+  /** The m region size. */
+  @Param({ "1000", "10000", "100000", "1000000", "0" })
+  public int mRegionSize;
+
+  /** The m assembly. */
+  private CountAssembly mAssembly;
+
+  /** The m regions. */
+  private GenomicRegion[] mRegions;
+
+  /** The index of the next region. */
+  private int mNext = 0;
+
+  /**
+   * Generate the tracks if necessary and open the format.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    if (!TrackGenerator.supportsWindow(mFormat, mWindow)) {
+      throw new IllegalStateException(
+          mFormat + " files do not hold counts at window " + mWindow + ".");
+    }
+
+    TrackGenerator generator = new TrackGenerator();
+
+    mAssembly = TrackGenerator.open(generator.generate(), mFormat);
+    mRegions = generator.regions(REGIONS, mRegionSize, mRegionSize);
+  }
+
+  /**
+   * Close the format.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mAssembly.close();
+  }
+
+  /**
+   * Returns the next region.
+   *
+   * @return the genomic region
+   */
+  private GenomicRegion next() {
+    GenomicRegion region = mRegions[mNext];
+
+    mNext = (mNext + 1) % mRegions.length;
+
+    return region;
+  }
+
+  /**
+   * Gets the counts.
+   *
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  public int[] getCounts() throws IOException {
+    return mAssembly.getCounts(next(), mWindow);
+  }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.core.io.ByteStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.edb.ngs.ReadCountsFile32Bit;
+
+/**
+ * Compares the word at a time decoder of {@link ReadCountsFile32Bit} with
+ * the value at a time decoders it replaced on the same packed bytes.
+ * Decoders are timed in memory so no I/O is measured.
+ * 
+ * The baseline decoders are the loops of the original getCounts methods
+ * copied verbatim, with only the file read taken out. They are timed as
+ * they shipped, so they sign-extend 8, 12, 16 and 20 bit counts and the 4
+ * bit loop never moves past the first byte. Their output is therefore not
+ * checked, whereas the word at a time decoder is checked against the
+ * packed counts at setup. Like the originals, the baselines and
+ * {@link #wordAtATime()} allocate the array they return, whereas
+ * {@link #wordAtATimeInto()} reuses one.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmark {
+
+  /** The m bits. */
+  @Param({ "4", "8", "12", "16", "20", "24", "32" })
+  public int mBits;
+
+  /** The first bin decoded, odd bins starting part way through a byte. */
+  @Param({ "0", "1" })
+  public int mStartBin;
+
+  /** The m bins. */
+  @Param({ "100", "10000", "1000000" })
+  public int mBins;
+
+  /** The packed bytes of the bins as read from a file. */
+  private byte[] mBytes;
+
+  /** The m out. */
+  private int[] mOut;
+
+  /**
+   * Pack random counts and check that the word at a time decoder unpacks
+   * them.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    int n = mStartBin + mBins;
+
+    long max = (1L << Math.min(31, mBits)) - 1;
+
+    Random random = new Random(mBits);
+
+    int[] counts = new int[n];
+
+    for (int i = 0; i < n; ++i) {
+      counts[i] = (int) (random.nextDouble() * (max + 1));
+    }
+
+    byte[] packed = pack(counts, mBits);
+
+    int s = ReadCountsFile32Bit.getByteStart(mBits, mStartBin);
+    int e = ReadCountsFile32Bit.getByteEnd(mBits, n - 1);
+
+    // Bytes past the end of the file read as zero
+    mBytes = Arrays.copyOfRange(packed, s, e + 1);
+
+    mOut = new int[mBins];
+
+    if (!Arrays.equals(wordAtATime(),
+        Arrays.copyOfRange(counts, mStartBin, n))) {
+      throw new IllegalStateException(
+          mBits + " bit counts were not decoded correctly.");
+    }
+  }
+
+  /**
+   * Decode the bins a value at a time.
+   *
+   * @return the counts
+   */
+  @Benchmark
+  public int[] baseline() {
+    switch (mBits) {
+    case 24:
+      return getCounts24(mBytes, mStartBin, mBins);
+    case 20:
+      return getCounts20(mBytes, mStartBin, mBins);
+    case 16:
+      return getCounts16(mBytes, mStartBin, mBins);
+    case 12:
+      return getCounts12(mBytes, mStartBin, mBins);
+    case 8:
+      return getCounts8(mBytes, mStartBin, mBins);
+    case 4:
+      return getCounts4(mBytes, mStartBin, mBins);
+    default:
+      return getCounts32(mBytes, mStartBin, mBins);
+    }
+  }
+
+  /**
+   * Decode the bins a word at a time into a new array.
+   *
+   * @return the counts
+   */
+  @Benchmark
+  public int[] wordAtATime() {
+    int[] ret = new int[mBins];
+
+    ReadCountsFile32Bit.decode(mBits, mBytes, mStartBin, mBins, ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Decode the bins a word at a time into the same array each time.
+   *
+   * @return the counts
+   */
+  @Benchmark
+  public int[] wordAtATimeInto() {
+    ReadCountsFile32Bit.decode(mBits, mBytes, mStartBin, mBins, mOut, 0);
+
+    return mOut;
+  }
+
+  /**
+   * Pack counts most significant bit first, as they are written to a file.
+   *
+   * @param counts the counts
+   * @param bits the bits
+   * @return the bytes
+   */
+  private static byte[] pack(int[] counts, int bits) {
+    byte[] ret = new byte[(int) (((long) counts.length * bits + 7) / 8)];
+
+    long buffer = 0;
+    int n = 0;
+    int p = 0;
+
+    for (int count : counts) {
+      buffer = (buffer << bits) | (count & 0xFFFFFFFFL);
+      n += bits;
+
+      while (n >= 8) {
+        n -= 8;
+        ret[p++] = (byte) (buffer >>> n);
+      }
+    }
+
+    if (n > 0) {
+      ret[p] = (byte) (buffer << (8 - n));
+    }
+
+    return ret;
+  }
+
+  //
+  // The original decoders, which read buf from the file before decoding it
+  //
+
+  private static int[] getCounts4(byte[] buf, int s, int l) {
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    boolean even = true;
+
+    int p = 0;
+
+    for (int i = 0; i < l; ++i) {
+      if (even) {
+        scores[i] = (buf[p] & 0b11110000) >> 4;
+      } else {
+        scores[i] = buf[p] & 0b1111;
+
+        ++p;
+      }
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts8(byte[] buf, int s, int l) {
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    for (int i = 0; i < l; ++i) {
+      scores[i] = (int) buf[i];
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts12(byte[] buf, int s, int l) {
+    //List<Integer> scores = new ArrayList<Integer>(l);
+    
+    int[] scores = new int[l];
+    
+    int p = 0;
+
+    // Whether to start at the beginning or end of the byte
+    boolean even = s % 2 == 0;
+
+    for (int i = 0; i < l; ++i) {
+      int score = 0;
+
+      if (even) {
+        score = (buf[p] << 4) | ((buf[p + 1] & 0b11110000) >> 4);
+      } else {
+        score = ((buf[p] & 0b1111) << 8) | (buf[p + 1] & 0b11111111);
+
+        ++p;
+      }
+
+      scores[i] = score; //scores.add(score);
+
+      ++p;
+
+      even = !even;
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts16(byte[] buf, int s, int l) {
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    int p = 0;
+
+    for (int i = 0; i < l; ++i) {
+      scores[i] = ((buf[p] << 8) | (buf[p + 1] & 0b11111111));
+
+      p += 2;
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts20(byte[] buf, int s, int l) {
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    int p = 0;
+
+    // Whether to start at the beginning or end of the byte
+    boolean even = s % 2 == 0;
+
+    for (int i = 0; i < l; ++i) {
+      int score = 0;
+
+      if (even) {
+        score = (buf[p] << 12) | (buf[p + 1] << 4) | ((buf[p + 2] & 0xF0) >> 4);
+      } else {
+        score = ((buf[p] & 0xF) << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF);
+
+        ++p;
+      }
+
+      scores[i] = score;
+
+      ++p;
+
+      even = !even;
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts24(byte[] d, int s, int l) {
+    ByteStream buf = new ByteStream(d);
+
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    for (int i = 0; i < l; ++i) {
+      scores[i] = buf.readInt24(); //((buf[p] << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF));
+    }
+
+    return scores;
+  }
+
+  private static int[] getCounts32(byte[] d, int s, int l) {
+    ByteBuffer buf = ByteBuffer.wrap(d);
+    
+    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+
+    for (int i = 0; i < l; ++i) {
+      scores[i] = buf.getInt();
+    }
+
+    return scores;
+  }
+}
@@ -0,0 +1,650 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomeService;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+import edu.columbia.rdf.edb.ngs.BinTreeWriter;
+import edu.columbia.rdf.edb.ngs.CountAssembly;
+import edu.columbia.rdf.edb.ngs.ReadCountsFile32Bit;
+import edu.columbia.rdf.edb.ngs.ReadCountsFile8Bit;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBC;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRT;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRTC;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRTZ;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBVT;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBam;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Simulates the reads of a single chromosome and writes them in every count
+ * file format so that the readers can be benchmarked against the same data.
+ * Most reads fall uniformly along the chromosome and the rest pile up in
+ * peaks, which gives the dense and sparse regions a real track has.
+ * 
+ * The tracks are written to the directory named by the bench.dir system
+ * property, by default edb-bench in the temp directory, with one sub
+ * directory per format. The chromosome size, number of reads and random seed
+ * are taken from the bench.size, bench.reads and bench.seed properties. The
+ * tracks are generated once and reused by later benchmark forks for as long
+ * as these properties do not change.
+ * 
+ * Formats are named after their file extension, for example brt2 or 16bit.
+ * Packed files are read with {@link ReadCountsFile32Bit} except for byte,
+ * which reads the 8 bit files with {@link ReadCountsFile8Bit}.
+ *
+ * @author Antony Holmes
+ */
+public class TrackGenerator {
+
+  /** The name of the simulated chromosome. */
+  public static final String CHR = "chr1";
+
+  /** The genome written to the track headers. */
+  public static final String GENOME = "hg19";
+
+  /** The read length. */
+  public static final int READ_LENGTH = 50;
+
+  /** The default chromosome size. */
+  public static final int DEFAULT_SIZE = 10000000;
+
+  /** The default random seed. */
+  public static final long DEFAULT_SEED = 42;
+
+  /** The windows the packed count files are written for. */
+  public static final int[] PACKED_WINDOWS = { 1, 100, 1000, 10000, 100000,
+      1000000 };
+
+  /** The bit depths of the packed count files. */
+  public static final int[] PACKED_BITS = { 4, 8, 12, 16, 20, 24, 32 };
+
+  /** The BC powers, each power p holding bins of width 10^p. */
+  public static final int[] BC_POWERS = { 2, 3, 4, 5, 6 };
+
+  /** Written once every track has been generated. */
+  private static final String COMPLETE_FILE = "complete.txt";
+
+  /** The fraction of reads that fall in peaks. */
+  private static final double PEAK_FRACTION = 0.2;
+
+  /** The width of a peak. */
+  private static final int PEAK_WIDTH = 1000;
+
+  /** The average number of reads in a peak. */
+  private static final int PEAK_READS = 200;
+
+  /** The m dir. */
+  private final Path mDir;
+
+  /** The m size. */
+  private final int mSize;
+
+  /** The m reads. */
+  private final int mReads;
+
+  /** The m seed. */
+  private final long mSeed;
+
+  /**
+   * Create a generator configured from the bench system properties.
+   */
+  public TrackGenerator() {
+    this(Paths.get(System.getProperty("bench.dir",
+        Paths.get(System.getProperty("java.io.tmpdir"), "edb-bench")
+            .toString())),
+        Integer.getInteger("bench.size", DEFAULT_SIZE),
+        Integer.getInteger("bench.reads",
+            Integer.getInteger("bench.size", DEFAULT_SIZE) / 100),
+        Long.getLong("bench.seed", DEFAULT_SEED));
+  }
+
+  /**
+   * Create a generator.
+   *
+   * @param dir the directory to write the tracks to
+   * @param size the chromosome size
+   * @param reads the number of reads
+   * @param seed the random seed
+   */
+  public TrackGenerator(Path dir, int size, int reads, long seed) {
+    mDir = dir;
+    mSize = size;
+    mReads = reads;
+    mSeed = seed;
+  }
+
+  /**
+   * Gets the dir.
+   *
+   * @return the dir
+   */
+  public Path getDir() {
+    return mDir;
+  }
+
+  /**
+   * Gets the chromosome size.
+   *
+   * @return the size
+   */
+  public int getSize() {
+    return mSize;
+  }
+
+  /**
+   * Writes the tracks unless the directory already holds tracks generated
+   * with the same settings.
+   *
+   * @return the directory holding the tracks
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public synchronized Path generate() throws IOException {
+    Path complete = mDir.resolve(COMPLETE_FILE);
+
+    String settings = "size=" + mSize + " reads=" + mReads + " seed=" + mSeed;
+
+    if (Files.exists(complete) && settings.equals(
+        new String(Files.readAllBytes(complete), StandardCharsets.UTF_8))) {
+      return mDir;
+    }
+
+    Files.createDirectories(mDir);
+    Files.deleteIfExists(complete);
+
+    Random rnd = new Random(mSeed);
+
+    int[] starts = simulateStarts(rnd);
+    boolean[] antisense = new boolean[starts.length];
+    float[] values = new float[starts.length];
+
+    for (int i = 0; i < starts.length; ++i) {
+      antisense[i] = rnd.nextBoolean();
+      values[i] = rnd.nextFloat() * 10;
+    }
+
+    writeBinTree("brt2", starts, antisense, values);
+    writeBinTree("brtz", starts, antisense, values);
+    writeBinTree("brtc", starts, antisense, values);
+    writeBinTree("bvt", starts, antisense, values);
+    writeBRT();
+
+    for (int window : PACKED_WINDOWS) {
+      int[] counts = binCounts(starts, window, 1);
+
+      for (int bits : PACKED_BITS) {
+        writePacked(counts, window, bits);
+      }
+    }
+
+    for (int power : BC_POWERS) {
+      int window = (int) Math.pow(10, power);
+
+      writeBC(binCounts(starts, window, 0), window, power);
+    }
+
+    writeBam(starts, antisense);
+
+    Files.write(complete, settings.getBytes(StandardCharsets.UTF_8));
+
+    return mDir;
+  }
+
+  /**
+   * Returns sorted read starts, most spread uniformly along the chromosome
+   * and the rest in peaks.
+   *
+   * @param rnd the rnd
+   * @return the starts
+   */
+  private int[] simulateStarts(Random rnd) {
+    int[] starts = new int[mReads];
+
+    int peakReads = (int) (mReads * PEAK_FRACTION);
+    int maxStart = Math.max(1, mSize - READ_LENGTH + 1);
+
+    int i = 0;
+
+    while (i < peakReads) {
+      int centre = 1 + rnd.nextInt(maxStart);
+      int n = Math.min(peakReads - i, 1 + rnd.nextInt(2 * PEAK_READS));
+
+      for (int j = 0; j < n; ++j) {
+        int start = centre + (int) (rnd.nextGaussian() * PEAK_WIDTH / 4);
+
+        starts[i++] = Math.max(1, Math.min(maxStart, start));
+      }
+    }
+
+    while (i < mReads) {
+      starts[i++] = 1 + rnd.nextInt(maxStart);
+    }
+
+    Arrays.sort(starts);
+
+    return starts;
+  }
+
+  /**
+   * Writes a bin tree track with {@link BinTreeWriter}.
+   *
+   * @param ext the file extension of the format
+   * @param starts the starts
+   * @param antisense the antisense
+   * @param values the values
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBinTree(String ext,
+      int[] starts,
+      boolean[] antisense,
+      float[] values) throws IOException {
+    BinTreeWriter writer =
+        new BinTreeWriter(Files.createDirectories(mDir.resolve(ext)), GENOME,
+            ext);
+
+    writer.setReadLength(READ_LENGTH);
+    writer.setSize(CHR, mSize);
+
+    for (int i = 0; i < starts.length; ++i) {
+      writer.add(CHR, starts[i], antisense[i], values[i]);
+    }
+
+    writer.close();
+  }
+
+  /**
+   * Writes a BRT track by copying the BRT2 track without its multi
+   * resolution counts, which is the only way in which the formats differ.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBRT() throws IOException {
+    Path dir = Files.createDirectories(mDir.resolve("brt"));
+    Path brt2 = mDir.resolve("brt2");
+
+    Files.copy(brt2.resolve("meta.json"),
+        dir.resolve("meta.json"),
+        StandardCopyOption.REPLACE_EXISTING);
+
+    InputStream in = Files.newInputStream(brt2.resolve(CHR + ".brt2"));
+
+    try {
+      OutputStream out = new BufferedOutputStream(
+          Files.newOutputStream(dir.resolve(CHR + ".brt")));
+
+      try {
+        byte[] header = new byte[8];
+
+        readFully(in, header);
+        out.write(header);
+
+        int dataOffset = ((header[4] & 0xFF) << 24)
+            | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8)
+            | (header[7] & 0xFF);
+
+        copy(in, out, dataOffset - header.length);
+
+        long skip = ReadCountsFileBinTree.RAW_OFFSET;
+
+        while (skip > 0) {
+          long s = in.skip(skip);
+
+          if (s <= 0) {
+            throw new IOException("Truncated BRT2 file.");
+          }
+
+          skip -= s;
+        }
+
+        copy(in, out, Long.MAX_VALUE);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the number of reads starting in each bin of a window.
+   *
+   * @param starts the starts
+   * @param window the window
+   * @param origin the position of the first base of bin 0
+   * @return the counts
+   */
+  private int[] binCounts(int[] starts, int window, int origin) {
+    int[] counts = new int[(mSize - origin) / window + 1];
+
+    for (int start : starts) {
+      ++counts[(start - origin) / window];
+    }
+
+    return counts;
+  }
+
+  /**
+   * Writes the counts of a window packed at a bit depth, most significant
+   * bit first. Counts too large for the bit depth are saturated.
+   *
+   * @param counts the counts
+   * @param window the window
+   * @param bits the bit depth
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writePacked(int[] counts, int window, int bits)
+      throws IOException {
+    Path dir = Files.createDirectories(mDir.resolve("bit").resolve(bits + ""));
+
+    long max = (1L << Math.min(31, bits)) - 1;
+
+    OutputStream out = new BufferedOutputStream(Files.newOutputStream(
+        dir.resolve(CHR + ".counts.win." + window + "." + bits + "bit")));
+
+    try {
+      long buffer = 0;
+      int n = 0;
+
+      for (int count : counts) {
+        buffer = (buffer << bits) | Math.min(count, max);
+        n += bits;
+
+        while (n >= 8) {
+          n -= 8;
+          out.write((int) (buffer >>> n));
+        }
+      }
+
+      if (n > 0) {
+        out.write((int) (buffer << (8 - n)));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the counts of a window as a BC file using the smallest bin size
+   * that holds the largest count.
+   *
+   * @param counts the counts
+   * @param window the window
+   * @param power the power
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBC(int[] counts, int window, int power)
+      throws IOException {
+    Path dir = Files.createDirectories(mDir.resolve("bc"));
+
+    int max = 0;
+
+    for (int count : counts) {
+      max = Math.max(max, count);
+    }
+
+    int binSize = max <= Byte.MAX_VALUE ? 1 : max <= Short.MAX_VALUE ? 2 : 4;
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(
+            dir.resolve(CHR + "." + power + "bw.bc"))));
+
+    try {
+      out.writeInt(42);
+      out.writeByte(binSize);
+      out.writeInt(window);
+      out.writeInt(counts.length);
+
+      for (int count : counts) {
+        switch (binSize) {
+        case 4:
+          out.writeInt(count);
+          break;
+        case 2:
+          out.writeShort(count);
+          break;
+        default:
+          out.writeByte(count);
+          break;
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the reads as an indexed BAM file.
+   *
+   * @param starts the starts
+   * @param antisense the antisense
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBam(int[] starts, boolean[] antisense)
+      throws IOException {
+    Path dir = Files.createDirectories(mDir.resolve("bam"));
+
+    SAMFileHeader header = new SAMFileHeader();
+    header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+    header.addSequence(new SAMSequenceRecord(CHR, mSize));
+
+    SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true)
+        .makeBAMWriter(header, true, dir.resolve("reads.bam").toFile());
+
+    char[] bases = new char[READ_LENGTH];
+    Arrays.fill(bases, 'A');
+
+    char[] qualities = new char[READ_LENGTH];
+    Arrays.fill(qualities, 'I');
+
+    String readString = new String(bases);
+    String qualityString = new String(qualities);
+    String cigar = READ_LENGTH + "M";
+
+    try {
+      for (int i = 0; i < starts.length; ++i) {
+        SAMRecord record = new SAMRecord(header);
+
+        record.setReadName("r" + i);
+        record.setReferenceName(CHR);
+        record.setAlignmentStart(starts[i]);
+        record.setCigarString(cigar);
+        record.setMappingQuality(60);
+        record.setReadNegativeStrandFlag(antisense[i]);
+        record.setReadString(readString);
+        record.setBaseQualityString(qualityString);
+
+        writer.addAlignment(record);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Open a reader for a format of the generated tracks.
+   *
+   * @param dir the directory holding the tracks
+   * @param format the format
+   * @return the count assembly
+   */
+  public static CountAssembly open(Path dir, String format) {
+    switch (format) {
+    case "brt":
+      return new ReadCountsFileBRT(dir.resolve("brt").resolve("meta.json"));
+    case "brt2":
+      return new ReadCountsFileBRT2(dir.resolve("brt2").resolve("meta.json"));
+    case "brtz":
+      return new ReadCountsFileBRTZ(dir.resolve("brtz").resolve("meta.json"));
+    case "brtc":
+      return new ReadCountsFileBRTC(dir.resolve("brtc").resolve("meta.json"));
+    case "bvt":
+      return new ReadCountsFileBVT(dir.resolve("bvt").resolve("meta.json"));
+    case "bc":
+      return new ReadCountsFileBC(dir.resolve("bc").resolve("meta.json"));
+    case "bam":
+      return new ReadCountsFileBam(dir.resolve("bam").resolve("reads.bam"));
+    case "byte":
+      return new ReadCountsFile8Bit(dir.resolve("bit").resolve("8"));
+    default:
+      if (format.endsWith("bit")) {
+        return new ReadCountsFile32Bit(dir.resolve("bit")
+            .resolve(format.substring(0, format.length() - 3)));
+      }
+
+      throw new IllegalArgumentException("Unknown format " + format + ".");
+    }
+  }
+
+  /**
+   * Returns whether a format can return counts at a window. Packed and BC
+   * files only hold the windows they were written for.
+   *
+   * @param format the format
+   * @param window the window
+   * @return true, if successful
+   */
+  public static boolean supportsWindow(String format, int window) {
+    if (format.equals("bc")) {
+      for (int power : BC_POWERS) {
+        if (window == (int) Math.pow(10, power)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    if (format.equals("byte") || format.endsWith("bit")) {
+      for (int w : PACKED_WINDOWS) {
+        if (window == w) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns random regions of a fixed length along the chromosome. A length
+   * of zero or more than the chromosome size spans the whole chromosome.
+   *
+   * @param n the number of regions
+   * @param length the length
+   * @param seed the seed
+   * @return the regions
+   */
+  public GenomicRegion[] regions(int n, int length, long seed) {
+    Genome genome = GenomeService.getInstance().guessGenome(GENOME);
+
+    GenomicRegion chr = GenomicRegion.parse(genome, CHR + ":1-" + mSize);
+
+    if (length <= 0 || length >= mSize) {
+      return new GenomicRegion[] { chr };
+    }
+
+    Random rnd = new Random(seed);
+
+    GenomicRegion[] ret = new GenomicRegion[n];
+
+    for (int i = 0; i < n; ++i) {
+      int start = 1 + rnd.nextInt(mSize - length + 1);
+
+      ret[i] = new GenomicRegion(chr.getChr(), start, start + length - 1);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read fully.
+   *
+   * @param in the in
+   * @param b the b
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void readFully(InputStream in, byte[] b) throws IOException {
+    int n = 0;
+
+    while (n < b.length) {
+      int r = in.read(b, n, b.length - n);
+
+      if (r < 0) {
+        throw new IOException("Truncated BRT2 file.");
+      }
+
+      n += r;
+    }
+  }
+
+  /**
+   * Copy up to length bytes from one stream to another.
+   *
+   * @param in the in
+   * @param out the out
+   * @param length the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void copy(InputStream in, OutputStream out, long length)
+      throws IOException {
+    byte[] buffer = new byte[65536];
+
+    while (length > 0) {
+      int r = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+
+      if (r < 0) {
+        break;
+      }
+
+      out.write(buffer, 0, r);
+
+      length -= r;
+    }
+  }
+
+  /**
+   * Generates the tracks ahead of a benchmark run.
+   *
+   * @param args the arguments
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void main(String[] args) throws IOException {
+    System.err.println("Tracks in " + new TrackGenerator().generate());
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * The statistics of the values in each bin of a region: the number of
+ * values, their sum, minimum, maximum and sum of squares, from which the
+ * mean and standard deviation follow. This is enough to draw a min/max
+ * envelope and a mean line from one query.
+ *
+ * @author Antony Holmes
+ */
+public class BinSummary {
+
+  /** The m counts. */
+  private final int[] mCounts;
+
+  /** The m sums. */
+  private final double[] mSums;
+
+  /** The m mins. */
+  private final double[] mMins;
+
+  /** The m maxs. */
+  private final double[] mMaxs;
+
+  /** The m sum squares. */
+  private final double[] mSumSquares;
+
+  /** Whether each bin has a minimum and maximum. */
+  private final boolean[] mBounded;
+
+  /**
+   * Instantiates a new bin summary of empty bins.
+   *
+   * @param bins the number of bins
+   */
+  public BinSummary(int bins) {
+    mCounts = new int[bins];
+    mSums = new double[bins];
+    mMins = new double[bins];
+    mMaxs = new double[bins];
+    mSumSquares = new double[bins];
+    mBounded = new boolean[bins];
+  }
+
+  /**
+   * Add a value to a bin.
+   *
+   * @param bin the bin
+   * @param value the value
+   */
+  public void add(int bin, double value) {
+    add(bin, 1, value, value, value, value * value);
+  }
+
+  /**
+   * Add the statistics of a group of values to a bin. Empty groups leave
+   * the bin unchanged.
+   *
+   * @param bin the bin
+   * @param count the number of values
+   * @param sum the sum of the values
+   * @param min the smallest value
+   * @param max the largest value
+   * @param sumSquares the sum of the squares of the values
+   */
+  public void add(int bin,
+      int count,
+      double sum,
+      double min,
+      double max,
+      double sumSquares) {
+    if (count < 1) {
+      return;
+    }
+
+    addShare(bin, count, sum, min, max, sumSquares);
+  }
+
+  /**
+   * Add a share of a group of values that straddles several bins. The
+   * count, sum and sum of squares are those of the share, so the count may
+   * have rounded down to zero, whereas the minimum and maximum are those of
+   * the whole group since which values fall in the share is not known.
+   *
+   * @param bin the bin
+   * @param count the number of values in the share
+   * @param sum the sum of the values in the share
+   * @param min the smallest value of the group
+   * @param max the largest value of the group
+   * @param sumSquares the sum of the squares of the values in the share
+   */
+  public void addShare(int bin,
+      int count,
+      double sum,
+      double min,
+      double max,
+      double sumSquares) {
+    if (mBounded[bin]) {
+      mMins[bin] = Math.min(mMins[bin], min);
+      mMaxs[bin] = Math.max(mMaxs[bin], max);
+    } else {
+      mMins[bin] = min;
+      mMaxs[bin] = max;
+      mBounded[bin] = true;
+    }
+
+    mCounts[bin] += count;
+    mSums[bin] += sum;
+    mSumSquares[bin] += sumSquares;
+  }
+
+  /**
+   * Returns the number of bins.
+   *
+   * @return the int
+   */
+  public int size() {
+    return mCounts.length;
+  }
+
+  /**
+   * Gets the number of values in a bin.
+   *
+   * @param bin the bin
+   * @return the count
+   */
+  public int getCount(int bin) {
+    return mCounts[bin];
+  }
+
+  /**
+   * Gets the sum of the values in a bin.
+   *
+   * @param bin the bin
+   * @return the sum
+   */
+  public double getSum(int bin) {
+    return mSums[bin];
+  }
+
+  /**
+   * Gets the smallest value in a bin, or zero if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the min
+   */
+  public double getMin(int bin) {
+    return mMins[bin];
+  }
+
+  /**
+   * Gets the largest value in a bin, or zero if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the max
+   */
+  public double getMax(int bin) {
+    return mMaxs[bin];
+  }
+
+  /**
+   * Gets the sum of the squares of the values in a bin.
+   *
+   * @param bin the bin
+   * @return the sum squares
+   */
+  public double getSumSquares(int bin) {
+    return mSumSquares[bin];
+  }
+
+  /**
+   * Gets the mean of the values in a bin, or zero if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the mean
+   */
+  public double getMean(int bin) {
+    return mCounts[bin] > 0 ? mSums[bin] / mCounts[bin] : 0;
+  }
+
+  /**
+   * Gets the population standard deviation of the values in a bin, or zero
+   * if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the std dev
+   */
+  public double getStdDev(int bin) {
+    if (mCounts[bin] < 1) {
+      return 0;
+    }
+
+    double mean = getMean(bin);
+
+    return Math
+        .sqrt(Math.max(0, mSumSquares[bin] / mCounts[bin] - mean * mean));
+  }
+}
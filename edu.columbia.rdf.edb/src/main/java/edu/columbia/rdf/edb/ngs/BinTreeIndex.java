@@ -0,0 +1,213 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In memory copy of the block tree of a bin tree file. The tree is decoded
+ * once into parallel arrays, one entry per block in file order, so that
+ * lookups need no further I/O.
+ *
+ * @author Antony Holmes
+ */
+public class BinTreeIndex {
+
+  /** The bin of each block. */
+  private final int[] mBin;
+
+  /** The start of each block. */
+  private final int[] mStart;
+
+  /** The width of each block. */
+  private final int[] mWidth;
+
+  /** The start offset of each block. */
+  private final int[] mStartOffset;
+
+  /** The end offset of each block. */
+  private final int[] mEndOffset;
+
+  /**
+   * The number of blocks from the start of a block's group to its child
+   * group, or -1 if the block is a leaf.
+   */
+  private final int[] mChild;
+
+  /**
+   * The index one past the last block in the run of equal width blocks
+   * beginning at each block.
+   */
+  private final int[] mRunEnd;
+
+  /** The m size. */
+  private final int mSize;
+
+  /**
+   * Decodes the tree of a file. The tree lies between the header and the
+   * data offset.
+   *
+   * @param in the in
+   * @param dataOffset the data offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinTreeIndex(BinaryReader in, int dataOffset) throws IOException {
+    int bytes = dataOffset - ReadCountsFileBinTree.HEADER_OFFSET_BYTES;
+
+    mSize = Math.max(0, bytes / ReadCountsFileBinTree.BLOCK_SIZE_BYTES);
+
+    mBin = new int[mSize];
+    mStart = new int[mSize];
+    mWidth = new int[mSize];
+    mStartOffset = new int[mSize];
+    mEndOffset = new int[mSize];
+    mChild = new int[mSize];
+    mRunEnd = new int[mSize];
+
+    byte[] d = new byte[mSize * ReadCountsFileBinTree.BLOCK_SIZE_BYTES];
+
+    in.seek(ReadCountsFileBinTree.HEADER_OFFSET_BYTES);
+    in.readFully(d, 0, d.length);
+
+    ByteBuffer buffer = ByteBuffer.wrap(d);
+
+    for (int i = 0; i < mSize; ++i) {
+      mBin[i] = buffer.getInt();
+      mStart[i] = buffer.getInt();
+      mWidth[i] = buffer.getInt();
+      mStartOffset[i] = buffer.getInt();
+      mEndOffset[i] = buffer.getInt();
+
+      int gso = buffer.getInt();
+
+      mChild[i] = gso == -1 ? -1 : gso / ReadCountsFileBinTree.BLOCK_SIZE_BYTES;
+    }
+
+    for (int i = mSize - 1; i >= 0; --i) {
+      if (i < mSize - 1 && mWidth[i + 1] == mWidth[i]) {
+        mRunEnd[i] = mRunEnd[i + 1];
+      } else {
+        mRunEnd[i] = i + 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of blocks in the tree.
+   *
+   * @return the int
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Gets the data offset.
+   *
+   * @param p the p
+   * @return the data offset
+   */
+  public Block getDataOffset(int p) {
+    return getDataOffset(p, ReadCountsFileBinTree.MIN_BIN_WIDTH);
+  }
+
+  /**
+   * Returns the closest block to a position. This gives the same result as
+   * walking the tree on disk with
+   * {@link ReadCountsFileBinTree#getDataOffset(BinaryReader, int, int)}, but
+   * each group is binary searched rather than scanned.
+   *
+   * @param p a one based genomic position.
+   * @param window the window
+   * @return the data offset
+   */
+  public Block getDataOffset(int p, int window) {
+    int level = 0;
+    int binSize = ReadCountsFileBinTree.MAX_BIN_WIDTH;
+    int positionBin = p / binSize;
+
+    // The first block of the group being searched
+    int group = 0;
+
+    int b = 0;
+
+    while (group < mSize) {
+      int runEnd = mRunEnd[group];
+
+      b = findBin(group, runEnd, positionBin);
+
+      // No block in the group covers the position so the walk would stop
+      // on the first block of the next group.
+      if (b == runEnd) {
+        b = Math.min(runEnd, mSize - 1);
+        break;
+      }
+
+      if (mBin[b] > positionBin) {
+        break;
+      }
+
+      if (binSize == window || mChild[b] == -1) {
+        break;
+      }
+
+      ++level;
+
+      binSize = ReadCountsFileBinTree.BIN_WIDTHS[level];
+
+      positionBin = p / binSize;
+
+      group += mChild[b];
+    }
+
+    if (mSize == 0) {
+      return new Block(-1, -1, level, binSize, -1, -1);
+    }
+
+    b = Math.min(b, mSize - 1);
+
+    return new Block(mBin[b],
+        mStart[b],
+        level,
+        binSize,
+        mStartOffset[b],
+        mEndOffset[b]);
+  }
+
+  /**
+   * Returns the index of the first block in [s, e) whose bin is not less than
+   * the given bin, or e if there is none.
+   *
+   * @param s the s
+   * @param e the e
+   * @param bin the bin
+   * @return the int
+   */
+  private int findBin(int s, int e, int bin) {
+    while (s < e) {
+      int m = (s + e) >>> 1;
+
+      if (mBin[m] < bin) {
+        s = m + 1;
+      } else {
+        e = m;
+      }
+    }
+
+    return s;
+  }
+}
@@ -0,0 +1,1445 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.jebtk.bioinformatics.ext.samtools.SamUtils;
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * Writes reads to a directory of BRT2, BRTZ, BRTC or BVT files, one per
+ * chromosome, that can be read by {@link ReadCountsFileBRT2},
+ * {@link ReadCountsFileBRTZ}, {@link ReadCountsFileBRTC} and
+ * {@link ReadCountsFileBVT}.
+ * Reads may be added in any order. Each read is packed into a long and
+ * buffered in memory; once the buffer limit is reached the largest
+ * chromosome buffer is sorted and spilled to a temporary run file. When the
+ * writer is closed the runs of each chromosome are merged straight into its
+ * file, with chromosomes written in parallel.
+ *
+ * The number of reads in every 1kb bin is counted as reads are added so that
+ * the tree and multi resolution counts, which precede the reads in the file,
+ * are known before the merge begins. When summaries are on, the count, sum,
+ * minimum, maximum and sum of squares of the values in every bin of every
+ * level are also written to a summary file beside each BVT file.
+ *
+ * @author Antony Holmes
+ */
+public class BinTreeWriter implements Closeable {
+
+  /** The default number of reads buffered in memory across all chromosomes. */
+  public static final int DEFAULT_MAX_READS_IN_MEMORY = 1 << 24;
+
+  /** The initial capacity of a chromosome buffer. */
+  private static final int INITIAL_CAPACITY = 1 << 12;
+
+  /** The size of the buffers used to read and write files. */
+  private static final int IO_BUFFER_BYTES = 1 << 16;
+
+  /** Reads are packed as start (31 bits), value (32 bits), strand (1 bit). */
+  private static final int START_SHIFT = 33;
+
+  /** The Constant VALUE_SHIFT. */
+  private static final int VALUE_SHIFT = 1;
+
+  /** The Constant FLAG_STRAND_MASK. */
+  private static final byte FLAG_STRAND_MASK = 1;
+
+  /** The number of 1kb bins in a full bin tree. */
+  private static final int MAX_MIN_BINS =
+      ReadCountsFileBinTree.BIN_COUNTS[ReadCountsFileBinTree.MIN_BIN_LEVEL];
+
+  /** The m dir. */
+  private final Path mDir;
+
+  /** The m genome. */
+  private final String mGenome;
+
+  /** The m ext. */
+  private final String mExt;
+
+  /** Whether each read carries a value (BVT) or not (BRT2). */
+  private final boolean mValues;
+
+  /** Whether the reads are written in compressed blocks (BRTZ). */
+  private final boolean mCompressed;
+
+  /** Whether the reads are written as columns (BRTC). */
+  private final boolean mColumnar;
+
+  /** The m chrs. */
+  private final Map<String, ChrBuffer> mChrs = new TreeMap<String, ChrBuffer>();
+
+  /** The m sizes. */
+  private final Map<String, Integer> mSizes = new TreeMap<String, Integer>();
+
+  /** The buffer of the chromosome of the last read added. */
+  private ChrBuffer mLast = null;
+
+  /** The m temp dir. */
+  private Path mTempDir;
+
+  /** The m read length. */
+  private int mReadLength = 0;
+
+  /** The m max reads. */
+  private int mMaxReads = DEFAULT_MAX_READS_IN_MEMORY;
+
+  /** The m threads. */
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+
+  /** The number of reads currently buffered. */
+  private long mBuffered = 0;
+
+  /** The m reads. */
+  private long mReads = 0;
+
+  /** The m closed. */
+  private boolean mClosed = false;
+
+  /** The number of reads in each compressed block. */
+  private int mBlockReads = ReadCountsFileBRTZ.DEFAULT_BLOCK_READS;
+
+  /** Whether a summary file is written beside each BVT file. */
+  private boolean mSummaries = false;
+
+  /**
+   * Create a writer of files with a given extension, one of
+   * {@link ReadCountsFileBRT2#FILE_EXT}, {@link ReadCountsFileBRTZ#FILE_EXT},
+   * {@link ReadCountsFileBRTC#FILE_EXT} or {@link ReadCountsFileBVT#FILE_EXT}.
+   *
+   * @param dir the directory to write the chromosome files and meta file to.
+   * @param genome the genome, e.g. hg19
+   * @param ext the ext
+   */
+  public BinTreeWriter(Path dir, String genome, String ext) {
+    mCompressed = ReadCountsFileBRTZ.FILE_EXT.equals(ext);
+    mColumnar = ReadCountsFileBRTC.FILE_EXT.equals(ext);
+
+    if (ReadCountsFileBVT.FILE_EXT.equals(ext)) {
+      mValues = true;
+    } else if (ReadCountsFileBRT2.FILE_EXT.equals(ext) || mCompressed
+        || mColumnar) {
+      mValues = false;
+    } else {
+      throw new IllegalArgumentException(ext + " files cannot be written.");
+    }
+
+    mDir = dir;
+    mTempDir = dir;
+    mGenome = genome;
+    mExt = ext;
+  }
+
+  /**
+   * Sets the read length stored in the header of each file.
+   *
+   * @param readLength the new read length
+   */
+  public void setReadLength(int readLength) {
+    mReadLength = readLength;
+  }
+
+  /**
+   * Sets the length of a chromosome. The tree of a chromosome must cover any
+   * position that may be queried so it spans the length of the chromosome,
+   * or if the length is not known, up to the last read. A chromosome with a
+   * length but no reads is written as a file without reads.
+   *
+   * @param chr the chr
+   * @param size the size
+   */
+  public void setSize(String chr, int size) {
+    mSizes.put(chr, size);
+  }
+
+  /**
+   * Sets the maximum number of reads held in memory before they are spilled
+   * to disk. Each read uses 8 bytes.
+   *
+   * @param maxReads the new max reads in memory
+   */
+  public void setMaxReadsInMemory(int maxReads) {
+    mMaxReads = Math.max(1, maxReads);
+  }
+
+  /**
+   * Sets the number of chromosomes written concurrently.
+   *
+   * @param threads the new threads
+   */
+  public void setThreads(int threads) {
+    mThreads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets the number of reads in each compressed block of a BRTZ file.
+   * Smaller blocks make queries of small regions cheaper at the cost of
+   * compression.
+   *
+   * @param blockReads the new block reads
+   */
+  public void setBlockReads(int blockReads) {
+    mBlockReads = Math.max(1, blockReads);
+  }
+
+  /**
+   * Sets whether a summary file holding the count, sum, minimum, maximum and
+   * sum of squares of the values in every bin of every level is written
+   * beside each BVT file. This must be set before any reads are added.
+   *
+   * @param summaries the new summaries
+   */
+  public void setSummaries(boolean summaries) {
+    if (summaries && !mValues) {
+      throw new IllegalStateException(
+          mExt + " files have no values to summarize.");
+    }
+
+    mSummaries = summaries;
+  }
+
+  /**
+   * Sets the directory used for the temporary run files. By default this is
+   * the output directory.
+   *
+   * @param dir the new temp dir
+   */
+  public void setTempDir(Path dir) {
+    mTempDir = dir;
+  }
+
+  /**
+   * Add a read.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param strand the strand
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(Chromosome chr, int start, Strand strand)
+      throws IOException {
+    add(chr.toString(), start, strand == Strand.ANTISENSE, 0);
+  }
+
+  /**
+   * Add a read.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param strand the strand
+   * @param value the value
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(Chromosome chr, int start, Strand strand, float value)
+      throws IOException {
+    add(chr.toString(), start, strand == Strand.ANTISENSE, value);
+  }
+
+  /**
+   * Add a read. The value is ignored when writing BRT2 files.
+   *
+   * @param chr the name of the chromosome, which is used as the file name.
+   * @param start the one based start of the read.
+   * @param antisense whether the read is on the antisense strand.
+   * @param value the value
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(String chr, int start, boolean antisense, float value)
+      throws IOException {
+    if (mClosed) {
+      throw new IOException("The writer is closed.");
+    }
+
+    if (start < 0 || start >= ReadCountsFileBinTree.MAX_BIN_WIDTH) {
+      throw new IllegalArgumentException(
+          "Read start " + start + " on " + chr + " is outside the tree.");
+    }
+
+    ChrBuffer buffer = mLast;
+
+    // Reads usually arrive grouped by chromosome
+    if (buffer == null || !buffer.mChr.equals(chr)) {
+      buffer = mChrs.get(chr);
+
+      if (buffer == null) {
+        buffer = new ChrBuffer(chr);
+        mChrs.put(chr, buffer);
+      }
+
+      mLast = buffer;
+    }
+
+    int bits = mValues ? Float.floatToRawIntBits(value) : 0;
+
+    buffer.add(((long) start << START_SHIFT)
+        | ((bits & 0xffffffffL) << VALUE_SHIFT) | (antisense ? 1 : 0), value);
+
+    ++mReads;
+
+    if (++mBuffered >= mMaxReads) {
+      spillLargest();
+    }
+  }
+
+  /**
+   * Write the file of each chromosome and the meta file. The writer cannot be
+   * used afterwards.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+
+    mClosed = true;
+
+    Files.createDirectories(mDir);
+
+    // Chromosomes without reads still get a file so that they can be
+    // queried like any other
+    for (String chr : mSizes.keySet()) {
+      if (!mChrs.containsKey(chr)) {
+        mChrs.put(chr, new ChrBuffer(chr));
+      }
+    }
+
+    ExecutorService executor = Executors
+        .newFixedThreadPool(Math.max(1, Math.min(mThreads, mChrs.size())));
+
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+      for (final ChrBuffer buffer : mChrs.values()) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            try {
+              write(buffer);
+            } finally {
+              buffer.deleteRuns();
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+
+          throw new IOException(e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+
+          throw new IOException(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+
+      for (ChrBuffer buffer : mChrs.values()) {
+        buffer.deleteRuns();
+      }
+    }
+
+    String meta = "{\"Genome\":" + toJsonString(mGenome)
+        + ",\"Mapped Reads\":" + mReads + "}";
+
+    Files.write(mDir.resolve("meta.json"),
+        meta.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns a string as a quoted JSON string, escaping quotes, backslashes
+   * and control characters.
+   *
+   * @param s the s
+   * @return the JSON string
+   */
+  static String toJsonString(String s) {
+    StringBuilder ret = new StringBuilder(s.length() + 2);
+
+    ret.append('"');
+
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+
+      switch (c) {
+      case '"':
+        ret.append("\\\"");
+        break;
+      case '\\':
+        ret.append("\\\\");
+        break;
+      case '\n':
+        ret.append("\\n");
+        break;
+      case '\r':
+        ret.append("\\r");
+        break;
+      case '\t':
+        ret.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          ret.append(String.format("\\u%04x", (int) c));
+        } else {
+          ret.append(c);
+        }
+        break;
+      }
+    }
+
+    ret.append('"');
+
+    return ret.toString();
+  }
+
+  /**
+   * Sort and spill the largest chromosome buffer to disk.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void spillLargest() throws IOException {
+    ChrBuffer largest = null;
+
+    for (ChrBuffer buffer : mChrs.values()) {
+      if (largest == null || buffer.mSize > largest.mSize) {
+        largest = buffer;
+      }
+    }
+
+    mBuffered -= largest.mSize;
+
+    Files.createDirectories(mTempDir);
+
+    largest.spill(mTempDir);
+  }
+
+  /**
+   * Write the file of one chromosome. The header, tree and multi resolution
+   * counts are derived from the 1kb bin counts, then the sorted reads are
+   * merged from the runs and the in memory buffer.
+   *
+   * @param buffer the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void write(ChrBuffer buffer) throws IOException {
+    int extent = buffer.mMaxStart;
+
+    Integer size = mSizes.get(buffer.mChr);
+
+    if (size != null) {
+      extent = Math.max(extent,
+          Math.min(size, ReadCountsFileBinTree.MAX_BIN_WIDTH - 1));
+    }
+
+    int bins = extent / ReadCountsFileBinTree.MIN_BIN_WIDTH + 1;
+
+    // Cumulative read counts so that the reads in any range of 1kb bins
+    // can be found in constant time.
+    int[] cum = new int[bins + 1];
+
+    for (int i = 0; i < bins; ++i) {
+      cum[i + 1] = cum[i]
+          + (i < buffer.mCounts.length ? buffer.mCounts[i] : 0);
+    }
+
+    ByteBuffer tree = tree(extent, cum);
+
+    int dataOffset = ReadCountsFileBinTree.HEADER_OFFSET_BYTES
+        + tree.capacity();
+
+    Path file = mDir.resolve(buffer.mChr + "." + mExt);
+
+    FileChannel out = FileChannel.open(file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+
+    try {
+      writeFully(out, header(dataOffset));
+      writeFully(out, tree);
+      writeFully(out,
+          multiRes(buffer,
+              Math.min(bins, buffer.mCounts.length)));
+
+      long n;
+
+      if (mCompressed) {
+        // The block index follows the multi resolution counts but its
+        // offsets are only known once the blocks have been written.
+        long indexOffset = out.position();
+
+        int blocks = ReadCountsFileBRTZ.blocks(cum[bins], mBlockReads);
+
+        ByteBuffer index = ByteBuffer
+            .allocate(ReadCountsFileBRTZ.BLOCK_INDEX_HEADER_BYTES
+                + (blocks + 1) * 8);
+
+        out.position(indexOffset + index.capacity());
+
+        BlockEncoder encoder = new BlockEncoder(out, blocks);
+
+        n = merge(buffer, out, encoder);
+
+        encoder.finish();
+
+        index.putInt(mBlockReads);
+        index.putInt(cum[bins]);
+
+        for (long offset : encoder.mOffsets) {
+          index.putLong(offset);
+        }
+
+        index.flip();
+
+        while (index.hasRemaining()) {
+          out.write(index, indexOffset + index.position());
+        }
+      } else if (mColumnar) {
+        ByteBuffer count = ByteBuffer
+            .allocate(ReadCountsFileBRTC.READ_COUNT_BYTES);
+
+        count.putInt(0, cum[bins]);
+
+        writeFully(out, count);
+
+        ColumnEncoder encoder = new ColumnEncoder(out, cum[bins]);
+
+        n = merge(buffer, out, encoder);
+
+        encoder.finish();
+      } else {
+        n = merge(buffer, out, null);
+      }
+
+      if (n != cum[bins]) {
+        throw new IOException("Expected " + cum[bins] + " reads on "
+            + buffer.mChr + " but merged " + n + ".");
+      }
+    } finally {
+      out.close();
+    }
+
+    if (mSummaries) {
+      writeSummaries(buffer, extent);
+    }
+  }
+
+  /**
+   * Build the header of a file.
+   *
+   * @param dataOffset the data offset
+   * @return the byte buffer
+   */
+  private ByteBuffer header(int dataOffset) {
+    ByteBuffer ret = ByteBuffer
+        .allocate(ReadCountsFileBinTree.HEADER_OFFSET_BYTES);
+
+    ret.putInt(mReadLength);
+    ret.putInt(dataOffset);
+
+    byte[] genome = mGenome.getBytes(StandardCharsets.US_ASCII);
+
+    ret.put(genome,
+        0,
+        Math.min(genome.length, ReadCountsFileBin.GENOME.length));
+
+    ret.position(0);
+
+    return ret;
+  }
+
+  /**
+   * Write the summary file of one chromosome. After the header comes the
+   * number of bins of each level, enough to cover the extent of the
+   * chromosome, then the summary of every bin of each level in turn, all
+   * derived from the statistics of the 1kb bins.
+   *
+   * @param buffer the buffer
+   * @param extent the last position the levels must cover
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeSummaries(ChrBuffer buffer, int extent)
+      throws IOException {
+    int levels = ReadCountsFileBinTree.BIN_WIDTHS.length;
+
+    int bins = Math.min(extent / ReadCountsFileBinTree.MIN_BIN_WIDTH + 1,
+        buffer.mCounts.length);
+
+    int[] sizes = new int[levels];
+    int total = 0;
+
+    for (int l = 0; l < levels; ++l) {
+      sizes[l] = extent / ReadCountsFileBinTree.BIN_WIDTHS[l] + 1;
+      total += sizes[l];
+    }
+
+    ByteBuffer summaries = ByteBuffer
+        .allocate(total * ReadCountsFileBVT.SUMMARY_WIDTH_BYTES);
+
+    for (int l = 0; l < levels; ++l) {
+      int scale = ReadCountsFileBinTree.BIN_WIDTHS[l]
+          / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+      for (int b = 0; b < sizes[l]; ++b) {
+        int s = (int) Math.min((long) b * scale, bins);
+        int e = Math.min(s + scale, bins);
+
+        int count = 0;
+        float min = 0;
+        float max = 0;
+        double sum = 0;
+        double squares = 0;
+
+        for (int i = s; i < e; ++i) {
+          if (buffer.mCounts[i] == 0) {
+            continue;
+          }
+
+          if (count == 0) {
+            min = buffer.mMins[i];
+            max = buffer.mMaxs[i];
+          } else {
+            min = Math.min(min, buffer.mMins[i]);
+            max = Math.max(max, buffer.mMaxs[i]);
+          }
+
+          count += buffer.mCounts[i];
+          sum += buffer.mSums[i];
+          squares += buffer.mSquares[i];
+        }
+
+        summaries.putInt(count);
+        summaries.putFloat(min);
+        summaries.putFloat(max);
+        summaries.putDouble(sum);
+        summaries.putDouble(squares);
+      }
+    }
+
+    summaries.position(0);
+
+    ByteBuffer header =
+        ByteBuffer.allocate(ReadCountsFileBVT.SUMMARY_OFFSET_BYTES);
+
+    header.put(header(ReadCountsFileBVT.SUMMARY_OFFSET_BYTES));
+
+    for (int size : sizes) {
+      header.putInt(size);
+    }
+
+    header.position(0);
+
+    Path file = mDir
+        .resolve(buffer.mChr + "." + ReadCountsFileBVT.SUMMARY_EXT);
+
+    FileChannel out = FileChannel.open(file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+
+    try {
+      writeFully(out, header);
+      writeFully(out, summaries);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Build the tree of a chromosome. Every level is dense: level 0 is the
+   * single 1Gb bin and each bin containing a position up to the extent of
+   * the chromosome has a group of 10 children on the next level. Levels are
+   * written one after another so each group can be located arithmetically.
+   *
+   * @param extent the last position the tree must cover
+   * @param cum the cumulative 1kb bin counts
+   * @return the byte buffer
+   */
+  private static ByteBuffer tree(int extent, int[] cum) {
+    int levels = ReadCountsFileBinTree.BIN_WIDTHS.length;
+
+    int[] levelStart = new int[levels + 1];
+    int[] levelSize = new int[levels];
+
+    levelSize[0] = 1;
+
+    for (int l = 1; l < levels; ++l) {
+      levelStart[l] = levelStart[l - 1] + levelSize[l - 1];
+      levelSize[l] = (extent / ReadCountsFileBinTree.BIN_WIDTHS[l - 1] + 1)
+          * ReadCountsFileBinTree.BIN_DIVISIONS;
+    }
+
+    levelStart[levels] = levelStart[levels - 1] + levelSize[levels - 1];
+
+    ByteBuffer ret = ByteBuffer
+        .allocate(levelStart[levels] * ReadCountsFileBinTree.BLOCK_SIZE_BYTES);
+
+    int bins = cum.length - 1;
+
+    for (int l = 0; l < levels; ++l) {
+      int width = ReadCountsFileBinTree.BIN_WIDTHS[l];
+
+      // How many 1kb bins make up a bin on this level
+      int scale = width / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+      int lastParent = extent / width;
+
+      for (int b = 0; b < levelSize[l]; ++b) {
+        int gso = -1;
+
+        if (l < levels - 1 && b <= lastParent) {
+          int group = l == 0 ? 0
+              : levelStart[l] + b / ReadCountsFileBinTree.BIN_DIVISIONS
+                  * ReadCountsFileBinTree.BIN_DIVISIONS;
+
+          int child = levelStart[l + 1]
+              + b * ReadCountsFileBinTree.BIN_DIVISIONS;
+
+          gso = (child - group) * ReadCountsFileBinTree.BLOCK_SIZE_BYTES;
+        }
+
+        long s = (long) b * scale;
+        long e = s + scale;
+
+        ret.putInt(b);
+        ret.putInt(b * width);
+        ret.putInt(width);
+        ret.putInt(cum[(int) Math.min(s, bins)]);
+        ret.putInt(cum[(int) Math.min(e, bins)] - 1);
+        ret.putInt(gso);
+      }
+    }
+
+    ret.position(0);
+
+    return ret;
+  }
+
+  /**
+   * Build the multi resolution section, which holds the count (BRT2) or sum
+   * of values (BVT) of every bin on every level of a full tree.
+   *
+   * @param buffer the buffer
+   * @param bins the number of 1kb bins
+   * @return the byte buffer
+   */
+  private ByteBuffer multiRes(ChrBuffer buffer, int bins) {
+    ByteBuffer ret = ByteBuffer.allocate(ReadCountsFileBinTree.RAW_OFFSET);
+
+    for (int l = 0; l < ReadCountsFileBinTree.BIN_WIDTHS.length; ++l) {
+      int scale = ReadCountsFileBinTree.BIN_WIDTHS[l]
+          / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+      int offset = ReadCountsFileBinTree.CUM_BIN_COUNTS[l];
+
+      for (int b = 0; b < ReadCountsFileBinTree.BIN_COUNTS[l]; ++b) {
+        int s = Math.min(b * scale, bins);
+        int e = Math.min(s + scale, bins);
+
+        int p = (offset + b) * ReadCountsFileBinTree.MULTI_RES_WIDTH_BYTES;
+
+        if (mValues) {
+          double sum = 0;
+
+          for (int i = s; i < e; ++i) {
+            sum += buffer.mSums[i];
+          }
+
+          ret.putFloat(p, (float) sum);
+        } else {
+          int sum = 0;
+
+          for (int i = s; i < e; ++i) {
+            sum += buffer.mCounts[i];
+          }
+
+          ret.putInt(p, sum);
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Merge the sorted runs and the sorted in memory reads of a chromosome and
+   * append the records to a file, or pass them to an encoder.
+   *
+   * @param buffer the buffer
+   * @param out the out
+   * @param encoder the encoder of the raw section, or null to write
+   *          (start, flags) records.
+   * @return the number of records written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private long merge(ChrBuffer buffer, FileChannel out, RecordEncoder encoder)
+      throws IOException {
+    Arrays.sort(buffer.mReads, 0, buffer.mSize);
+
+    PriorityQueue<Run> queue = new PriorityQueue<Run>();
+
+    List<Run> runs = new ArrayList<Run>();
+
+    try {
+      runs.add(new Run(buffer.mReads, buffer.mSize));
+
+      for (Path file : buffer.mRuns) {
+        runs.add(new Run(file));
+      }
+
+      for (Run run : runs) {
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+
+      int width = mValues ? ReadCountsFileBVT.READ_WIDTH_BYTES
+          : ReadCountsFileBRT2.READ_WIDTH_BYTES;
+
+      ByteBuffer records = ByteBuffer.allocate(IO_BUFFER_BYTES / width * width);
+
+      long n = 0;
+
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+
+        // Drain the smallest run for as long as it stays the smallest
+        Run second = queue.peek();
+
+        do {
+          long read = run.mHead;
+
+          if (encoder != null) {
+            encoder.add((int) (read >>> START_SHIFT),
+                (byte) (read & FLAG_STRAND_MASK));
+          } else {
+            if (records.remaining() < width) {
+              records.flip();
+              writeFully(out, records);
+              records.clear();
+            }
+
+            records.putInt((int) (read >>> START_SHIFT));
+
+            if (mValues) {
+              records.putInt((int) (read >>> VALUE_SHIFT));
+            }
+
+            records.put((byte) (read & FLAG_STRAND_MASK));
+          }
+
+          ++n;
+
+          if (!run.next()) {
+            run = null;
+            break;
+          }
+        } while (second == null || run.mHead <= second.mHead);
+
+        if (run != null) {
+          queue.add(run);
+        }
+      }
+
+      records.flip();
+      writeFully(out, records);
+
+      return n;
+    } finally {
+      for (Run run : runs) {
+        run.close();
+      }
+    }
+  }
+
+  /**
+   * Write the whole of a buffer to a channel.
+   *
+   * @param out the out
+   * @param buffer the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeFully(FileChannel out, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Write the mapped reads of a BAM file to a directory of BRT2 files. The
+   * chromosome lengths are taken from the header.
+   *
+   * @param bam the bam
+   * @param dir the dir
+   * @param genome the genome
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void fromBam(Path bam, Path dir, String genome)
+      throws IOException {
+    BinTreeWriter writer = new BinTreeWriter(dir, genome,
+        ReadCountsFileBRT2.FILE_EXT);
+
+    writer.setReadLength(SamUtils.getReadLengthFromBam(bam));
+
+    SamReader reader = SamReaderFactory.makeDefault()
+        .validationStringency(ValidationStringency.SILENT).open(bam.toFile());
+
+    try {
+      for (SAMSequenceRecord seq : reader.getFileHeader()
+          .getSequenceDictionary().getSequences()) {
+        writer.setSize(seq.getSequenceName(), seq.getSequenceLength());
+      }
+
+      SAMRecordIterator iter = reader.iterator();
+
+      try {
+        SAMRecord record;
+
+        while (iter.hasNext()) {
+          record = iter.next();
+
+          if (record.getReadUnmappedFlag()) {
+            continue;
+          }
+
+          writer.add(record.getReferenceName(),
+              record.getStart(),
+              record.getReadNegativeStrandFlag(),
+              0);
+        }
+      } finally {
+        iter.close();
+      }
+    } finally {
+      reader.close();
+    }
+
+    writer.close();
+  }
+
+  /**
+   * Encodes the sorted reads of a chromosome in a raw section layout other
+   * than consecutive (start, flags) records.
+   */
+  private interface RecordEncoder {
+
+    /**
+     * Add the next read in start order.
+     *
+     * @param start the start
+     * @param flags the flags
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void add(int start, byte flags) throws IOException;
+
+    /**
+     * Write anything still buffered once every read has been added.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void finish() throws IOException;
+  }
+
+  /**
+   * Writes the starts of the sorted reads to a BRTC file as they are added
+   * and the strand bitmap once they have all been added.
+   */
+  private static class ColumnEncoder implements RecordEncoder {
+
+    /** The m out. */
+    private final FileChannel mOut;
+
+    /** The m starts. */
+    private final ByteBuffer mStarts = ByteBuffer.allocate(IO_BUFFER_BYTES);
+
+    /** One bit per read, set for reads on the antisense strand. */
+    private final byte[] mStrands;
+
+    /** The m n. */
+    private int mN = 0;
+
+    /**
+     * Instantiates a new column encoder.
+     *
+     * @param out the out
+     * @param reads the number of reads that will be added
+     */
+    public ColumnEncoder(FileChannel out, int reads) {
+      mOut = out;
+      mStrands = new byte[(reads + 7) / 8];
+    }
+
+    @Override
+    public void add(int start, byte flags) throws IOException {
+      if (!mStarts.hasRemaining()) {
+        mStarts.flip();
+        writeFully(mOut, mStarts);
+        mStarts.clear();
+      }
+
+      mStarts.putInt(start);
+
+      if ((flags & FLAG_STRAND_MASK) == FLAG_STRAND_MASK) {
+        mStrands[mN >>> 3] |= 1 << (mN & 7);
+      }
+
+      ++mN;
+    }
+
+    @Override
+    public void finish() throws IOException {
+      mStarts.flip();
+      writeFully(mOut, mStarts);
+
+      writeFully(mOut, ByteBuffer.wrap(mStrands));
+    }
+  }
+
+  /**
+   * Groups sorted reads into fixed size blocks, delta encodes and deflates
+   * each block and appends it to a BRTZ file.
+   */
+  private class BlockEncoder implements RecordEncoder {
+
+    /** The m out. */
+    private final FileChannel mOut;
+
+    /** The m deflater. */
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * The starts of the current block as variable length deltas, each at most
+     * 5 bytes, followed by the flags once the block is full.
+     */
+    private final byte[] mEncoded = new byte[mBlockReads * 6];
+
+    /** The flags of the current block. */
+    private final byte[] mFlags = new byte[mBlockReads];
+
+    /** The compressed block. */
+    private byte[] mCompressed = new byte[IO_BUFFER_BYTES];
+
+    /** The offset of each block, plus the end of the last block. */
+    private final long[] mOffsets;
+
+    /** The number of bytes of encoded starts. */
+    private int mP = 0;
+
+    /** The number of reads in the current block. */
+    private int mN = 0;
+
+    /** The m block. */
+    private int mBlock = 0;
+
+    /** The m last start. */
+    private int mLastStart = 0;
+
+    /**
+     * Instantiates a new block encoder.
+     *
+     * @param out the out
+     * @param blocks the number of blocks that will be written
+     */
+    public BlockEncoder(FileChannel out, int blocks) {
+      mOut = out;
+      mOffsets = new long[blocks + 1];
+    }
+
+    @Override
+    public void add(int start, byte flags) throws IOException {
+      int delta = start - mLastStart;
+
+      while ((delta & ~0x7F) != 0) {
+        mEncoded[mP++] = (byte) ((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+
+      mEncoded[mP++] = (byte) delta;
+
+      mFlags[mN++] = flags;
+
+      mLastStart = start;
+
+      if (mN == mBlockReads) {
+        flush();
+      }
+    }
+
+    @Override
+    public void finish() throws IOException {
+      // Write the last partial block and release the deflater
+      try {
+        if (mN > 0) {
+          flush();
+        }
+      } finally {
+        mDeflater.end();
+      }
+    }
+
+    /**
+     * Compress and write the current block.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void flush() throws IOException {
+      // The flags follow the starts
+      System.arraycopy(mFlags, 0, mEncoded, mP, mN);
+
+      mDeflater.reset();
+      mDeflater.setInput(mEncoded, 0, mP + mN);
+      mDeflater.finish();
+
+      int length = 0;
+
+      while (!mDeflater.finished()) {
+        if (length == mCompressed.length) {
+          mCompressed = Arrays.copyOf(mCompressed, length * 2);
+        }
+
+        length += mDeflater.deflate(mCompressed,
+            length,
+            mCompressed.length - length);
+      }
+
+      writeFully(mOut, ByteBuffer.wrap(mCompressed, 0, length));
+
+      mOffsets[mBlock + 1] = mOffsets[mBlock] + length;
+
+      ++mBlock;
+
+      mP = 0;
+      mN = 0;
+      mLastStart = 0;
+    }
+  }
+
+  /**
+   * The reads of one chromosome held in memory, the run files they have
+   * been spilled to and the number of reads in each 1kb bin.
+   */
+  private class ChrBuffer {
+
+    /** The m chr. */
+    private final String mChr;
+
+    /** The m runs. */
+    private final List<Path> mRuns = new ArrayList<Path>();
+
+    /** The m reads. */
+    private long[] mReads = new long[INITIAL_CAPACITY];
+
+    /** The m size. */
+    private int mSize = 0;
+
+    /** The number of reads in each 1kb bin. */
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+
+    /** The sum of the values in each 1kb bin. */
+    private double[] mSums;
+
+    /** The smallest value in each 1kb bin when writing summaries. */
+    private float[] mMins;
+
+    /** The largest value in each 1kb bin when writing summaries. */
+    private float[] mMaxs;
+
+    /** The sum of the squares of the values in each 1kb bin. */
+    private double[] mSquares;
+
+    /** The m max start. */
+    private int mMaxStart = 0;
+
+    /**
+     * Instantiates a new chr buffer.
+     *
+     * @param chr the chr
+     */
+    public ChrBuffer(String chr) {
+      mChr = chr;
+
+      if (mValues) {
+        mSums = new double[INITIAL_CAPACITY];
+      }
+
+      if (mSummaries) {
+        mMins = new float[INITIAL_CAPACITY];
+        mMaxs = new float[INITIAL_CAPACITY];
+        mSquares = new double[INITIAL_CAPACITY];
+      }
+    }
+
+    /**
+     * Add a packed read.
+     *
+     * @param read the read
+     * @param value the value
+     */
+    public void add(long read, float value) {
+      if (mSize == mReads.length) {
+        mReads = Arrays.copyOf(mReads, mSize * 2);
+      }
+
+      mReads[mSize++] = read;
+
+      int start = (int) (read >>> START_SHIFT);
+
+      int bin = start / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+      if (bin >= mCounts.length) {
+        int l = Math.min(MAX_MIN_BINS,
+            Math.max(bin + 1, mCounts.length * 2));
+
+        mCounts = Arrays.copyOf(mCounts, l);
+
+        if (mValues) {
+          mSums = Arrays.copyOf(mSums, l);
+        }
+
+        if (mSummaries) {
+          mMins = Arrays.copyOf(mMins, l);
+          mMaxs = Arrays.copyOf(mMaxs, l);
+          mSquares = Arrays.copyOf(mSquares, l);
+        }
+      }
+
+      if (mSummaries) {
+        if (mCounts[bin] == 0) {
+          mMins[bin] = value;
+          mMaxs[bin] = value;
+        } else {
+          mMins[bin] = Math.min(mMins[bin], value);
+          mMaxs[bin] = Math.max(mMaxs[bin], value);
+        }
+
+        mSquares[bin] += (double) value * value;
+      }
+
+      ++mCounts[bin];
+
+      if (mValues) {
+        mSums[bin] += value;
+      }
+
+      mMaxStart = Math.max(mMaxStart, start);
+    }
+
+    /**
+     * Sort the buffered reads and write them to a new run file.
+     *
+     * @param dir the dir
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void spill(Path dir) throws IOException {
+      Arrays.sort(mReads, 0, mSize);
+
+      Path file = Files.createTempFile(dir, mChr + ".", ".run");
+
+      mRuns.add(file);
+
+      FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE);
+
+      try {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES);
+
+        for (int i = 0; i < mSize; ++i) {
+          if (!buffer.hasRemaining()) {
+            buffer.flip();
+            writeFully(out, buffer);
+            buffer.clear();
+          }
+
+          buffer.putLong(mReads[i]);
+        }
+
+        buffer.flip();
+        writeFully(out, buffer);
+      } finally {
+        out.close();
+      }
+
+      // Reads from a sorted BAM arrive one chromosome after another, so
+      // release the memory rather than keep it for reads that may not come.
+      mReads = new long[INITIAL_CAPACITY];
+      mSize = 0;
+    }
+
+    /**
+     * Delete the run files.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void deleteRuns() throws IOException {
+      for (Path file : mRuns) {
+        Files.deleteIfExists(file);
+      }
+
+      mRuns.clear();
+    }
+  }
+
+  /**
+   * A sorted sequence of packed reads, either in memory or in a run file,
+   * positioned on its smallest unmerged read.
+   */
+  private static class Run implements Comparable<Run>, Closeable {
+
+    /** The m reads. */
+    private final long[] mReads;
+
+    /** The m size. */
+    private final int mSize;
+
+    /** The m in. */
+    private final FileChannel mIn;
+
+    /** The m buffer. */
+    private final ByteBuffer mBuffer;
+
+    /** The m index. */
+    private int mIndex = 0;
+
+    /** The m head. */
+    private long mHead;
+
+    /**
+     * Instantiates a run over sorted reads in memory.
+     *
+     * @param reads the reads
+     * @param size the size
+     */
+    public Run(long[] reads, int size) {
+      mReads = reads;
+      mSize = size;
+      mIn = null;
+      mBuffer = null;
+    }
+
+    /**
+     * Instantiates a run over a run file.
+     *
+     * @param file the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Run(Path file) throws IOException {
+      mReads = null;
+      mSize = 0;
+      mIn = FileChannel.open(file, StandardOpenOption.READ);
+      mBuffer = ByteBuffer.allocate(IO_BUFFER_BYTES);
+      mBuffer.flip();
+    }
+
+    /**
+     * Advance to the next read.
+     *
+     * @return true, if there was another read.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public boolean next() throws IOException {
+      if (mIn == null) {
+        if (mIndex == mSize) {
+          return false;
+        }
+
+        mHead = mReads[mIndex++];
+
+        return true;
+      }
+
+      if (mBuffer.remaining() < 8) {
+        mBuffer.compact();
+
+        while (mBuffer.position() < 8) {
+          if (mIn.read(mBuffer) == -1) {
+            break;
+          }
+        }
+
+        mBuffer.flip();
+
+        if (mBuffer.remaining() < 8) {
+          return false;
+        }
+      }
+
+      mHead = mBuffer.getLong();
+
+      return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(Run r) {
+      return Long.compare(mHead, r.mHead);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+      if (mIn != null) {
+        mIn.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Sequential big endian reader over a count file. Allows the tree and record
+ * decoders to run unchanged over either a file handle or a memory mapping.
+ */
+public interface BinaryReader extends Closeable {
+
+  /**
+   * Move to an absolute byte offset in the file.
+   *
+   * @param pos the pos
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void seek(long pos) throws IOException;
+
+  /**
+   * Read int.
+   *
+   * @return the int
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int readInt() throws IOException;
+
+  /**
+   * Read byte.
+   *
+   * @return the byte
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public byte readByte() throws IOException;
+
+  /**
+   * Read float.
+   *
+   * @return the float
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public float readFloat() throws IOException;
+
+  /**
+   * Read exactly len bytes into a buffer.
+   *
+   * @param b the b
+   * @param off the off
+   * @param len the len
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void readFully(byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Returns the size of the file in bytes.
+   *
+   * @return the long
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public long size() throws IOException;
+
+  /**
+   * Read the next len bytes in one operation and return them as a big endian
+   * buffer positioned at zero. This allows a block of records to be fetched
+   * with a single read and then decoded in memory.
+   *
+   * @param len the len
+   * @return the byte buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  default ByteBuffer readBuffer(int len) throws IOException {
+    byte[] b = new byte[len];
+
+    readFully(b, 0, len);
+
+    return ByteBuffer.wrap(b);
+  }
+
+  /**
+   * Read the next len bytes as {@link #readBuffer(int)} does, but allow the
+   * reader to return a buffer it reuses. The buffer is only valid until the
+   * next call to this method on the same thread, so it must be decoded
+   * before another block is read. By default this is the same as
+   * {@link #readBuffer(int)}.
+   *
+   * @param len the len
+   * @return the byte buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  default ByteBuffer readScratch(int len) throws IOException {
+    return readBuffer(len);
+  }
+
+  /**
+   * Returns the file being read so that metrics can be attributed to it.
+   *
+   * @return the file, or null if the reader does not know its file.
+   */
+  default Path getFile() {
+    return null;
+  }
+}
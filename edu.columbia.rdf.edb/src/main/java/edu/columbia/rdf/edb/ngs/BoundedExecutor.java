@@ -0,0 +1,268 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs at most a fixed number of tasks at once on another executor. Tasks
+ * beyond the limit wait in a queue rather than occupying a thread, so many
+ * bounded executors can share one underlying executor without any of them
+ * starving the others.
+ * 
+ * If the underlying executor rejects a queued task, for instance because it
+ * has been shut down, a {@link Task} fails its future with the
+ * RejectedExecutionException and the next queued task is tried, so that no
+ * caller waits forever on a task that will never run. A task passed to
+ * {@link #execute(Runnable)} that is rejected straight away fails the same
+ * way, whereas other runnables are rejected by throwing.
+ *
+ * @author Antony Holmes
+ */
+public class BoundedExecutor implements Executor {
+
+  /** The m executor. */
+  private final Executor mExecutor;
+
+  /** The m max running. */
+  private final int mMaxRunning;
+
+  /** Tasks waiting for a running task to finish. */
+  private final Queue<Runnable> mQueue = new ArrayDeque<Runnable>();
+
+  /** The m running. */
+  private int mRunning = 0;
+
+  /**
+   * Instantiates a new bounded executor.
+   *
+   * @param executor the executor to run tasks on
+   * @param maxRunning the maximum number of tasks running at once
+   */
+  public BoundedExecutor(Executor executor, int maxRunning) {
+    mExecutor = executor;
+    mMaxRunning = Math.max(1, maxRunning);
+  }
+
+  /**
+   * Gets the maximum number of tasks running at once.
+   *
+   * @return the max running
+   */
+  public int getMaxRunning() {
+    return mMaxRunning;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+   */
+  @Override
+  public void execute(Runnable command) {
+    synchronized (this) {
+      if (mRunning >= mMaxRunning) {
+        mQueue.add(command);
+
+        return;
+      }
+
+      ++mRunning;
+    }
+
+    try {
+      run(command);
+    } catch (RejectedExecutionException e) {
+      next();
+
+      if (command instanceof Task) {
+        ((Task<?>) command).reject(e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Passes a task to the underlying executor, starting the next queued task
+   * once it finishes.
+   *
+   * @param command the command
+   */
+  private void run(final Runnable command) {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          command.run();
+        } finally {
+          next();
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts the next queued task that the underlying executor accepts, or
+   * frees a slot if there is none.
+   */
+  private void next() {
+    while (true) {
+      Runnable command;
+
+      synchronized (this) {
+        command = mQueue.poll();
+
+        if (command == null) {
+          --mRunning;
+
+          return;
+        }
+      }
+
+      try {
+        run(command);
+
+        return;
+      } catch (RejectedExecutionException e) {
+        if (command instanceof Task) {
+          ((Task<?>) command).reject(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the executor shared by asynchronous reads unless another is
+   * given. On Java 21 and later this starts a virtual thread per task,
+   * otherwise it is a pool of daemon threads that grows as needed.
+   *
+   * @return the default executor
+   */
+  public static Executor getDefault() {
+    return DefaultExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * A task whose result completes a future. The future fails with any
+   * exception the task throws, or with the RejectedExecutionException if
+   * the task cannot be run.
+   *
+   * @param <T> the type of the result
+   */
+  public abstract static class Task<T> implements Runnable {
+
+    /** The m future. */
+    private final CompletableFuture<T> mFuture = new CompletableFuture<T>();
+
+    /**
+     * Gets the future completed by the task.
+     *
+     * @return the future
+     */
+    public CompletableFuture<T> getFuture() {
+      return mFuture;
+    }
+
+    /**
+     * Computes the result.
+     *
+     * @return the result
+     * @throws Exception the exception
+     */
+    protected abstract T call() throws Exception;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+      try {
+        mFuture.complete(call());
+      } catch (Throwable e) {
+        mFuture.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * Fails the future of a task that cannot be run.
+     *
+     * @param e the exception
+     */
+    public void reject(RejectedExecutionException e) {
+      mFuture.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Holds the default executor so that it is created on first use.
+   */
+  private static class DefaultExecutorHolder {
+
+    /** The Constant EXECUTOR. */
+    private static final Executor EXECUTOR = create();
+
+    /**
+     * Creates the default executor. Virtual threads are found by reflection
+     * so that the library still runs on Java 8.
+     *
+     * @return the executor
+     */
+    private static Executor create() {
+      try {
+        Method method =
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+        return (Executor) method.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        return Executors.newCachedThreadPool(new ReadThreadFactory());
+      }
+    }
+  }
+
+  /**
+   * Creates daemon threads so that reads never keep an application running.
+   */
+  private static class ReadThreadFactory implements ThreadFactory {
+
+    /** The m count. */
+    private final AtomicInteger mCount = new AtomicInteger(0);
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "count-read-" + mCount.incrementAndGet());
+
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,1060 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+/**
+ * Caches the counts and values of another count assembly so that panning and
+ * zooming over the same loci does not read the files again. Bins are
+ * grouped into fixed size tiles for each window, and any region is assembled
+ * from the tiles it overlaps. Tiles are evicted least recently used first
+ * once the cache exceeds its size in bytes.
+ *
+ * Tiles hold whole bins in the bin numbering of the underlying assembly. The
+ * boundary bins at each end of a region, whose counts depend on exactly
+ * where the region starts and ends, are always read from the underlying
+ * assembly, so the cache returns the same counts as the assembly it wraps.
+ *
+ * @author Antony Holmes
+ */
+public class CachingCountAssembly extends CountAssembly {
+
+  /** The default maximum size of the cache in bytes. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** The default number of bins in a tile. */
+  public static final int DEFAULT_TILE_BINS = 1024;
+
+  /** Approximate bytes used by a tile in addition to its array. */
+  private static final int TILE_OVERHEAD_BYTES = 96;
+
+  /** The m assembly. */
+  private final CountAssembly mAssembly;
+
+  /** The m tile bins. */
+  private final int mTileBins;
+
+  /** The format of the assembly, under which cache hits are recorded. */
+  private final String mFormat;
+
+  /** The m max bytes. */
+  private final long mMaxBytes;
+
+  /** The tiles in least recently used order. Guarded by itself. */
+  private final Map<TileKey, Object> mTiles =
+      new LinkedHashMap<TileKey, Object>(16, 0.75f, true);
+
+  /** The m bytes. */
+  private long mBytes = 0;
+
+  /** The m hits. */
+  private long mHits = 0;
+
+  /** The m misses. */
+  private long mMisses = 0;
+
+  /** The m evictions. */
+  private long mEvictions = 0;
+
+  /** Tiles loaded by {@link #prefetch} that have not yet been requested. */
+  private final Set<TileKey> mPrefetched = new HashSet<TileKey>();
+
+  /** The m prefetch used. */
+  private long mPrefetchUsed = 0;
+
+  /**
+   * Instantiates a new caching count assembly.
+   *
+   * @param assembly the assembly
+   */
+  public CachingCountAssembly(CountAssembly assembly) {
+    this(assembly, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Instantiates a new caching count assembly.
+   *
+   * @param assembly the assembly
+   * @param maxBytes the max bytes
+   */
+  public CachingCountAssembly(CountAssembly assembly, long maxBytes) {
+    this(assembly, maxBytes, DEFAULT_TILE_BINS);
+  }
+
+  /**
+   * Instantiates a new caching count assembly.
+   *
+   * @param assembly the assembly
+   * @param maxBytes the maximum size of the cache in bytes.
+   * @param tileBins the number of bins in a tile.
+   */
+  public CachingCountAssembly(CountAssembly assembly,
+      long maxBytes,
+      int tileBins) {
+    mAssembly = assembly;
+    mMaxBytes = maxBytes;
+    mTileBins = Math.max(1, tileBins);
+    mFormat = CountMetrics.getFormat(assembly);
+  }
+
+  /**
+   * Returns the assembly being cached.
+   *
+   * @return the assembly
+   */
+  public CountAssembly getAssembly() {
+    return mAssembly;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window)
+      throws IOException {
+    int[] ret = new int[getBinCount(region, window)];
+
+    getCounts(region, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    int n = fillCounts(region, window, out, offset);
+
+    served(region, window, false);
+
+    return n;
+  }
+
+  /**
+   * Assemble the counts of a region from tiles.
+   *
+   * @param region the region
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int fillCounts(GenomicRegion region,
+      int window,
+      int[] out,
+      int offset) throws IOException {
+    int n = getBinCount(region, window);
+    int k = mAssembly.getBoundaryBins(window);
+
+    if (n <= 2 * k || !isTiled(region.getChr(), window)) {
+      return mAssembly.getCounts(region, window, out, offset);
+    }
+
+    Chromosome chr = region.getChr();
+    int first = getStartBin(region, window);
+
+    for (int i = k; i < n - k;) {
+      int bin = first + i;
+      int tile = bin / mTileBins;
+      int o = bin - tile * mTileBins;
+      int l = Math.min(mTileBins - o, n - k - i);
+
+      int[] counts = (int[]) getTile(new TileKey(chr, window, tile, false));
+
+      // The assembly has no counts at this window
+      if (counts.length == 0) {
+        return mAssembly.getCounts(region, window, out, offset);
+      }
+
+      System.arraycopy(counts, o, out, offset + i, l);
+
+      i += l;
+    }
+
+    if (k > 0) {
+      int[] head = mAssembly.getCounts(headRegion(region, first, n, k, window),
+          window);
+
+      System.arraycopy(head, 0, out, offset, k);
+
+      int[] tail = mAssembly.getCounts(tailRegion(region, first, n, k, window),
+          window);
+
+      System.arraycopy(tail, 0, out, offset + n - k, k);
+    }
+
+    return n;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    loadTiles(regions, window, false);
+
+    List<int[]> ret = new ArrayList<int[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      int[] counts = new int[getBinCount(region, window)];
+
+      int n = fillCounts(region, window, counts, 0);
+
+      ret.add(n < counts.length ? Arrays.copyOf(counts, n) : counts);
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public double[] getValues(GenomicRegion region, int window)
+      throws IOException {
+    if (!isTiled(region.getChr(), window)) {
+      return mAssembly.getValues(region, window);
+    }
+
+    double[] ret = new double[getBinCount(region, window)];
+
+    int n = fillValues(region, window, ret, 0);
+
+    served(region, window, true);
+
+    return n < ret.length ? Arrays.copyOf(ret, n) : ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, double[], int)
+   */
+  @Override
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] out,
+      int offset) throws IOException {
+    int n = fillValues(region, window, out, offset);
+
+    served(region, window, true);
+
+    return n;
+  }
+
+  /**
+   * Assemble the values of a region from tiles.
+   *
+   * @param region the region
+   * @param window the window
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int fillValues(GenomicRegion region,
+      int window,
+      double[] out,
+      int offset) throws IOException {
+    int n = getBinCount(region, window);
+    int k = mAssembly.getBoundaryBins(window);
+
+    if (n <= 2 * k || !isTiled(region.getChr(), window)) {
+      return mAssembly.getValues(region, window, out, offset);
+    }
+
+    Chromosome chr = region.getChr();
+    int first = getStartBin(region, window);
+
+    for (int i = k; i < n - k;) {
+      int bin = first + i;
+      int tile = bin / mTileBins;
+      int o = bin - tile * mTileBins;
+      int l = Math.min(mTileBins - o, n - k - i);
+
+      double[] values = (double[]) getTile(
+          new TileKey(chr, window, tile, true));
+
+      // The assembly has no values
+      if (values.length == 0) {
+        return mAssembly.getValues(region, window, out, offset);
+      }
+
+      System.arraycopy(values, o, out, offset + i, l);
+
+      i += l;
+    }
+
+    if (k > 0) {
+      double[] head = mAssembly
+          .getValues(headRegion(region, first, n, k, window), window);
+
+      System.arraycopy(head, 0, out, offset, k);
+
+      double[] tail = mAssembly
+          .getValues(tailRegion(region, first, n, k, window), window);
+
+      System.arraycopy(tail, 0, out, offset + n - k, k);
+    }
+
+    return n;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(java.util.List,
+   * int)
+   */
+  @Override
+  public List<double[]> getValues(List<GenomicRegion> regions, int window)
+      throws IOException {
+    loadTiles(regions, window, true);
+
+    List<double[]> ret = new ArrayList<double[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      double[] values = new double[getBinCount(region, window)];
+
+      int n = fillValues(region, window, values, 0);
+
+      ret.add(n < values.length ? Arrays.copyOf(values, n) : values);
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSummary(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    // Summaries are read in one go so are not tiled
+    return mAssembly.getSummary(region, window);
+  }
+
+  /**
+   * Returns the region covering the boundary bins at the start of a region.
+   * It extends a further k bins so that reads starting in the boundary bins
+   * are not cut off by its end.
+   *
+   * @param region the region
+   * @param first the first bin of the region
+   * @param n the number of bins in the region
+   * @param k the number of boundary bins
+   * @param window the window
+   * @return the genomic region
+   */
+  private GenomicRegion headRegion(GenomicRegion region,
+      int first,
+      int n,
+      int k,
+      int window) {
+    GenomicRegion bins = mAssembly
+        .getBinRegion(region.getChr(), first, Math.min(2 * k, n), window);
+
+    return new GenomicRegion(region.getChr(), region.getStart(),
+        Math.min(region.getEnd(), bins.getEnd()));
+  }
+
+  /**
+   * Returns the region covering the boundary bins at the end of a region.
+   *
+   * @param region the region
+   * @param first the first bin of the region
+   * @param n the number of bins in the region
+   * @param k the number of boundary bins
+   * @param window the window
+   * @return the genomic region
+   */
+  private GenomicRegion tailRegion(GenomicRegion region,
+      int first,
+      int n,
+      int k,
+      int window) {
+    GenomicRegion bins = mAssembly
+        .getBinRegion(region.getChr(), first + n - k, k, window);
+
+    return new GenomicRegion(region.getChr(), bins.getStart(),
+        region.getEnd());
+  }
+
+  /**
+   * Returns whether regions of a window can be assembled from tiles.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @return true, if is tiled
+   */
+  private boolean isTiled(Chromosome chr, int window) {
+    return mAssembly.getBinRegion(chr, 0, mTileBins, window) != null;
+  }
+
+  /**
+   * Returns the region read to fill a tile. This extends past the tile by
+   * the number of boundary bins so that reads starting in the last bins of
+   * the tile are counted.
+   *
+   * @param key the key
+   * @return the genomic region
+   */
+  private GenomicRegion tileRegion(TileKey key) {
+    return mAssembly.getBinRegion(key.mChr,
+        key.mTile * mTileBins,
+        mTileBins + mAssembly.getBoundaryBins(key.mWindow),
+        key.mWindow);
+  }
+
+  /**
+   * Called after a region has been served from tiles. Subclasses can
+   * override this to anticipate the next request.
+   *
+   * @param region the region
+   * @param window the window
+   * @param values whether values rather than counts were requested.
+   */
+  protected void served(GenomicRegion region, int window, boolean values) {
+    // Do nothing
+  }
+
+  /**
+   * Load a tile into the cache ahead of it being requested. The load is not
+   * counted as a hit or miss.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @param tile the tile index
+   * @param values whether to load values rather than counts.
+   * @return true, if the tile was loaded, false if it was already cached or
+   *         the window cannot be tiled.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected boolean prefetch(Chromosome chr,
+      int window,
+      int tile,
+      boolean values) throws IOException {
+    if (tile < 0 || !isTiled(chr, window)) {
+      return false;
+    }
+
+    TileKey key = new TileKey(chr, window, tile, values);
+
+    synchronized (mTiles) {
+      if (mTiles.containsKey(key)) {
+        return false;
+      }
+    }
+
+    Object t;
+
+    if (values) {
+      t = toTile(key, mAssembly.getValues(tileRegion(key), window));
+    } else {
+      t = toTile(key, mAssembly.getCounts(tileRegion(key), window));
+    }
+
+    put(key, t);
+
+    synchronized (mTiles) {
+      // The tile may have been evicted already by a concurrent load
+      if (mTiles.containsKey(key)) {
+        mPrefetched.add(key);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the number of bins in a tile.
+   *
+   * @return the tile bins
+   */
+  public int getTileBins() {
+    return mTileBins;
+  }
+
+  /**
+   * Returns a tile from the cache, reading it from the underlying assembly
+   * if necessary. Threads racing to read the same tile may each read it.
+   *
+   * @param key the key
+   * @return the tile
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Object getTile(TileKey key) throws IOException {
+    Object tile;
+
+    synchronized (mTiles) {
+      tile = mTiles.get(key);
+
+      if (tile != null) {
+        ++mHits;
+
+        if (mPrefetched.remove(key)) {
+          ++mPrefetchUsed;
+        }
+      } else {
+        ++mMisses;
+      }
+    }
+
+    if (tile != null) {
+      CountMetrics.getInstance().add(mFormat,
+          CountMetrics.Counter.CACHE_HITS,
+          1);
+
+      return tile;
+    }
+
+    if (key.mValues) {
+      tile = toTile(key,
+          mAssembly.getValues(tileRegion(key), key.mWindow));
+    } else {
+      tile = toTile(key,
+          mAssembly.getCounts(tileRegion(key), key.mWindow));
+    }
+
+    put(key, tile);
+
+    return tile;
+  }
+
+  /**
+   * Read the missing tiles of a batch of regions with one batch query to the
+   * underlying assembly.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @param values the values
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void loadTiles(List<GenomicRegion> regions,
+      int window,
+      boolean values) throws IOException {
+    Map<TileKey, GenomicRegion> missing =
+        new LinkedHashMap<TileKey, GenomicRegion>();
+
+    int k = mAssembly.getBoundaryBins(window);
+
+    synchronized (mTiles) {
+      for (GenomicRegion region : regions) {
+        int n = getBinCount(region, window);
+
+        if (n <= 2 * k || !isTiled(region.getChr(), window)) {
+          continue;
+        }
+
+        int first = getStartBin(region, window);
+
+        int st = (first + k) / mTileBins;
+        int et = (first + n - k - 1) / mTileBins;
+
+        for (int tile = st; tile <= et; ++tile) {
+          TileKey key = new TileKey(region.getChr(), window, tile, values);
+
+          if (!mTiles.containsKey(key) && !missing.containsKey(key)) {
+            missing.put(key, tileRegion(key));
+          }
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    List<GenomicRegion> tileRegions = new ArrayList<GenomicRegion>(
+        missing.values());
+
+    Iterator<TileKey> keys = missing.keySet().iterator();
+
+    if (values) {
+      for (double[] v : mAssembly.getValues(tileRegions, window)) {
+        TileKey key = keys.next();
+
+        put(key, toTile(key, v));
+      }
+    } else {
+      for (int[] c : mAssembly.getCounts(tileRegions, window)) {
+        TileKey key = keys.next();
+
+        put(key, toTile(key, c));
+      }
+    }
+  }
+
+  /**
+   * Copy the counts read for a tile into a new tile. An assembly without
+   * counts at a window returns none, which is cached as an empty tile.
+   *
+   * @param key the key
+   * @param counts the counts
+   * @return the int[]
+   */
+  private int[] toTile(TileKey key, int[] counts) {
+    if (counts.length == 0) {
+      return counts;
+    }
+
+    int[] ret = new int[mTileBins];
+
+    int o = tileOffset(key);
+
+    System.arraycopy(counts, 0, ret, o, Math.min(mTileBins - o, counts.length));
+
+    return ret;
+  }
+
+  /**
+   * Copy the values read for a tile into a new tile. An assembly without
+   * values returns none, which is cached as an empty tile.
+   *
+   * @param key the key
+   * @param values the values
+   * @return the double[]
+   */
+  private double[] toTile(TileKey key, double[] values) {
+    if (values.length == 0) {
+      return values;
+    }
+
+    double[] ret = new double[mTileBins];
+
+    int o = tileOffset(key);
+
+    System.arraycopy(values, 0, ret, o, Math.min(mTileBins - o, values.length));
+
+    return ret;
+  }
+
+  /**
+   * Returns the index in a tile of the first bin read for it. This is zero
+   * except for the first tile of a chromosome at a window of 1, whose
+   * region starts at position 1 and so skips bin 0.
+   *
+   * @param key the key
+   * @return the offset
+   */
+  private int tileOffset(TileKey key) {
+    return mAssembly.getStartBin(tileRegion(key), key.mWindow)
+        - key.mTile * mTileBins;
+  }
+
+  /**
+   * Add a tile to the cache and evict the least recently used tiles until
+   * the cache fits within its maximum size.
+   *
+   * @param key the key
+   * @param tile the tile
+   */
+  private void put(TileKey key, Object tile) {
+    synchronized (mTiles) {
+      Object current = mTiles.put(key, tile);
+
+      if (current != null) {
+        mBytes -= bytes(current);
+      }
+
+      mBytes += bytes(tile);
+
+      Iterator<Entry<TileKey, Object>> iter = mTiles.entrySet().iterator();
+
+      // Never evict the tile just added
+      while (mBytes > mMaxBytes && mTiles.size() > 1) {
+        Entry<TileKey, Object> e = iter.next();
+
+        mBytes -= bytes(e.getValue());
+
+        mPrefetched.remove(e.getKey());
+
+        iter.remove();
+
+        ++mEvictions;
+      }
+    }
+  }
+
+  /**
+   * Returns the approximate number of bytes used by a tile.
+   *
+   * @param tile the tile
+   * @return the long
+   */
+  private static long bytes(Object tile) {
+    if (tile instanceof int[]) {
+      return TILE_OVERHEAD_BYTES + 4L * ((int[]) tile).length;
+    } else {
+      return TILE_OVERHEAD_BYTES + 8L * ((double[]) tile).length;
+    }
+  }
+
+  /**
+   * Remove all tiles from the cache and reset the statistics.
+   */
+  public void clear() {
+    synchronized (mTiles) {
+      mTiles.clear();
+      mPrefetched.clear();
+      mBytes = 0;
+      mHits = 0;
+      mMisses = 0;
+      mEvictions = 0;
+      mPrefetchUsed = 0;
+    }
+  }
+
+  /**
+   * Returns the number of tile requests served from the cache.
+   *
+   * @return the hits
+   */
+  public long getHits() {
+    synchronized (mTiles) {
+      return mHits;
+    }
+  }
+
+  /**
+   * Returns the number of tile requests read from the underlying assembly.
+   *
+   * @return the misses
+   */
+  public long getMisses() {
+    synchronized (mTiles) {
+      return mMisses;
+    }
+  }
+
+  /**
+   * Returns the fraction of tile requests served from the cache.
+   *
+   * @return the hit ratio
+   */
+  public double getHitRatio() {
+    synchronized (mTiles) {
+      long total = mHits + mMisses;
+
+      return total > 0 ? (double) mHits / total : 0;
+    }
+  }
+
+  /**
+   * Returns the number of tiles evicted to keep the cache within its size.
+   *
+   * @return the evictions
+   */
+  public long getEvictions() {
+    synchronized (mTiles) {
+      return mEvictions;
+    }
+  }
+
+  /**
+   * Returns the number of tiles loaded by {@link #prefetch} that were later
+   * requested.
+   *
+   * @return the prefetch used
+   */
+  public long getPrefetchUsed() {
+    synchronized (mTiles) {
+      return mPrefetchUsed;
+    }
+  }
+
+  /**
+   * Returns the approximate size of the cache in bytes.
+   *
+   * @return the bytes
+   */
+  public long getBytes() {
+    synchronized (mTiles) {
+      return mBytes;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getStarts(GenomicRegion region, int window)
+      throws IOException {
+    return mAssembly.getStarts(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrands(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public Strand[] getStrands(GenomicRegion region, int window)
+      throws IOException {
+    return mAssembly.getStrands(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandBits(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    return mAssembly.getStrandBits(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * org.jebtk.bioinformatics.genomic.Strand)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (strand == Strand.NONE) {
+      return getCounts(region, window);
+    }
+
+    // Stranded counts are not cached
+    return mAssembly.getCounts(region, window, strand);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    // Scans are streamed straight from the file rather than through the cache
+    return mAssembly.getCursor(region, window, bufferBins);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return mAssembly.getBinCount(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStartBin(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getStartBin(GenomicRegion region, int window) {
+    return mAssembly.getStartBin(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinRegion(org.jebtk.
+   * bioinformatics.genomic.Chromosome, int, int, int)
+   */
+  @Override
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    return mAssembly.getBinRegion(chr, bin, bins, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    return mAssembly.getBoundaryBins(window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadLength()
+   */
+  @Override
+  public int getReadLength() {
+    return mAssembly.getReadLength();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadCount(org.jebtk.
+   * bioinformatics.genomic.Genome, int)
+   */
+  @Override
+  public int getReadCount(Genome genome, int window) throws IOException {
+    return mAssembly.getReadCount(genome, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getGenome()
+   */
+  @Override
+  public Genome getGenome() throws IOException {
+    return mAssembly.getGenome();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mAssembly.getAsyncPath();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    clear();
+
+    mAssembly.close();
+  }
+
+  /**
+   * Identifies a tile by chromosome, window, index and whether it holds
+   * counts or values.
+   */
+  private static class TileKey {
+
+    /** The m chr. */
+    private final Chromosome mChr;
+
+    /** The m window. */
+    private final int mWindow;
+
+    /** The m tile. */
+    private final int mTile;
+
+    /** The m values. */
+    private final boolean mValues;
+
+    /** The m hash. */
+    private final int mHash;
+
+    /**
+     * Instantiates a new tile key.
+     *
+     * @param chr the chr
+     * @param window the window
+     * @param tile the tile
+     * @param values the values
+     */
+    public TileKey(Chromosome chr, int window, int tile, boolean values) {
+      mChr = chr;
+      mWindow = window;
+      mTile = tile;
+      mValues = values;
+
+      mHash = ((chr.hashCode() * 31 + window) * 31 + tile) * 2
+          + (values ? 1 : 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TileKey)) {
+        return false;
+      }
+
+      TileKey k = (TileKey) o;
+
+      return mTile == k.mTile && mWindow == k.mWindow
+          && mValues == k.mValues && mChr.equals(k.mChr);
+    }
+  }
+}
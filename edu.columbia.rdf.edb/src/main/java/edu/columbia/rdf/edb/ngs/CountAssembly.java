@@ -28,7 +28,18 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
+import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.bioinformatics.genomic.Strand;
@@ -41,6 +52,19 @@ public abstract class CountAssembly {
 
   public static final Strand[] EMPTY_STRAND_ARRAY = {};
 
+  /** The default maximum number of asynchronous reads of a file at once. */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+  /**
+   * The executors limiting the asynchronous reads of each file, shared by
+   * every assembly reading the file.
+   */
+  private static final ConcurrentMap<Path, Executor> FILE_EXECUTORS =
+      new ConcurrentHashMap<Path, Executor>();
+
+  /** Runs the asynchronous reads, created on first use. */
+  private volatile Executor mAsyncExecutor = null;
+
   /**
    * Gets the starts.
    *
@@ -93,6 +117,92 @@ public abstract class CountAssembly {
     return EMPTY_STRAND_ARRAY; //Collections.emptyList();
   }
 
+  /**
+   * Gets the strands of the reads in a region as a bitset aligned with
+   * {@link #getStarts(GenomicRegion, int)}, bit i being set if read i is on
+   * the antisense strand.
+   *
+   * @param region the region
+   * @return the strand bits
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BitSet getStrandBits(GenomicRegion region) throws IOException {
+    return getStrandBits(region, 1);
+  }
+
+  /**
+   * Gets the strands of the reads in a region as a bitset aligned with
+   * {@link #getStarts(GenomicRegion, int)}, bit i being set if read i is on
+   * the antisense strand. The default converts the result of
+   * {@link #getStrands(GenomicRegion, int)}.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the strand bits
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    Strand[] strands = getStrands(region, window);
+
+    BitSet ret = new BitSet(strands.length);
+
+    for (int i = 0; i < strands.length; ++i) {
+      if (strands[i] == Strand.ANTISENSE) {
+        ret.set(i);
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Gets the counts of the reads on one strand within a region. Reads on
+   * both strands are counted if the strand is {@link Strand#NONE}. The
+   * default bins the reads given by {@link #getStarts(GenomicRegion, int)}
+   * and {@link #getStrandBits(GenomicRegion, int)}, so files that do not
+   * store reads have no stranded counts.
+   *
+   * Precomputed windows combine both strands, so stranded counts are always
+   * binned from every read in the region whatever the window. Their cost
+   * grows with the reads in the region rather than with the bins returned,
+   * which makes them much slower than unstranded counts for wide windows
+   * over long regions.
+   *
+   * @param region the region
+   * @param window the window
+   * @param strand the strand
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (strand == Strand.NONE) {
+      return getCounts(region, window);
+    }
+
+    int[] starts = getStarts(region, window);
+    BitSet antisense = getStrandBits(region, window);
+
+    boolean a = strand == Strand.ANTISENSE;
+
+    int startBin = region.getStart() / window;
+
+    int[] ret = new int[region.getEnd() / window - startBin + 1];
+
+    for (int i = 0; i < starts.length; ++i) {
+      if (antisense.get(i) == a) {
+        int b = starts[i] / window - startBin;
+
+        if (b >= 0 && b < ret.length) {
+          ++ret[b];
+        }
+      }
+    }
+
+    return ret;
+  }
+
   /**
    * Gets the counts.
    *
@@ -130,7 +240,10 @@ public abstract class CountAssembly {
   }
 
   /**
-   * Gets the counts within a region or window.
+   * Gets the counts within a region or window. Counts are never negative.
+   * Packed 8 and 16 bit files once sign-extended their bytes, so counts of
+   * at least 128 or 32768 came back negative. Every bit depth is now
+   * decoded as unsigned, which changes the counts those files return.
    *
    * @param region the region
    * @param window the window
@@ -140,6 +253,285 @@ public abstract class CountAssembly {
   public abstract int[] getCounts(GenomicRegion region, int window)
       throws IOException;
 
+  /**
+   * Writes the counts within a region into a caller supplied array so that
+   * repeated queries, for example when redrawing a view, need not allocate
+   * a new array each time. The array must have room for
+   * {@link #getBinCount(GenomicRegion, int)} elements from the offset, all
+   * of which are overwritten, with zero where there is no data. The default
+   * copies the result of {@link #getCounts(GenomicRegion, int)}.
+   *
+   * @param region the region
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    int[] counts = getCounts(region, window);
+
+    System.arraycopy(counts, 0, out, offset, counts.length);
+
+    return counts.length;
+  }
+
+  /**
+   * Returns the number of bins, and hence counts, a region spans at a given
+   * window size.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the bin count
+   */
+  public int getBinCount(GenomicRegion region, int window) {
+    return region.getEnd() / window - region.getStart() / window + 1;
+  }
+
+  /**
+   * Returns the index of the first bin of a region, where bins of the given
+   * window are numbered from the start of the chromosome.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the start bin
+   */
+  public int getStartBin(GenomicRegion region, int window) {
+    return region.getStart() / window;
+  }
+
+  /**
+   * Returns the region whose counts are exactly a run of whole bins, the
+   * inverse of {@link #getStartBin(GenomicRegion, int)} and
+   * {@link #getBinCount(GenomicRegion, int)}. Returns null if the counts of a
+   * bin depend on the region queried so that regions cannot be assembled
+   * from runs of bins.
+   *
+   * @param chr the chr
+   * @param bin the first bin
+   * @param bins the number of bins
+   * @param window the window
+   * @return the bin region
+   */
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    long end = (long) (bin + bins) * window - 1;
+
+    return new GenomicRegion(chr, Math.max(1, bin * window),
+        (int) Math.min(Integer.MAX_VALUE, end));
+  }
+
+  /**
+   * Returns the number of bins at either end of a region whose counts
+   * depend on where the region starts and ends, rather than being whole bins.
+   * Files of binned counts return 0; files of reads return 1 since only
+   * reads within the region are counted.
+   *
+   * @param window the window
+   * @return the boundary bins
+   */
+  public int getBoundaryBins(int window) {
+    return 1;
+  }
+
+  /**
+   * Gets the counts for a batch of regions. The default queries each region
+   * in turn. Implementations backed by files should override this to visit
+   * each chromosome once and read the regions in genomic order.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @return the counts of each region in the same order as the regions.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    List<int[]> ret = new ArrayList<int[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      ret.add(getCounts(region, window));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Sets the executor on which asynchronous reads run and the maximum number
+   * of them that may read from this assembly at once. Further reads wait
+   * without holding a thread. The limit is this assembly's own rather than
+   * shared with the other assemblies of its file.
+   *
+   * @param executor the executor
+   * @param maxInFlight the maximum number of reads at once
+   */
+  public void setAsyncExecutor(Executor executor, int maxInFlight) {
+    mAsyncExecutor = new BoundedExecutor(executor, maxInFlight);
+  }
+
+  /**
+   * Returns the executor on which asynchronous reads run. By default this
+   * allows {@link #DEFAULT_MAX_IN_FLIGHT} reads at once on
+   * {@link BoundedExecutor#getDefault()}, shared by every assembly of the
+   * same {@link #getAsyncPath()} so that many assemblies of one file do not
+   * multiply its reads.
+   *
+   * @return the async executor
+   */
+  protected Executor getAsyncExecutor() {
+    Executor executor = mAsyncExecutor;
+
+    if (executor == null) {
+      synchronized (this) {
+        executor = mAsyncExecutor;
+
+        if (executor == null) {
+          Path path = getAsyncPath();
+
+          if (path != null) {
+            executor = FILE_EXECUTORS.computeIfAbsent(
+                path.toAbsolutePath().normalize(),
+                new Function<Path, Executor>() {
+                  @Override
+                  public Executor apply(Path p) {
+                    return new BoundedExecutor(BoundedExecutor.getDefault(),
+                        DEFAULT_MAX_IN_FLIGHT);
+                  }
+                });
+          } else {
+            executor = new BoundedExecutor(BoundedExecutor.getDefault(),
+                DEFAULT_MAX_IN_FLIGHT);
+          }
+
+          mAsyncExecutor = executor;
+        }
+      }
+    }
+
+    return executor;
+  }
+
+  /**
+   * Returns the file, or the directory of files, that this assembly reads.
+   * Assemblies of the same path share one limit on asynchronous reads.
+   *
+   * @return the path, or null if the reads of this assembly are limited on
+   *         their own
+   */
+  protected Path getAsyncPath() {
+    return null;
+  }
+
+  /**
+   * Reads the counts of a region without blocking the calling thread.
+   *
+   * @param region the region
+   * @param window the window
+   * @return a future completed with the result of
+   *         {@link #getCounts(GenomicRegion, int)}, or failed with any I/O
+   *         exception, which join() wraps in a CompletionException, or
+   *         with a RejectedExecutionException if the executor will not run
+   *         the read.
+   * @see #setAsyncExecutor(Executor, int)
+   */
+  public CompletableFuture<int[]> getCountsAsync(final GenomicRegion region,
+      final int window) {
+    BoundedExecutor.Task<int[]> task = new BoundedExecutor.Task<int[]>() {
+      @Override
+      protected int[] call() throws IOException {
+        return getCounts(region, window);
+      }
+    };
+
+    getAsyncExecutor().execute(task);
+
+    return task.getFuture();
+  }
+
+  /**
+   * Reads the values of a region without blocking the calling thread.
+   *
+   * @param region the region
+   * @param window the window
+   * @return a future completed with the result of
+   *         {@link #getValues(GenomicRegion, int)}.
+   * @see #getCountsAsync(GenomicRegion, int)
+   */
+  public CompletableFuture<double[]> getValuesAsync(
+      final GenomicRegion region,
+      final int window) {
+    BoundedExecutor.Task<double[]> task = new BoundedExecutor.Task<double[]>() {
+      @Override
+      protected double[] call() throws IOException {
+        return getValues(region, window);
+      }
+    };
+
+    getAsyncExecutor().execute(task);
+
+    return task.getFuture();
+  }
+
+  /**
+   * Reads the starts of the reads in a region without blocking the calling
+   * thread.
+   *
+   * @param region the region
+   * @param window the window
+   * @return a future completed with the result of
+   *         {@link #getStarts(GenomicRegion, int)}.
+   * @see #getCountsAsync(GenomicRegion, int)
+   */
+  public CompletableFuture<int[]> getStartsAsync(final GenomicRegion region,
+      final int window) {
+    BoundedExecutor.Task<int[]> task = new BoundedExecutor.Task<int[]>() {
+      @Override
+      protected int[] call() throws IOException {
+        return getStarts(region, window);
+      }
+    };
+
+    getAsyncExecutor().execute(task);
+
+    return task.getFuture();
+  }
+
+  /**
+   * Returns a cursor over the counts of a region, decoding
+   * {@link CountCursor#DEFAULT_BUFFER_BINS} bins at a time.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the count cursor
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CountCursor getCursor(GenomicRegion region, int window)
+      throws IOException {
+    return getCursor(region, window, CountCursor.DEFAULT_BUFFER_BINS);
+  }
+
+  /**
+   * Returns a cursor over the counts of a region which yields the same
+   * counts as {@link #getCounts(GenomicRegion, int)} without holding them
+   * all in memory. The default reads the region in runs of whole bins using
+   * {@link #getBinRegion(Chromosome, int, int, int)}, or all at once if
+   * bin regions are not supported. Files should override this to keep their
+   * position between runs.
+   *
+   * @param region the region
+   * @param window the window
+   * @param bufferBins the number of bins to decode at a time
+   * @return the count cursor
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    return new RegionCountCursor(this, region, window, bufferBins);
+  }
+
   /**
    * Gets the values.
    *
@@ -177,6 +569,72 @@ public abstract class CountAssembly {
     return ArrayUtils.EMPTY_DOUBLE_ARRAY; //Collections.emptyList();
   }
 
+  /**
+   * Writes the values within a region into a caller supplied array. The
+   * default copies the result of {@link #getValues(GenomicRegion, int)}.
+   *
+   * @param region the region
+   * @param window the window
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] out,
+      int offset) throws IOException {
+    double[] values = getValues(region, window);
+
+    System.arraycopy(values, 0, out, offset, values.length);
+
+    return values.length;
+  }
+
+  /**
+   * Gets the values for a batch of regions. The default queries each region
+   * in turn.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @return the values of each region in the same order as the regions.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public List<double[]> getValues(List<GenomicRegion> regions, int window)
+      throws IOException {
+    List<double[]> ret = new ArrayList<double[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      ret.add(getValues(region, window));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the count, sum, minimum, maximum and sum of squares of the values
+   * in each bin of a region. Files that store these statistics should
+   * override this to read them all at once. The default treats the count of
+   * each bin from {@link #getCounts(GenomicRegion, int)} as its only value.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the summary
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    int[] counts = getCounts(region, window);
+
+    BinSummary ret = new BinSummary(counts.length);
+
+    for (int i = 0; i < counts.length; ++i) {
+      ret.add(i, counts[i]);
+    }
+
+    return ret;
+  }
+
   /**
    * Optional method for closing file handles if necessary.
    */
@@ -212,4 +670,92 @@ public abstract class CountAssembly {
   public Genome getGenome() throws IOException {
     return null;
   }
+
+  /**
+   * Streams the counts of a region by querying an assembly for successive
+   * runs of bins.
+   */
+  private static class RegionCountCursor extends CountCursor {
+
+    /** The m assembly. */
+    private final CountAssembly mAssembly;
+
+    /** The m region. */
+    private final GenomicRegion mRegion;
+
+    /** The m window. */
+    private final int mWindow;
+
+    /** The m start bin. */
+    private final int mStartBin;
+
+    /** The bin after the last bin of the region. */
+    private final int mEndBin;
+
+    /** The counts of the whole region if it cannot be read in runs. */
+    private int[] mCounts = null;
+
+    /**
+     * Instantiates a new region count cursor.
+     *
+     * @param assembly the assembly
+     * @param region the region
+     * @param window the window
+     * @param bufferBins the number of bins to decode at a time
+     */
+    public RegionCountCursor(CountAssembly assembly, GenomicRegion region,
+        int window, int bufferBins) {
+      super(assembly.getStartBin(region, window), bufferBins);
+
+      mAssembly = assembly;
+      mRegion = region;
+      mWindow = window;
+      mStartBin = assembly.getStartBin(region, window);
+      mEndBin = mStartBin + assembly.getBinCount(region, window);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#fill(int, int[])
+     */
+    @Override
+    protected int fill(int bin, int[] buffer) throws IOException {
+      int n = Math.min(buffer.length, mEndBin - bin);
+
+      if (n <= 0) {
+        return 0;
+      }
+
+      Chromosome chr = mRegion.getChr();
+
+      GenomicRegion region = mAssembly.getBinRegion(chr, bin, n, mWindow);
+
+      if (region == null) {
+        // The counts depend on the region so it must be read in one go
+        if (mCounts == null) {
+          mCounts = mAssembly.getCounts(mRegion, mWindow);
+        }
+
+        n = Math.min(n, mCounts.length - (bin - mStartBin));
+
+        if (n <= 0) {
+          return 0;
+        }
+
+        System.arraycopy(mCounts, bin - mStartBin, buffer, 0, n);
+      } else {
+        Arrays.fill(buffer, 0, n, 0);
+
+        // Only the parts of the boundary bins within the region are counted
+        region = new GenomicRegion(chr,
+            Math.max(mRegion.getStart(), region.getStart()),
+            Math.min(mRegion.getEnd(), region.getEnd()));
+
+        mAssembly.getCounts(region, mWindow, buffer, 0);
+      }
+
+      return n;
+    }
+  }
 }
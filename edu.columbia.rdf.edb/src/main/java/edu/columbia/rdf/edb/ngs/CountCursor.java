@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams the counts of a region bin by bin so that whole chromosomes can be
+ * scanned at fine resolution without materializing every count at once.
+ * Counts are decoded a buffer at a time; implementations keep their file
+ * open and positioned between buffers. A cursor must be closed when it is
+ * no longer needed.
+ *
+ * <pre>
+ * CountCursor cursor = assembly.getCursor(region, window);
+ *
+ * try {
+ *   while (cursor.next()) {
+ *     int bin = cursor.getBin();
+ *     int count = cursor.getCount();
+ *     ...
+ *   }
+ * } finally {
+ *   cursor.close();
+ * }
+ * </pre>
+ *
+ * @author Antony Holmes
+ */
+public abstract class CountCursor implements Closeable {
+
+  /** The default number of bins decoded at a time. */
+  public static final int DEFAULT_BUFFER_BINS = 65536;
+
+  /** The m buffer. */
+  private final int[] mBuffer;
+
+  /** The bin of the first count in the buffer. */
+  private int mBin;
+
+  /** The number of counts in the buffer. */
+  private int mSize = 0;
+
+  /** The index in the buffer of the current count. */
+  private int mIndex = -1;
+
+  /** Whether the last bin has been decoded. */
+  private boolean mDone = false;
+
+  /**
+   * Create a new cursor.
+   *
+   * @param startBin the bin of the first count, numbered as by
+   *          {@link CountAssembly#getStartBin(org.jebtk.bioinformatics.genomic.GenomicRegion, int)}
+   * @param bufferBins the number of bins to decode at a time
+   */
+  protected CountCursor(int startBin, int bufferBins) {
+    mBin = startBin;
+    mBuffer = new int[Math.max(1, bufferBins)];
+  }
+
+  /**
+   * Moves to the next bin.
+   *
+   * @return true if there is another bin, false at the end of the region.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public boolean next() throws IOException {
+    if (++mIndex < mSize) {
+      return true;
+    }
+
+    if (mDone) {
+      mIndex = mSize;
+
+      return false;
+    }
+
+    mBin += mSize;
+    mIndex = 0;
+
+    mSize = fill(mBin, mBuffer);
+
+    if (mSize <= 0) {
+      mSize = 0;
+      mDone = true;
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the bin the cursor is on.
+   *
+   * @return the bin
+   */
+  public int getBin() {
+    return mBin + mIndex;
+  }
+
+  /**
+   * Returns the count of the bin the cursor is on.
+   *
+   * @return the count
+   */
+  public int getCount() {
+    return mBuffer[mIndex];
+  }
+
+  /**
+   * Copies the counts of the following bins into an array, moving the
+   * cursor onto the last of them. This avoids a call per bin when the
+   * counts are consumed in bulk.
+   *
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @param length the maximum number of counts to write
+   * @return the number of counts written, or -1 at the end of the region.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int read(int[] out, int offset, int length) throws IOException {
+    if (length <= 0) {
+      return 0;
+    }
+
+    if (!next()) {
+      return -1;
+    }
+
+    int n = Math.min(length, mSize - mIndex);
+
+    System.arraycopy(mBuffer, mIndex, out, offset, n);
+
+    mIndex += n - 1;
+
+    return n;
+  }
+
+  /**
+   * Decodes the counts of the next run of bins.
+   *
+   * @param bin the first bin to decode
+   * @param buffer the array to write the counts to
+   * @return the number of counts written, at most the length of the buffer,
+   *         or 0 if there are no more bins.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract int fill(int bin, int[] buffer) throws IOException;
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    // Do nothing
+  }
+}
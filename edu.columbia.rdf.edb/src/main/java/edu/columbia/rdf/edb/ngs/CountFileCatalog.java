@@ -0,0 +1,678 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.core.io.FileUtils;
+import org.jebtk.core.io.PathUtils;
+
+/**
+ * Process wide catalog of the count files in each track directory. A
+ * directory is listed once, on first use, and every file name is parsed into
+ * an entry describing the chromosome, window (or power of ten for BC files),
+ * bit depth and mode of the file it names. Readers then find their files with
+ * map lookups rather than probing or listing the directory on each miss,
+ * which is slow on network file systems.
+ * 
+ * Packed count files are named chr.counts.win.w.nbit, for example
+ * chr1.counts.win.100.8bit. BC files contain the chromosome as their first
+ * component and the power as a component of the form pbw, for example
+ * chr1.2bw.bc, and may name a mode. Files starting with counts hold the bin
+ * counts of a power, and files of the form reads.genome.mode.bc hold the
+ * read count of a track.
+ * 
+ * Directories whose contents change after they are first read should be
+ * {@link #refresh(Path)}ed.
+ *
+ * @author Antony Holmes
+ */
+public class CountFileCatalog {
+
+  /**
+   * The Class CountFileCatalogLoader.
+   */
+  private static class CountFileCatalogLoader {
+
+    /** The Constant INSTANCE. */
+    private static final CountFileCatalog INSTANCE = new CountFileCatalog();
+  }
+
+  /**
+   * Gets the single instance of CountFileCatalog.
+   *
+   * @return single instance of CountFileCatalog
+   */
+  public static CountFileCatalog getInstance() {
+    return CountFileCatalogLoader.INSTANCE;
+  }
+
+  /** Extension of BC files. */
+  public static final String BC_EXT = "bc";
+
+  /** Separates the components of packed count file names. */
+  private static final String PACKED_TAG = ".counts.win.";
+
+  /** Suffix of a BC power component. */
+  private static final String POWER_SUFFIX = "bw";
+
+  /** Suffix of a packed bit depth component. */
+  private static final String BITS_SUFFIX = "bit";
+
+  /** Orders entries by window, or power for BC files. */
+  private static final Comparator<Entry> WINDOW_ORDER =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+          return Integer.compare(e1.mWindow, e2.mWindow);
+        }
+      };
+
+  /** The m directories. */
+  private final Map<Path, Directory> mDirectories =
+      new ConcurrentHashMap<Path, Directory>();
+
+  /**
+   * Instantiates a new count file catalog.
+   */
+  private CountFileCatalog() {
+    // Do nothing
+  }
+
+  /**
+   * Returns the catalog of a directory, listing the directory if it has not
+   * been seen before.
+   *
+   * @param dir the dir
+   * @return the directory
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Directory getDirectory(Path dir) throws IOException {
+    dir = dir.toAbsolutePath().normalize();
+
+    Directory ret = mDirectories.get(dir);
+
+    if (ret == null) {
+      // Threads racing to list the same directory build identical catalogs
+      ret = new Directory(dir);
+
+      Directory current = mDirectories.putIfAbsent(dir, ret);
+
+      if (current != null) {
+        ret = current;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Forget the contents of a directory so that it is listed again when next
+   * used. Readers that have already resolved their files are unaffected.
+   *
+   * @param dir the dir
+   */
+  public void refresh(Path dir) {
+    mDirectories.remove(dir.toAbsolutePath().normalize());
+  }
+
+  /**
+   * Forget the contents of all directories.
+   */
+  public void clear() {
+    mDirectories.clear();
+  }
+
+  /**
+   * Parse a file name into a catalog entry.
+   *
+   * @param file the file
+   * @return the entry or null if the name does not describe a count file.
+   */
+  static Entry parse(Path file) {
+    String name = PathUtils.getName(file);
+
+    int i = name.indexOf(PACKED_TAG);
+
+    if (i > 0) {
+      String[] tokens = name.substring(i + PACKED_TAG.length()).split("\\.");
+
+      if (tokens.length != 2 || !tokens[1].endsWith(BITS_SUFFIX)) {
+        return null;
+      }
+
+      int window = parseInt(tokens[0]);
+      int bits = parseInt(tokens[1].substring(0,
+          tokens[1].length() - BITS_SUFFIX.length()));
+
+      if (window < 1 || bits < 1) {
+        return null;
+      }
+
+      return new Entry(file,
+          EntryType.PACKED,
+          name.substring(0, i),
+          window,
+          bits,
+          null);
+    }
+
+    String[] tokens = name.split("\\.");
+
+    if (tokens.length < 2 || !tokens[tokens.length - 1].equals(BC_EXT)) {
+      return null;
+    }
+
+    if (tokens[0].equals("reads")) {
+      // reads.genome.mode.bc
+      if (tokens.length != 4) {
+        return null;
+      }
+
+      return new Entry(file, EntryType.READS, null, -1, -1,
+          tokens[1] + "." + tokens[2]);
+    }
+
+    int power = -1;
+    String mode = null;
+
+    for (int j = 1; j < tokens.length - 1; ++j) {
+      String token = tokens[j];
+
+      if (token.endsWith(POWER_SUFFIX)) {
+        int p = parseInt(
+            token.substring(0, token.length() - POWER_SUFFIX.length()));
+
+        if (p > 0) {
+          power = p;
+          continue;
+        }
+      }
+
+      if (isMode(token)) {
+        mode = token;
+      }
+    }
+
+    if (power < 1) {
+      return null;
+    }
+
+    if (tokens[0].startsWith("counts")) {
+      return new Entry(file, EntryType.BIN_COUNTS, null, power, -1, mode);
+    } else {
+      return new Entry(file, EntryType.BC, tokens[0], power, -1, mode);
+    }
+  }
+
+  /**
+   * Parses a positive int.
+   *
+   * @param s the s
+   * @return the int or -1 if s is not a positive int.
+   */
+  private static int parseInt(String s) {
+    if (s.isEmpty() || s.length() > 9) {
+      return -1;
+    }
+
+    int ret = 0;
+
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+
+      ret = ret * 10 + (c - '0');
+    }
+
+    return ret;
+  }
+
+  /**
+   * Checks if a file name component names a BC mode.
+   *
+   * @param token the token
+   * @return true, if is mode
+   */
+  private static boolean isMode(String token) {
+    for (BCMode mode : BCMode.values()) {
+      if (mode.toString().toLowerCase().equals(token)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The kinds of file recognised by the catalog.
+   */
+  public static enum EntryType {
+
+    /** Fixed bit depth counts per window. */
+    PACKED,
+
+    /** BC counts for a chromosome. */
+    BC,
+
+    /** BC bin counts for a power. */
+    BIN_COUNTS,
+
+    /** BC read count. */
+    READS
+  }
+
+  /**
+   * A count file and the properties parsed from its name.
+   */
+  public static class Entry {
+
+    /** The m file. */
+    private final Path mFile;
+
+    /** The m type. */
+    private final EntryType mType;
+
+    /** The m chr. */
+    private final String mChr;
+
+    /** The m window. */
+    private final int mWindow;
+
+    /** The m bits. */
+    private final int mBits;
+
+    /** The m mode. */
+    private final String mMode;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param file the file
+     * @param type the type
+     * @param chr the chr
+     * @param window the window
+     * @param bits the bits
+     * @param mode the mode
+     */
+    private Entry(Path file, EntryType type, String chr, int window, int bits,
+        String mode) {
+      mFile = file;
+      mType = type;
+      mChr = chr;
+      mWindow = window;
+      mBits = bits;
+      mMode = mode;
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return the file
+     */
+    public Path getFile() {
+      return mFile;
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @return the type
+     */
+    public EntryType getType() {
+      return mType;
+    }
+
+    /**
+     * Gets the chromosome name or null if the file is not specific to a
+     * chromosome.
+     *
+     * @return the chr
+     */
+    public String getChr() {
+      return mChr;
+    }
+
+    /**
+     * Gets the window of a packed file or the power of a BC file.
+     *
+     * @return the window
+     */
+    public int getWindow() {
+      return mWindow;
+    }
+
+    /**
+     * Gets the bit depth of a packed file.
+     *
+     * @return the bits
+     */
+    public int getBits() {
+      return mBits;
+    }
+
+    /**
+     * Gets the mode named by the file, or null if it names none. For read
+     * count files this is of the form genome.mode.
+     *
+     * @return the mode
+     */
+    public String getMode() {
+      return mMode;
+    }
+
+    @Override
+    public String toString() {
+      return mFile.toString();
+    }
+  }
+
+  /**
+   * The count files in one directory. Immutable once listed.
+   */
+  public static class Directory {
+
+    /** The m dir. */
+    private final Path mDir;
+
+    /** The m entries. */
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    /** Packed files by chromosome then window in order of bit depth. */
+    private final Map<String, Map<Integer, List<Entry>>> mPacked =
+        new HashMap<String, Map<Integer, List<Entry>>>();
+
+    /** BC files by chromosome then power. */
+    private final Map<String, Map<Integer, List<Entry>>> mBC =
+        new HashMap<String, Map<Integer, List<Entry>>>();
+
+    /** Bin count files by power. */
+    private final Map<Integer, Entry> mBinCounts =
+        new HashMap<Integer, Entry>();
+
+    /** Read count files by genome.mode. */
+    private final Map<String, Entry> mReads = new HashMap<String, Entry>();
+
+    /**
+     * Instantiates a new directory.
+     *
+     * @param dir the dir
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private Directory(Path dir) throws IOException {
+      mDir = dir;
+
+      if (!Files.isDirectory(dir)) {
+        return;
+      }
+
+      for (Path file : FileUtils.ls(dir)) {
+        Entry entry = parse(file);
+
+        if (entry == null) {
+          continue;
+        }
+
+        mEntries.add(entry);
+
+        switch (entry.mType) {
+        case PACKED:
+          Map<Integer, List<Entry>> windows = mPacked.get(entry.mChr);
+
+          if (windows == null) {
+            windows = new HashMap<Integer, List<Entry>>();
+            mPacked.put(entry.mChr, windows);
+          }
+
+          List<Entry> depths = windows.get(entry.mWindow);
+
+          if (depths == null) {
+            depths = new ArrayList<Entry>();
+            windows.put(entry.mWindow, depths);
+          }
+
+          int i = 0;
+
+          while (i < depths.size() && depths.get(i).mBits < entry.mBits) {
+            ++i;
+          }
+
+          depths.add(i, entry);
+
+          break;
+        case BC:
+          Map<Integer, List<Entry>> powers = mBC.get(entry.mChr);
+
+          if (powers == null) {
+            powers = new HashMap<Integer, List<Entry>>();
+            mBC.put(entry.mChr, powers);
+          }
+
+          List<Entry> entries = powers.get(entry.mWindow);
+
+          if (entries == null) {
+            entries = new ArrayList<Entry>();
+            powers.put(entry.mWindow, entries);
+          }
+
+          entries.add(entry);
+
+          break;
+        case BIN_COUNTS:
+          if (!mBinCounts.containsKey(entry.mWindow)) {
+            mBinCounts.put(entry.mWindow, entry);
+          }
+
+          break;
+        default:
+          mReads.put(entry.mMode, entry);
+
+          break;
+        }
+      }
+    }
+
+    /**
+     * Gets the directory.
+     *
+     * @return the dir
+     */
+    public Path getDir() {
+      return mDir;
+    }
+
+    /**
+     * Returns all the count files in the directory.
+     *
+     * @return the entries
+     */
+    public List<Entry> getEntries() {
+      return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Returns the packed count file of a chromosome and window. Where a
+     * window has been written at more than one bit depth the smallest file
+     * is returned.
+     *
+     * @param chr the chr
+     * @param window the window
+     * @return the entry or null if there is no such file.
+     */
+    public Entry getPacked(Chromosome chr, int window) {
+      List<Entry> depths = getDepths(chr, window);
+
+      return depths != null ? depths.get(0) : null;
+    }
+
+    /**
+     * Returns the packed count file of a chromosome and window with a given
+     * bit depth.
+     *
+     * @param chr the chr
+     * @param window the window
+     * @param bits the bits
+     * @return the entry or null if there is no such file.
+     */
+    public Entry getPacked(Chromosome chr, int window, int bits) {
+      List<Entry> depths = getDepths(chr, window);
+
+      if (depths != null) {
+        for (Entry entry : depths) {
+          if (entry.mBits == bits) {
+            return entry;
+          }
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * Returns the smallest packed count file of each window of a chromosome.
+     *
+     * @param chr the chr
+     * @return the entries in order of window.
+     */
+    public List<Entry> getPacked(Chromosome chr) {
+      List<Entry> ret = new ArrayList<Entry>();
+
+      Map<Integer, List<Entry>> windows = mPacked.get(chr.toString());
+
+      if (windows != null) {
+        for (List<Entry> depths : windows.values()) {
+          ret.add(depths.get(0));
+        }
+
+        Collections.sort(ret, WINDOW_ORDER);
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the BC files of a chromosome that can be read in a mode, one
+     * per power.
+     *
+     * @param chr the chr
+     * @param mode the lower case mode
+     * @return the entries in order of power.
+     */
+    public List<Entry> getBC(Chromosome chr, String mode) {
+      List<Entry> ret = new ArrayList<Entry>();
+
+      Map<Integer, List<Entry>> powers = mBC.get(chr.toString());
+
+      if (powers != null) {
+        for (int power : powers.keySet()) {
+          Entry entry = getBC(chr, power, mode);
+
+          if (entry != null) {
+            ret.add(entry);
+          }
+        }
+
+        Collections.sort(ret, WINDOW_ORDER);
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the packed files of a chromosome and window.
+     *
+     * @param chr the chr
+     * @param window the window
+     * @return the files in order of bit depth or null.
+     */
+    private List<Entry> getDepths(Chromosome chr, int window) {
+      Map<Integer, List<Entry>> windows = mPacked.get(chr.toString());
+
+      return windows != null ? windows.get(window) : null;
+    }
+
+    /**
+     * Returns the BC file of a chromosome and power. A file naming the mode
+     * is preferred to one that names no mode.
+     *
+     * @param chr the chr
+     * @param power the power
+     * @param mode the lower case mode
+     * @return the entry or null if there is no such file.
+     */
+    public Entry getBC(Chromosome chr, int power, String mode) {
+      Map<Integer, List<Entry>> powers = mBC.get(chr.toString());
+
+      if (powers == null) {
+        return null;
+      }
+
+      List<Entry> entries = powers.get(power);
+
+      if (entries == null) {
+        return null;
+      }
+
+      Entry ret = null;
+
+      for (Entry entry : entries) {
+        if (mode.equals(entry.mMode)) {
+          return entry;
+        }
+
+        if (ret == null && entry.mMode == null) {
+          ret = entry;
+        }
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the file holding the BC bin counts of a power.
+     *
+     * @param power the power
+     * @return the entry or null if there is no such file.
+     */
+    public Entry getBinCounts(int power) {
+      return mBinCounts.get(power);
+    }
+
+    /**
+     * Returns the file holding the read count of a BC track.
+     *
+     * @param genome the genome
+     * @param mode the lower case mode
+     * @return the entry or null if there is no such file.
+     */
+    public Entry getReads(String genome, String mode) {
+      return mReads.get(genome + "." + mode);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A matrix of counts with a row for each region and a column for each
+ * sample. The counts are held row by row either in an int array or, for
+ * very large matrices, in a direct buffer outside of the Java heap.
+ * Different cells may be written concurrently.
+ *
+ * @author Antony Holmes
+ */
+public class CountMatrix {
+
+  /** The m rows. */
+  private final int mRows;
+
+  /** The m columns. */
+  private final int mColumns;
+
+  /** The m counts. */
+  private final IntBuffer mCounts;
+
+  /**
+   * Create a matrix of zeros.
+   *
+   * @param rows the rows
+   * @param columns the columns
+   * @param direct true to hold the counts outside of the Java heap.
+   */
+  public CountMatrix(int rows, int columns, boolean direct) {
+    long size = (long) rows * columns;
+
+    if (rows < 0 || columns < 0
+        || size > (direct ? Integer.MAX_VALUE / 4 : Integer.MAX_VALUE - 8)) {
+      throw new IllegalArgumentException(
+          rows + " x " + columns + " is too large for a count matrix.");
+    }
+
+    mRows = rows;
+    mColumns = columns;
+
+    if (direct) {
+      mCounts = ByteBuffer.allocateDirect((int) size * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+    } else {
+      mCounts = IntBuffer.wrap(new int[(int) size]);
+    }
+  }
+
+  /**
+   * Gets the number of rows.
+   *
+   * @return the rows
+   */
+  public int getRows() {
+    return mRows;
+  }
+
+  /**
+   * Gets the number of columns.
+   *
+   * @return the columns
+   */
+  public int getColumns() {
+    return mColumns;
+  }
+
+  /**
+   * Returns true if the counts are held outside of the Java heap.
+   *
+   * @return true, if is direct
+   */
+  public boolean isDirect() {
+    return mCounts.isDirect();
+  }
+
+  /**
+   * Gets a count.
+   *
+   * @param row the row
+   * @param column the column
+   * @return the count
+   */
+  public int get(int row, int column) {
+    return mCounts.get(index(row, column));
+  }
+
+  /**
+   * Sets a count.
+   *
+   * @param row the row
+   * @param column the column
+   * @param count the count
+   */
+  public void set(int row, int column, int count) {
+    mCounts.put(index(row, column), count);
+  }
+
+  /**
+   * Copies the counts of a row.
+   *
+   * @param row the row
+   * @return the counts of each column
+   */
+  public int[] getRow(int row) {
+    int[] ret = new int[mColumns];
+
+    for (int i = 0; i < mColumns; ++i) {
+      ret[i] = get(row, i);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Copies the counts of a column.
+   *
+   * @param column the column
+   * @return the counts of each row
+   */
+  public int[] getColumn(int column) {
+    int[] ret = new int[mRows];
+
+    for (int i = 0; i < mRows; ++i) {
+      ret[i] = get(i, column);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the index of a cell in the buffer.
+   *
+   * @param row the row
+   * @param column the column
+   * @return the index
+   */
+  private int index(int row, int column) {
+    if (row < 0 || row >= mRows || column < 0 || column >= mColumns) {
+      throw new IndexOutOfBoundsException(row + ", " + column);
+    }
+
+    return row * mColumns + column;
+  }
+}
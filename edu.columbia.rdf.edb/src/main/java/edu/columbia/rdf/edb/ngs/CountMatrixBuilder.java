@@ -0,0 +1,222 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * Builds a matrix of the number of reads in each of a list of regions, one
+ * row per region, in each of a set of samples, one column per sample. The
+ * regions of each chromosome are read from each sample with a single batch
+ * query, and the sample and chromosome pairs are read in parallel on a
+ * fixed number of threads.
+ *
+ * @author Antony Holmes
+ */
+public class CountMatrixBuilder {
+
+  /**
+   * Receives the progress of a build. Calls are made from the threads
+   * reading the samples.
+   */
+  public interface ProgressListener {
+
+    /**
+     * Called each time the regions of a chromosome have been read from a
+     * sample.
+     *
+     * @param done the number of sample and chromosome pairs read
+     * @param total the total number of sample and chromosome pairs
+     */
+    public void progress(int done, int total);
+  }
+
+  /** The m samples. */
+  private final List<CountAssembly> mSamples;
+
+  /** The m threads. */
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+
+  /** The m direct. */
+  private boolean mDirect = false;
+
+  /** The m listener. */
+  private ProgressListener mListener = null;
+
+  /**
+   * Create a builder whose columns are the samples in the order given.
+   *
+   * @param samples the samples
+   */
+  public CountMatrixBuilder(List<CountAssembly> samples) {
+    mSamples = new ArrayList<CountAssembly>(samples);
+  }
+
+  /**
+   * Sets the maximum number of samples read at once.
+   *
+   * @param threads the new threads
+   */
+  public void setThreads(int threads) {
+    mThreads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets whether the matrix should be held outside of the Java heap.
+   *
+   * @param direct the new direct
+   */
+  public void setDirect(boolean direct) {
+    mDirect = direct;
+  }
+
+  /**
+   * Sets the listener to notify of progress.
+   *
+   * @param listener the new progress listener
+   */
+  public void setProgressListener(ProgressListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Counts the reads in each region of each sample. The count of a region
+   * is the sum of its counts at the given window, so the window should be
+   * the largest that a sample supports at the resolution required.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @return the count matrix
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CountMatrix build(final List<GenomicRegion> regions, final int window)
+      throws IOException {
+    final CountMatrix ret =
+        new CountMatrix(regions.size(), mSamples.size(), mDirect);
+
+    final Map<Chromosome, List<Integer>> chrs =
+        ReadCountsFile.groupByChr(regions);
+
+    final int total = chrs.size() * mSamples.size();
+
+    if (total == 0) {
+      return ret;
+    }
+
+    final AtomicInteger done = new AtomicInteger(0);
+
+    final ProgressListener listener = mListener;
+
+    ExecutorService executor = Executors
+        .newFixedThreadPool(Math.max(1, Math.min(mThreads, total)));
+
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+      for (int s = 0; s < mSamples.size(); ++s) {
+        final int column = s;
+        final CountAssembly sample = mSamples.get(s);
+
+        for (final Entry<Chromosome, List<Integer>> item : chrs.entrySet()) {
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              read(sample, regions, item.getValue(), window, column, ret);
+
+              int d = done.incrementAndGet();
+
+              if (listener != null) {
+                listener.progress(d, total);
+              }
+
+              return null;
+            }
+          }));
+        }
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+
+          throw new IOException(e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+
+          throw new IOException(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Reads the regions of one chromosome from a sample and writes their
+   * totals into a column of the matrix.
+   *
+   * @param sample the sample
+   * @param regions the regions
+   * @param indices the indices of the regions on the chromosome
+   * @param window the window
+   * @param column the column
+   * @param matrix the matrix
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void read(CountAssembly sample,
+      List<GenomicRegion> regions,
+      List<Integer> indices,
+      int window,
+      int column,
+      CountMatrix matrix) throws IOException {
+    List<GenomicRegion> batch = new ArrayList<GenomicRegion>(indices.size());
+
+    for (int i : indices) {
+      batch.add(regions.get(i));
+    }
+
+    List<int[]> counts = sample.getCounts(batch, window);
+
+    for (int i = 0; i < indices.size(); ++i) {
+      int sum = 0;
+
+      for (int c : counts.get(i)) {
+        sum += c;
+      }
+
+      matrix.set(indices.get(i), column, sum);
+    }
+  }
+}
@@ -0,0 +1,836 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process wide I/O and latency metrics of the count readers. Counters are
+ * kept for each file and totalled for each format, and latency histograms
+ * are kept for each format, method and power of ten of the window. Formats
+ * are named after the extension of their files, except that packed count
+ * files of every bit depth are grouped as packed. The metrics of a file are
+ * discarded when the count reader of it is closed, leaving the totals of its
+ * format.
+ * 
+ * Metrics are off unless the edb.metrics system property is true or
+ * {@link #setEnabled(boolean)} is called. When off, the readers only test a
+ * volatile flag. File counters are recorded by readers obtained from
+ * {@link FileHandlePool} and {@link SamReaderPool}, and latencies by wrapping
+ * an assembly in a {@link MeteredCountAssembly}.
+ * 
+ * The metrics are registered as MXBeans under the
+ * edu.columbia.rdf.edb.ngs domain and can also be pushed to
+ * {@link CountMetricsListener}s.
+ *
+ * @author Antony Holmes
+ */
+public class CountMetrics implements CountMetricsMXBean {
+
+  /**
+   * The Class CountMetricsLoader.
+   */
+  private static class CountMetricsLoader {
+
+    /** The Constant INSTANCE. */
+    private static final CountMetrics INSTANCE = new CountMetrics();
+  }
+
+  /**
+   * Gets the single instance of CountMetrics.
+   *
+   * @return single instance of CountMetrics
+   */
+  public static CountMetrics getInstance() {
+    return CountMetricsLoader.INSTANCE;
+  }
+
+  /** The JMX domain of the metrics. */
+  public static final String DOMAIN = "edu.columbia.rdf.edb.ngs";
+
+  /** The format of packed count files of any bit depth. */
+  public static final String PACKED_FORMAT = "packed";
+
+  /**
+   * The smallest window of each level latencies are grouped by, the powers
+   * of ten up to the largest int.
+   */
+  private static final int[] WINDOW_LEVELS = { 1, 10, 100, 1000, 10000,
+      100000, 1000000, 10000000, 100000000, 1000000000 };
+
+  /**
+   * The counters kept for each file and format.
+   */
+  public enum Counter {
+    /** Queries made. */
+    QUERIES,
+
+    /** Bytes read. */
+    BYTES_READ,
+
+    /** Seeks to a new position. */
+    SEEKS,
+
+    /** Records decoded. */
+    RECORDS_DECODED,
+
+    /** Decoded records outside the region queried. */
+    RECORDS_DISCARDED,
+
+    /** Reads served from a cache. */
+    CACHE_HITS
+  }
+
+  /** The m enabled. */
+  private volatile boolean mEnabled = Boolean.getBoolean("edb.metrics");
+
+  /** The m files. */
+  private final Map<Path, FileMetrics> mFiles =
+      new ConcurrentHashMap<Path, FileMetrics>();
+
+  /** The m formats. */
+  private final Map<String, FormatMetrics> mFormats =
+      new ConcurrentHashMap<String, FormatMetrics>();
+
+  /** The m listeners. */
+  private final List<CountMetricsListener> mListeners =
+      new CopyOnWriteArrayList<CountMetricsListener>();
+
+  /**
+   * Instantiates a new count metrics.
+   */
+  private CountMetrics() {
+    register(this, DOMAIN + ":type=CountMetrics");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountMetricsMXBean#isEnabled()
+   */
+  @Override
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountMetricsMXBean#setEnabled(boolean)
+   */
+  @Override
+  public void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+  }
+
+  /**
+   * Adds a listener.
+   *
+   * @param l the l
+   */
+  public void addListener(CountMetricsListener l) {
+    mListeners.add(l);
+  }
+
+  /**
+   * Removes a listener.
+   *
+   * @param l the l
+   */
+  public void removeListener(CountMetricsListener l) {
+    mListeners.remove(l);
+  }
+
+  /**
+   * Returns the metrics of a file, or null if metrics are off. Readers that
+   * record many counters can hold on to the returned object rather than
+   * looking it up each time.
+   *
+   * @param file the file
+   * @return the file metrics
+   */
+  public FileMetrics getFileMetrics(Path file) {
+    if (!mEnabled || file == null) {
+      return null;
+    }
+
+    FileMetrics metrics = mFiles.get(file);
+
+    if (metrics == null) {
+      final FormatMetrics format = getFormatMetrics(getFormat(file));
+
+      if (format == null) {
+        return null;
+      }
+
+      // The bean is registered as the entry is created so that a file
+      // removed at the same time is never left registered
+      metrics = mFiles.computeIfAbsent(file,
+          new Function<Path, FileMetrics>() {
+            @Override
+            public FileMetrics apply(Path f) {
+              FileMetrics ret = new FileMetrics(f, format);
+
+              register(ret, ret.mName);
+
+              return ret;
+            }
+          });
+    }
+
+    return metrics;
+  }
+
+  /**
+   * Discard the metrics of a file and remove them from JMX. This is called
+   * when the count reader of a file is closed, not when the file handle pool
+   * recycles its descriptor, so that processes that read many files do not
+   * accumulate their metrics. The totals of its format are kept.
+   *
+   * @param file the file
+   */
+  public void remove(Path file) {
+    if (file == null) {
+      return;
+    }
+
+    mFiles.computeIfPresent(file,
+        new BiFunction<Path, FileMetrics, FileMetrics>() {
+          @Override
+          public FileMetrics apply(Path f, FileMetrics metrics) {
+            unregister(metrics.mName);
+
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Returns the metrics of a format, or null if metrics are off.
+   *
+   * @param format the format
+   * @return the format metrics
+   */
+  public FormatMetrics getFormatMetrics(String format) {
+    if (!mEnabled) {
+      return null;
+    }
+
+    FormatMetrics metrics = mFormats.get(format);
+
+    if (metrics == null) {
+      metrics = new FormatMetrics(format);
+
+      FormatMetrics current = mFormats.putIfAbsent(format, metrics);
+
+      if (current != null) {
+        metrics = current;
+      } else {
+        register(metrics,
+            DOMAIN + ":type=CountMetrics,format=" + ObjectName.quote(format));
+      }
+    }
+
+    return metrics;
+  }
+
+  /**
+   * Increment a counter of a file.
+   *
+   * @param file the file
+   * @param counter the counter
+   * @param n the n
+   */
+  public void add(Path file, Counter counter, long n) {
+    FileMetrics metrics = getFileMetrics(file);
+
+    if (metrics != null) {
+      metrics.add(counter, n);
+    }
+  }
+
+  /**
+   * Increment a counter of a format that is not tied to a file.
+   *
+   * @param format the format
+   * @param counter the counter
+   * @param n the n
+   */
+  public void add(String format, Counter counter, long n) {
+    FormatMetrics metrics = getFormatMetrics(format);
+
+    if (metrics != null) {
+      metrics.add(counter, n);
+
+      fire(format, null, counter, n);
+    }
+  }
+
+  /**
+   * Record the records decoded from the file of a reader, of which only kept
+   * were within the region queried.
+   *
+   * @param in the in
+   * @param decoded the decoded
+   * @param kept the kept
+   */
+  public void records(BinaryReader in, int decoded, int kept) {
+    if (mEnabled) {
+      FileMetrics metrics = getFileMetrics(in.getFile());
+
+      if (metrics != null) {
+        metrics.add(Counter.RECORDS_DECODED, decoded);
+        metrics.add(Counter.RECORDS_DISCARDED, decoded - kept);
+      }
+    }
+  }
+
+  /**
+   * Record the records decoded from the file of a reader, counting those
+   * whose start lies within the region queried as kept. The records are
+   * only scanned when metrics are on.
+   *
+   * @param in the in
+   * @param records the records from their position to their limit
+   * @param stride the bytes from one start to the next
+   * @param start the start of the region
+   * @param end the end of the region
+   */
+  public void records(BinaryReader in,
+      ByteBuffer records,
+      int stride,
+      int start,
+      int end) {
+    if (mEnabled) {
+      int decoded = records.remaining() / stride;
+      int kept = 0;
+
+      int p = records.position();
+
+      for (int i = 0; i < decoded; ++i) {
+        int s = records.getInt(p);
+
+        if (s >= start && s <= end) {
+          ++kept;
+        }
+
+        p += stride;
+      }
+
+      records(in, decoded, kept);
+    }
+  }
+
+  /**
+   * Record the latency of a call.
+   *
+   * @param format the format
+   * @param method the method
+   * @param window the window
+   * @param nanos the nanos
+   */
+  public void latency(String format, String method, int window, long nanos) {
+    FormatMetrics metrics = getFormatMetrics(format);
+
+    if (metrics != null) {
+      metrics.getHistogram(method, window).record(nanos);
+
+      for (CountMetricsListener l : mListeners) {
+        l.latency(format, method, window, nanos);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountMetricsMXBean#getFormats()
+   */
+  @Override
+  public List<String> getFormats() {
+    List<String> ret = new ArrayList<String>(mFormats.keySet());
+
+    Collections.sort(ret);
+
+    return ret;
+  }
+
+  /**
+   * Gets the metrics of each file.
+   *
+   * @return the files
+   */
+  public Map<Path, FileMetrics> getFiles() {
+    return Collections.unmodifiableMap(mFiles);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountMetricsMXBean#reset()
+   */
+  @Override
+  public void reset() {
+    for (FileMetrics metrics : mFiles.values()) {
+      metrics.reset();
+    }
+
+    for (FormatMetrics metrics : mFormats.values()) {
+      metrics.reset();
+    }
+  }
+
+  /**
+   * Discard the metrics of every file and format and remove them from JMX.
+   */
+  public void clear() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    try {
+      for (ObjectName name : server.queryNames(
+          new ObjectName(DOMAIN + ":type=CountMetrics,format=*,*"), null)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+
+    mFiles.clear();
+    mFormats.clear();
+  }
+
+  /**
+   * Returns the level of a window for grouping latencies, the power of ten
+   * at or below the window.
+   *
+   * @param window the window
+   * @return the level
+   */
+  public static int getWindowLevel(int window) {
+    int ret = 0;
+
+    while (ret + 1 < WINDOW_LEVELS.length && window >= WINDOW_LEVELS[ret + 1]) {
+      ++ret;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Notify the listeners that a counter was incremented.
+   *
+   * @param format the format
+   * @param file the file
+   * @param counter the counter
+   * @param n the n
+   */
+  private void fire(String format, Path file, Counter counter, long n) {
+    for (CountMetricsListener l : mListeners) {
+      l.counter(format, file, counter, n);
+    }
+  }
+
+  /**
+   * Returns the format of a file, which is its extension except for packed
+   * count files.
+   *
+   * @param file the file
+   * @return the format
+   */
+  public static String getFormat(Path file) {
+    String name = file.getFileName().toString();
+
+    if (name.contains(".counts.win.") && name.endsWith("bit")) {
+      return PACKED_FORMAT;
+    }
+
+    int i = name.lastIndexOf('.');
+
+    return i != -1 ? name.substring(i + 1) : name;
+  }
+
+  /**
+   * Returns the format of the files read by an assembly so that its
+   * latencies are reported with the counters of its files.
+   *
+   * @param assembly the assembly
+   * @return the format
+   */
+  public static String getFormat(CountAssembly assembly) {
+    if (assembly instanceof CachingCountAssembly) {
+      return getFormat(((CachingCountAssembly) assembly).getAssembly());
+    } else if (assembly instanceof MeteredCountAssembly) {
+      return ((MeteredCountAssembly) assembly).getFormat();
+    } else if (assembly instanceof ReadCountsFileBRT2) {
+      return ((ReadCountsFileBRT2) assembly).getFileExt();
+    } else if (assembly instanceof ReadCountsFileBRT) {
+      return ReadCountsFileBRT.FILE_EXT;
+    } else if (assembly instanceof ReadCountsFileBVT) {
+      return ReadCountsFileBVT.FILE_EXT;
+    } else if (assembly instanceof ReadCountsFileBC) {
+      return CountFileCatalog.BC_EXT;
+    } else if (assembly instanceof ReadCountsFileBam) {
+      return "bam";
+    } else if (assembly instanceof ReadCountsFile32Bit
+        || assembly instanceof ReadCountsFile8Bit) {
+      return PACKED_FORMAT;
+    } else {
+      return assembly.getClass().getSimpleName();
+    }
+  }
+
+  /**
+   * Register an MXBean, reporting rather than failing if it cannot be.
+   *
+   * @param bean the bean
+   * @param name the name
+   */
+  private static void register(Object bean, String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(bean, new ObjectName(name));
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Remove an MXBean, reporting rather than failing if it cannot be.
+   *
+   * @param name the name
+   */
+  private static void unregister(String name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    try {
+      ObjectName objectName = new ObjectName(name);
+
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Counters held as one adder per {@link Counter}.
+   */
+  public abstract static class Counters {
+
+    /** The m counters. */
+    protected final LongAdder[] mCounters =
+        new LongAdder[Counter.values().length];
+
+    /**
+     * Instantiates a new counters.
+     */
+    public Counters() {
+      for (int i = 0; i < mCounters.length; ++i) {
+        mCounters[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param counter the counter
+     * @param n the n
+     */
+    public void add(Counter counter, long n) {
+      mCounters[counter.ordinal()].add(n);
+    }
+
+    /**
+     * Gets the value of a counter.
+     *
+     * @param counter the counter
+     * @return the long
+     */
+    public long get(Counter counter) {
+      return mCounters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Gets the queries.
+     *
+     * @return the queries
+     */
+    public long getQueries() {
+      return get(Counter.QUERIES);
+    }
+
+    /**
+     * Gets the bytes read.
+     *
+     * @return the bytes read
+     */
+    public long getBytesRead() {
+      return get(Counter.BYTES_READ);
+    }
+
+    /**
+     * Gets the seeks.
+     *
+     * @return the seeks
+     */
+    public long getSeeks() {
+      return get(Counter.SEEKS);
+    }
+
+    /**
+     * Gets the records decoded.
+     *
+     * @return the records decoded
+     */
+    public long getRecordsDecoded() {
+      return get(Counter.RECORDS_DECODED);
+    }
+
+    /**
+     * Gets the records discarded.
+     *
+     * @return the records discarded
+     */
+    public long getRecordsDiscarded() {
+      return get(Counter.RECORDS_DISCARDED);
+    }
+
+    /**
+     * Gets the cache hits.
+     *
+     * @return the cache hits
+     */
+    public long getCacheHits() {
+      return get(Counter.CACHE_HITS);
+    }
+
+    /**
+     * Zero the counters.
+     */
+    public void reset() {
+      for (LongAdder counter : mCounters) {
+        counter.reset();
+      }
+    }
+  }
+
+  /**
+   * The metrics of a file. Counters added to a file are also added to the
+   * totals of its format.
+   */
+  public class FileMetrics extends Counters implements FileMetricsMXBean {
+
+    /** The m file. */
+    private final Path mFile;
+
+    /** The m format. */
+    private final FormatMetrics mFormat;
+
+    /** The JMX name of the metrics. */
+    private final String mName;
+
+    /**
+     * Instantiates a new file metrics.
+     *
+     * @param file the file
+     * @param format the format
+     */
+    private FileMetrics(Path file, FormatMetrics format) {
+      mFile = file;
+      mFormat = format;
+      mName = DOMAIN + ":type=CountMetrics,format="
+          + ObjectName.quote(format.getFormat()) + ",file="
+          + ObjectName.quote(file.toString());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountMetrics.Counters#add(edu.columbia.
+     * rdf.edb.ngs.CountMetrics.Counter, long)
+     */
+    @Override
+    public void add(Counter counter, long n) {
+      super.add(counter, n);
+
+      mFormat.add(counter, n);
+
+      fire(mFormat.getFormat(), mFile, counter, n);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.FileMetricsMXBean#getFile()
+     */
+    @Override
+    public String getFile() {
+      return mFile.toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.FileMetricsMXBean#getFormat()
+     */
+    @Override
+    public String getFormat() {
+      return mFormat.getFormat();
+    }
+  }
+
+  /**
+   * The counter totals and latencies of a format.
+   */
+  public static class FormatMetrics extends Counters
+      implements FormatMetricsMXBean {
+
+    /** The m format. */
+    private final String mFormat;
+
+    /**
+     * The latency histograms of each method indexed by the level of the
+     * window.
+     */
+    private final Map<String, AtomicReferenceArray<LatencyHistogram>>
+        mHistograms = new ConcurrentHashMap<String,
+            AtomicReferenceArray<LatencyHistogram>>();
+
+    /**
+     * Instantiates a new format metrics.
+     *
+     * @param format the format
+     */
+    private FormatMetrics(String format) {
+      mFormat = format;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.FormatMetricsMXBean#getFormat()
+     */
+    @Override
+    public String getFormat() {
+      return mFormat;
+    }
+
+    /**
+     * Returns the latency histogram of a method and the level of a window,
+     * so that there is at most one histogram per method and power of ten
+     * however many windows are read. No key is built so looking up a
+     * histogram does not allocate.
+     *
+     * @param method the method
+     * @param window the window
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(String method, int window) {
+      AtomicReferenceArray<LatencyHistogram> histograms =
+          mHistograms.get(method);
+
+      if (histograms == null) {
+        histograms = new AtomicReferenceArray<LatencyHistogram>(
+            WINDOW_LEVELS.length);
+
+        AtomicReferenceArray<LatencyHistogram> current =
+            mHistograms.putIfAbsent(method, histograms);
+
+        if (current != null) {
+          histograms = current;
+        }
+      }
+
+      int level = getWindowLevel(window);
+
+      LatencyHistogram histogram = histograms.get(level);
+
+      if (histogram == null) {
+        histograms.compareAndSet(level, null, new LatencyHistogram());
+
+        histogram = histograms.get(level);
+      }
+
+      return histogram;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.FormatMetricsMXBean#getLatencies()
+     */
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+      Map<String, LatencyHistogram.Snapshot> ret =
+          new TreeMap<String, LatencyHistogram.Snapshot>();
+
+      for (String method : mHistograms.keySet()) {
+        AtomicReferenceArray<LatencyHistogram> histograms =
+            mHistograms.get(method);
+
+        for (int i = 0; i < histograms.length(); ++i) {
+          LatencyHistogram histogram = histograms.get(i);
+
+          if (histogram != null) {
+            ret.put(method + "/" + WINDOW_LEVELS[i],
+                histogram.getSnapshot());
+          }
+        }
+      }
+
+      return ret;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountMetrics.Counters#reset()
+     */
+    @Override
+    public void reset() {
+      super.reset();
+
+      for (AtomicReferenceArray<LatencyHistogram> histograms : mHistograms
+          .values()) {
+        for (int i = 0; i < histograms.length(); ++i) {
+          LatencyHistogram histogram = histograms.get(i);
+
+          if (histogram != null) {
+            histogram.reset();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the metrics recorded by {@link CountMetrics} as they happen, for
+ * example to forward them to a monitoring system. Listeners are called on
+ * the reading threads so they must be thread safe and return quickly.
+ *
+ * @author Antony Holmes
+ */
+public interface CountMetricsListener {
+
+  /**
+   * Called when a counter is incremented.
+   *
+   * @param format the format
+   * @param file the file, or null if the counter is not tied to a file
+   * @param counter the counter
+   * @param n the amount the counter was incremented by
+   */
+  public void counter(String format,
+      Path file,
+      CountMetrics.Counter counter,
+      long n);
+
+  /**
+   * Called when the latency of a call is recorded.
+   *
+   * @param format the format
+   * @param method the method
+   * @param window the window
+   * @param nanos the latency in nanoseconds
+   */
+  public void latency(String format, String method, int window, long nanos);
+}
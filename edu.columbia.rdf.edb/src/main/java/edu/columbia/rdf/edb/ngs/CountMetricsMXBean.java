@@ -0,0 +1,53 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link CountMetrics}, allowing metrics to be switched on and
+ * off and reset at runtime.
+ *
+ * @author Antony Holmes
+ */
+public interface CountMetricsMXBean {
+
+  /**
+   * Returns whether metrics are being recorded.
+   *
+   * @return true, if is enabled
+   */
+  public boolean isEnabled();
+
+  /**
+   * Start or stop recording metrics.
+   *
+   * @param enabled the new enabled
+   */
+  public void setEnabled(boolean enabled);
+
+  /**
+   * Gets the formats with metrics.
+   *
+   * @return the formats
+   */
+  public List<String> getFormats();
+
+  /**
+   * Zero every counter and histogram.
+   */
+  public void reset();
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * Accumulates a statistic over runs of binned counts. A reducer is created
+ * for each chunk of a chromosome so that chunks can be reduced in parallel,
+ * and the reducers of neighbouring chunks are then merged in genomic order.
+ *
+ * @author Antony Holmes
+ *
+ * @param <T> the type of reducer
+ */
+public interface CountReducer<T extends CountReducer<T>> {
+
+  /**
+   * Returns a new empty reducer of the same kind.
+   *
+   * @return the reducer
+   */
+  public T create();
+
+  /**
+   * Accumulates a run of counts.
+   *
+   * @param bin the bin of the first count
+   * @param counts the counts
+   * @param offset the index in counts of the first count
+   * @param length the number of counts
+   */
+  public void reduce(int bin, int[] counts, int offset, int length);
+
+  /**
+   * Merges the statistic of a reducer over the bins following those of this
+   * reducer into this reducer.
+   *
+   * @param reducer the reducer
+   */
+  public void merge(T reducer);
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * Reducers for common statistics of binned counts.
+ *
+ * @author Antony Holmes
+ */
+public class CountReducers {
+
+  /**
+   * Instantiates a new count reducers.
+   */
+  private CountReducers() {
+    // Do nothing
+  }
+
+  /**
+   * Sums the counts, for example to total the reads of a chromosome.
+   */
+  public static class Sum implements CountReducer<Sum> {
+
+    /** The m sum. */
+    private long mSum = 0;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#create()
+     */
+    @Override
+    public Sum create() {
+      return new Sum();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#reduce(int, int[], int, int)
+     */
+    @Override
+    public void reduce(int bin, int[] counts, int offset, int length) {
+      long sum = 0;
+
+      for (int i = offset; i < offset + length; ++i) {
+        sum += counts[i];
+      }
+
+      mSum += sum;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#merge(edu.columbia.rdf.edb.
+     * ngs.CountReducer)
+     */
+    @Override
+    public void merge(Sum reducer) {
+      mSum += reducer.mSum;
+    }
+
+    /**
+     * Gets the sum.
+     *
+     * @return the sum
+     */
+    public long getSum() {
+      return mSum;
+    }
+  }
+
+  /**
+   * Finds the largest count and the first bin in which it occurs.
+   */
+  public static class Max implements CountReducer<Max> {
+
+    /** The m max. */
+    private int mMax = Integer.MIN_VALUE;
+
+    /** The m bin. */
+    private int mBin = -1;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#create()
+     */
+    @Override
+    public Max create() {
+      return new Max();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#reduce(int, int[], int, int)
+     */
+    @Override
+    public void reduce(int bin, int[] counts, int offset, int length) {
+      for (int i = 0; i < length; ++i) {
+        if (counts[offset + i] > mMax) {
+          mMax = counts[offset + i];
+          mBin = bin + i;
+        }
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#merge(edu.columbia.rdf.edb.
+     * ngs.CountReducer)
+     */
+    @Override
+    public void merge(Max reducer) {
+      // Ties keep the earlier bin
+      if (reducer.mMax > mMax) {
+        mMax = reducer.mMax;
+        mBin = reducer.mBin;
+      }
+    }
+
+    /**
+     * Gets the max.
+     *
+     * @return the max, or Integer.MIN_VALUE if there were no bins.
+     */
+    public int getMax() {
+      return mMax;
+    }
+
+    /**
+     * Gets the first bin with the max.
+     *
+     * @return the bin, or -1 if there were no bins.
+     */
+    public int getBin() {
+      return mBin;
+    }
+  }
+
+  /**
+   * Counts the bins with each count. Counts of the maximum and above share
+   * the last element of the histogram.
+   */
+  public static class Histogram implements CountReducer<Histogram> {
+
+    /** The m histogram. */
+    private final long[] mHistogram;
+
+    /**
+     * Instantiates a new histogram.
+     *
+     * @param max the largest count with its own element
+     */
+    public Histogram(int max) {
+      mHistogram = new long[Math.max(0, max) + 1];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#create()
+     */
+    @Override
+    public Histogram create() {
+      return new Histogram(mHistogram.length - 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#reduce(int, int[], int, int)
+     */
+    @Override
+    public void reduce(int bin, int[] counts, int offset, int length) {
+      int max = mHistogram.length - 1;
+
+      for (int i = offset; i < offset + length; ++i) {
+        ++mHistogram[Math.max(0, Math.min(counts[i], max))];
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#merge(edu.columbia.rdf.edb.
+     * ngs.CountReducer)
+     */
+    @Override
+    public void merge(Histogram reducer) {
+      for (int i = 0; i < mHistogram.length; ++i) {
+        mHistogram[i] += reducer.mHistogram[i];
+      }
+    }
+
+    /**
+     * Gets the histogram, where element i is the number of bins with count i.
+     *
+     * @return the histogram
+     */
+    public long[] getHistogram() {
+      return mHistogram;
+    }
+  }
+
+  /**
+   * Counts the bins with a count above zero.
+   */
+  public static class NonZero implements CountReducer<NonZero> {
+
+    /** The m bins. */
+    private long mBins = 0;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#create()
+     */
+    @Override
+    public NonZero create() {
+      return new NonZero();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#reduce(int, int[], int, int)
+     */
+    @Override
+    public void reduce(int bin, int[] counts, int offset, int length) {
+      int n = 0;
+
+      for (int i = offset; i < offset + length; ++i) {
+        if (counts[i] > 0) {
+          ++n;
+        }
+      }
+
+      mBins += n;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountReducer#merge(edu.columbia.rdf.edb.
+     * ngs.CountReducer)
+     */
+    @Override
+    public void merge(NonZero reducer) {
+      mBins += reducer.mBins;
+    }
+
+    /**
+     * Gets the number of non zero bins.
+     *
+     * @return the bins
+     */
+    public long getBins() {
+      return mBins;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import org.jebtk.core.io.FileUtils;
+
+/**
+ * Binary reader backed by a random access file.
+ */
+public class FileBinaryReader implements BinaryReader {
+
+  /** The m file. */
+  private final RandomAccessFile mFile;
+
+  /** Whether this reader opened the file and so must close it. */
+  private final boolean mOwner;
+
+  /**
+   * Open a file for reading.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public FileBinaryReader(Path file) throws IOException {
+    mFile = FileUtils.newRandomAccess(file);
+    mOwner = true;
+  }
+
+  /**
+   * Wrap an already open file. The file is left open when the reader is
+   * closed.
+   *
+   * @param file the file
+   */
+  public FileBinaryReader(RandomAccessFile file) {
+    mFile = file;
+    mOwner = false;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    mFile.seek(pos);
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    return mFile.readInt();
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    return mFile.readByte();
+  }
+
+  @Override
+  public float readFloat() throws IOException {
+    return mFile.readFloat();
+  }
+
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    mFile.readFully(b, off, len);
+  }
+
+  @Override
+  public long size() throws IOException {
+    return mFile.length();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mOwner) {
+      mFile.close();
+    }
+  }
+}
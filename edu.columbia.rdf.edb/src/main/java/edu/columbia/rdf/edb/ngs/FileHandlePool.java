@@ -0,0 +1,515 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide pool of open read only files shared by all count readers.
+ * Each file is opened once and kept open for reuse until the pool holds more
+ * than the maximum number of files, at which point the least recently used
+ * files that no reader is using are closed.
+ * 
+ * Files are read with positional reads so any number of readers, on any
+ * threads, can share one handle. Each reader returned by
+ * {@link #open(Path)} keeps its own position and must be closed to return
+ * the file to the pool.
+ * 
+ * A channel is closed by the JDK when a thread is interrupted while reading
+ * from it. Since a channel is shared, the pool reopens it in place so that
+ * one caller's interrupt only fails that caller's read and the other
+ * readers of the file retry on the new channel.
+ *
+ * @author Antony Holmes
+ */
+public class FileHandlePool {
+
+  /**
+   * The Class FileHandlePoolLoader.
+   */
+  private static class FileHandlePoolLoader {
+
+    /** The Constant INSTANCE. */
+    private static final FileHandlePool INSTANCE = new FileHandlePool();
+  }
+
+  /**
+   * Gets the single instance of FileHandlePool.
+   *
+   * @return single instance of FileHandlePool
+   */
+  public static FileHandlePool getInstance() {
+    return FileHandlePoolLoader.INSTANCE;
+  }
+
+  /** The Constant DEFAULT_MAX_OPEN_FILES. */
+  public static final int DEFAULT_MAX_OPEN_FILES = 128;
+
+  /**
+   * The largest read that is made into the scratch buffer of a thread.
+   * Larger reads get a buffer of their own so that one long query does not
+   * pin a large buffer to the thread.
+   */
+  public static final int MAX_SCRATCH_BYTES = 1 << 20;
+
+  /**
+   * Reused by the readers of each thread since a reader lasts only for a
+   * single query.
+   */
+  private static final ThreadLocal<ByteBuffer> SCRATCH =
+      new ThreadLocal<ByteBuffer>();
+
+  /** Open files in least recently used order. */
+  private final Map<Path, Handle> mHandles =
+      new LinkedHashMap<Path, Handle>(16, 0.75f, true);
+
+  /** The m max open files. */
+  private int mMaxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+  /** The m hits. */
+  private long mHits = 0;
+
+  /** The m misses. */
+  private long mMisses = 0;
+
+  /**
+   * Instantiates a new file handle pool.
+   */
+  private FileHandlePool() {
+    // Do nothing
+  }
+
+  /**
+   * Returns a reader over a file, opening the file if it is not already in
+   * the pool.
+   *
+   * @param file the file
+   * @return the binary reader
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinaryReader open(Path file) throws IOException {
+    return new PooledBinaryReader(file, acquire(file));
+  }
+
+  /**
+   * Sets the maximum number of files kept open. Files in use are never
+   * closed so the pool may exceed this while they are being read.
+   *
+   * @param maxOpenFiles the new max open files
+   */
+  public synchronized void setMaxOpenFiles(int maxOpenFiles) {
+    mMaxOpenFiles = Math.max(1, maxOpenFiles);
+
+    evict();
+  }
+
+  /**
+   * Gets the max open files.
+   *
+   * @return the max open files
+   */
+  public synchronized int getMaxOpenFiles() {
+    return mMaxOpenFiles;
+  }
+
+  /**
+   * Returns the number of files currently open.
+   *
+   * @return the open files
+   */
+  public synchronized int getOpenFiles() {
+    return mHandles.size();
+  }
+
+  /**
+   * Returns the number of times a file was found already open.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  /**
+   * Returns the number of times a file had to be opened.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  /**
+   * Close every file that is not in use.
+   */
+  public synchronized void closeIdle() {
+    Iterator<Handle> iter = mHandles.values().iterator();
+
+    while (iter.hasNext()) {
+      Handle handle = iter.next();
+
+      if (handle.mRefs == 0) {
+        handle.close();
+
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Acquire.
+   *
+   * @param file the file
+   * @return the handle
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private synchronized Handle acquire(Path file) throws IOException {
+    Handle handle = mHandles.get(file);
+
+    if (handle != null) {
+      ++mHits;
+
+      CountMetrics.getInstance().add(file, CountMetrics.Counter.CACHE_HITS, 1);
+
+      // A channel is closed if a thread is interrupted while reading from
+      // it so such channels must be reopened.
+      reopen(handle, handle.mChannel);
+    } else {
+      ++mMisses;
+
+      handle =
+          new Handle(file, FileChannel.open(file, StandardOpenOption.READ));
+
+      mHandles.put(file, handle);
+    }
+
+    ++handle.mRefs;
+
+    evict();
+
+    return handle;
+  }
+
+  /**
+   * Reopen the channel of a handle if it is still the closed channel a
+   * reader saw. Readers that saw the same channel close find it already
+   * replaced and use the new one.
+   *
+   * @param handle the handle
+   * @param channel the channel the reader was using
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private synchronized void reopen(Handle handle, FileChannel channel)
+      throws IOException {
+    if (handle.mChannel == channel && !channel.isOpen()) {
+      handle.mChannel = FileChannel.open(handle.mFile, StandardOpenOption.READ);
+    }
+  }
+
+  /**
+   * Release.
+   *
+   * @param file the file
+   * @param handle the handle
+   */
+  private synchronized void release(Path file, Handle handle) {
+    --handle.mRefs;
+
+    if (mHandles.get(file) != handle) {
+      // The handle has already been replaced
+      if (handle.mRefs == 0) {
+        handle.close();
+      }
+    } else {
+      evict();
+    }
+  }
+
+  /**
+   * Close least recently used files that are not in use until the pool is
+   * within its limit.
+   */
+  private void evict() {
+    Iterator<Handle> iter = mHandles.values().iterator();
+
+    while (mHandles.size() > mMaxOpenFiles && iter.hasNext()) {
+      Handle handle = iter.next();
+
+      if (handle.mRefs == 0) {
+        handle.close();
+
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * An open file and the number of readers using it.
+   */
+  private static class Handle {
+
+    /** The m file. */
+    private final Path mFile;
+
+    /** The m channel, replaced if it is closed by an interrupt. */
+    private volatile FileChannel mChannel;
+
+    /** The m refs. */
+    private int mRefs = 0;
+
+    /**
+     * Instantiates a new handle.
+     *
+     * @param file the file
+     * @param channel the channel
+     */
+    public Handle(Path file, FileChannel channel) {
+      mFile = file;
+      mChannel = channel;
+    }
+
+    /**
+     * Close.
+     */
+    public void close() {
+      try {
+        mChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Reader over a pooled file with its own position.
+   */
+  private class PooledBinaryReader implements BinaryReader {
+
+    /** The m file. */
+    private final Path mFile;
+
+    /** The m handle. */
+    private final Handle mHandle;
+
+    /** Holds primitive values as they are read. */
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(8);
+
+    /** The metrics of the file, or null if metrics are off. */
+    private final CountMetrics.FileMetrics mMetrics;
+
+    /** The m pos. */
+    private long mPos = 0;
+
+    /** The m closed. */
+    private boolean mClosed = false;
+
+    /**
+     * Instantiates a new pooled binary reader.
+     *
+     * @param file the file
+     * @param handle the handle
+     */
+    public PooledBinaryReader(Path file, Handle handle) {
+      mFile = file;
+      mHandle = handle;
+      mMetrics = CountMetrics.getInstance().getFileMetrics(file);
+
+      if (mMetrics != null) {
+        mMetrics.add(CountMetrics.Counter.QUERIES, 1);
+      }
+    }
+
+    @Override
+    public void seek(long pos) {
+      if (mMetrics != null && pos != mPos) {
+        mMetrics.add(CountMetrics.Counter.SEEKS, 1);
+      }
+
+      mPos = pos;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+      return read(4).getInt();
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      return read(1).get();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+      return read(4).getFloat();
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+      fill(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public ByteBuffer readBuffer(int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(len);
+
+      fill(buffer);
+
+      buffer.flip();
+
+      return buffer;
+    }
+
+    @Override
+    public ByteBuffer readScratch(int len) throws IOException {
+      if (len > MAX_SCRATCH_BYTES) {
+        return readBuffer(len);
+      }
+
+      ByteBuffer buffer = SCRATCH.get();
+
+      if (buffer == null || buffer.capacity() < len) {
+        // Grow in powers of two so that a run of slightly longer reads does
+        // not reallocate each time
+        buffer = ByteBuffer
+            .allocate(Integer.highestOneBit(Math.max(1, len - 1)) << 1);
+
+        SCRATCH.set(buffer);
+      }
+
+      buffer.clear();
+      buffer.limit(len);
+
+      fill(buffer);
+
+      buffer.flip();
+
+      return buffer;
+    }
+
+    @Override
+    public long size() throws IOException {
+      while (true) {
+        FileChannel channel = mHandle.mChannel;
+
+        try {
+          return channel.size();
+        } catch (ClosedChannelException e) {
+          recover(channel, e);
+        }
+      }
+    }
+
+    @Override
+    public Path getFile() {
+      return mFile;
+    }
+
+    @Override
+    public void close() {
+      if (!mClosed) {
+        mClosed = true;
+
+        release(mFile, mHandle);
+      }
+    }
+
+    /**
+     * Read n bytes into the primitive buffer.
+     *
+     * @param n the n
+     * @return the byte buffer
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private ByteBuffer read(int n) throws IOException {
+      mBuffer.clear();
+      mBuffer.limit(n);
+
+      fill(mBuffer);
+
+      mBuffer.flip();
+
+      return mBuffer;
+    }
+
+    /**
+     * Read from the current position until the buffer is full.
+     *
+     * @param buffer the buffer
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void fill(ByteBuffer buffer) throws IOException {
+      if (mMetrics != null) {
+        mMetrics.add(CountMetrics.Counter.BYTES_READ, buffer.remaining());
+      }
+
+      while (buffer.hasRemaining()) {
+        // Reading on an interrupted thread would close the channel for
+        // every reader of the file, so fail this read alone
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException();
+        }
+
+        FileChannel channel = mHandle.mChannel;
+
+        int n;
+
+        try {
+          n = channel.read(buffer, mPos);
+        } catch (ClosedChannelException e) {
+          recover(channel, e);
+
+          continue;
+        }
+
+        if (n < 0) {
+          throw new EOFException();
+        }
+
+        mPos += n;
+      }
+    }
+
+    /**
+     * Reopen a channel that was closed under a read so that the read can be
+     * retried. If this thread's interrupt closed it, the channel is reopened
+     * for the other readers and the exception is rethrown.
+     *
+     * @param channel the channel that was closed
+     * @param e the exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void recover(FileChannel channel, ClosedChannelException e)
+        throws IOException {
+      reopen(mHandle, channel);
+
+      if (e instanceof ClosedByInterruptException
+          || Thread.currentThread().isInterrupted()) {
+        throw e;
+      }
+    }
+  }
+}
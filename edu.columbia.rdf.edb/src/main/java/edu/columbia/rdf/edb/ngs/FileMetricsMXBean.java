@@ -0,0 +1,86 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * JMX view of the counters of one count file.
+ *
+ * @author Antony Holmes
+ */
+public interface FileMetricsMXBean {
+
+  /**
+   * Gets the file.
+   *
+   * @return the file
+   */
+  public String getFile();
+
+  /**
+   * Gets the format.
+   *
+   * @return the format
+   */
+  public String getFormat();
+
+  /**
+   * Gets the number of queries, counted as readers opened on the file.
+   *
+   * @return the queries
+   */
+  public long getQueries();
+
+  /**
+   * Gets the bytes read.
+   *
+   * @return the bytes read
+   */
+  public long getBytesRead();
+
+  /**
+   * Gets the number of seeks.
+   *
+   * @return the seeks
+   */
+  public long getSeeks();
+
+  /**
+   * Gets the number of records decoded.
+   *
+   * @return the records decoded
+   */
+  public long getRecordsDecoded();
+
+  /**
+   * Gets the number of decoded records discarded for lying outside the
+   * region queried.
+   *
+   * @return the records discarded
+   */
+  public long getRecordsDiscarded();
+
+  /**
+   * Gets the number of cache hits.
+   *
+   * @return the cache hits
+   */
+  public long getCacheHits();
+
+  /**
+   * Zero the counters.
+   */
+  public void reset();
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.Map;
+
+/**
+ * JMX view of the counters and latencies of one count file format. The
+ * counters are the totals over the files of the format.
+ *
+ * @author Antony Holmes
+ */
+public interface FormatMetricsMXBean {
+
+  /**
+   * Gets the format.
+   *
+   * @return the format
+   */
+  public String getFormat();
+
+  /**
+   * Gets the number of queries.
+   *
+   * @return the queries
+   */
+  public long getQueries();
+
+  /**
+   * Gets the bytes read.
+   *
+   * @return the bytes read
+   */
+  public long getBytesRead();
+
+  /**
+   * Gets the number of seeks.
+   *
+   * @return the seeks
+   */
+  public long getSeeks();
+
+  /**
+   * Gets the number of records decoded.
+   *
+   * @return the records decoded
+   */
+  public long getRecordsDecoded();
+
+  /**
+   * Gets the number of decoded records discarded for lying outside the
+   * region queried.
+   *
+   * @return the records discarded
+   */
+  public long getRecordsDiscarded();
+
+  /**
+   * Gets the number of cache hits.
+   *
+   * @return the cache hits
+   */
+  public long getCacheHits();
+
+  /**
+   * Gets the latencies keyed by method and the power of ten at or below the
+   * window, for example getCounts/1000 for windows of 1000 to 9999.
+   *
+   * @return the latencies
+   */
+  public Map<String, LatencyHistogram.Snapshot> getLatencies();
+
+  /**
+   * Zero the counters and latencies.
+   */
+  public void reset();
+}
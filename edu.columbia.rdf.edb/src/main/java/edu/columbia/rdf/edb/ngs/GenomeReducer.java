@@ -0,0 +1,445 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * Computes statistics over the binned counts of whole chromosomes in
+ * parallel. Each chromosome is split into chunks of whole bins which are
+ * read and reduced on a fork join pool, then the reducers of each
+ * chromosome are merged in genomic order so that the results do not depend
+ * on the order in which chunks finish.
+ *
+ * <pre>
+ * GenomeReducer engine = new GenomeReducer(assembly);
+ *
+ * Map&lt;Chromosome, CountReducers.Sum&gt; reads =
+ *     engine.reduce(sizes, 1000, new CountReducers.Sum());
+ * </pre>
+ *
+ * Chunks are read with
+ * {@link CountAssembly#getCounts(GenomicRegion, int, int[], int)}, so for
+ * BAM files a read spanning the boundary between two chunks is counted in
+ * neither.
+ *
+ * Each read is run through {@link ForkJoinPool#managedBlock}, so the pool
+ * may start spare threads while workers wait on disk and the engine does
+ * not starve other users of the common pool.
+ *
+ * @author Antony Holmes
+ */
+public class GenomeReducer {
+
+  /** The default number of bins in each chunk. */
+  public static final int DEFAULT_CHUNK_BINS = 1 << 20;
+
+  /** The m assembly. */
+  private final CountAssembly mAssembly;
+
+  /** The m pool. */
+  private final ForkJoinPool mPool;
+
+  /** The m chunk bins. */
+  private volatile int mChunkBins = DEFAULT_CHUNK_BINS;
+
+  /** Each thread reuses one array to read its chunks into. */
+  private final ThreadLocal<int[]> mBuffers = new ThreadLocal<int[]>();
+
+  /**
+   * Create an engine that runs on the common fork join pool. Reads block
+   * through {@link ForkJoinPool#managedBlock} so that other tasks on the
+   * common pool keep running while chunks are read.
+   *
+   * @param assembly the assembly
+   */
+  public GenomeReducer(CountAssembly assembly) {
+    this(assembly, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Create an engine that runs on a given pool.
+   *
+   * @param assembly the assembly
+   * @param pool the pool
+   */
+  public GenomeReducer(CountAssembly assembly, ForkJoinPool pool) {
+    mAssembly = assembly;
+    mPool = pool;
+  }
+
+  /**
+   * Sets the number of bins in each chunk.
+   *
+   * @param bins the new chunk bins
+   */
+  public void setChunkBins(int bins) {
+    mChunkBins = Math.max(1, bins);
+  }
+
+  /**
+   * Reduces the counts of each chromosome.
+   *
+   * @param <T> the type of reducer
+   * @param sizes the length of each chromosome to reduce
+   * @param window the window
+   * @param reducer a reducer from which the reducer of each chunk is
+   *          created
+   * @return a reducer for each chromosome in the order of sizes.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public <T extends CountReducer<T>> Map<Chromosome, T> reduce(
+      Map<Chromosome, Integer> sizes,
+      int window,
+      T reducer) throws IOException {
+    int chunkBins = mChunkBins;
+
+    List<Chunk> chunks = new ArrayList<Chunk>();
+
+    Map<Chromosome, T> ret = new LinkedHashMap<Chromosome, T>();
+
+    for (Entry<Chromosome, Integer> item : sizes.entrySet()) {
+      ret.put(item.getKey(), reducer.create());
+
+      split(item.getKey(), item.getValue(), window, chunkBins, chunks);
+    }
+
+    AtomicReferenceArray<T> results =
+        new AtomicReferenceArray<T>(chunks.size());
+
+    if (chunks.size() > 0) {
+      try {
+        mPool.invoke(new ChunkTask<T>(chunks,
+            0,
+            chunks.size(),
+            window,
+            chunkBins,
+            reducer,
+            results));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+
+    // Merge in genomic order so that the results are deterministic
+    for (int i = 0; i < chunks.size(); ++i) {
+      ret.get(chunks.get(i).mRegion.getChr()).merge(results.get(i));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Reduces the counts of a set of chromosomes to a single statistic.
+   *
+   * @param <T> the type of reducer
+   * @param sizes the length of each chromosome to reduce
+   * @param window the window
+   * @param reducer a reducer from which the reducer of each chunk is
+   *          created
+   * @return the reducer over all of the chromosomes.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public <T extends CountReducer<T>> T reduceAll(
+      Map<Chromosome, Integer> sizes,
+      int window,
+      T reducer) throws IOException {
+    T ret = reducer.create();
+
+    for (T r : reduce(sizes, window, reducer).values()) {
+      ret.merge(r);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Splits a chromosome into chunks of whole bins.
+   *
+   * @param chr the chr
+   * @param size the size
+   * @param window the window
+   * @param chunkBins the chunk bins
+   * @param chunks the list to add the chunks to
+   */
+  private void split(Chromosome chr,
+      int size,
+      int window,
+      int chunkBins,
+      List<Chunk> chunks) {
+    if (size < 1) {
+      return;
+    }
+
+    GenomicRegion region = new GenomicRegion(chr, 1, size);
+
+    int startBin = mAssembly.getStartBin(region, window);
+    int bins = mAssembly.getBinCount(region, window);
+
+    if (mAssembly.getBinRegion(chr, startBin, 1, window) == null) {
+      // The counts depend on the region so the chromosome is read whole
+      chunks.add(new Chunk(region, startBin, bins));
+
+      return;
+    }
+
+    for (int b = 0; b < bins; b += chunkBins) {
+      int n = Math.min(chunkBins, bins - b);
+
+      GenomicRegion r =
+          mAssembly.getBinRegion(chr, startBin + b, n, window);
+
+      chunks.add(new Chunk(new GenomicRegion(chr, Math.max(1, r.getStart()),
+          Math.min(size, r.getEnd())), startBin + b, n));
+    }
+  }
+
+  /**
+   * Reads and reduces one chunk.
+   *
+   * @param <T> the type of reducer
+   * @param chunk the chunk
+   * @param window the window
+   * @param chunkBins the chunk bins
+   * @param reducer the reducer
+   * @return the reducer of the chunk
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private <T extends CountReducer<T>> T reduce(Chunk chunk,
+      int window,
+      int chunkBins,
+      T reducer) throws IOException {
+    int[] counts;
+
+    if (chunk.mBins <= chunkBins) {
+      counts = mBuffers.get();
+
+      if (counts == null || counts.length < chunkBins) {
+        counts = new int[chunkBins];
+
+        mBuffers.set(counts);
+      }
+
+      Arrays.fill(counts, 0, chunk.mBins, 0);
+    } else {
+      counts = new int[chunk.mBins];
+    }
+
+    ChunkRead read = new ChunkRead(chunk.mRegion, window, counts);
+
+    try {
+      ForkJoinPool.managedBlock(read);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new InterruptedIOException();
+    }
+
+    if (read.mError != null) {
+      throw read.mError;
+    }
+
+    T ret = reducer.create();
+
+    ret.reduce(chunk.mBin, counts, 0, chunk.mBins);
+
+    return ret;
+  }
+
+  /**
+   * Reads the counts of a chunk so that the pool can compensate for the
+   * worker blocked on the file.
+   */
+  private class ChunkRead implements ForkJoinPool.ManagedBlocker {
+
+    /** The m region. */
+    private final GenomicRegion mRegion;
+
+    /** The m window. */
+    private final int mWindow;
+
+    /** The m counts. */
+    private final int[] mCounts;
+
+    /** The m done. */
+    private boolean mDone = false;
+
+    /** The m error. */
+    private IOException mError = null;
+
+    /**
+     * Instantiates a new chunk read.
+     *
+     * @param region the region
+     * @param window the window
+     * @param counts the array to read the counts into
+     */
+    public ChunkRead(GenomicRegion region, int window, int[] counts) {
+      mRegion = region;
+      mWindow = window;
+      mCounts = counts;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.ForkJoinPool.ManagedBlocker#block()
+     */
+    @Override
+    public boolean block() {
+      try {
+        mAssembly.getCounts(mRegion, mWindow, mCounts, 0);
+      } catch (IOException e) {
+        mError = e;
+      }
+
+      mDone = true;
+
+      return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.ForkJoinPool.ManagedBlocker#isReleasable()
+     */
+    @Override
+    public boolean isReleasable() {
+      return mDone;
+    }
+  }
+
+  /**
+   * A run of whole bins of a chromosome.
+   */
+  private static class Chunk {
+
+    /** The region spanned by the bins. */
+    private final GenomicRegion mRegion;
+
+    /** The first bin. */
+    private final int mBin;
+
+    /** The number of bins. */
+    private final int mBins;
+
+    /**
+     * Instantiates a new chunk.
+     *
+     * @param region the region
+     * @param bin the bin
+     * @param bins the bins
+     */
+    public Chunk(GenomicRegion region, int bin, int bins) {
+      mRegion = region;
+      mBin = bin;
+      mBins = bins;
+    }
+  }
+
+  /**
+   * Reduces a range of chunks by splitting it in half until each task has a
+   * single chunk.
+   *
+   * @param <T> the type of reducer
+   */
+  private class ChunkTask<T extends CountReducer<T>> extends RecursiveAction {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The m chunks. */
+    private final List<Chunk> mChunks;
+
+    /** The m start. */
+    private final int mStart;
+
+    /** The m end. */
+    private final int mEnd;
+
+    /** The m window. */
+    private final int mWindow;
+
+    /** The m chunk bins. */
+    private final int mChunkBins;
+
+    /** The m reducer. */
+    private final T mReducer;
+
+    /** The m results. */
+    private final AtomicReferenceArray<T> mResults;
+
+    /**
+     * Instantiates a new chunk task.
+     *
+     * @param chunks the chunks
+     * @param start the index of the first chunk
+     * @param end the index after the last chunk
+     * @param window the window
+     * @param chunkBins the chunk bins
+     * @param reducer the reducer
+     * @param results the reducer of each chunk
+     */
+    public ChunkTask(List<Chunk> chunks, int start, int end, int window,
+        int chunkBins, T reducer, AtomicReferenceArray<T> results) {
+      mChunks = chunks;
+      mStart = start;
+      mEnd = end;
+      mWindow = window;
+      mChunkBins = chunkBins;
+      mReducer = reducer;
+      mResults = results;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      if (mEnd - mStart == 1) {
+        try {
+          mResults.set(mStart,
+              reduce(mChunks.get(mStart), mWindow, mChunkBins, mReducer));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      } else {
+        int mid = (mStart + mEnd) >>> 1;
+
+        invokeAll(new ChunkTask<T>(mChunks, mStart, mid, mWindow, mChunkBins,
+            mReducer, mResults),
+            new ChunkTask<T>(mChunks, mid, mEnd, mWindow, mChunkBins,
+                mReducer, mResults));
+      }
+    }
+  }
+}
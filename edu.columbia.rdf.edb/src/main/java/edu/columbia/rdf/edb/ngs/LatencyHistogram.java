@@ -0,0 +1,293 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds. Each power of two is
+ * split into {@link #SUB_BUCKETS} buckets of equal width so percentiles are
+ * accurate to within 12.5% over the full range of a long, using a fixed
+ * amount of memory however many latencies are recorded.
+ *
+ * @author Antony Holmes
+ */
+public class LatencyHistogram {
+
+  /** The number of bits used to split each power of two. */
+  private static final int SUB_BITS = 3;
+
+  /** The number of buckets each power of two is split into. */
+  public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /** The number of buckets. */
+  private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  /** The m buckets. */
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+  /** The m count. */
+  private final LongAdder mCount = new LongAdder();
+
+  /** The m total. */
+  private final LongAdder mTotal = new LongAdder();
+
+  /** The m max. */
+  private final AtomicLong mMax = new AtomicLong(0);
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    nanos = Math.max(0, nanos);
+
+    mBuckets.incrementAndGet(bucket(nanos));
+    mCount.increment();
+    mTotal.add(nanos);
+
+    long max = mMax.get();
+
+    while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+      max = mMax.get();
+    }
+  }
+
+  /**
+   * Gets the number of latencies recorded.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return mCount.sum();
+  }
+
+  /**
+   * Returns an estimate of a percentile, the largest latency that falls in
+   * the bucket holding the percentile.
+   *
+   * @param p the percentile between 0 and 1
+   * @return the latency in nanoseconds
+   */
+  public long getPercentile(double p) {
+    long count = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += mBuckets.get(i);
+    }
+
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(p * count));
+
+    long c = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      c += mBuckets.get(i);
+
+      if (c >= rank) {
+        return Math.min(mMax.get(),
+            i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE);
+      }
+    }
+
+    return mMax.get();
+  }
+
+  /**
+   * Returns a snapshot of the summary statistics of the histogram.
+   *
+   * @return the snapshot
+   */
+  public Snapshot getSnapshot() {
+    long count = mCount.sum();
+
+    return new Snapshot(count,
+        count > 0 ? mTotal.sum() / count : 0,
+        getPercentile(0.5),
+        getPercentile(0.9),
+        getPercentile(0.99),
+        getPercentile(0.999),
+        mMax.get());
+  }
+
+  /**
+   * Discard the recorded latencies.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      mBuckets.set(i, 0);
+    }
+
+    mCount.reset();
+    mTotal.reset();
+    mMax.set(0);
+  }
+
+  /**
+   * Returns the bucket holding a latency.
+   *
+   * @param v the v
+   * @return the int
+   */
+  private static int bucket(long v) {
+    if (v < SUB_BUCKETS) {
+      return (int) v;
+    }
+
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+
+    int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+    return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+  }
+
+  /**
+   * Returns the smallest latency held by a bucket.
+   *
+   * @param b the bucket
+   * @return the long
+   */
+  private static long lowerBound(int b) {
+    if (b < SUB_BUCKETS) {
+      return b;
+    }
+
+    int exp = (b >>> SUB_BITS) + SUB_BITS - 1;
+
+    return (1L << exp) | ((long) (b & (SUB_BUCKETS - 1)) << (exp - SUB_BITS));
+  }
+
+  /**
+   * Summary statistics of a histogram in nanoseconds.
+   */
+  public static class Snapshot {
+
+    /** The m count. */
+    private final long mCount;
+
+    /** The m mean. */
+    private final long mMean;
+
+    /** The m p 50. */
+    private final long mP50;
+
+    /** The m p 90. */
+    private final long mP90;
+
+    /** The m p 99. */
+    private final long mP99;
+
+    /** The m p 999. */
+    private final long mP999;
+
+    /** The m max. */
+    private final long mMax;
+
+    /**
+     * Instantiates a new snapshot.
+     *
+     * @param count the count
+     * @param mean the mean
+     * @param p50 the p 50
+     * @param p90 the p 90
+     * @param p99 the p 99
+     * @param p999 the p 999
+     * @param max the max
+     */
+    @ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "p999",
+        "max" })
+    public Snapshot(long count, long mean, long p50, long p90, long p99,
+        long p999, long max) {
+      mCount = count;
+      mMean = mean;
+      mP50 = p50;
+      mP90 = p90;
+      mP99 = p99;
+      mP999 = p999;
+      mMax = max;
+    }
+
+    /**
+     * Gets the count.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return mCount;
+    }
+
+    /**
+     * Gets the mean.
+     *
+     * @return the mean
+     */
+    public long getMean() {
+      return mMean;
+    }
+
+    /**
+     * Gets the median.
+     *
+     * @return the p 50
+     */
+    public long getP50() {
+      return mP50;
+    }
+
+    /**
+     * Gets the 90th percentile.
+     *
+     * @return the p 90
+     */
+    public long getP90() {
+      return mP90;
+    }
+
+    /**
+     * Gets the 99th percentile.
+     *
+     * @return the p 99
+     */
+    public long getP99() {
+      return mP99;
+    }
+
+    /**
+     * Gets the 99.9th percentile.
+     *
+     * @return the p 999
+     */
+    public long getP999() {
+      return mP999;
+    }
+
+    /**
+     * Gets the max.
+     *
+     * @return the max
+     */
+    public long getMax() {
+      return mMax;
+    }
+  }
+}
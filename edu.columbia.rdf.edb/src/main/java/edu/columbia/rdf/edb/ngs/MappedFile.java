@@ -0,0 +1,287 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read only memory mapping of a whole file. A single mapping cannot exceed
+ * 2GB so large files are split into segments. Each segment overlaps the next
+ * by a few bytes so that any primitive value can be read from the segment
+ * in which it starts.
+ *
+ * @author Antony Holmes
+ */
+public class MappedFile {
+
+  /** The Constant SEGMENT_BITS. */
+  private static final int SEGMENT_BITS = 30;
+
+  /** Each segment maps 1GB of the file. */
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+  /** The Constant SEGMENT_MASK. */
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  /** Bytes each segment extends into the next. */
+  private static final int SEGMENT_OVERLAP = 8;
+
+  /** The m segments. */
+  private final MappedByteBuffer[] mSegments;
+
+  /** The m size. */
+  private final long mSize;
+
+  /**
+   * Map a file into memory.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public MappedFile(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+    try {
+      mSize = channel.size();
+
+      int n = (int) Math.max(1, (mSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+      mSegments = new MappedByteBuffer[n];
+
+      for (int i = 0; i < n; ++i) {
+        long offset = i * SEGMENT_SIZE;
+
+        long length = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, mSize - offset);
+
+        // The mapping remains valid after the channel is closed
+        mSegments[i] = channel.map(MapMode.READ_ONLY, offset, length);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Returns the size of the file in bytes.
+   *
+   * @return the long
+   */
+  public long size() {
+    return mSize;
+  }
+
+  /**
+   * Gets the int at a byte position.
+   *
+   * @param pos the pos
+   * @return the int
+   */
+  public int getInt(long pos) {
+    return mSegments[(int) (pos >>> SEGMENT_BITS)]
+        .getInt((int) (pos & SEGMENT_MASK));
+  }
+
+  /**
+   * Gets the float at a byte position.
+   *
+   * @param pos the pos
+   * @return the float
+   */
+  public float getFloat(long pos) {
+    return mSegments[(int) (pos >>> SEGMENT_BITS)]
+        .getFloat((int) (pos & SEGMENT_MASK));
+  }
+
+  /**
+   * Gets the byte at a byte position.
+   *
+   * @param pos the pos
+   * @return the byte
+   */
+  public byte get(long pos) {
+    return mSegments[(int) (pos >>> SEGMENT_BITS)]
+        .get((int) (pos & SEGMENT_MASK));
+  }
+
+  /**
+   * Copies bytes starting at a byte position into a buffer.
+   *
+   * @param pos the pos
+   * @param b the b
+   * @param off the off
+   * @param len the len
+   */
+  public void get(long pos, byte[] b, int off, int len) {
+    while (len > 0) {
+      int offset = (int) (pos & SEGMENT_MASK);
+
+      // Copy no further than the end of the segment proper
+      int n = (int) Math.min(len, SEGMENT_SIZE - offset);
+
+      ByteBuffer buffer = mSegments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+
+      buffer.position(offset);
+      buffer.get(b, off, n);
+
+      pos += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Returns a view of len bytes starting at a byte position. When the bytes
+   * lie within one segment the buffer shares the mapping, otherwise they are
+   * copied.
+   *
+   * @param pos the pos
+   * @param len the len
+   * @return the byte buffer
+   */
+  public ByteBuffer getBuffer(long pos, int len) {
+    int offset = (int) (pos & SEGMENT_MASK);
+
+    if (offset + len <= SEGMENT_SIZE + SEGMENT_OVERLAP) {
+      ByteBuffer buffer = mSegments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+
+      buffer.position(offset);
+      buffer.limit(offset + len);
+
+      return buffer.slice();
+    } else {
+      byte[] b = new byte[len];
+
+      get(pos, b, 0, len);
+
+      return ByteBuffer.wrap(b);
+    }
+  }
+
+  /**
+   * Returns a new sequential reader over the mapping. Readers are cheap and
+   * hold only their own position so one should be created per query.
+   *
+   * @return the binary reader
+   */
+  public BinaryReader newReader() {
+    return new MappedBinaryReader(this);
+  }
+
+  /**
+   * Sequential reader over a mapped file.
+   */
+  private static class MappedBinaryReader implements BinaryReader {
+
+    /** The m file. */
+    private final MappedFile mFile;
+
+    /** The m pos. */
+    private long mPos = 0;
+
+    /**
+     * Instantiates a new mapped binary reader.
+     *
+     * @param file the file
+     */
+    public MappedBinaryReader(MappedFile file) {
+      mFile = file;
+    }
+
+    @Override
+    public void seek(long pos) {
+      mPos = pos;
+    }
+
+    @Override
+    public int readInt() throws EOFException {
+      checkAvailable(4);
+
+      int ret = mFile.getInt(mPos);
+
+      mPos += 4;
+
+      return ret;
+    }
+
+    @Override
+    public byte readByte() throws EOFException {
+      checkAvailable(1);
+
+      return mFile.get(mPos++);
+    }
+
+    @Override
+    public float readFloat() throws EOFException {
+      checkAvailable(4);
+
+      float ret = mFile.getFloat(mPos);
+
+      mPos += 4;
+
+      return ret;
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws EOFException {
+      checkAvailable(len);
+
+      mFile.get(mPos, b, off, len);
+
+      mPos += len;
+    }
+
+    @Override
+    public ByteBuffer readBuffer(int len) throws EOFException {
+      checkAvailable(len);
+
+      ByteBuffer ret = mFile.getBuffer(mPos, len);
+
+      mPos += len;
+
+      return ret;
+    }
+
+    @Override
+    public long size() {
+      return mFile.mSize;
+    }
+
+    @Override
+    public void close() {
+      // The mapping is owned by the file, not the reader
+    }
+
+    /**
+     * Throws an EOFException, as a file would, if fewer than n bytes
+     * remain.
+     *
+     * @param n the n
+     * @throws EOFException the EOF exception
+     */
+    private void checkAvailable(int n) throws EOFException {
+      if (mPos < 0 || mPos + n > mFile.mSize) {
+        throw new EOFException();
+      }
+    }
+  }
+}
@@ -0,0 +1,461 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+/**
+ * Records the latency of each call to another count assembly in
+ * {@link CountMetrics}, keyed by the format of the assembly, the method and
+ * the window. When metrics are off calls go straight to the assembly
+ * without being timed.
+ *
+ * @author Antony Holmes
+ */
+public class MeteredCountAssembly extends CountAssembly {
+
+  /** The m assembly. */
+  private final CountAssembly mAssembly;
+
+  /** The m format. */
+  private final String mFormat;
+
+  /** The m metrics. */
+  private final CountMetrics mMetrics = CountMetrics.getInstance();
+
+  /**
+   * Instantiates a new metered count assembly reporting under the format of
+   * the files the assembly reads.
+   *
+   * @param assembly the assembly
+   */
+  public MeteredCountAssembly(CountAssembly assembly) {
+    this(assembly, CountMetrics.getFormat(assembly));
+  }
+
+  /**
+   * Instantiates a new metered count assembly.
+   *
+   * @param assembly the assembly
+   * @param format the format to report latencies under
+   */
+  public MeteredCountAssembly(CountAssembly assembly, String format) {
+    mAssembly = assembly;
+    mFormat = format;
+  }
+
+  /**
+   * Returns the assembly being metered.
+   *
+   * @return the assembly
+   */
+  public CountAssembly getAssembly() {
+    return mAssembly;
+  }
+
+  /**
+   * Gets the format latencies are reported under.
+   *
+   * @return the format
+   */
+  public String getFormat() {
+    return mFormat;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getStarts(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getStarts(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getStarts(region, window);
+    } finally {
+      record("getStarts", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrands(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public Strand[] getStrands(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getStrands(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getStrands(region, window);
+    } finally {
+      record("getStrands", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandBits(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getStrandBits(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getStrandBits(region, window);
+    } finally {
+      record("getStrandBits", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * org.jebtk.bioinformatics.genomic.Strand)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getCounts(region, window, strand);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getCounts(region, window, strand);
+    } finally {
+      record("getStrandCounts", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getCounts(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getCounts(region, window);
+    } finally {
+      record("getCounts", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getCounts(region, window, out, offset);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getCounts(region, window, out, offset);
+    } finally {
+      record("getCounts", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getCounts(regions, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getCounts(regions, window);
+    } finally {
+      record("getCountsBatch", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public double[] getValues(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getValues(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getValues(region, window);
+    } finally {
+      record("getValues", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, double[], int)
+   */
+  @Override
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] out,
+      int offset) throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getValues(region, window, out, offset);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getValues(region, window, out, offset);
+    } finally {
+      record("getValues", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(java.util.List,
+   * int)
+   */
+  @Override
+  public List<double[]> getValues(List<GenomicRegion> regions, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getValues(regions, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getValues(regions, window);
+    } finally {
+      record("getValuesBatch", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSummary(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getSummary(region, window);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getSummary(region, window);
+    } finally {
+      record("getSummary", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    if (!mMetrics.isEnabled()) {
+      return mAssembly.getCursor(region, window, bufferBins);
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return mAssembly.getCursor(region, window, bufferBins);
+    } finally {
+      record("getCursor", window, start);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return mAssembly.getBinCount(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStartBin(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getStartBin(GenomicRegion region, int window) {
+    return mAssembly.getStartBin(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinRegion(org.jebtk.
+   * bioinformatics.genomic.Chromosome, int, int, int)
+   */
+  @Override
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    return mAssembly.getBinRegion(chr, bin, bins, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    return mAssembly.getBoundaryBins(window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadLength()
+   */
+  @Override
+  public int getReadLength() {
+    return mAssembly.getReadLength();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadCount(org.jebtk.
+   * bioinformatics.genomic.Genome, int)
+   */
+  @Override
+  public int getReadCount(Genome genome, int window) throws IOException {
+    return mAssembly.getReadCount(genome, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getGenome()
+   */
+  @Override
+  public Genome getGenome() throws IOException {
+    return mAssembly.getGenome();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mAssembly.getAsyncPath();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mAssembly.close();
+  }
+
+  /**
+   * Record the latency of a call that began at a time.
+   *
+   * @param method the method
+   * @param window the window
+   * @param start the time the call began from {@link System#nanoTime()}
+   */
+  private void record(String method, int window, long start) {
+    mMetrics.latency(mFormat, method, window, System.nanoTime() - start);
+  }
+}
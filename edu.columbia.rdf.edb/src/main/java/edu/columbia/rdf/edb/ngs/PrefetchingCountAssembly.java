@@ -0,0 +1,301 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * A tile cache that, after serving a region, loads in the background the
+ * tiles a user is likely to want next: the tiles either side of the region
+ * at the same window and the tiles covering the region at the next coarser
+ * and finer windows. Loads run on a small bounded executor. When a new
+ * region is served, loads queued for the previous region are dropped, so
+ * the prefetcher follows the user rather than falling behind.
+ *
+ * @author Antony Holmes
+ */
+public class PrefetchingCountAssembly extends CachingCountAssembly {
+
+  /** The default number of prefetch threads. */
+  public static final int DEFAULT_THREADS = 2;
+
+  /** The maximum number of loads waiting to run. */
+  private static final int MAX_QUEUED_LOADS = 64;
+
+  /** The most tiles loaded per neighbouring window. */
+  private static final int MAX_ZOOM_TILES = 16;
+
+  /** How long close waits for running loads, in seconds. */
+  private static final int CLOSE_TIMEOUT = 10;
+
+  /** The factor between neighbouring windows. */
+  private static final int ZOOM_FACTOR = 10;
+
+  /** The m executor. */
+  private final ThreadPoolExecutor mExecutor;
+
+  /** Incremented each time a region is served so stale loads can be skipped. */
+  private final AtomicLong mGeneration = new AtomicLong(0);
+
+  /** The m prefetched. */
+  private final AtomicLong mPrefetched = new AtomicLong(0);
+
+  /** The m dropped. */
+  private final AtomicLong mDropped = new AtomicLong(0);
+
+  /**
+   * Instantiates a new prefetching count assembly.
+   *
+   * @param assembly the assembly
+   */
+  public PrefetchingCountAssembly(CountAssembly assembly) {
+    this(assembly, DEFAULT_MAX_BYTES, DEFAULT_TILE_BINS, DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiates a new prefetching count assembly.
+   *
+   * @param assembly the assembly
+   * @param maxBytes the maximum size of the cache in bytes.
+   * @param tileBins the number of bins in a tile.
+   * @param threads the number of threads loading tiles.
+   */
+  public PrefetchingCountAssembly(CountAssembly assembly,
+      long maxBytes,
+      int tileBins,
+      int threads) {
+    super(assembly, maxBytes, tileBins);
+
+    threads = Math.max(1, threads);
+
+    mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_LOADS),
+        new PrefetchThreadFactory(), new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            // Make room by dropping the oldest load
+            if (!e.isShutdown()) {
+              if (e.getQueue().poll() != null) {
+                mDropped.incrementAndGet();
+              }
+
+              e.execute(r);
+            }
+          }
+        });
+
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CachingCountAssembly#served(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, boolean)
+   */
+  @Override
+  protected void served(GenomicRegion region, int window, boolean values) {
+    long generation = mGeneration.incrementAndGet();
+
+    // Loads for the previous region are no longer wanted
+    List<Runnable> stale = new ArrayList<Runnable>();
+
+    mExecutor.getQueue().drainTo(stale);
+
+    mDropped.addAndGet(stale.size());
+
+    Chromosome chr = region.getChr();
+    int tileBins = getTileBins();
+
+    // Panning is the most likely next move so load the neighbours first
+    int first = getStartBin(region, window) / tileBins;
+    int last = (getStartBin(region, window) + getBinCount(region, window) - 1)
+        / tileBins;
+
+    submit(generation, chr, window, first - 1, values);
+    submit(generation, chr, window, last + 1, values);
+
+    if (window <= Integer.MAX_VALUE / ZOOM_FACTOR) {
+      submitRegion(generation, region, window * ZOOM_FACTOR, values);
+    }
+
+    if (window >= ZOOM_FACTOR && window % ZOOM_FACTOR == 0) {
+      submitRegion(generation, region, window / ZOOM_FACTOR, values);
+    }
+  }
+
+  /**
+   * Queue loads for the tiles covering a region at a window.
+   *
+   * @param generation the generation
+   * @param region the region
+   * @param window the window
+   * @param values the values
+   */
+  private void submitRegion(long generation,
+      GenomicRegion region,
+      int window,
+      boolean values) {
+    int tileBins = getTileBins();
+
+    int first = getStartBin(region, window) / tileBins;
+    int last = (getStartBin(region, window) + getBinCount(region, window) - 1)
+        / tileBins;
+
+    last = Math.min(last, first + MAX_ZOOM_TILES - 1);
+
+    for (int tile = first; tile <= last; ++tile) {
+      submit(generation, region.getChr(), window, tile, values);
+    }
+  }
+
+  /**
+   * Queue the load of a tile. The load is skipped if another region has been
+   * served by the time it runs.
+   *
+   * @param generation the generation
+   * @param chr the chr
+   * @param window the window
+   * @param tile the tile
+   * @param values the values
+   */
+  private void submit(final long generation,
+      final Chromosome chr,
+      final int window,
+      final int tile,
+      final boolean values) {
+    if (tile < 0 || mExecutor.isShutdown()) {
+      return;
+    }
+
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (mGeneration.get() != generation) {
+          mDropped.incrementAndGet();
+          return;
+        }
+
+        try {
+          if (prefetch(chr, window, tile, values)) {
+            mPrefetched.incrementAndGet();
+          }
+        } catch (IOException e) {
+          // A failed prefetch is not an error, the tile will be read if it
+          // is requested.
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the number of tiles loaded in the background.
+   *
+   * @return the prefetched
+   */
+  public long getPrefetched() {
+    return mPrefetched.get();
+  }
+
+  /**
+   * Returns the number of background loads dropped because the user moved
+   * elsewhere before they ran.
+   *
+   * @return the dropped
+   */
+  public long getDropped() {
+    return mDropped.get();
+  }
+
+  /**
+   * Returns the fraction of tiles loaded in the background that were then
+   * requested.
+   *
+   * @return the prefetch ratio
+   */
+  public double getPrefetchRatio() {
+    long prefetched = mPrefetched.get();
+
+    return prefetched > 0 ? (double) getPrefetchUsed() / prefetched : 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CachingCountAssembly#close()
+   */
+  @Override
+  public void close() {
+    // Loads are not interrupted since an interrupt during a read would
+    // close the pooled file under other readers. Queued loads are dropped
+    // and loads already running are left to finish before the underlying
+    // assembly is closed.
+    mGeneration.incrementAndGet();
+
+    List<Runnable> queued = new ArrayList<Runnable>();
+
+    mExecutor.getQueue().drainTo(queued);
+
+    mDropped.addAndGet(queued.size());
+
+    mExecutor.shutdown();
+
+    try {
+      mExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    super.close();
+  }
+
+  /**
+   * Creates daemon threads so that prefetching never keeps an application
+   * running.
+   */
+  private static class PrefetchThreadFactory implements ThreadFactory {
+
+    /** The m count. */
+    private final AtomicInteger mCount = new AtomicInteger(0);
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r,
+          "tile-prefetch-" + mCount.incrementAndGet());
+
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
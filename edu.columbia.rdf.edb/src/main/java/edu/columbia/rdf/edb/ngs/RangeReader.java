@@ -0,0 +1,165 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Fetches many byte ranges from one file for a batch of queries. The ranges
+ * are sorted by offset and any that overlap, or are separated by less than a
+ * small gap, are merged so that each merged range is read once. Merging
+ * stops once a run would exceed {@link #MAX_RUN_BYTES} so that a large batch
+ * does not pull a whole chromosome into one buffer of merged ranges. A
+ * single range longer than that is still returned in one buffer of its own
+ * length, so callers that may ask for very long ranges should split them.
+ * Every query then receives its own view of the bytes it asked for.
+ *
+ * @author Antony Holmes
+ */
+public class RangeReader {
+
+  /**
+   * Ranges closer than this are merged since reading the gap is cheaper than
+   * an extra seek and read.
+   */
+  public static final int MAX_GAP_BYTES = 4096;
+
+  /**
+   * Ranges are not merged into runs longer than this. Longer runs, which
+   * can only be a single range, are read into one buffer in pieces of this
+   * size.
+   */
+  public static final int MAX_RUN_BYTES = 4 * 1024 * 1024;
+
+  /** The Constant EMPTY_BUFFER. */
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+  /**
+   * Instantiates a new range reader.
+   */
+  private RangeReader() {
+    // Do nothing
+  }
+
+  /**
+   * Read a set of byte ranges.
+   *
+   * @param in the in
+   * @param offsets the offset of each range
+   * @param lengths the length of each range
+   * @return a big endian buffer positioned at zero for each range, in the
+   *         same order as the offsets.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static ByteBuffer[] read(BinaryReader in,
+      final long[] offsets,
+      final int[] lengths) throws IOException {
+    int n = offsets.length;
+
+    ByteBuffer[] ret = new ByteBuffer[n];
+
+    // Empty ranges need no I/O
+    Integer[] order = new Integer[n];
+    int m = 0;
+
+    for (int i = 0; i < n; ++i) {
+      if (lengths[i] > 0) {
+        order[m++] = i;
+      } else {
+        ret[i] = EMPTY_BUFFER.duplicate();
+      }
+    }
+
+    order = Arrays.copyOf(order, m);
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return Long.compare(offsets[i1], offsets[i2]);
+      }
+    });
+
+    int i = 0;
+
+    while (i < m) {
+      // Extend the merged range while the next range starts close enough
+      // to its end
+      long s = offsets[order[i]];
+      long e = s + lengths[order[i]];
+
+      int j = i + 1;
+
+      while (j < m && offsets[order[j]] <= e + MAX_GAP_BYTES) {
+        long e2 = Math.max(e, offsets[order[j]] + lengths[order[j]]);
+
+        if (e2 - s > MAX_RUN_BYTES) {
+          break;
+        }
+
+        e = e2;
+
+        ++j;
+      }
+
+      ByteBuffer buffer = read(in, s, (int) (e - s));
+
+      for (int k = i; k < j; ++k) {
+        int r = order[k];
+
+        ByteBuffer view = buffer.duplicate();
+
+        view.position((int) (offsets[r] - s));
+        view.limit(view.position() + lengths[r]);
+
+        ret[r] = view.slice();
+      }
+
+      i = j;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read a run of bytes into a buffer of its length, in pieces of at most
+   * {@link #MAX_RUN_BYTES} if it is longer than that.
+   *
+   * @param in the in
+   * @param offset the offset
+   * @param length the length
+   * @return a big endian buffer positioned at zero.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static ByteBuffer read(BinaryReader in, long offset, int length)
+      throws IOException {
+    in.seek(offset);
+
+    if (length <= MAX_RUN_BYTES) {
+      return in.readBuffer(length);
+    }
+
+    byte[] b = new byte[length];
+
+    for (int p = 0; p < length; p += MAX_RUN_BYTES) {
+      in.readFully(b, p, Math.min(MAX_RUN_BYTES, length - p));
+    }
+
+    return ByteBuffer.wrap(b);
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams counts by binning read starts as they are read from a file. The
+ * starts must be supplied in ascending order and only those between the
+ * start and end of the region are counted, as with
+ * {@link ReadCountsFile#binCounts(int[], int, int, int)}.
+ *
+ * @author Antony Holmes
+ */
+abstract class ReadCountCursor extends CountCursor {
+
+  /** The m start. */
+  private final int mStart;
+
+  /** The m end. */
+  private final int mEnd;
+
+  /** The m window. */
+  private final int mWindow;
+
+  /** The bin containing the end. */
+  private final int mEndBin;
+
+  /** The start of a read beyond the bins last decoded. */
+  private int mRead;
+
+  /** Whether mRead holds a read that has not been binned. */
+  private boolean mPending = false;
+
+  /** Whether all of the reads have been supplied. */
+  private boolean mEof = false;
+
+  /**
+   * Instantiates a new read count cursor.
+   *
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param bufferBins the number of bins to decode at a time
+   */
+  public ReadCountCursor(int start, int end, int window, int bufferBins) {
+    super(start / window, bufferBins);
+
+    mStart = start;
+    mEnd = end;
+    mWindow = window;
+    mEndBin = end / window;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountCursor#fill(int, int[])
+   */
+  @Override
+  protected int fill(int bin, int[] buffer) throws IOException {
+    int n = Math.min(buffer.length, mEndBin - bin + 1);
+
+    if (n <= 0) {
+      return 0;
+    }
+
+    Arrays.fill(buffer, 0, n, 0);
+
+    int last = bin + n;
+
+    while (true) {
+      if (!mPending) {
+        if (mEof || !nextRead()) {
+          mEof = true;
+
+          break;
+        }
+
+        mRead = getRead();
+        mPending = true;
+      }
+
+      int b = mRead / mWindow;
+
+      // The read belongs to a later buffer
+      if (b >= last) {
+        break;
+      }
+
+      if (mRead >= mStart && mRead <= mEnd && b >= bin) {
+        ++buffer[b - bin];
+      }
+
+      mPending = false;
+    }
+
+    return n;
+  }
+
+  /**
+   * Moves to the next read.
+   *
+   * @return true if there is another read.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract boolean nextRead() throws IOException;
+
+  /**
+   * Returns the start of the current read.
+   *
+   * @return the read
+   */
+  protected abstract int getRead();
+}
@@ -15,11 +15,19 @@
  */
 package edu.columbia.rdf.edb.ngs;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeMap;
 
-import org.jebtk.core.collections.DefaultHashMap;
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
 
 /**
  * The Class ReadCountsFile.
@@ -43,31 +51,48 @@ public abstract class ReadCountsFile extends CountAssembly {
       int start,
       int end,
       int window) {
-    int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+    int[] ret = new int[end / window - start / window + 1];
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    binCounts(starts, starts.length, start, end, window, ret, 0);
 
-    Map<Integer, Integer> map = DefaultHashMap.create(0);
+    return ret;
+  }
 
-    for (int rs : starts) {
-      int sbin = rs / window - startBin;
+  /**
+   * Bins the first n starts directly into a caller supplied array. The
+   * elements of out from the offset for each bin between the bin containing
+   * the start and the bin containing the end are overwritten.
+   *
+   * @param starts the starts
+   * @param n the number of starts to use
+   * @param start the start
+   * @param end the end
+   * @param window the bin size
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first bin
+   * @return the number of bins written.
+   */
+  protected static int binCounts(final int[] starts,
+      int n,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) {
+    int startBin = start / window;
+    int l = end / window - startBin + 1;
 
-      if (sbin >= 0 && sbin < l) {
-        map.put(sbin, map.get(sbin) + 1);
-      }
-    }
+    Arrays.fill(out, offset, offset + l, 0);
 
-    //List<Integer> ret = Mathematics.intZeros(l);
-    
-    int[] ret = new int[l];
+    for (int i = 0; i < n; ++i) {
+      int sbin = starts[i] / window - startBin;
 
-    for (Entry<Integer, Integer> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //, map.get(bin));
+      if (sbin >= 0 && sbin < l) {
+        ++out[offset + sbin];
+      }
     }
 
-    return ret;
+    return l;
   }
   
   protected static int[] binCounts(final Collection<Integer> starts,
@@ -80,22 +105,112 @@ public abstract class ReadCountsFile extends CountAssembly {
 
     // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
 
-    Map<Integer, Integer> map = DefaultHashMap.create(0);
+    int[] ret = new int[l];
 
     for (int rs : starts) {
       int sbin = rs / window - startBin;
 
       if (sbin >= 0 && sbin < l) {
-        map.put(sbin, map.get(sbin) + 1);
+        ++ret[sbin];
       }
     }
 
-    //List<Integer> ret = Mathematics.intZeros(l);
-    
-    int[] ret = new int[l];
+    return ret;
+  }
+
+  /**
+   * Discard the {@link CountMetrics} of the files of a directory once the
+   * reader of them is closed.
+   *
+   * @param catalog the catalog of the directory, or null if no file has
+   *          been read
+   */
+  protected static void removeMetrics(CountFileCatalog.Directory catalog) {
+    if (catalog == null) {
+      return;
+    }
+
+    for (CountFileCatalog.Entry entry : catalog.getEntries()) {
+      CountMetrics.getInstance().remove(entry.getFile());
+    }
+  }
+
+  /**
+   * Reads the bytes start to end inclusive of a file. Bytes past the end of
+   * the file are zero.
+   *
+   * @param file the file
+   * @param start the start
+   * @param end the end
+   * @return the bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected static byte[] getBytes(Path file, int start, int end)
+      throws IOException {
+    byte[] ret = new byte[end - start + 1];
+
+    BinaryReader in = FileHandlePool.getInstance().open(file);
+
+    try {
+      read(in, start, ret);
+    } finally {
+      in.close();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Fills an array with the bytes of a file from a position, stopping at
+   * the end of the file.
+   *
+   * @param in the in
+   * @param pos the pos
+   * @param b the b
+   * @return the number of bytes read.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected static int read(BinaryReader in, long pos, byte[] b)
+      throws IOException {
+    int n = (int) Math.max(0, Math.min(b.length, in.size() - pos));
+
+    in.seek(pos);
+    in.readFully(b, 0, n);
+
+    return n;
+  }
+
+  /**
+   * Groups a batch of regions by chromosome so that each chromosome file
+   * need only be opened once. Within each chromosome the indices of the
+   * regions are sorted by start so that they can be read in file order.
+   *
+   * @param regions the regions
+   * @return the indices of the regions on each chromosome.
+   */
+  protected static Map<Chromosome, List<Integer>> groupByChr(
+      final List<GenomicRegion> regions) {
+    Map<Chromosome, List<Integer>> ret = 
+        new TreeMap<Chromosome, List<Integer>>();
+
+    for (int i = 0; i < regions.size(); ++i) {
+      Chromosome chr = regions.get(i).getChr();
+
+      if (!ret.containsKey(chr)) {
+        ret.put(chr, new ArrayList<Integer>());
+      }
+
+      ret.get(chr).add(i);
+    }
 
-    for (Entry<Integer, Integer> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //, map.get(bin));
+    for (List<Integer> indices : ret.values()) {
+      Collections.sort(indices, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i1, Integer i2) {
+          return Integer.compare(regions.get(i1).getStart(),
+              regions.get(i2).getStart());
+        }
+      });
     }
 
     return ret;
@@ -30,21 +30,22 @@ package edu.columbia.rdf.edb.ngs;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
-import org.jebtk.bioinformatics.genomic.FileSequenceReader;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultHashMap;
-import org.jebtk.core.collections.HashMapCreator;
-import org.jebtk.core.collections.IterMap;
-import org.jebtk.core.io.ByteStream;
-import org.jebtk.core.io.FileUtils;
 
 /**
  * Decodes counts per base from a 2 byte per base count file.
  *
+ * Counts are packed at 4, 8, 12, 16, 20, 24 or 32 bits per bin and every
+ * depth below 32 bits is decoded as unsigned. Earlier versions
+ * sign-extended 8 and 16 bit counts, so bins of at least 128 or 32768
+ * reads, which used to read as negative, now read as their true count.
+ *
  * @author Antony Holmes
  *
  */
@@ -55,14 +56,8 @@ public class ReadCountsFile32Bit extends ReadCountsFile {
    */
   private Path mDir;
 
-  /**
-   * The member file map.
-   */
-  private Map<Chromosome, IterMap<Integer, Path>> mFileMap = DefaultHashMap
-      .create(new HashMapCreator<Integer, Path>());
-
-  private Map<Chromosome, IterMap<Integer, Integer>> mBitMap = DefaultHashMap
-      .create(new HashMapCreator<Integer, Integer>());
+  /** The count files in the directory, listed on first use. */
+  private volatile CountFileCatalog.Directory mCatalog;
 
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
@@ -94,336 +89,809 @@ public class ReadCountsFile32Bit extends ReadCountsFile {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    if (!mFileMap.get(chr).containsKey(window)) {
-      Path file = mDir.resolve(chr + ".counts.win." + window + ".4bit");
-
-      if (FileUtils.exists(file)) {
-        mFileMap.get(chr).put(window, file);
-        mBitMap.get(chr).put(window, 4);
-      } else {
-        file = mDir.resolve(chr + ".counts.win." + window + ".8bit");
-
-        if (FileUtils.exists(file)) {
-          mFileMap.get(chr).put(window, file);
-          mBitMap.get(chr).put(window, 8);
-        } else {
-          file = mDir.resolve(chr + ".counts.win." + window + ".12bit");
-
-          if (FileUtils.exists(file)) {
-            mFileMap.get(chr).put(window, file);
-            mBitMap.get(chr).put(window, 12);
-          } else {
-            file = mDir.resolve(chr + ".counts.win." + window + ".16bit");
-
-            if (FileUtils.exists(file)) {
-              mFileMap.get(chr).put(window, file);
-              mBitMap.get(chr).put(window, 16);
-            } else {
-              file = mDir.resolve(chr + ".counts.win." + window + ".20bit");
-
-              if (FileUtils.exists(file)) {
-                mFileMap.get(chr).put(window, file);
-                mBitMap.get(chr).put(window, 20);
-              } else {
-                file = mDir.resolve(chr + ".counts.win." + window + ".24bit");
-
-                if (FileUtils.exists(file)) {
-                  mFileMap.get(chr).put(window, file);
-                  mBitMap.get(chr).put(window, 24);
-                } else {
-                  file = mDir.resolve(chr + ".counts.win." + window + ".32bit");
-
-                  if (FileUtils.exists(file)) {
-                    mFileMap.get(chr).put(window, file);
-                    mBitMap.get(chr).put(window, 32);
-                  }
-                }
-              }
-            }
-          }
-        }
-      }
+    if (getEntry(chr, window) == null
+        && getLevel(chr, window, getBinCount(region, window)) == null) {
+      return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
     }
 
-    System.err.println("read 32 " + chr + " " + window + " " + mFileMap.get(chr).containsKey(window));
-    
+    int[] ret = new int[getBinCount(region, window)];
+
+    getCounts(region, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    CountFileCatalog.Entry entry = getEntry(chr, window);
+
+    int s = getStartBin(region, window);
+    int l = getBinCount(region, window);
+
     // Extract from file with appropriate bit depth
-    if (mFileMap.get(chr).containsKey(window)) {
-      switch (mBitMap.get(chr).get(window)) {
-      case 24:
-        return getCounts24(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 20:
-        return getCounts20(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 16:
-        return getCounts16(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 12:
-        return getCounts12(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 8:
-        return getCounts8(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 4:
-        return getCounts4(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      default:
-        // Default assume 32bit numbers
-        return getCounts32(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      }
-    } else {
-      return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
+    if (entry != null) {
+      return getCounts(entry, s, l, out, offset);
+    }
+
+    // Resample the window from one that was written
+    entry = getLevel(chr, window, l);
+
+    if (entry == null) {
+      // Nothing to read, so clear the bins rather than leave whatever the
+      // array held before
+      Arrays.fill(out, offset, offset + l, 0);
+
+      return l;
     }
+
+    int level = entry.getWindow();
+    int ls = ResolutionPlanner.getStartBin(s, window, level);
+
+    int[] counts =
+        new int[ResolutionPlanner.getBinCount(s, l, window, level)];
+
+    getCounts(entry, ls, counts.length, counts, 0);
+
+    return ResolutionPlanner
+        .resample(counts, ls, level, s, l, window, BCMode.COUNT, out, offset);
   }
 
-  private static int[] getCounts4(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Decodes the counts of a run of bins of a file.
+   *
+   * @param entry the file
+   * @param s the zero based start bin
+   * @param l the number of bins
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static int getCounts(CountFileCatalog.Entry entry,
+      int s,
+      int l,
+      int[] out,
+      int offset) throws IOException {
+    int bits = entry.getBits();
+
+    byte[] buf = getBytes(entry.getFile(),
+        getByteStart(bits, s),
+        getByteEnd(bits, s + l - 1));
+
+    return decode(bits, buf, s, l, out, offset);
+  }
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return (region.getEnd() - 1) / window - (region.getStart() - 1) / window
+        + 1;
+  }
 
-    byte[] buf = FileSequenceReader.getBytes(file, s / 2, e / 2);
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStartBin(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getStartBin(GenomicRegion region, int window) {
+    return (region.getStart() - 1) / window;
+  }
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinRegion(org.jebtk.
+   * bioinformatics.genomic.Chromosome, int, int, int)
+   */
+  @Override
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    long end = (long) (bin + bins) * window;
+
+    return new GenomicRegion(chr, bin * window + 1,
+        (int) Math.min(Integer.MAX_VALUE, end));
+  }
 
-    boolean even = true;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    return 0;
+  }
 
-    int p = 0;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
 
-    for (int i = 0; i < l; ++i) {
-      if (even) {
-        scores[i] = (buf[p] & 0b11110000) >> 4;
-      } else {
-        scores[i] = buf[p] & 0b1111;
+    for (Entry<Chromosome, List<Integer>> item : groupByChr(regions)
+        .entrySet()) {
+      Chromosome chr = item.getKey();
+      List<Integer> indices = item.getValue();
+
+      CountFileCatalog.Entry entry = getEntry(chr, window);
+
+      if (entry == null) {
+        // Windows without a file are resampled, or empty, one at a time
+        for (int i : indices) {
+          ret[i] = getCounts(regions.get(i), window);
+        }
+
+        continue;
+      }
+
+      Path file = entry.getFile();
+      int bits = entry.getBits();
+
+      int n = indices.size();
+
+      long[] offsets = new long[n];
+      int[] lengths = new int[n];
+      int[] sizes = new int[n];
+
+      BinaryReader in = FileHandlePool.getInstance().open(file);
+
+      try {
+        long size = in.size();
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          int s = (region.getStart() - 1) / window;
+          int e = (region.getEnd() - 1) / window;
 
-        ++p;
+          offsets[i] = getByteStart(bits, s);
+          sizes[i] = getByteEnd(bits, e) - getByteStart(bits, s) + 1;
+
+          // Bytes past the end of the file read as zero
+          lengths[i] = (int) Math.max(0, Math.min(sizes[i], size - offsets[i]));
+        }
+
+        // Overlapping and neighbouring regions share reads
+        ByteBuffer[] buffers = RangeReader.read(in, offsets, lengths);
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          int s = (region.getStart() - 1) / window;
+          int e = (region.getEnd() - 1) / window;
+          int l = e - s + 1;
+
+          byte[] buf = new byte[sizes[i]];
+
+          buffers[i].get(buf, 0, buffers[i].remaining());
+
+          ret[indices.get(i)] = decode(bits, buf, s, l);
+        }
+      } finally {
+        in.close();
       }
     }
 
-    return scores;
+    return Arrays.asList(ret);
   }
 
-  private static int[] getCounts8(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    CountFileCatalog.Entry entry = getEntry(region.getChr(), window);
+
+    if (entry == null) {
+      if (getLevel(region.getChr(),
+          window,
+          getBinCount(region, window)) != null) {
+        // Resampled windows are read in runs of bins
+        return super.getCursor(region, window, bufferBins);
+      }
+
+      // As with getCounts, there are no counts without a file
+      return new CountCursor(getStartBin(region, window), 1) {
+        @Override
+        protected int fill(int bin, int[] buffer) {
+          return 0;
+        }
+      };
+    }
+
+    return new PackedCursor(entry,
+        getStartBin(region, window),
+        getBinCount(region, window),
+        bufferBins);
+  }
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+  /**
+   * Returns the count file for a chromosome and window together with its
+   * bit depth.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @return the entry, or null if there is no file for the window.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private CountFileCatalog.Entry getEntry(Chromosome chr, int window)
+      throws IOException {
+    return getCatalog().getPacked(chr, window);
+  }
 
-    byte[] buf = FileSequenceReader.getBytes(file, s, e);
+  /**
+   * Returns the count file of another window of a chromosome that a window
+   * without a file of its own can be resampled from.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @param bins the number of bins to be read
+   * @return the entry, or null if the chromosome has no files.
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @see ResolutionPlanner#plan(int[], int[], int, int)
+   */
+  private CountFileCatalog.Entry getLevel(Chromosome chr,
+      int window,
+      int bins) throws IOException {
+    List<CountFileCatalog.Entry> levels = getCatalog().getPacked(chr);
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    int[] windows = new int[levels.size()];
+    int[] bits = new int[levels.size()];
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = (int) buf[i];
+    for (int i = 0; i < windows.length; ++i) {
+      windows[i] = levels.get(i).getWindow();
+      bits[i] = levels.get(i).getBits();
     }
 
-    return scores;
+    int i = ResolutionPlanner.plan(windows, bits, window, bins);
+
+    return i != -1 ? levels.get(i) : null;
   }
 
-  private static int[] getCounts12(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Returns the catalog of the count files in the directory.
+   *
+   * @return the catalog
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private CountFileCatalog.Directory getCatalog() throws IOException {
+    CountFileCatalog.Directory catalog = mCatalog;
+
+    if (catalog == null) {
+      catalog = CountFileCatalog.getInstance().getDirectory(mDir);
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+      mCatalog = catalog;
+    }
 
-    // We need one extra byte since the last coordinate can span 2 bytes
-    byte[] buf = FileSequenceReader.getBytes(file, s * 3 / 2, e * 3 / 2 + 1);
+    return catalog;
+  }
 
-    //List<Integer> scores = new ArrayList<Integer>(l);
-    
+  /**
+   * Returns the first byte of a file holding the count of a bin. Bins are
+   * packed most significant bit first with no padding, so with 4, 12 or 20
+   * bits an odd bin starts in the low nibble of its first byte.
+   *
+   * @param bits the bit depth
+   * @param s the zero based bin
+   * @return the byte start
+   */
+  public static int getByteStart(int bits, int s) {
+    switch (bits) {
+    case 24:
+      return s * 3;
+    case 20:
+      return s * 5 / 2;
+    case 16:
+      return s * 2;
+    case 12:
+      return s * 3 / 2;
+    case 8:
+      return s;
+    case 4:
+      return s / 2;
+    default:
+      return s * 4;
+    }
+  }
+
+  /**
+   * Returns the last byte of a file holding the count of a bin.
+   *
+   * @param bits the bit depth
+   * @param e the zero based bin
+   * @return the byte end
+   */
+  public static int getByteEnd(int bits, int e) {
+    switch (bits) {
+    case 24:
+      return e * 3 + 2;
+    case 20:
+      // We need extra bytes since the last coordinate can span 3 bytes
+      return e * 5 / 2 + 2;
+    case 16:
+      return e * 2 + 1;
+    case 12:
+      // We need one extra byte since the last coordinate can span 2 bytes
+      return e * 3 / 2 + 1;
+    case 8:
+      return e;
+    case 4:
+      return e / 2;
+    default:
+      // Default assume 32bit numbers
+      return e * 4 + 3;
+    }
+  }
+
+  /**
+   * Decodes the counts of l bins starting at bin s.
+   *
+   * @param bits the bit depth
+   * @param buf the bytes from {@link #getByteStart(int, int)} to
+   *          {@link #getByteEnd(int, int)}
+   * @param s the zero based start bin
+   * @param l the number of bins
+   * @return the counts
+   */
+  private static int[] decode(int bits, byte[] buf, int s, int l) {
     int[] scores = new int[l];
-    
+
+    decode(bits, buf, s, l, scores, 0);
+
+    return scores;
+  }
+
+  /**
+   * Decodes the counts of l bins starting at bin s directly into a caller
+   * supplied array. Counts below 32 bits are unsigned. This is the decoder
+   * of the files of this class, made public so that packed counts held in
+   * memory can be decoded, or the decoder measured, without a file.
+   *
+   * @param bits the bit depth, where any depth other than 4, 8, 12, 16, 20
+   *          or 24 is taken to be 32 bits
+   * @param buf the bytes from {@link #getByteStart(int, int)} to
+   *          {@link #getByteEnd(int, int)}
+   * @param s the zero based start bin
+   * @param l the number of bins
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  public static int decode(int bits,
+      byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    switch (bits) {
+    case 24:
+      return getCounts24(buf, s, l, out, offset);
+    case 20:
+      return getCounts20(buf, s, l, out, offset);
+    case 16:
+      return getCounts16(buf, s, l, out, offset);
+    case 12:
+      return getCounts12(buf, s, l, out, offset);
+    case 8:
+      return getCounts8(buf, s, l, out, offset);
+    case 4:
+      return getCounts4(buf, s, l, out, offset);
+    default:
+      // Default assume 32bit numbers
+      return getCounts32(buf, s, l, out, offset);
+    }
+  }
+
+  /**
+   * Decodes 4 bit counts. Two counts are packed per byte, the even bin in the
+   * high nibble, so the buffer starts in the low nibble when s is odd. The
+   * bulk of the counts are unpacked eight at a time from each int.
+   *
+   * @param buf the buf
+   * @param s the zero based start bin
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts4(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    int i = 0;
     int p = 0;
 
-    // Whether to start at the beginning or end of the byte
-    boolean even = s % 2 == 0;
+    if ((s & 1) == 1 && l > 0) {
+      out[offset] = buf[0] & 0xF;
 
-    // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + even);
+      i = 1;
+      p = 1;
+    }
 
-    for (int i = 0; i < l; ++i) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // Integer.toBinaryString(buf[p]) + " " + even);
+    ByteBuffer words = ByteBuffer.wrap(buf);
 
-      int score = 0;
+    for (; i + 8 <= l; i += 8) {
+      int w = words.getInt(p);
 
-      if (even) {
-        score = (buf[p] << 4) | ((buf[p + 1] & 0b11110000) >> 4);
-      } else {
-        score = ((buf[p] & 0b1111) << 8) | (buf[p + 1] & 0b11111111);
+      int o = offset + i;
 
-        ++p;
-      }
+      out[o] = w >>> 28;
+      out[o + 1] = (w >>> 24) & 0xF;
+      out[o + 2] = (w >>> 20) & 0xF;
+      out[o + 3] = (w >>> 16) & 0xF;
+      out[o + 4] = (w >>> 12) & 0xF;
+      out[o + 5] = (w >>> 8) & 0xF;
+      out[o + 6] = (w >>> 4) & 0xF;
+      out[o + 7] = w & 0xF;
 
-      scores[i] = score; //scores.add(score);
-
-      // if (even) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // String.format("%8s", Integer.toBinaryString(buf[p])).replace(" ", "0")
-      // + " "
-      // + score + " " + even);
-      // } else {
-      // int pp = p - 1;
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + pp + " " +
-      // String.format("%8s", Integer.toBinaryString(buf[pp])).replace(" ", "0")
-      // + " "
-      // + String.format("%8s", Integer.toBinaryString(buf[pp + 1])).replace("
-      // ", "0")
-      // + " " + score + " " + even);
-      // }
-
-      ++p;
-
-      even = !even;
+      p += 4;
     }
 
-    return scores;
+    for (; i + 2 <= l; i += 2) {
+      int b = buf[p++];
+
+      out[offset + i] = (b >>> 4) & 0xF;
+      out[offset + i + 1] = b & 0xF;
+    }
+
+    if (i < l) {
+      out[offset + i] = (buf[p] >>> 4) & 0xF;
+    }
+
+    return l;
   }
 
   /**
-   * Gets the counts.
+   * Decodes 8 bit counts, which like every other depth are unsigned.
    *
-   * @param file the file
-   * @param start the start
-   * @param end the end
-   * @param window the window
-   * @return the counts
-   * @throws IOException Signals that an I/O exception has occurred.
+   * @param buf the buf
+   * @param s the zero based start bin
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
    */
-  private static int[] getCounts16(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  private static int getCounts8(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    for (int i = 0; i < l; ++i) {
+      out[offset + i] = buf[i] & 0xFF;
+    }
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    return l;
+  }
 
-    byte[] buf = FileSequenceReader.getBytes(file, s * 2, e * 2 + 1);
+  /**
+   * Decodes 12 bit counts. Each pair of counts occupies three bytes so the
+   * buffer starts half way through a byte when s is odd. The bulk of the
+   * counts are unpacked four at a time from the top 48 bits of each long.
+   *
+   * @param buf the buf
+   * @param s the zero based start bin
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts12(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    int i = 0;
+    int p = 0;
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    if ((s & 1) == 1 && l > 0) {
+      out[offset] = ((buf[0] & 0xF) << 8) | (buf[1] & 0xFF);
 
-    int p = 0;
+      i = 1;
+      p = 2;
+    }
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = ((buf[p] << 8) | (buf[p + 1] & 0b11111111));
+    ByteBuffer words = ByteBuffer.wrap(buf);
 
-      p += 2;
+    // Each long must lie entirely within the buffer
+    for (; i + 4 <= l && p + 8 <= buf.length; i += 4) {
+      long w = words.getLong(p);
+
+      int o = offset + i;
+
+      out[o] = (int) (w >>> 52) & 0xFFF;
+      out[o + 1] = (int) (w >>> 40) & 0xFFF;
+      out[o + 2] = (int) (w >>> 28) & 0xFFF;
+      out[o + 3] = (int) (w >>> 16) & 0xFFF;
+
+      p += 6;
     }
 
-    return scores;
+    for (; i + 2 <= l; i += 2) {
+      int b = buf[p + 1] & 0xFF;
+
+      out[offset + i] = ((buf[p] & 0xFF) << 4) | (b >>> 4);
+      out[offset + i + 1] = ((b & 0xF) << 8) | (buf[p + 2] & 0xFF);
+
+      p += 3;
+    }
+
+    if (i < l) {
+      out[offset + i] = ((buf[p] & 0xFF) << 4) | ((buf[p + 1] & 0xFF) >>> 4);
+    }
+
+    return l;
   }
 
-  private static int[] getCounts20(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Decodes 16 bit unsigned counts.
+   *
+   * @param buf the buf
+   * @param s the s
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts16(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    int p = 0;
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    for (int i = 0; i < l; ++i) {
+      out[offset + i] = ((buf[p] & 0xFF) << 8) | (buf[p + 1] & 0xFF);
 
-    // We need one extra byte since the last coordinate can span 2 bytes
-    byte[] buf = FileSequenceReader.getBytes(file, s * 5 / 2, e * 5 / 2 + 2);
+      p += 2;
+    }
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    return l;
+  }
 
+  /**
+   * Decodes 20 bit counts. Each pair of counts occupies five bytes so the
+   * buffer starts half way through a byte when s is odd. The bulk of the
+   * counts are unpacked two at a time from the top 40 bits of each long.
+   *
+   * @param buf the buf
+   * @param s the zero based start bin
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts20(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    int i = 0;
     int p = 0;
 
-    // Whether to start at the beginning or end of the byte
-    boolean even = s % 2 == 0;
+    if ((s & 1) == 1 && l > 0) {
+      out[offset] = ((buf[0] & 0xF) << 16) | ((buf[1] & 0xFF) << 8)
+          | (buf[2] & 0xFF);
 
-    // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + even);
+      i = 1;
+      p = 3;
+    }
 
-    for (int i = 0; i < l; ++i) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // Integer.toBinaryString(buf[p]) + " " + even);
+    ByteBuffer words = ByteBuffer.wrap(buf);
 
-      int score = 0;
+    for (; i + 2 <= l && p + 8 <= buf.length; i += 2) {
+      long w = words.getLong(p);
 
-      if (even) {
-        score = (buf[p] << 12) | (buf[p + 1] << 4) | ((buf[p + 2] & 0xF0) >> 4);
-      } else {
-        score = ((buf[p] & 0xF) << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF);
+      out[offset + i] = (int) (w >>> 44) & 0xFFFFF;
+      out[offset + i + 1] = (int) (w >>> 24) & 0xFFFFF;
 
-        ++p;
-      }
+      p += 5;
+    }
 
-      scores[i] = score;
+    for (; i + 2 <= l; i += 2) {
+      int b = buf[p + 2] & 0xFF;
 
-      ++p;
+      out[offset + i] = ((buf[p] & 0xFF) << 12) | ((buf[p + 1] & 0xFF) << 4)
+          | (b >>> 4);
+      out[offset + i + 1] = ((b & 0xF) << 16) | ((buf[p + 3] & 0xFF) << 8)
+          | (buf[p + 4] & 0xFF);
 
-      even = !even;
+      p += 5;
     }
 
-    return scores;
+    if (i < l) {
+      out[offset + i] = ((buf[p] & 0xFF) << 12) | ((buf[p + 1] & 0xFF) << 4)
+          | ((buf[p + 2] & 0xFF) >>> 4);
+    }
+
+    return l;
   }
 
-  private static int[] getCounts24(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Decodes 24 bit counts. The bulk of the counts are unpacked two at a
+   * time from the top 48 bits of each long.
+   *
+   * @param buf the buf
+   * @param s the zero based start bin
+   * @param l the l
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts24(byte[] buf,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    int i = 0;
+    int p = 0;
+
+    ByteBuffer words = ByteBuffer.wrap(buf);
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    for (; i + 2 <= l && p + 8 <= buf.length; i += 2) {
+      long w = words.getLong(p);
 
-    byte[] d = FileSequenceReader.getBytes(file, s * 3, e * 3 + 2);
-    
-    ByteStream buf = new ByteStream(d);
+      out[offset + i] = (int) (w >>> 40) & 0xFFFFFF;
+      out[offset + i + 1] = (int) (w >>> 16) & 0xFFFFFF;
+
+      p += 6;
+    }
+
+    for (; i < l; ++i) {
+      out[offset + i] = ((buf[p] & 0xFF) << 16) | ((buf[p + 1] & 0xFF) << 8)
+          | (buf[p + 2] & 0xFF);
+
+      p += 3;
+    }
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    return l;
+  }
 
+  private static int getCounts32(byte[] d,
+      int s,
+      int l,
+      int[] out,
+      int offset) {
+    ByteBuffer buf = ByteBuffer.wrap(d);
+    
     for (int i = 0; i < l; ++i) {
-      scores[i] = buf.readInt24(); //((buf[p] << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF));
+      out[offset + i] = buf.getInt();
     }
 
-    return scores;
+    return l;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mDir;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    removeMetrics(mCatalog);
   }
 
-  private static int[] getCounts32(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Streams counts from a packed count file, decoding a buffer of bins at a
+   * time from a reader that stays open until the cursor is closed.
+   */
+  private static class PackedCursor extends CountCursor {
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    /** The m in. */
+    private final BinaryReader mIn;
 
-    byte[] d = FileSequenceReader.getBytes(file, s * 4, e * 4 + 3);
+    /** The m bits. */
+    private final int mBits;
 
-    ByteBuffer buf = ByteBuffer.wrap(d);
-    
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    /** The bin after the last bin of the region. */
+    private final int mEndBin;
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = buf.getInt();
+    /** Holds the packed bytes of a buffer of bins. */
+    private final byte[] mBytes;
+
+    /** The m closed. */
+    private boolean mClosed = false;
+
+    /**
+     * Instantiates a new packed cursor.
+     *
+     * @param entry the entry
+     * @param startBin the start bin
+     * @param bins the number of bins
+     * @param bufferBins the number of bins to decode at a time
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public PackedCursor(CountFileCatalog.Entry entry, int startBin, int bins,
+        int bufferBins) throws IOException {
+      super(startBin, bufferBins);
+
+      mBits = entry.getBits();
+      mEndBin = startBin + bins;
+
+      // Enough for a buffer of bins beginning on any byte boundary
+      mBytes = new byte[getByteEnd(mBits, Math.max(1, bufferBins)) + 1];
+
+      mIn = FileHandlePool.getInstance().open(entry.getFile());
     }
 
-    return scores;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#fill(int, int[])
+     */
+    @Override
+    protected int fill(int bin, int[] buffer) throws IOException {
+      int n = Math.min(buffer.length, mEndBin - bin);
+
+      if (n <= 0) {
+        return 0;
+      }
+
+      long pos = getByteStart(mBits, bin);
+      int len = (int) (getByteEnd(mBits, bin + n - 1) - pos + 1);
+
+      // Each buffer follows on from the last so the reader moves forward
+      // through the file. Bytes past the end of the file read as zero.
+      int r = (int) Math.max(0, Math.min(len, mIn.size() - pos));
+
+      mIn.seek(pos);
+      mIn.readFully(mBytes, 0, r);
+
+      Arrays.fill(mBytes, r, len, (byte) 0);
+
+      return decode(mBits, mBytes, bin, n, buffer, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#close()
+     */
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+
+        mIn.close();
+      }
+    }
   }
 }
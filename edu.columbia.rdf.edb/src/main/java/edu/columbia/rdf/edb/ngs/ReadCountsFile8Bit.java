@@ -29,17 +29,19 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
-import org.jebtk.bioinformatics.genomic.FileSequenceReader;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 
 /**
  * Fast search of genome sequence files to get get actual genomic data. This
  * file reads 4bit encoded genomes (i.e. 2 bases per byte).
  *
+ * Counts are unsigned bytes. Earlier versions sign-extended them, so bins
+ * of 128 reads or more, which used to read as negative, now read as their
+ * true count.
+ *
  * @author Antony Holmes
  *
  */
@@ -50,10 +52,8 @@ public class ReadCountsFile8Bit extends ReadCountsFile {
    */
   protected Path mDirectory;
 
-  /**
-   * The member file map.
-   */
-  protected Map<Chromosome, Path> mFileMap = new HashMap<Chromosome, Path>();
+  /** The count files in the directory, listed on first use. */
+  protected volatile CountFileCatalog.Directory mCatalog;
 
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
@@ -74,17 +74,124 @@ public class ReadCountsFile8Bit extends ReadCountsFile {
   @Override
   public int[] getCounts(GenomicRegion region, int window)
       throws IOException {
-    Chromosome chr = region.getChr();
+    int[] ret = new int[getBinCount(region, window)];
 
-    if (!mFileMap.containsKey(chr)) {
-      mFileMap.put(chr,
-          mDirectory.resolve(chr + ".counts.win." + window + ".8bit"));
-    }
+    getCounts(region, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    Chromosome chr = region.getChr();
 
-    return getCounts(mFileMap.get(chr),
+    return getCounts(getFile(chr, window),
         region.getStart(),
         region.getEnd(),
-        window);
+        window,
+        out,
+        offset);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return (region.getEnd() - 1) / window - (region.getStart() - 1) / window
+        + 1;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStartBin(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getStartBin(GenomicRegion region, int window) {
+    return (region.getStart() - 1) / window;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinRegion(org.jebtk.
+   * bioinformatics.genomic.Chromosome, int, int, int)
+   */
+  @Override
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    long end = (long) (bin + bins) * window;
+
+    return new GenomicRegion(chr, bin * window + 1,
+        (int) Math.min(Integer.MAX_VALUE, end));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    return 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    return new ByteCursor(getFile(region.getChr(), window),
+        getStartBin(region, window),
+        getBinCount(region, window),
+        bufferBins);
+  }
+
+  /**
+   * Returns the 8 bit count file for a chromosome and window. Files missing
+   * from the directory resolve to their expected name so that opening them
+   * fails as before.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @return the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Path getFile(Chromosome chr, int window) throws IOException {
+    CountFileCatalog.Directory catalog = mCatalog;
+
+    if (catalog == null) {
+      catalog = CountFileCatalog.getInstance().getDirectory(mDirectory);
+
+      mCatalog = catalog;
+    }
+
+    CountFileCatalog.Entry entry = catalog.getPacked(chr, window, 8);
+
+    if (entry != null) {
+      return entry.getFile();
+    } else {
+      return mDirectory.resolve(chr + ".counts.win." + window + ".8bit");
+    }
   }
 
   /**
@@ -94,26 +201,128 @@ public class ReadCountsFile8Bit extends ReadCountsFile {
    * @param start the start
    * @param end the end
    * @param window the window
-   * @return the counts
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getCounts(final Path file,
+  private static int getCounts(final Path file,
       int start,
       int end,
-      int window) throws IOException {
+      int window,
+      int[] out,
+      int offset) throws IOException {
 
     int s = (start - 1) / window;
     int e = (end - 1) / window;
     int l = e - s + 1;
 
-    byte[] buf = FileSequenceReader.getBytes(file, s, e);
-
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    byte[] buf = getBytes(file, s, e);
 
     for (int i = 0; i < l; ++i) {
-      scores[i] = (int) buf[i];
+      out[offset + i] = buf[i] & 0xFF;
     }
 
-    return scores;
+    return l;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mDirectory;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    removeMetrics(mCatalog);
+  }
+
+  /**
+   * Streams counts from an 8 bit count file, reading a buffer of bins at a
+   * time from a reader that stays open until the cursor is closed.
+   */
+  private static class ByteCursor extends CountCursor {
+
+    /** The m in. */
+    private final BinaryReader mIn;
+
+    /** The bin after the last bin of the region. */
+    private final int mEndBin;
+
+    /** Holds the bytes of a buffer of bins. */
+    private final byte[] mBytes;
+
+    /** The m closed. */
+    private boolean mClosed = false;
+
+    /**
+     * Instantiates a new byte cursor.
+     *
+     * @param file the file
+     * @param startBin the start bin
+     * @param bins the number of bins
+     * @param bufferBins the number of bins to decode at a time
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public ByteCursor(Path file, int startBin, int bins, int bufferBins)
+        throws IOException {
+      super(startBin, bufferBins);
+
+      mEndBin = startBin + bins;
+      mBytes = new byte[Math.max(1, bufferBins)];
+
+      mIn = FileHandlePool.getInstance().open(file);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#fill(int, int[])
+     */
+    @Override
+    protected int fill(int bin, int[] buffer) throws IOException {
+      int n = Math.min(buffer.length, mEndBin - bin);
+
+      if (n <= 0) {
+        return 0;
+      }
+
+      // Bytes past the end of the file read as zero
+      int r = (int) Math.max(0, Math.min(n, mIn.size() - bin));
+
+      mIn.seek(bin);
+      mIn.readFully(mBytes, 0, r);
+
+      Arrays.fill(mBytes, r, n, (byte) 0);
+
+      for (int i = 0; i < n; ++i) {
+        buffer[i] = mBytes[i] & 0xFF;
+      }
+
+      return n;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#close()
+     */
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+
+        mIn.close();
+      }
+    }
   }
 }
@@ -29,21 +29,20 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
-import org.jebtk.core.collections.DefaultHashMap;
-import org.jebtk.core.collections.HashMapCreator;
-import org.jebtk.core.collections.IterHashMap;
-import org.jebtk.core.collections.IterMap;
 import org.jebtk.core.io.ByteStream;
 import org.jebtk.core.io.FileUtils;
-import org.jebtk.core.io.PathUtils;
 import org.jebtk.core.text.TextUtils;
 
 /**
@@ -76,19 +75,18 @@ public class ReadCountsFileBC extends ReadCountsFile {
 
   private Path mDir = null;
 
-  private IterMap<Chromosome, IterMap<Integer, Path>> mFileMap = 
-      DefaultHashMap.create(new HashMapCreator<Integer, Path>());
+  /** The count files in the directory, listed on first use. */
+  private volatile CountFileCatalog.Directory mCatalog;
 
-  private IterMap<Integer, Integer> mCountMap = 
-      new IterHashMap<Integer, Integer>();
+  private Map<Integer, Integer> mCountMap = 
+      new ConcurrentHashMap<Integer, Integer>();
 
-  private RandomAccessFile mFile = null;
-
-  private Chromosome mChr = null;
-  private int mPower = -1;
-  private int mReadCount = -1;
+  private volatile int mReadCount = -1;
   private String mMode;
 
+  /** How the bins of the files summarize their positions. */
+  private BCMode mBCMode;
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -102,6 +100,7 @@ public class ReadCountsFileBC extends ReadCountsFile {
   public ReadCountsFileBC(Path bciFile, BCMode mode) {
     mDir = bciFile.toAbsolutePath().getParent();
     mMode = mode.toString().toLowerCase();
+    mBCMode = mode;
   }
 
   /*
@@ -118,53 +117,111 @@ public class ReadCountsFileBC extends ReadCountsFile {
         window);
   }
 
-  private static int[] _getCounts(RandomAccessFile file,
+  private static int _getCounts(BinaryReader file,
       Chromosome chr,
       int start,
       int end,
       int binWidth,
-      int binSize) throws IOException {
+      int binSize,
+      int[] out,
+      int offset) throws IOException {
+    int n = getBinCount(start, end, binWidth);
+
+    byte[] d = new byte[n * getBinBytes(binSize)];
+
+    read(file, getBinsOffset(start, binWidth, binSize), d);
+    
+    return decode(d, n, binSize, out, offset);
+  }
+
+  /**
+   * Returns the number of bins spanned by a region.
+   *
+   * @param start the start
+   * @param end the end
+   * @param binWidth the bin width
+   * @return the bin count
+   */
+  private static int getBinCount(int start, int end, int binWidth) {
     int sb = start / binWidth;
     int eb = end / binWidth;
-    int n = Math.max(1, eb - sb);
+    
+    return Math.max(1, eb - sb);
+  }
 
+  /**
+   * Returns the number of bytes used to store each bin.
+   *
+   * @param binSize the bin size
+   * @return the bin bytes
+   */
+  private static int getBinBytes(int binSize) {
+    return binSize > 1 ? binSize : 1;
+  }
 
-    int sa = sb;
-    int sn = n;
+  /**
+   * Returns the byte offset of the bin containing a position.
+   *
+   * @param start the start
+   * @param binWidth the bin width
+   * @param binSize the bin size
+   * @return the bins offset
+   */
+  private static long getBinsOffset(int start, int binWidth, int binSize) {
+    return BINS_OFFSET_BYTES + (start / binWidth) * getBinBytes(binSize);
+  }
 
-    if (binSize > 1) {
-      sa *= binSize;
-      sn *= binSize;
-    }
+  /**
+   * Decodes n bins.
+   *
+   * @param d the bytes of the bins
+   * @param n the number of bins
+   * @param binSize the bin size
+   * @return the counts
+   */
+  private static int[] decode(byte[] d, int n, int binSize) {
+    int[] ret = new int[n]; // np.zeros(n, dtype=int)
 
-    file.seek(BINS_OFFSET_BYTES + sa);
+    decode(d, n, binSize, ret, 0);
 
-    byte[] d = new byte[sn];
+    return ret;
+  }
 
-    file.read(d);
-    
+  /**
+   * Decodes n bins directly into a caller supplied array.
+   *
+   * @param d the bytes of the bins
+   * @param n the number of bins
+   * @param binSize the bin size
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int decode(byte[] d,
+      int n,
+      int binSize,
+      int[] out,
+      int offset) {
     //ByteBuffer buffer = ByteBuffer.wrap(d);
     ByteStream buffer = new ByteStream(d);
 
-    int[] ret = new int[n]; // np.zeros(n, dtype=int)
-
     switch (binSize) {
     case 4:
       // 4 byte int
       for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.readInt();
+        out[offset + i] = buffer.readInt();
       }
       break;
     case 2:
       // 2 byte short
       for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.readShort();
+        out[offset + i] = buffer.readShort();
       }
       break;
     default:
       // a byte
       for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.read();
+        out[offset + i] = buffer.read();
       }
       break;
     }
@@ -174,7 +231,7 @@ public class ReadCountsFileBC extends ReadCountsFile {
     //  ret[i] *= binWidth;
     //}
 
-    return ret;
+    return n;
   }
 
   /**
@@ -189,18 +246,214 @@ public class ReadCountsFileBC extends ReadCountsFile {
    */
   public int[] getCounts(Chromosome chr, int start, int end, int window)
       throws IOException {
+    int[] ret = new int[getBinCount(start, end, window)];
 
-    int power = POWER_MAP.get(window);
-    
-    RandomAccessFile file = getFile(chr, power);
+    getCounts(chr, start, end, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    return getCounts(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        out,
+        offset);
+  }
+
+  /**
+   * Writes the counts of a region into a caller supplied array.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCounts(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) throws IOException {
+
+    Integer power = POWER_MAP.get(window);
+
+    Path path = power != null ? getFile(chr, power) : null;
+
+    if (path == null) {
+      return getResampledCounts(chr, start, end, window, out, offset);
+    }
 
-    int s = start;
-    int e = end;
+    BinaryReader file = FileHandlePool.getInstance().open(path);
 
-    int binSize = getBinSize(file);
+    try {
+      int s = start;
+      int e = end;
 
-    int[] d = _getCounts(file, chr, s, e, window, binSize);
+      int binSize = getBinSize(file);
+
+      if (window >= MIN_BIN_WIDTH) {
+        return _getCounts(file, chr, s, e, window, binSize, out, offset);
+      }
+
+      int[] d = new int[getBinCount(start, end, window)];
+
+      _getCounts(file, chr, s, e, window, binSize, d, 0);
+
+      d = expand(d, start, end, window);
+
+      System.arraycopy(d, 0, out, offset, d.length);
+
+      return d.length;
+    } finally {
+      file.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return getBinCount(region.getStart(), region.getEnd(), window);
+  }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinRegion(org.jebtk.
+   * bioinformatics.genomic.Chromosome, int, int, int)
+   */
+  @Override
+  public GenomicRegion getBinRegion(Chromosome chr,
+      int bin,
+      int bins,
+      int window) {
+    if (window < MIN_BIN_WIDTH) {
+      // Small windows are expanded from the start of each region
+      return null;
+    }
+
+    long end = (long) (bin + bins) * window;
+
+    return new GenomicRegion(chr, bin * window,
+        (int) Math.min(Integer.MAX_VALUE, end));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    return 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
+
+    Integer power = POWER_MAP.get(window);
+
+    for (Entry<Chromosome, List<Integer>> item : groupByChr(regions)
+        .entrySet()) {
+      Chromosome chr = item.getKey();
+      List<Integer> indices = item.getValue();
+
+      Path file = power != null ? getFile(chr, power) : null;
+
+      if (file == null) {
+        // Windows without a file are resampled one region at a time
+        for (int i : indices) {
+          ret[i] = getCounts(regions.get(i), window);
+        }
+
+        continue;
+      }
+
+      BinaryReader in = FileHandlePool.getInstance().open(file);
+
+      try {
+        int binSize = getBinSize(in);
+
+        long size = in.size();
+
+        int n = indices.size();
+
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          offsets[i] = getBinsOffset(region.getStart(), window, binSize);
+
+          // Bins past the end of the file read as zero
+          lengths[i] = (int) Math.max(0,
+              Math.min(getBinCount(region.getStart(), region.getEnd(), window)
+                  * getBinBytes(binSize), size - offsets[i]));
+        }
+
+        // Overlapping and neighbouring regions share reads
+        ByteBuffer[] buffers = RangeReader.read(in, offsets, lengths);
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          int bins = getBinCount(region.getStart(), region.getEnd(), window);
+
+          byte[] d = new byte[bins * getBinBytes(binSize)];
+
+          buffers[i].get(d, 0, buffers[i].remaining());
+
+          ret[indices.get(i)] = expand(decode(d, bins, binSize),
+              region.getStart(),
+              region.getEnd(),
+              window);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    return Arrays.asList(ret);
+  }
+
+  /**
+   * Windows smaller than the minimum bin width repeat each bin so that
+   * there is one count per window.
+   *
+   * @param d the counts
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the counts
+   */
+  private static int[] expand(int[] d, int start, int end, int window) {
     if (window < MIN_BIN_WIDTH) {
       int sb = start / window;
       int eb = end / window;
@@ -229,32 +482,115 @@ public class ReadCountsFileBC extends ReadCountsFile {
     return d;
   }
 
-  private RandomAccessFile getFile(Chromosome chr, int power) throws IOException {
+  /**
+   * Writes the counts of a window without a file into a caller supplied
+   * array by resampling the file of another power.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written, or 0 if the chromosome has no
+   *         files.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int getResampledCounts(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) throws IOException {
+    int s = start / window;
+    int l = getBinCount(start, end, window);
 
-    if (!mFileMap.get(chr).containsKey(power)) {
-      String c = chr.toString() + ".";
-      String p = power + "bw";
+    List<CountFileCatalog.Entry> levels = getCatalog().getBC(chr, mMode);
 
-      for (Path file : FileUtils.ls(mDir)) {
-        String name = PathUtils.getName(file);
+    int[] windows = new int[levels.size()];
 
-        if (name.contains(c) && name.contains(p)) {
-          mFileMap.get(chr).put(power, file);
+    // Bin sizes are only known once a file is opened so are taken to be
+    // the same for every power
+    int[] bits = new int[levels.size()];
 
-          break;
-        }
-      }
+    for (int i = 0; i < windows.length; ++i) {
+      windows[i] = getWindow(levels.get(i).getWindow());
+      bits[i] = 32;
     }
 
-    if (mChr != null && mChr.equals(chr) && mPower == power) {
-      return mFile;
+    int i = ResolutionPlanner.plan(windows, bits, window, l);
+
+    if (i == -1) {
+      // Nothing to read, so clear the bins rather than leave whatever the
+      // array held before
+      Arrays.fill(out, offset, offset + l, 0);
+
+      return l;
     }
 
-    
-    mFile = FileUtils.newRandomAccess(mFileMap.get(chr).get(power));
-    mChr = chr;
-    mPower = power;
-    return mFile;
+    int level = windows[i];
+    int ls = ResolutionPlanner.getStartBin(s, window, level);
+    int ll = ResolutionPlanner.getBinCount(s, l, window, level);
+
+    BinaryReader file =
+        FileHandlePool.getInstance().open(levels.get(i).getFile());
+
+    int[] counts;
+
+    try {
+      int binSize = getBinSize(file);
+
+      byte[] d = new byte[ll * getBinBytes(binSize)];
+
+      read(file, BINS_OFFSET_BYTES + (long) ls * getBinBytes(binSize), d);
+
+      counts = decode(d, ll, binSize);
+    } finally {
+      file.close();
+    }
+
+    return ResolutionPlanner
+        .resample(counts, ls, level, s, l, window, mBCMode, out, offset);
+  }
+
+  /**
+   * Returns the bin width of a power.
+   *
+   * @param power the power
+   * @return the window
+   */
+  private static int getWindow(int power) {
+    int ret = 1;
+
+    for (int i = 0; i < power; ++i) {
+      ret *= 10;
+    }
+
+    return ret;
+  }
+
+  private Path getFile(Chromosome chr, int power) throws IOException {
+    CountFileCatalog.Entry entry = getCatalog().getBC(chr, power, mMode);
+
+    return entry != null ? entry.getFile() : null;
+  }
+
+  /**
+   * Returns the catalog of the count files in the directory.
+   * 
+   * @return the catalog
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private CountFileCatalog.Directory getCatalog() throws IOException {
+    CountFileCatalog.Directory catalog = mCatalog;
+
+    if (catalog == null) {
+      catalog = CountFileCatalog.getInstance().getDirectory(mDir);
+
+      mCatalog = catalog;
+    }
+
+    return catalog;
   }
 
   /**
@@ -266,44 +602,23 @@ public class ReadCountsFileBC extends ReadCountsFile {
    * @throws IOException
    */
   private int getBinCount(int power) throws IOException {
-    
-    System.err.println("get bin counts");
-    
     if (!mCountMap.containsKey(power)) {
-      String p = power + "bw";
+      CountFileCatalog.Entry entry = getCatalog().getBinCounts(power);
 
-      for (Path file : FileUtils.ls(mDir)) {
-        String name = PathUtils.getName(file);
+      if (entry != null) {
+        DataInputStream r = FileUtils.newDataInputStream(entry.getFile());
 
-        if (name.startsWith("counts") && name.contains(p) && name.endsWith("bc")) {
-          DataInputStream r = FileUtils.newDataInputStream(file);
+        int c = r.readInt();
 
-          int c = r.readInt();
-          
-          //System.err.println("found " + name + " "  + power + " " + c);
+        r.close();
 
-          r.close();
-
-          mCountMap.put(power, c);
-          
-          break;
-        }
+        mCountMap.put(power, c);
       }
     }
 
     return mCountMap.get(power);
   }
 
-  public void close() {
-    if (mFile != null) {
-      try {
-        mFile.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
   /*
    * (non-Javadoc)
    * 
@@ -312,7 +627,12 @@ public class ReadCountsFileBC extends ReadCountsFile {
   @Override
   public int getReadCount(Genome genome, int window) throws IOException {
     if (mReadCount < 1) {
-      Path file = mDir.resolve(TextUtils.cat("reads.", genome, ".", mMode, ".bc"));
+      CountFileCatalog.Entry entry = 
+          getCatalog().getReads(genome.toString(), mMode);
+
+      // A missing file fails to open as before
+      Path file = entry != null ? entry.getFile()
+          : mDir.resolve(TextUtils.cat("reads.", genome, ".", mMode, ".bc"));
 
       DataInputStream r = FileUtils.newDataInputStream(file);
       
@@ -330,9 +650,29 @@ public class ReadCountsFileBC extends ReadCountsFile {
     return POWER_MAP.get(window);
   }
 
-  private static int getBinSize(RandomAccessFile file) throws IOException {
+  private static int getBinSize(BinaryReader file) throws IOException {
     file.seek(BIN_SIZE_OFFSET_BYTES);
 
-    return file.read();
+    return file.readByte() & 0xFF;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mDir;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    removeMetrics(mCatalog);
   }
-}
\ No newline at end of file
+}
@@ -28,10 +28,10 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
@@ -84,6 +84,22 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
   @Override
   public int[] getCounts(GenomicRegion region, int window)
       throws IOException {
+    int[] ret = new int[getBinCount(region, window)];
+
+    getCounts(region, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
     Chromosome chr = region.getChr();
 
     Path file = getFile(chr, window, FILE_EXT);
@@ -91,13 +107,20 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
     // System.err.println("read count file:" + file + " " + region + " " +
     // mReadLengthMap.get(chr) + " " + mOffsetMap.get(chr));
 
-    int[] counts = getCounts(file,
-        region.getStart(),
-        region.getEnd(),
-        window,
-        mOffsetMap.get(chr));
+    BinaryReader in = newReader(chr, file);
 
-    return counts;
+    try {
+      return getCounts(in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          window,
+          mOffsetMap.get(chr),
+          out,
+          offset);
+    } finally {
+      in.close();
+    }
   }
 
   /*
@@ -113,13 +136,18 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
 
     Path file = getFile(chr, window, FILE_EXT);
 
-    int[] starts = getStarts(file,
-        region.getStart(),
-        region.getEnd(),
-        window,
-        mOffsetMap.get(chr));
+    BinaryReader in = newReader(chr, file);
 
-    return starts;
+    try {
+      return getStarts(in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          window,
+          mOffsetMap.get(chr));
+    } finally {
+      in.close();
+    }
   }
 
   /*
@@ -135,12 +163,92 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
 
     Path file = getFile(chr, window, FILE_EXT);
 
-    Strand[] strands = getStrands(file,
-        region.getStart(),
-        region.getEnd(),
-        mOffsetMap.get(chr));
+    BinaryReader in = newReader(chr, file);
 
-    return strands;
+    try {
+      return getStrands(in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          mOffsetMap.get(chr));
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandBits(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    Path file = getFile(chr, window, FILE_EXT);
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      return strandBits(getFlags(in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          mOffsetMap.get(chr)));
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * org.jebtk.bioinformatics.genomic.Strand)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (strand == Strand.NONE) {
+      return getCounts(region, window);
+    }
+
+    Chromosome chr = region.getChr();
+
+    Path file = getFile(chr, window, FILE_EXT);
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      BinTreeIndex index = getIndex(chr, in);
+
+      Block so = index.getDataOffset(region.getStart(), window);
+      Block eo = index.getDataOffset(region.getEnd(), window);
+
+      int l = Math.max(0, eo.endOffset - so.startOffset + 1);
+
+      in.seek(mOffsetMap.get(chr) + so.startOffset * READ_WIDTH_BYTES);
+
+      ByteBuffer records = in.readBuffer(l * READ_WIDTH_BYTES);
+
+      CountMetrics.getInstance().records(in,
+          records,
+          READ_WIDTH_BYTES,
+          region.getStart(),
+          region.getEnd());
+
+      return binCounts(records,
+          READ_WIDTH_BYTES,
+          region.getStart(),
+          region.getEnd(),
+          window,
+          strand == Strand.ANTISENSE);
+    } finally {
+      in.close();
+    }
   }
 
   /**
@@ -160,17 +268,92 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
       int window,
       int dataOffset) throws IOException {
 
-    int[] starts = getStarts(file, start, end, window, dataOffset);
+    BinaryReader in = FileHandlePool.getInstance().open(file);
+
+    try {
+      int[] ret = new int[end / window - start / window + 1];
+
+      getCounts(in,
+          new BinTreeIndex(in, dataOffset),
+          start,
+          end,
+          window,
+          dataOffset,
+          ret,
+          0);
+
+      return ret;
+    } finally {
+      in.close();
+    }
+  }
 
-    int[] counts = binCounts(starts, start, end, window);
+  /**
+   * Bins the reads in a region directly into a caller supplied array.
+   *
+   * @param in the in
+   * @param index the index
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param dataOffset the data offset
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static int getCounts(BinaryReader in,
+      BinTreeIndex index,
+      int start,
+      int end,
+      int window,
+      int dataOffset,
+      int[] out,
+      int offset) throws IOException {
 
-    return counts;
+    Block so = index.getDataOffset(start, window);
+    Block eo = index.getDataOffset(end, window);
+
+    int l = Math.max(0, eo.endOffset - so.startOffset + 1);
+
+    in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
+
+    ByteBuffer buffer = in.readBuffer(l * READ_WIDTH_BYTES);
+
+    CountMetrics.getInstance().records(in,
+        buffer,
+        READ_WIDTH_BYTES,
+        start,
+        end);
+
+    int startBin = start / window;
+    int bins = end / window - startBin + 1;
+
+    Arrays.fill(out, offset, offset + bins, 0);
+
+    for (int i = 0; i < l; ++i) {
+      int s = buffer.getInt();
+
+      // skip flags
+      buffer.get();
+
+      if (s >= start && s <= end) {
+        int b = s / window - startBin;
+
+        if (b < bins) {
+          ++out[offset + b];
+        }
+      }
+    }
+
+    return bins;
   }
 
   /**
    * Get the counts from the file,.
    *
-   * @param file The r tree binary file.
+   * @param in The reader over the r tree binary file.
+   * @param index the index
    * @param start The 1 based genomic start coordinate.
    * @param end The 1 based genomic end coordinate.
    * @param window The size of the window being viewed.
@@ -178,49 +361,51 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
    * @return the starts
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getStarts(final Path file,
+  private static int[] getStarts(BinaryReader in,
+      BinTreeIndex index,
       int start,
       int end,
       int window,
       int dataOffset) throws IOException {
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
-
     int[] starts = ArrayUtils.EMPTY_INT_ARRAY; //new ArrayList<Integer>();
 
-    try {
-      // first get the buffer offset of the start
+    // first get the buffer offset of the start
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    Block so = index.getDataOffset(start, window);
+    Block eo = index.getDataOffset(end, window);
 
-      int l = eo.endOffset - so.startOffset + 1;
-      
-      starts = new int[l];
+    int l = eo.endOffset - so.startOffset + 1;
+    
+    starts = new int[l];
 
-      // System.err.println("starts " + start + " " + end + " " +
-      // Arrays.toString(so)
-      // + " " + Arrays.toString(eo) + " " + l);
+    // System.err.println("starts " + start + " " + end + " " +
+    // Arrays.toString(so)
+    // + " " + Arrays.toString(eo) + " " + l);
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
+    // To read the starts, first skip to dataOffset (the byte position
+    // after the R Tree where the counts are written sequentially),
+    // then skip to the array index (i * 4 bytes (width of int)).
+    in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
 
-      for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
+    // Fetch the whole record range at once and decode it in memory
+    ByteBuffer buffer = in.readBuffer(l * READ_WIDTH_BYTES);
 
-        int s = in.readInt();
+    CountMetrics.getInstance().records(in,
+        buffer,
+        READ_WIDTH_BYTES,
+        start,
+        end);
 
-        // skip flags
-        in.readByte();
+    for (int i = 0; i < l; ++i) {
+      int s = buffer.getInt();
 
-        if (s >= start && s <= end) {
-          starts[i] = s;
-        }
+      // skip flags
+      buffer.get();
+
+      if (s >= start && s <= end) {
+        starts[i] = s;
       }
-    } finally {
-      in.close();
     }
 
     return starts;
@@ -229,19 +414,21 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
   /**
    * Gets the strands.
    *
-   * @param file the file
+   * @param in the in
+   * @param index the index
    * @param start the start
    * @param end the end
    * @param dataOffset the data offset
    * @return the strands
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static Strand[] getStrands(final Path file,
+  private static Strand[] getStrands(BinaryReader in,
+      BinTreeIndex index,
       int start,
       int end,
       int dataOffset) throws IOException {
 
-    byte[] props = getFlags(file, start, end, dataOffset);
+    byte[] props = getFlags(in, index, start, end, dataOffset);
 
     // System.err.println("flags:" + props);
 
@@ -261,54 +448,55 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
   /**
    * Extract the 1 byte param field associated with a read.
    *
-   * @param file the file
+   * @param in the in
+   * @param index the index
    * @param start the start
    * @param end the end
    * @param dataOffset the data offset
    * @return the flags
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static byte[] getFlags(final Path file,
+  private static byte[] getFlags(BinaryReader in,
+      BinTreeIndex index,
       int start,
       int end,
       int dataOffset) throws IOException {
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+    // first get the buffer offset of the start
 
-    List<Byte> flags = new ArrayList<Byte>();
+    Block so = index.getDataOffset(start);
+    Block eo = index.getDataOffset(end);
 
-    try {
-      // first get the buffer offset of the start
+    int l = eo.endOffset - so.startOffset + 1;
 
-      Block so = getDataOffset(in, start);
-      Block eo = getDataOffset(in, end);
+    // System.err.println("ends " + Arrays.toString(so) + " " +
+    // Arrays.toString(eo)
+    // + " " + l);
 
-      int l = eo.endOffset - so.startOffset + 1;
+    // To read the starts, first skip to dataOffset (the byte position
+    // after the R Tree where the counts are written sequentially),
+    // then skip to the array index (i * 4 bytes (width of int)).
+    in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
 
-      // System.err.println("ends " + Arrays.toString(so) + " " +
-      // Arrays.toString(eo)
-      // + " " + l);
+    l = Math.max(0, l);
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
+    ByteBuffer buffer = in.readBuffer(l * READ_WIDTH_BYTES);
 
-      for (int i = 0; i < l; ++i) {
-        int s = in.readInt();
-        byte flag = in.readByte();
+    byte[] flags = new byte[l];
+    int n = 0;
 
-        // System.err.println("ha " + i + " " + s + " " + flag);
+    for (int i = 0; i < l; ++i) {
+      int s = buffer.getInt();
+      byte flag = buffer.get();
 
-        if (s >= start && s <= end) {
-          flags.add(flag);
-        }
+      if (s >= start && s <= end) {
+        flags[n++] = flag;
       }
-    } finally {
-      in.close();
     }
 
-    return ArrayUtils.mapToByte(flags); //flags.stream().mapToByte(Byte::byteValue).toArray(); //flags;
+    CountMetrics.getInstance().records(in, l, n);
+
+    return Arrays.copyOf(flags, n);
   }
 
 }
@@ -28,20 +28,17 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Map.Entry;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.bioinformatics.genomic.Strand;
-import org.jebtk.core.Mathematics;
-import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultTreeMap;
-import org.jebtk.core.io.FileUtils;
 import org.jebtk.core.json.Json;
 
 /**
@@ -71,6 +68,9 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
   /** The Constant FLAG_STRAND_MASK. */
   private static final byte FLAG_STRAND_MASK = 1;
 
+  /** The number of reads a cursor or stranded query fetches at a time. */
+  private static final int BATCH_READS = 8192;
+
   /** The m reads. */
   private int mReads = -1;
 
@@ -117,120 +117,467 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
    */
   public int[] getCounts(Chromosome chr, int start, int end, int window)
       throws IOException {
+    int[] ret = new int[end / window - start / window + 1];
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getCounts(chr, start, end, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    return getCounts(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        out,
+        offset);
+  }
+
+  /**
+   * Writes the counts of a region into a caller supplied array.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCounts(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) throws IOException {
+
+    Path file = getFile(chr, window, getFileExt());
 
     // System.err.println("brt2 file " + file);
 
     int dataOffset = mOffsetMap.get(chr);
 
-    RandomAccessFile in = FileUtils.newRandomAccess(file);
+    BinaryReader in = newReader(chr, file);
 
-    List<Integer> starts = new ArrayList<Integer>(1000);
-
-    int[] ret;
-    
     try {
-      // first get the buffer offset of the start
+      if (window >= MIN_BIN_WIDTH) {
+        int level = getLevel(window);
+
+        // Skip to structured block and fetch the whole range at once
+        in.seek(dataOffset + levelOffset(level, start, window));
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+        ByteBuffer buffer =
+            in.readScratch(levelLength(level, start, end, window));
 
-      int l = eo.endOffset - so.startOffset + 1;
+        return levelCounts(buffer, level, start, end, window, out, offset);
+      }
+
+      BinTreeIndex index = getIndex(chr, in);
+
+      // first get the buffer offset of the start
+
+      Block so = index.getDataOffset(start, window);
+      Block eo = index.getDataOffset(end, window);
 
       // System.err.println("starts hmm " + start + " " + end + " " + so.width +
       // " " +
       // eo.width + " " + window);
 
-      if (window >= MIN_BIN_WIDTH) {
-        // Skip to structured block
-        in.seek(dataOffset + multiResOffset(so));
+      ByteBuffer buffer = readStarts(chr, in, so, eo);
+
+      CountMetrics.getInstance().records(in,
+          buffer,
+          getStartStride(),
+          start,
+          end);
+
+      return getCounts(buffer,
+          start,
+          end,
+          window,
+          getStartStride(),
+          out,
+          offset);
+    } finally {
+      in.close();
+    }
+  }
 
-        int b = so.bin;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
 
-        int v;
+    for (Entry<Chromosome, List<Integer>> item : groupByChr(regions)
+        .entrySet()) {
+      Chromosome chr = item.getKey();
+      List<Integer> indices = item.getValue();
 
-        while (b <= eo.bin) {
-          v = in.readInt();
+      Path file = getFile(chr, window, getFileExt());
 
-          starts.add(v);
+      int dataOffset = mOffsetMap.get(chr);
 
-          ++b;
-        }
+      BinaryReader in = newReader(chr, file);
 
-        ret = getCounts(starts, so, start, end, window);
-      } else {
-        // Higher resolution so slower to access.
+      try {
+        int n = indices.size();
+
+        if (window >= MIN_BIN_WIDTH) {
+          int level = getLevel(window);
+
+          long[] offsets = new long[n];
+          int[] lengths = new int[n];
+
+          for (int i = 0; i < n; ++i) {
+            GenomicRegion region = regions.get(indices.get(i));
 
-        // To read the starts, first skip to dataOffset (the byte position
-        // after the R Tree where the counts are written sequentially),
-        // then skip to the array index (i * 4 bytes (width of int)).
-        in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+            offsets[i] =
+                dataOffset + levelOffset(level, region.getStart(), window);
+            lengths[i] = levelLength(level,
+                region.getStart(),
+                region.getEnd(),
+                window);
+          }
+
+          // Overlapping and neighbouring regions share bins
+          ByteBuffer[] buffers = RangeReader.read(in, offsets, lengths);
 
-        int s;
+          for (int i = 0; i < n; ++i) {
+            GenomicRegion region = regions.get(indices.get(i));
 
-        for (int i = 0; i < l; ++i) {
-          // Skip start
-          s = in.readInt();
+            int[] counts = new int[region.getEnd() / window
+                - region.getStart() / window + 1];
 
-          // Skip flags
-          in.readByte();
+            levelCounts(buffers[i],
+                level,
+                region.getStart(),
+                region.getEnd(),
+                window,
+                counts,
+                0);
 
-          if (s >= start && s <= end) {
-            starts.add(s);
+            ret[indices.get(i)] = counts;
           }
+
+          continue;
         }
 
-        // Group by window size
-        ret = binCounts(starts, start, end, window);
+        BinTreeIndex index = getIndex(chr, in);
+
+        Block[] blocks = new Block[n];
+        Block[] ends = new Block[n];
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          blocks[i] = index.getDataOffset(region.getStart(), window);
+          ends[i] = index.getDataOffset(region.getEnd(), window);
+        }
+
+        ByteBuffer[] buffers = readStarts(chr, in, blocks, ends);
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          int[] counts = new int[region.getEnd() / window
+              - region.getStart() / window + 1];
+
+          CountMetrics.getInstance().records(in,
+              buffers[i],
+              getStartStride(),
+              region.getStart(),
+              region.getEnd());
+
+          getCounts(buffers[i],
+              region.getStart(),
+              region.getEnd(),
+              window,
+              getStartStride(),
+              counts,
+              0);
+
+          ret[indices.get(i)] = counts;
+        }
+      } finally {
+        in.close();
       }
-    } finally {
+    }
+
+    return Arrays.asList(ret);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    if (window >= MIN_BIN_WIDTH) {
+      // A chromosome has few enough multi resolution bins that reading them
+      // in runs costs little
+      return super.getCursor(region, window, bufferBins);
+    }
+
+    Chromosome chr = region.getChr();
+
+    Path file = getFile(chr, window, getFileExt());
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      BinTreeIndex index = getIndex(chr, in);
+
+      Block so = index.getDataOffset(region.getStart(), window);
+      Block eo = index.getDataOffset(region.getEnd(), window);
+
+      return new StartsCursor(chr,
+          in,
+          region.getStart(),
+          region.getEnd(),
+          window,
+          so.startOffset,
+          eo.endOffset,
+          bufferBins);
+    } catch (IOException e) {
       in.close();
+
+      throw e;
     }
+  }
 
-    return ret;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    // Larger windows are read from the multi resolution bins
+    return window >= MIN_BIN_WIDTH ? 0 : 1;
   }
 
   /**
-   * Gets the counts.
+   * Returns the extension of the chromosome files.
+   *
+   * @return the file ext
+   */
+  protected String getFileExt() {
+    return FILE_EXT;
+  }
+
+  /**
+   * Returns the raw reads from the start of one block to the end of another
+   * as {@link #READ_WIDTH_BYTES} byte (start, flags) records. The buffer may
+   * be the scratch buffer of the reader, so it is only valid until the next
+   * read of a region (see {@link BinaryReader#readScratch(int)}).
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param so the block containing the start of the region
+   * @param eo the block containing the end of the region
+   * @return the byte buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected ByteBuffer readRecords(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo) throws IOException {
+    int l = Math.max(0, eo.endOffset - so.startOffset + 1);
+
+    // To read the starts, first skip to dataOffset (the byte position
+    // after the R Tree where the counts are written sequentially),
+    // then skip to the array index (i * 4 bytes (width of int)).
+    in.seek(mOffsetMap.get(chr) + RAW_OFFSET
+        + (long) so.startOffset * READ_WIDTH_BYTES);
+
+    // Fetch the whole record range at once and decode it in memory
+    return in.readScratch(l * READ_WIDTH_BYTES);
+  }
+
+  /**
+   * Returns the raw reads of a batch of regions as
+   * {@link #READ_WIDTH_BYTES} byte (start, flags) records.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param so the block containing the start of each region
+   * @param eo the block containing the end of each region
+   * @return a buffer of records for each region, in the same order as so.
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @see #readRecords(Chromosome, BinaryReader, Block, Block)
+   */
+  protected ByteBuffer[] readRecords(Chromosome chr,
+      BinaryReader in,
+      Block[] so,
+      Block[] eo) throws IOException {
+    int n = so.length;
+
+    long[] offsets = new long[n];
+    int[] lengths = new int[n];
+
+    long dataOffset = mOffsetMap.get(chr) + RAW_OFFSET;
+
+    for (int i = 0; i < n; ++i) {
+      offsets[i] = dataOffset + (long) so[i].startOffset * READ_WIDTH_BYTES;
+      lengths[i] = Math.max(0, eo[i].endOffset - so[i].startOffset + 1)
+          * READ_WIDTH_BYTES;
+    }
+
+    // Overlapping and neighbouring regions share reads
+    return RangeReader.read(in, offsets, lengths);
+  }
+
+  /**
+   * Returns the distance in bytes between consecutive starts in the buffers
+   * returned by {@link #readStarts(Chromosome, BinaryReader, Block, Block)}.
+   *
+   * @return the start stride
+   */
+  protected int getStartStride() {
+    return READ_WIDTH_BYTES;
+  }
+
+  /**
+   * Returns the starts of the raw reads from the start of one block to the
+   * end of another. By default these are read as whole records. As with
+   * {@link #readRecords(Chromosome, BinaryReader, Block, Block)} the buffer
+   * is only valid until the next read of a region.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param so the block containing the start of the region
+   * @param eo the block containing the end of the region
+   * @return a buffer whose starts are {@link #getStartStride()} bytes apart.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected ByteBuffer readStarts(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo) throws IOException {
+    return readRecords(chr, in, so, eo);
+  }
+
+  /**
+   * Returns the starts of the raw reads of a batch of regions.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param so the block containing the start of each region
+   * @param eo the block containing the end of each region
+   * @return a buffer of starts for each region, in the same order as so.
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @see #readStarts(Chromosome, BinaryReader, Block, Block)
+   */
+  protected ByteBuffer[] readStarts(Chromosome chr,
+      BinaryReader in,
+      Block[] so,
+      Block[] eo) throws IOException {
+    return readRecords(chr, in, so, eo);
+  }
+
+  /**
+   * Decodes the multi resolution bins of a level read from
+   * {@link #levelOffset(int, int, int)} and re-bins them into the bins of a
+   * window in a caller supplied array.
    *
-   * @param counts the counts
-   * @param startBlock the start block
+   * @param buffer the buffer
+   * @param level the level
    * @param start the start
    * @param end the end
    * @param window the window
-   * @return the counts
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
    */
-  private static int[] getCounts(final List<Integer> counts,
-      Block startBlock,
+  private static int levelCounts(ByteBuffer buffer,
+      int level,
       int start,
       int end,
-      int window) {
+      int window,
+      int[] out,
+      int offset) {
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+    int l = end / window - startBin + 1;
+
+    // Re-bin straight from the buffer. Bins past its end are zero.
+    return ResolutionPlanner.resampleCounts(buffer,
+        levelStartBin(level, start, window),
+        BIN_WIDTHS[level],
+        startBin,
+        l,
+        window,
+        out,
+        offset);
+  }
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+  /**
+   * Decodes the counts of a region from its raw records and bins them
+   * directly into a caller supplied array.
+   *
+   * @param buffer the buffer
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param stride the bytes from one start to the next in raw records
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts(ByteBuffer buffer,
+      int start,
+      int end,
+      int window,
+      int stride,
+      int[] out,
+      int offset) {
+    int startBin = start / window;
+    int l = end / window - startBin + 1;
 
-    Map<Integer, Integer> map = DefaultTreeMap.create(0);
+    Arrays.fill(out, offset, offset + l, 0);
 
-    int rs = startBlock.bin; // - startBin;
+    // Higher resolution so slower to access.
+    int n = buffer.remaining() / stride;
 
-    for (int value : counts) {
-      map.put(rs, map.get(rs) + value);
+    int p = buffer.position();
+    int s;
+    int b;
 
-      ++rs;
-    }
+    for (int i = 0; i < n; ++i) {
+      s = buffer.getInt(p);
+
+      // Skip flags
+      p += stride;
 
-    List<Integer> ret = Mathematics.intZeros(l);
+      if (s >= start && s <= end) {
+        // Group by window size
+        b = s / window - startBin;
 
-    for (int bin : map.keySet()) {
-      if (bin >= startBin && bin <= endBin) {
-        ret.set(bin - startBin, map.get(bin));
+        if (b < l) {
+          ++out[offset + b];
+        }
       }
     }
 
-    return ArrayUtils.mapToInt(ret);
+    return l;
   }
 
   /*
@@ -244,15 +591,20 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    Path file = getFile(chr, window, getFileExt());
 
-    int[] starts = getStarts(file,
-        region.getStart(),
-        region.getEnd(),
-        window,
-        mOffsetMap.get(chr));
+    BinaryReader in = newReader(chr, file);
 
-    return starts;
+    try {
+      return getStarts(chr,
+          in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          window);
+    } finally {
+      in.close();
+    }
   }
 
   /*
@@ -266,15 +618,116 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    Path file = getFile(chr, window, getFileExt());
 
-    Strand[] strands = getStrands(file,
-        region.getStart(),
-        region.getEnd(),
-        window,
-        mOffsetMap.get(chr));
+    BinaryReader in = newReader(chr, file);
 
-    return strands;
+    try {
+      return getStrands(chr,
+          in,
+          getIndex(chr, in),
+          region.getStart(),
+          region.getEnd(),
+          window);
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandBits(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    Path file = getFile(chr, window, getFileExt());
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      BinTreeIndex index = getIndex(chr, in);
+
+      Block so = index.getDataOffset(region.getStart(), window);
+      Block eo = index.getDataOffset(region.getEnd(), window);
+
+      return strandBits(
+          readFlags(chr, in, so, eo, region.getStart(), region.getEnd()));
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * org.jebtk.bioinformatics.genomic.Strand)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (strand == Strand.NONE) {
+      return getCounts(region, window);
+    }
+
+    Chromosome chr = region.getChr();
+
+    Path file = getFile(chr, window, getFileExt());
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      BinTreeIndex index = getIndex(chr, in);
+
+      // The multi resolution counts combine both strands so the reads are
+      // always binned from the raw records, located via the finest blocks.
+      int w = Math.min(window, MIN_BIN_WIDTH);
+
+      Block so = index.getDataOffset(region.getStart(), w);
+      Block eo = index.getDataOffset(region.getEnd(), w);
+
+      int[] ret = new int[region.getEnd() / window
+          - region.getStart() / window + 1];
+
+      // The records are read a batch at a time, as by the cursor, so that
+      // a long region is not read into one buffer
+      int first = so.startOffset;
+
+      while (first <= eo.endOffset) {
+        int last = Math.min(eo.endOffset,
+            (first / BATCH_READS + 1) * BATCH_READS - 1);
+
+        Block block = new Block(-1, -1, MIN_BIN_LEVEL, 0, first, last);
+
+        ByteBuffer records = readRecords(chr, in, block, block);
+
+        CountMetrics.getInstance().records(in,
+            records,
+            READ_WIDTH_BYTES,
+            region.getStart(),
+            region.getEnd());
+
+        binCounts(records,
+            READ_WIDTH_BYTES,
+            region.getStart(),
+            region.getEnd(),
+            window,
+            strand == Strand.ANTISENSE,
+            ret);
+
+        first = last + 1;
+      }
+
+      return ret;
+    } finally {
+      in.close();
+    }
   }
 
   /*
@@ -290,92 +743,77 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
   /**
    * Get the counts from the file,.
    *
-   * @param file The r tree binary file.
+   * @param chr the chr
+   * @param in The reader over the r tree binary file.
+   * @param index the index
    * @param start The 1 based genomic start coordinate.
    * @param end The 1 based genomic end coordinate.
    * @param window The size of the window being viewed.
-   * @param dataOffset The byte offset in the file where the reads begin.
    * @return the starts
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getStarts(final Path file,
+  private int[] getStarts(Chromosome chr,
+      BinaryReader in,
+      BinTreeIndex index,
       int start,
       int end,
-      int window,
-      int dataOffset) throws IOException {
-
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
-
-    List<Integer> starts = new ArrayList<Integer>(1000);
-
-    Block so;
-    Block eo;
+      int window) throws IOException {
 
-    // int readLength;
-
-    try {
-      // readLength = in.readInt();
-
-      // first get the buffer offset of the start
-      so = getDataOffset(in, start, window);
-      eo = getDataOffset(in, end, window);
+    // first get the buffer offset of the start
+    Block so = index.getDataOffset(start, window);
+    Block eo = index.getDataOffset(end, window);
 
-      int l = eo.endOffset - so.startOffset + 1;
+    ByteBuffer buffer = readStarts(chr, in, so, eo);
 
-      // System.err.println("starts " + start + " " + end + " " +
-      // Arrays.toString(so)
-      // + " " + Arrays.toString(eo) + " " + l);
+    int stride = getStartStride();
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+    int l = buffer.remaining() / stride;
 
-      for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
+    int[] starts = new int[l];
+    int n = 0;
 
-        int s = in.readInt();
-        // int e = s + readLength;
+    int p = buffer.position();
 
-        // skip flags
-        in.readByte();
+    for (int i = 0; i < l; ++i) {
+      int s = buffer.getInt(p);
 
-        // System.err.println("ha " + i + " " + s + " " + start + " " + end);
+      // skip flags
+      p += stride;
 
-        // if ((s >= start && s <= end) || (e >= start && e <= end)) {
-        if (s >= start && s <= end) {
-          starts.add(s);
-        }
+      if (s >= start && s <= end) {
+        starts[n++] = s;
       }
-    } finally {
-      in.close();
     }
 
-    // System.err.println("starts " + starts.size() + " " + start + " " +
-    // so.startOffset + " " + so.bin + " " + eo.endOffset + " " + eo.bin + " " +
-    // window);
+    CountMetrics.getInstance().records(in, l, n);
 
-    return ArrayUtils.mapToInt(starts);
+    return Arrays.copyOf(starts, n);
   }
 
   /**
    * Gets the strands.
    *
-   * @param file the file
+   * @param chr the chr
+   * @param in the in
+   * @param index the index
    * @param start the start
    * @param end the end
    * @param window the window
-   * @param dataOffset the data offset
    * @return the strands
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static Strand[] getStrands(final Path file,
+  private Strand[] getStrands(Chromosome chr,
+      BinaryReader in,
+      BinTreeIndex index,
       int start,
       int end,
-      int window,
-      int dataOffset) throws IOException {
+      int window) throws IOException {
+
+    // first get the buffer offset of the start
+    Block so = index.getDataOffset(start, window);
+    Block eo = index.getDataOffset(end, window);
 
-    byte[] props = getFlags(file, start, end, window, dataOffset);
+    byte[] props = readFlags(chr, in, so, eo, start, end);
 
     // System.err.println("flags:" + props);
 
@@ -393,55 +831,162 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
   }
 
   /**
-   * Extract the 1 byte param field associated with a read.
+   * Extract the 1 byte param field associated with each read starting
+   * between start and end.
    *
-   * @param file the file
+   * @param chr the chr
+   * @param in the in
+   * @param so the block containing the start of the region
+   * @param eo the block containing the end of the region
    * @param start the start
    * @param end the end
-   * @param window the window
-   * @param dataOffset the data offset
    * @return the flags
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static byte[] getFlags(final Path file,
+  protected byte[] readFlags(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo,
       int start,
-      int end,
-      int window,
-      int dataOffset) throws IOException {
+      int end) throws IOException {
+    ByteBuffer buffer = readRecords(chr, in, so, eo);
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+    int l = buffer.remaining() / READ_WIDTH_BYTES;
 
-    List<Byte> flags = new ArrayList<Byte>();
-
-    try {
-      // first get the buffer offset of the start
+    byte[] flags = new byte[l];
+    int n = 0;
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    for (int i = 0; i < l; ++i) {
+      int s = buffer.getInt();
+      byte flag = buffer.get();
 
-      int l = eo.endOffset - so.startOffset + 1;
+      if (s >= start && s <= end) {
+        flags[n++] = flag;
+      }
+    }
 
-      // System.err.println("ends " + Arrays.toString(so) + " " +
-      // Arrays.toString(eo)
-      // + " " + l);
+    CountMetrics.getInstance().records(in, l, n);
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+    return Arrays.copyOf(flags, n);
+  }
 
-      for (int i = 0; i < l; ++i) {
-        int s = in.readInt();
-        byte flag = in.readByte();
+  /**
+   * Streams counts from the raw reads of a region, reading a batch of reads
+   * at a time from a reader that remains open until the cursor is closed.
+   */
+  private class StartsCursor extends ReadCountCursor {
+
+    /** The m chr. */
+    private final Chromosome mChr;
+
+    /** The m in. */
+    private final BinaryReader mIn;
+
+    /** The index of the next read to fetch. */
+    private int mNext;
+
+    /** The index of the last read of the region. */
+    private final int mLast;
+
+    /** The bytes from one start to the next. */
+    private final int mStride;
+
+    /** The starts of the current batch. */
+    private ByteBuffer mStarts = null;
+
+    /** The position in mStarts of the next start. */
+    private int mP = 0;
+
+    /** The m read. */
+    private int mRead;
+
+    /** The m closed. */
+    private boolean mClosed = false;
+
+    /**
+     * Instantiates a new starts cursor.
+     *
+     * @param chr the chr
+     * @param in the in
+     * @param start the start
+     * @param end the end
+     * @param window the window
+     * @param first the index of the first read of the region
+     * @param last the index of the last read of the region
+     * @param bufferBins the number of bins to decode at a time
+     */
+    public StartsCursor(Chromosome chr, BinaryReader in, int start, int end,
+        int window, int first, int last, int bufferBins) {
+      super(start, end, window, bufferBins);
+
+      mChr = chr;
+      mIn = in;
+      mNext = first;
+      mLast = last;
+      mStride = getStartStride();
+    }
 
-        if (s >= start && s <= end) {
-          flags.add(flag);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.ReadCountCursor#nextRead()
+     */
+    @Override
+    protected boolean nextRead() throws IOException {
+      while (mStarts == null
+          || mP + READ_START_WIDTH_BYTES > mStarts.limit()) {
+        if (mNext > mLast) {
+          return false;
         }
+
+        // Batches after the first begin on a multiple of the batch size so
+        // that they line up with the blocks of compressed files
+        int e = Math.min(mLast,
+            (mNext / BATCH_READS + 1) * BATCH_READS - 1);
+
+        // A block spanning just the reads of the batch
+        Block block = new Block(-1, -1, MIN_BIN_LEVEL, 0, mNext, e);
+
+        // The cursor holds on to its batch between calls so it cannot use
+        // the scratch buffer shared by the readers of the thread
+        mStarts = readStarts(mChr,
+            mIn,
+            new Block[] { block },
+            new Block[] { block })[0];
+        mP = mStarts.position();
+
+        mNext = e + 1;
       }
-    } finally {
-      in.close();
+
+      mRead = mStarts.getInt(mP);
+
+      mP += mStride;
+
+      return true;
     }
 
-    return ArrayUtils.mapToByte(flags);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.ReadCountCursor#getRead()
+     */
+    @Override
+    protected int getRead() {
+      return mRead;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#close()
+     */
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+
+        mIn.close();
+      }
+    }
   }
 }
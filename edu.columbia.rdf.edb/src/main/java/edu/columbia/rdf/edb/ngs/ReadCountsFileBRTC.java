@@ -0,0 +1,332 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+
+/**
+ * Decodes counts from a BRT2 style file whose raw reads are stored as
+ * columns. The header, tree and multi resolution counts are those of a BRT2
+ * file. The raw section holds the number of reads (int), then the sorted
+ * starts of every read (ints), then a strand bitmap with one bit per read,
+ * bit i % 8 of byte i / 8 being set if read i is on the antisense strand.
+ * Counts and starts therefore read only the start column and strands read
+ * only the bitmap, plus the few starts needed to find where the region
+ * begins and ends.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBRTC extends ReadCountsFileBRT2 {
+
+  /**
+   * The constant FILE_EXT.
+   */
+  public static final String FILE_EXT = "brtc";
+
+  /** The size of the read count preceding the starts. */
+  public static final int READ_COUNT_BYTES = 4;
+
+  /** The Constant FLAG_STRAND_MASK. */
+  private static final byte FLAG_STRAND_MASK = 1;
+
+  /** The number of reads on each chromosome. */
+  private Map<Chromosome, Integer> mReadsMap =
+      new ConcurrentHashMap<Chromosome, Integer>();
+
+  /**
+   * Directory containing genome files which must be of the form chr.n.txt. Each
+   * file must contain exactly one line consisting of the entire chromosome.
+   *
+   * @param metaFile the directory
+   */
+  public ReadCountsFileBRTC(Path metaFile) {
+    super(metaFile);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#getFileExt()
+   */
+  @Override
+  protected String getFileExt() {
+    return FILE_EXT;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#getStartStride()
+   */
+  @Override
+  protected int getStartStride() {
+    return READ_START_WIDTH_BYTES;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readStarts(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block, edu.columbia.rdf.edb.ngs.Block)
+   */
+  @Override
+  protected ByteBuffer readStarts(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo) throws IOException {
+    int l = Math.max(0, eo.endOffset - so.startOffset + 1);
+
+    in.seek(startsOffset(chr, so.startOffset));
+
+    return in.readScratch(l * READ_START_WIDTH_BYTES);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readStarts(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block[], edu.columbia.rdf.edb.ngs.Block[])
+   */
+  @Override
+  protected ByteBuffer[] readStarts(Chromosome chr,
+      BinaryReader in,
+      Block[] so,
+      Block[] eo) throws IOException {
+    int n = so.length;
+
+    long[] offsets = new long[n];
+    int[] lengths = new int[n];
+
+    for (int i = 0; i < n; ++i) {
+      offsets[i] = startsOffset(chr, so[i].startOffset);
+      lengths[i] = Math.max(0, eo[i].endOffset - so[i].startOffset + 1)
+          * READ_START_WIDTH_BYTES;
+    }
+
+    // Overlapping and neighbouring regions share starts
+    return RangeReader.read(in, offsets, lengths);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readRecords(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block, edu.columbia.rdf.edb.ngs.Block)
+   */
+  @Override
+  protected ByteBuffer readRecords(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo) throws IOException {
+    ByteBuffer starts = readStarts(chr, in, so, eo);
+
+    int l = starts.remaining() / READ_START_WIDTH_BYTES;
+
+    boolean[] antisense = readStrands(chr, in, so.startOffset, l);
+
+    // Interleave the columns into (start, flags) records
+    ByteBuffer ret = ByteBuffer.allocate(l * READ_WIDTH_BYTES);
+
+    for (int i = 0; i < l; ++i) {
+      ret.putInt(starts.getInt());
+      ret.put(antisense[i] ? FLAG_STRAND_MASK : 0);
+    }
+
+    ret.flip();
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readRecords(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block[], edu.columbia.rdf.edb.ngs.Block[])
+   */
+  @Override
+  protected ByteBuffer[] readRecords(Chromosome chr,
+      BinaryReader in,
+      Block[] so,
+      Block[] eo) throws IOException {
+    ByteBuffer[] ret = new ByteBuffer[so.length];
+
+    for (int i = 0; i < so.length; ++i) {
+      ret[i] = readRecords(chr, in, so[i], eo[i]);
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readFlags(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block, edu.columbia.rdf.edb.ngs.Block, int, int)
+   */
+  @Override
+  protected byte[] readFlags(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo,
+      int start,
+      int end) throws IOException {
+    // The reads of the region lie between the first start >= start and the
+    // last start <= end, which are found by binary search of the start
+    // column rather than by reading every start.
+    int s = search(chr, in, so.startOffset, eo.endOffset, start);
+    int e = search(chr, in, s, eo.endOffset, end + 1) - 1;
+
+    int l = Math.max(0, e - s + 1);
+
+    boolean[] antisense = readStrands(chr, in, s, l);
+
+    byte[] ret = new byte[l];
+
+    for (int i = 0; i < l; ++i) {
+      if (antisense[i]) {
+        ret[i] = FLAG_STRAND_MASK;
+      }
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree#close()
+   */
+  @Override
+  public void close() {
+    super.close();
+
+    mReadsMap.clear();
+  }
+
+  /**
+   * Returns the index of the first read in [from, to] whose start is at
+   * least p, or to + 1 if there is none.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param from the from
+   * @param to the to
+   * @param p the p
+   * @return the int
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int search(Chromosome chr, BinaryReader in, int from, int to, int p)
+      throws IOException {
+    int lo = from;
+    int hi = to + 1;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      in.seek(startsOffset(chr, mid));
+
+      if (in.readInt() < p) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   * Read the strand bits of l reads beginning with read s.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @param s the index of the first read
+   * @param l the number of reads
+   * @return true for each read on the antisense strand.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private boolean[] readStrands(Chromosome chr,
+      BinaryReader in,
+      int s,
+      int l) throws IOException {
+    boolean[] ret = new boolean[l];
+
+    if (l == 0) {
+      return ret;
+    }
+
+    int first = s >>> 3;
+    int last = (s + l - 1) >>> 3;
+
+    in.seek(strandsOffset(chr, in) + first);
+
+    ByteBuffer bits = in.readBuffer(last - first + 1);
+
+    for (int i = 0; i < l; ++i) {
+      int r = s + i;
+
+      ret[i] = ((bits.get((r >>> 3) - first) >>> (r & 7)) & 1) == 1;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the byte offset of the start of a read.
+   *
+   * @param chr the chr
+   * @param i the index of the read
+   * @return the long
+   */
+  private long startsOffset(Chromosome chr, int i) {
+    return mOffsetMap.get(chr) + RAW_OFFSET + READ_COUNT_BYTES
+        + (long) i * READ_START_WIDTH_BYTES;
+  }
+
+  /**
+   * Returns the byte offset of the strand bitmap.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @return the long
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private long strandsOffset(Chromosome chr, BinaryReader in)
+      throws IOException {
+    Integer reads = mReadsMap.get(chr);
+
+    if (reads == null) {
+      in.seek(mOffsetMap.get(chr) + RAW_OFFSET);
+
+      reads = in.readInt();
+
+      mReadsMap.put(chr, reads);
+    }
+
+    return startsOffset(chr, reads);
+  }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+
+/**
+ * Decodes counts from a BRT2 style file whose raw reads are compressed.
+ * The header, tree and multi resolution counts are those of a BRT2 file so
+ * windows of at least {@link #MIN_BIN_WIDTH} are read exactly as before.
+ * The raw reads are grouped into blocks of a fixed number of reads. Within
+ * a block the starts are delta encoded as variable length ints followed by
+ * the flags of each read, and the block is then deflated. A block index
+ * following the multi resolution counts records where each block begins,
+ * so a region query inflates only the blocks holding the reads the tree
+ * points it to.
+ * 
+ * The block index consists of the number of reads per block (int), the
+ * number of reads (int) and the offset of each block, plus the end of the
+ * last block (longs), relative to the end of the index.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBRTZ extends ReadCountsFileBRT2 {
+
+  /**
+   * The constant FILE_EXT.
+   */
+  public static final String FILE_EXT = "brtz";
+
+  /** The default number of reads in each compressed block. */
+  public static final int DEFAULT_BLOCK_READS = 1024;
+
+  /** The size of the fixed part of the block index. */
+  public static final int BLOCK_INDEX_HEADER_BYTES = 8;
+
+  /** The block index of each chromosome. */
+  private Map<Chromosome, BlockIndex> mBlockIndexMap =
+      new ConcurrentHashMap<Chromosome, BlockIndex>();
+
+  /**
+   * Directory containing genome files which must be of the form chr.n.txt. Each
+   * file must contain exactly one line consisting of the entire chromosome.
+   *
+   * @param metaFile the directory
+   */
+  public ReadCountsFileBRTZ(Path metaFile) {
+    super(metaFile);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#getFileExt()
+   */
+  @Override
+  protected String getFileExt() {
+    return FILE_EXT;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readRecords(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block, edu.columbia.rdf.edb.ngs.Block)
+   */
+  @Override
+  protected ByteBuffer readRecords(Chromosome chr,
+      BinaryReader in,
+      Block so,
+      Block eo) throws IOException {
+    return readRecords(chr, in, new Block[] { so }, new Block[] { eo })[0];
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readRecords(org.jebtk.
+   * bioinformatics.genomic.Chromosome, edu.columbia.rdf.edb.ngs.BinaryReader,
+   * edu.columbia.rdf.edb.ngs.Block[], edu.columbia.rdf.edb.ngs.Block[])
+   */
+  @Override
+  protected ByteBuffer[] readRecords(Chromosome chr,
+      BinaryReader in,
+      Block[] so,
+      Block[] eo) throws IOException {
+    BlockIndex index = getBlockIndex(chr, in);
+
+    int n = so.length;
+
+    ByteBuffer[] ret = new ByteBuffer[n];
+
+    // Regions of a batch often share blocks so each block is inflated once
+    Map<Integer, ByteBuffer> blocks = new HashMap<Integer, ByteBuffer>();
+
+    Inflater inflater = new Inflater();
+
+    try {
+      for (int i = 0; i < n; ++i) {
+        int s = Math.max(0, so[i].startOffset);
+        int e = Math.min(index.mReads - 1, eo[i].endOffset);
+
+        int l = Math.max(0, e - s + 1);
+
+        ByteBuffer records = ByteBuffer.allocate(l * READ_WIDTH_BYTES);
+
+        if (l > 0) {
+          int last = e / index.mBlockReads;
+
+          for (int b = s / index.mBlockReads; b <= last; ++b) {
+            ByteBuffer block = blocks.get(b);
+
+            if (block == null) {
+              block = inflate(in, index, b, inflater);
+
+              blocks.put(b, block);
+            }
+
+            int first = b * index.mBlockReads;
+
+            int from = Math.max(s, first) - first;
+            int to = Math.min(e, first + index.size(b) - 1) - first;
+
+            ByteBuffer view = block.duplicate();
+
+            view.position(from * READ_WIDTH_BYTES);
+            view.limit((to + 1) * READ_WIDTH_BYTES);
+
+            records.put(view);
+          }
+        }
+
+        records.flip();
+
+        ret[i] = records;
+      }
+    } finally {
+      inflater.end();
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree#close()
+   */
+  @Override
+  public void close() {
+    super.close();
+
+    mBlockIndexMap.clear();
+  }
+
+  /**
+   * Returns the block index of a chromosome file, reading it from the file
+   * on first use.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @return the block index
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private BlockIndex getBlockIndex(Chromosome chr, BinaryReader in)
+      throws IOException {
+    BlockIndex index = mBlockIndexMap.get(chr);
+
+    if (index == null) {
+      index = new BlockIndex(in, mOffsetMap.get(chr) + RAW_OFFSET);
+
+      BlockIndex current = mBlockIndexMap.putIfAbsent(chr, index);
+
+      if (current != null) {
+        index = current;
+      }
+    }
+
+    return index;
+  }
+
+  /**
+   * Inflate a block and decode it into {@link #READ_WIDTH_BYTES} byte
+   * (start, flags) records.
+   *
+   * @param in the in
+   * @param index the index
+   * @param b the block
+   * @param inflater the inflater
+   * @return the byte buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static ByteBuffer inflate(BinaryReader in,
+      BlockIndex index,
+      int b,
+      Inflater inflater) throws IOException {
+    int n = index.size(b);
+
+    long offset = index.mOffsets[b];
+    int length = (int) (index.mOffsets[b + 1] - offset);
+
+    byte[] compressed = new byte[length];
+
+    in.seek(index.mDataOffset + offset);
+    in.readFully(compressed, 0, length);
+
+    // Each start takes at most 5 bytes and each flag 1. The spare byte
+    // lets the inflater reach the end of the stream even when the block is
+    // as large as it can be.
+    byte[] encoded = new byte[n * (5 + READ_FLAGS_WIDTH_BYTES) + 1];
+
+    inflater.reset();
+    inflater.setInput(compressed);
+
+    int m = 0;
+
+    try {
+      while (!inflater.finished() && m < encoded.length) {
+        int r = inflater.inflate(encoded, m, encoded.length - m);
+
+        if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        m += r;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+
+    // A block that stops early or holds more than its reads would decode
+    // flags from the wrong bytes
+    if (!inflater.finished()) {
+      throw new IOException("Block " + b + " did not inflate fully.");
+    }
+
+    ByteBuffer ret = ByteBuffer.allocate(n * READ_WIDTH_BYTES);
+
+    // Flags follow the starts
+    int f = m - n * READ_FLAGS_WIDTH_BYTES;
+
+    if (f < n) {
+      throw new IOException("Block " + b + " inflated to " + m
+          + " bytes, too few for " + n + " reads.");
+    }
+
+    int p = 0;
+    int start = 0;
+
+    for (int i = 0; i < n; ++i) {
+      int delta = 0;
+      int shift = 0;
+      int v;
+
+      do {
+        if (p >= f) {
+          throw new IOException("Block " + b + " has fewer starts than its "
+              + n + " reads.");
+        }
+
+        v = encoded[p++];
+        delta |= (v & 0x7F) << shift;
+        shift += 7;
+      } while ((v & 0x80) != 0);
+
+      start += delta;
+
+      ret.putInt(start);
+      ret.put(encoded[f++]);
+    }
+
+    if (p != m - n * READ_FLAGS_WIDTH_BYTES) {
+      throw new IOException("Block " + b + " inflated to " + m
+          + " bytes but its " + n + " reads use "
+          + (p + n * READ_FLAGS_WIDTH_BYTES) + ".");
+    }
+
+    ret.flip();
+
+    return ret;
+  }
+
+  /**
+   * The locations of the compressed blocks of a chromosome file.
+   */
+  private static class BlockIndex {
+
+    /** The m block reads. */
+    private final int mBlockReads;
+
+    /** The m reads. */
+    private final int mReads;
+
+    /** Offset of each block relative to the data offset. */
+    private final long[] mOffsets;
+
+    /** The byte offset of the first block. */
+    private final long mDataOffset;
+
+    /**
+     * Read the block index.
+     *
+     * @param in the in
+     * @param offset the offset of the index in the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public BlockIndex(BinaryReader in, long offset) throws IOException {
+      in.seek(offset);
+
+      mBlockReads = in.readInt();
+      mReads = in.readInt();
+
+      int blocks = blocks(mReads, mBlockReads);
+
+      ByteBuffer buffer = in.readBuffer((blocks + 1) * 8);
+
+      mOffsets = new long[blocks + 1];
+
+      for (int i = 0; i <= blocks; ++i) {
+        mOffsets[i] = buffer.getLong();
+      }
+
+      mDataOffset = offset + BLOCK_INDEX_HEADER_BYTES + (blocks + 1) * 8;
+    }
+
+    /**
+     * Returns the number of reads in a block.
+     *
+     * @param b the b
+     * @return the int
+     */
+    public int size(int b) {
+      return Math.min(mBlockReads, mReads - b * mBlockReads);
+    }
+  }
+
+  /**
+   * Returns the number of blocks needed to hold a number of reads.
+   *
+   * @param reads the reads
+   * @param blockReads the number of reads per block
+   * @return the int
+   */
+  public static int blocks(int reads, int blockReads) {
+    return (reads + blockReads - 1) / blockReads;
+  }
+}
@@ -28,17 +28,18 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
-import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultTreeMap;
 
 /**
  * Decodes values stored at positions in a tree.
@@ -67,6 +68,35 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
    */
   public static final String FILE_EXT = "bvt";
 
+  /**
+   * The extension of the optional file beside each chromosome file that
+   * holds the statistics of the values in every bin of every level.
+   */
+  public static final String SUMMARY_EXT = "bvs";
+
+  /**
+   * The number of bins of each level follows the header of a summary file.
+   */
+  public static final int SUMMARY_LEVELS_OFFSET_BYTES = HEADER_OFFSET_BYTES;
+
+  /** The summary bins of each level follow one another from here. */
+  public static final int SUMMARY_OFFSET_BYTES =
+      SUMMARY_LEVELS_OFFSET_BYTES + BIN_WIDTHS.length * 4;
+
+  /**
+   * Each summary bin holds the count (int), min and max (float), and sum and
+   * sum of squares (double) of its values.
+   */
+  public static final int SUMMARY_WIDTH_BYTES = 4 + 4 + 4 + 8 + 8;
+
+  /**
+   * The index of the first bin of each level in the summary file of each
+   * chromosome, with the total number of bins last. Chromosomes without a
+   * summary file map to an empty array.
+   */
+  private final Map<Chromosome, int[]> mSummaryMap =
+      new ConcurrentHashMap<Chromosome, int[]>();
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -86,7 +116,59 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
   @Override
   public int[] getCounts(GenomicRegion region, int window)
       throws IOException {
-    return ArrayUtils.doubleToInt(getValues(region, window));
+    int[] ret = new int[getBinCount(region, window)];
+
+    getCounts(region, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    Chromosome chr = region.getChr();
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    Path file = getFile(chr, window, FILE_EXT);
+
+    int dataOffset = mOffsetMap.get(chr);
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      if (window >= MIN_BIN_WIDTH) {
+        int level = getLevel(window);
+
+        in.seek(dataOffset + levelOffset(level, start, window));
+
+        ByteBuffer buffer =
+            in.readBuffer(levelLength(level, start, end, window));
+
+        return levelCounts(buffer, level, start, end, window, out, offset);
+      }
+
+      BinTreeIndex index = getIndex(chr, in);
+
+      Block so = index.getDataOffset(start, window);
+      Block eo = index.getDataOffset(end, window);
+
+      in.seek(valuesOffset(so, dataOffset));
+
+      ByteBuffer buffer = in.readBuffer(valuesLength(so, eo));
+
+      records(in, buffer, start, end);
+
+      return getCounts(buffer, start, end, window, out, offset);
+    } finally {
+      in.close();
+    }
   }
 
   /*
@@ -116,47 +198,55 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
    */
   public int[] getStarts(Chromosome chr, int start, int end, int window)
       throws IOException {
-    List<Integer> starts = new ArrayList<Integer>();
+    int[] starts;
 
     Path file = getFile(chr, window, FILE_EXT);
 
     int dataOffset = mOffsetMap.get(chr);
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+    BinaryReader in = newReader(chr, file);
 
     try {
+      BinTreeIndex index = getIndex(chr, in);
+
       // first get the buffer offset of the start
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+      Block so = index.getDataOffset(start, window);
+      Block eo = index.getDataOffset(end, window);
 
-      int l = eo.end - so.start + 1;
+      int l = Math.max(0, eo.endOffset - so.startOffset + 1);
 
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+      in.seek(dataOffset + RAW_OFFSET
+          + (long) so.startOffset * READ_WIDTH_BYTES);
 
-      int s;
+      // Fetch the whole record range at once and decode it in memory
+      ByteBuffer buffer = in.readBuffer(l * READ_WIDTH_BYTES);
 
-      for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
+      starts = new int[l];
 
-        // Skip start
-        s = in.readInt();
+      int n = 0;
+      int s;
 
-        // skip value
-        in.readFloat();
+      for (int i = 0; i < l; ++i) {
+        s = buffer.getInt();
 
-        // Skip flags
-        in.readByte();
+        // Skip value and flags
+        buffer.position(buffer.position() + READ_VALUE_WIDTH_BYTES
+            + READ_FLAG_WIDTH_BYTES);
 
         if (s >= start && s <= end) {
-          starts.add(s);
+          starts[n++] = s;
         }
       }
+
+      CountMetrics.getInstance().records(in, l, n);
+
+      starts = Arrays.copyOf(starts, n);
     } finally {
       in.close();
     }
 
-    return ArrayUtils.mapToInt(starts);
+    return starts;
   }
 
   /*
@@ -186,186 +276,682 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
    */
   public double[] getValues(Chromosome chr, int start, int end, int window)
       throws IOException {
+    double[] ret = new double[end / window - start / window + 1];
+
+    getValues(chr, start, end, window, ret, 0);
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, double[], int)
+   */
+  @Override
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] out,
+      int offset) throws IOException {
+    return getValues(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        out,
+        offset);
+  }
+
+  /**
+   * Writes the values of a region into a caller supplied array.
+   *
+   * @param chr the chr
+   * @param start The 1 based genomic start coordinate.
+   * @param end The 1 based genomic end coordinate.
+   * @param window The size of the window being viewed.
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getValues(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      double[] out,
+      int offset) throws IOException {
 
     Path file = getFile(chr, window, FILE_EXT);
 
     int dataOffset = mOffsetMap.get(chr);
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
-
-    List<Double> values = new ArrayList<Double>();
+    BinaryReader in = newReader(chr, file);
 
-    double[] ret;
     try {
-      // first get the buffer offset of the start
+      if (window >= MIN_BIN_WIDTH) {
+        int level = getLevel(window);
+
+        // Skip to structured block
+        in.seek(dataOffset + levelOffset(level, start, window));
+
+        ByteBuffer buffer =
+            in.readBuffer(levelLength(level, start, end, window));
+
+        return levelValues(buffer, level, start, end, window, out, offset);
+      }
+
+      BinTreeIndex index = getIndex(chr, in);
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+      // first get the buffer offset of the start
 
-      int l = eo.endOffset - so.startOffset + 1;
+      Block so = index.getDataOffset(start, window);
+      Block eo = index.getDataOffset(end, window);
 
       // System.err.println("starts " + start + " " + so.level + " " + eo.level
       // + " "
       // + window);
 
-      if (window >= MIN_BIN_WIDTH) {
-        // Skip to structured block
-        in.seek(dataOffset + multiResOffset(so));
+      in.seek(valuesOffset(so, dataOffset));
 
-        int b = so.bin;
+      // Fetch the whole range at once and decode it in memory
+      ByteBuffer buffer = in.readBuffer(valuesLength(so, eo));
 
-        while (b <= eo.bin) {
-          double v = in.readFloat();
+      records(in, buffer, start, end);
 
-          // System.err.println("s " + b + " " + so.bin + " " + s + " " + v);
+      return getValues(buffer, start, end, window, out, offset);
+    } finally {
+      in.close();
+    }
+  }
 
-          values.add(v);
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    List<double[]> values = getValues(regions, window);
 
-          ++b;
-        }
+    List<int[]> ret = new ArrayList<int[]>(values.size());
 
-        ret = getValues(values, so, start, end, window);
-      } else {
-        // Higher resolution so slower to access.
+    for (double[] v : values) {
+      int[] counts = new int[v.length];
+
+      for (int i = 0; i < v.length; ++i) {
+        counts[i] = (int) v[i];
+      }
+
+      ret.add(counts);
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(java.util.List,
+   * int)
+   */
+  @Override
+  public List<double[]> getValues(List<GenomicRegion> regions, int window)
+      throws IOException {
+    double[][] ret = new double[regions.size()][];
 
-        // To read the starts, first skip to dataOffset (the byte position
-        // after the R Tree where the counts are written sequentially),
-        // then skip to the array index (i * 4 bytes (width of int)).
-        in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+    for (Entry<Chromosome, List<Integer>> item : groupByChr(regions)
+        .entrySet()) {
+      Chromosome chr = item.getKey();
+      List<Integer> indices = item.getValue();
 
-        int s;
-        double v;
+      Path file = getFile(chr, window, FILE_EXT);
 
-        List<Integer> starts = new ArrayList<Integer>(l);
+      int dataOffset = mOffsetMap.get(chr);
 
-        for (int i = 0; i < l; ++i) {
-          // Skip start
-          s = in.readInt();
+      BinaryReader in = newReader(chr, file);
 
-          v = in.readFloat();
+      try {
+        int n = indices.size();
 
-          // Skip flags
-          in.readByte();
+        int level = getLevel(window);
 
-          if (s >= start && s <= end) {
-            starts.add(s);
-            values.add(v);
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+
+        if (window >= MIN_BIN_WIDTH) {
+          for (int i = 0; i < n; ++i) {
+            GenomicRegion region = regions.get(indices.get(i));
+
+            offsets[i] =
+                dataOffset + levelOffset(level, region.getStart(), window);
+            lengths[i] = levelLength(level,
+                region.getStart(),
+                region.getEnd(),
+                window);
+          }
+        } else {
+          BinTreeIndex index = getIndex(chr, in);
+
+          for (int i = 0; i < n; ++i) {
+            GenomicRegion region = regions.get(indices.get(i));
+
+            Block so = index.getDataOffset(region.getStart(), window);
+            Block eo = index.getDataOffset(region.getEnd(), window);
+
+            offsets[i] = valuesOffset(so, dataOffset);
+            lengths[i] = valuesLength(so, eo);
           }
         }
 
-        // Group by window size
+        // Overlapping and neighbouring regions share reads
+        ByteBuffer[] buffers = RangeReader.read(in, offsets, lengths);
+
+        for (int i = 0; i < n; ++i) {
+          GenomicRegion region = regions.get(indices.get(i));
+
+          double[] values = new double[region.getEnd() / window
+              - region.getStart() / window + 1];
+
+          if (window >= MIN_BIN_WIDTH) {
+            levelValues(buffers[i],
+                level,
+                region.getStart(),
+                region.getEnd(),
+                window,
+                values,
+                0);
+          } else {
+            records(in, buffers[i], region.getStart(), region.getEnd());
+
+            getValues(buffers[i],
+                region.getStart(),
+                region.getEnd(),
+                window,
+                values,
+                0);
+          }
 
-        ret = getValues(starts, values, start, end, window);
+          ret[indices.get(i)] = values;
+        }
+      } finally {
+        in.close();
       }
-    } finally {
-      in.close();
     }
 
-    return ret;
+    return Arrays.asList(ret);
   }
 
   /*
    * (non-Javadoc)
    * 
-   * @see edu.columbia.rdf.htsview.ngs.ReadCountsFileBinTree#multiResOffset(edu.
-   * columbia.rdf.htsview.ngs.Block)
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree#close()
    */
   @Override
-  public int multiResOffset(Block b) {
-    return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
+  public void close() {
+    super.close();
+
+    for (Chromosome chr : mSummaryMap.keySet()) {
+      CountMetrics.getInstance().remove(getSummaryFile(chr));
+    }
+
+    mSummaryMap.clear();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSummary(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    BinSummary ret = new BinSummary(getBinCount(region, window));
+
+    // Windows finer than the summary levels, or tracks written without
+    // summaries, take their statistics from the raw values
+    if (window >= MIN_BIN_WIDTH) {
+      int[] levels = getSummaryLevels(chr);
+
+      if (levels.length > 0) {
+        getSummary(chr, levels, getLevel(window), start, end, window, ret);
+
+        return ret;
+      }
+    }
+
+    Path file = getFile(chr, window, FILE_EXT);
+
+    int dataOffset = mOffsetMap.get(chr);
+
+    BinaryReader in = newReader(chr, file);
+
+    try {
+      BinTreeIndex index = getIndex(chr, in);
+
+      Block so = index.getDataOffset(start, window);
+      Block eo = index.getDataOffset(end, window);
+
+      in.seek(valuesOffset(so, dataOffset));
+
+      ByteBuffer buffer = in.readBuffer(valuesLength(so, eo));
+
+      records(in, buffer, start, end);
+
+      int startBin = start / window;
+      int n = buffer.remaining() / READ_WIDTH_BYTES;
+
+      for (int i = 0; i < n; ++i) {
+        int s = buffer.getInt();
+
+        float v = buffer.getFloat();
+
+        // Skip flags
+        buffer.get();
+
+        if (s >= start && s <= end) {
+          ret.add(s / window - startBin, v);
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return ret;
   }
 
   /**
-   * Gets the counts.
+   * Merges the summary bins of a level into the bins of a window with one
+   * read of the summary file. A level bin that straddles bins of the window
+   * shares its count, sum and sum of squares between them in proportion to
+   * their overlap, so totals are preserved, and lends its minimum and
+   * maximum to each of them.
    *
-   * @param starts the starts
-   * @param values the values
+   * @param chr the chr
+   * @param levels the first bin of each level
+   * @param level the level
    * @param start the start
    * @param end the end
-   * @param window the bin size
-   * @return the counts
+   * @param window the window
+   * @param summary the summary to add the bins to
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static double[] getValues(final List<Integer> starts,
-      final List<Double> values,
+  private void getSummary(Chromosome chr,
+      int[] levels,
+      int level,
       int start,
       int end,
-      int window) {
+      int window,
+      BinSummary summary) throws IOException {
+    int width = BIN_WIDTHS[level];
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    int bin = levelStartBin(level, start, window);
+
+    // Bins past the end of the level are empty
+    int bins = Math.min(levelBinCount(level, start, end, window),
+        levels[level + 1] - levels[level] - bin);
+
+    if (bins <= 0) {
+      return;
+    }
+
+    BinaryReader in = FileHandlePool.getInstance().open(getSummaryFile(chr));
 
-    Map<Integer, Double> map = DefaultTreeMap.create(0.0);
+    try {
+      in.seek(SUMMARY_OFFSET_BYTES
+          + (long) (levels[level] + bin) * SUMMARY_WIDTH_BYTES);
 
-    for (int i = 0; i < starts.size(); ++i) {
-      int rs = starts.get(i);
-      double value = values.get(i);
+      ByteBuffer buffer = in.readBuffer(bins * SUMMARY_WIDTH_BYTES);
 
-      int sbin = rs / window - startBin;
+      for (int i = 0; i < bins; ++i) {
+        int count = buffer.getInt();
+        float min = buffer.getFloat();
+        float max = buffer.getFloat();
+        double sum = buffer.getDouble();
+        double sumSquares = buffer.getDouble();
+
+        if (count < 1) {
+          continue;
+        }
 
-      map.put(sbin, map.get(sbin) + value);
+        long bs = ((long) bin + i) * width;
 
-      /*
-       * int ebin = (rs + readLength) / binSize - startBin;
-       * 
-       * map.put(bin, map.get(bin) + value);
-       * 
-       * for (int bin = sbin; bin <= ebin; ++bin) { map.put(bin, map.get(bin) +
-       * value); }
-       */
+        int b1 = (int) (bs / window) - startBin;
+        int b2 = (int) ((bs + width - 1) / window) - startBin;
+
+        if (b1 == b2) {
+          if (b1 >= 0 && b1 < summary.size()) {
+            summary.add(b1, count, sum, min, max, sumSquares);
+          }
+
+          continue;
+        }
+
+        for (int b = Math.max(0, b1); b <= Math.min(b2,
+            summary.size() - 1); ++b) {
+          // Overlap of the window bin relative to the start of the level bin
+          long ws = ((long) startBin + b) * window - bs;
+          long os = Math.max(0, ws);
+          long oe = Math.min(width, ws + window);
+
+          double f = (double) (oe - os) / width;
+
+          summary.addShare(b,
+              (int) ((long) count * oe / width - (long) count * os / width),
+              sum * f,
+              min,
+              max,
+              sumSquares * f);
+        }
+      }
+    } finally {
+      in.close();
     }
+  }
+
+  /**
+   * Returns the index of the first bin of each level in the summary file of
+   * a chromosome, reading them from the file on first use.
+   *
+   * @param chr the chr
+   * @return the first bin of each level followed by the total number of
+   *         bins, or an empty array if the chromosome has no summary file.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int[] getSummaryLevels(Chromosome chr) throws IOException {
+    int[] ret = mSummaryMap.get(chr);
+
+    if (ret == null) {
+      Path file = getSummaryFile(chr);
+
+      if (Files.exists(file)) {
+        ret = new int[BIN_WIDTHS.length + 1];
+
+        BinaryReader in = FileHandlePool.getInstance().open(file);
 
-    double[] ret = new double[l]; //List<Double> ret = Mathematics.zeros(l);
+        try {
+          in.seek(SUMMARY_LEVELS_OFFSET_BYTES);
 
-    for (Entry<Integer, Double> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //ret.set(bin, map.get(bin));
+          for (int i = 0; i < BIN_WIDTHS.length; ++i) {
+            ret[i + 1] = ret[i] + in.readInt();
+          }
+        } finally {
+          in.close();
+        }
+      } else {
+        ret = new int[0];
+      }
+
+      mSummaryMap.putIfAbsent(chr, ret);
     }
 
     return ret;
   }
 
   /**
-   * Gets the values.
+   * Returns the summary file of a chromosome.
+   *
+   * @param chr the chr
+   * @return the summary file
+   */
+  private Path getSummaryFile(Chromosome chr) {
+    return mDirectory.resolve(chr + "." + SUMMARY_EXT);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    // Larger windows are read from the multi resolution bins
+    return window >= MIN_BIN_WIDTH ? 0 : 1;
+  }
+
+  /**
+   * Returns the byte offset of the raw values of a region. Windows of at
+   * least the minimum bin width are read from the multi resolution bins
+   * instead.
+   *
+   * @param so the block containing the start of the region
+   * @param dataOffset the data offset
+   * @return the long
+   */
+  private static long valuesOffset(Block so, int dataOffset) {
+    // To read the starts, first skip to dataOffset (the byte position
+    // after the R Tree where the counts are written sequentially),
+    // then skip to the array index (i * 4 bytes (width of int)).
+    return dataOffset + RAW_OFFSET + (long) so.startOffset * READ_WIDTH_BYTES;
+  }
+
+  /**
+   * Returns the number of bytes spanned by the raw values of a region.
+   *
+   * @param so the block containing the start of the region
+   * @param eo the block containing the end of the region
+   * @return the int
+   */
+  private static int valuesLength(Block so, Block eo) {
+    return Math.max(0, eo.endOffset - so.startOffset + 1) * READ_WIDTH_BYTES;
+  }
+
+  /**
+   * Decodes the multi resolution values of a level read from
+   * {@link #levelOffset(int, int, int)} and re-bins them into the bins of a
+   * window in a caller supplied array.
    *
-   * @param values the values
-   * @param startBlock the start block
+   * @param buffer the buffer
+   * @param level the level
    * @param start the start
    * @param end the end
    * @param window the window
-   * @return the values
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
    */
-  private static double[] getValues(final List<Double> values,
-      Block startBlock,
+  private static int levelValues(ByteBuffer buffer,
+      int level,
       int start,
       int end,
-      int window) {
+      int window,
+      double[] out,
+      int offset) {
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+    int l = end / window - startBin + 1;
+
+    // Re-bin straight from the buffer. Bins past its end are zero.
+    return ResolutionPlanner.resampleValues(buffer,
+        levelStartBin(level, start, window),
+        BIN_WIDTHS[level],
+        startBin,
+        l,
+        window,
+        out,
+        offset);
+  }
+
+  /**
+   * Decodes the multi resolution values of a level read from
+   * {@link #levelOffset(int, int, int)} and writes the sums of the re-binned
+   * values, truncated to ints, into a caller supplied array.
+   *
+   * @param buffer the buffer
+   * @param level the level
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int levelCounts(ByteBuffer buffer,
+      int level,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) {
+    int startBin = start / window;
+    int l = end / window - startBin + 1;
+
+    int ls = levelStartBin(level, start, window);
+
+    for (int i = 0; i < l; ++i) {
+      long s = ((long) startBin + i) * window;
+
+      out[offset + i] = (int) ResolutionPlanner
+          .getValue(buffer, ls, BIN_WIDTHS[level], s, s + window);
+    }
+
+    return l;
+  }
+
+  /**
+   * Decodes the raw values of a region from the bytes read from the offset
+   * given by {@link #valuesOffset(Block, int)} and sums them directly into a
+   * caller supplied array.
+   *
+   * @param buffer the buffer
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
+   */
+  private static int getValues(ByteBuffer buffer,
+      int start,
+      int end,
+      int window,
+      double[] out,
+      int offset) {
+    int startBin = start / window;
+    int l = end / window - startBin + 1;
+
+    Arrays.fill(out, offset, offset + l, 0);
+
+    // Higher resolution so slower to access.
+    int n = buffer.remaining() / READ_WIDTH_BYTES;
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    int s;
+    float v;
 
-    Map<Integer, Double> map = DefaultTreeMap.create(0.0);
+    for (int i = 0; i < n; ++i) {
+      s = buffer.getInt();
 
-    int rs = startBlock.bin; // - startBin;
+      v = buffer.getFloat();
 
-    for (double value : values) {
-      map.put(rs, map.get(rs) + value);
+      // Skip flags
+      buffer.get();
 
-      ++rs;
+      if (s >= start && s <= end) {
+        // Group by window size
+        out[offset + s / window - startBin] += v;
+      }
     }
 
-    double[] ret = new double[l]; //StrandList<Double> ret = Mathematics.zeros(l);
+    return l;
+  }
+
+  /**
+   * Record the raw records of a region in the metrics of its file.
+   *
+   * @param in the in
+   * @param buffer the buffer
+   * @param start the start
+   * @param end the end
+   */
+  private static void records(BinaryReader in,
+      ByteBuffer buffer,
+      int start,
+      int end) {
+    CountMetrics.getInstance().records(in,
+        buffer,
+        READ_WIDTH_BYTES,
+        start,
+        end);
+  }
+
+  /**
+   * Decodes the raw values of a region as for
+   * {@link #getValues(ByteBuffer, int, int, int, double[], int)} but writes
+   * the sum of each bin truncated to an int.
+   *
+   * @param buffer the buffer
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int getCounts(ByteBuffer buffer,
+      int start,
+      int end,
+      int window,
+      int[] out,
+      int offset) {
+    int startBin = start / window;
+    int l = end / window - startBin + 1;
+
+    Arrays.fill(out, offset, offset + l, 0);
+
+    int n = buffer.remaining() / READ_WIDTH_BYTES;
+
+    int s;
+    float v;
+
+    // Records are sorted by start so each bin is summed in one run
+    int bin = -1;
+    double sum = 0;
+
+    for (int i = 0; i < n; ++i) {
+      s = buffer.getInt();
+
+      v = buffer.getFloat();
+
+      // Skip flags
+      buffer.get();
 
-    for (Entry<Integer, Double> item : map.entrySet()) {
-      Integer bin = item.getKey();
-      
-      if (bin >= startBin && bin <= endBin) {
-        ret[bin - startBin] = item.getValue(); //, map.get(bin));
+      if (s >= start && s <= end) {
+        int b = s / window - startBin;
+
+        if (b != bin) {
+          if (bin != -1) {
+            out[offset + bin] = (int) sum;
+          }
+
+          bin = b;
+          sum = 0;
+        }
+
+        sum += v;
       }
     }
 
-    return ret;
+    if (bin != -1) {
+      out[offset + bin] = (int) sum;
+    }
+
+    return l;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.htsview.ngs.ReadCountsFileBinTree#multiResOffset(edu.
+   * columbia.rdf.htsview.ngs.Block)
+   */
+  @Override
+  public int multiResOffset(Block b) {
+    return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
   }
 }
@@ -30,7 +30,12 @@ package edu.columbia.rdf.edb.ngs;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.jebtk.bioinformatics.ext.samtools.SamUtils;
 import org.jebtk.bioinformatics.genomic.Chromosome;
@@ -41,8 +46,8 @@ import org.jebtk.core.collections.ArrayUtils;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 
 /**
  * Decodes counts using a multi resolution file.
@@ -51,6 +56,13 @@ import htsjdk.samtools.SamReaderFactory;
  */
 public class ReadCountsFileBam extends ReadCountsFile {
 
+  /**
+   * Regions of a batch are not merged into queries spanning more bases than
+   * this, so that a dense batch does not hold the records of a whole
+   * chromosome at once. A longer region is still queried on its own.
+   */
+  public static final int MAX_MERGE_BASES = 1000000;
+
   /** The m file. */
   private Path mFile;
 
@@ -60,6 +72,15 @@ public class ReadCountsFileBam extends ReadCountsFile {
   /** The m read length. */
   private int mReadLength = -1;
 
+  /** Open readers over the file. */
+  private final SamReaderPool mPool;
+
+  /**
+   * Maps chromosome names, with and without the chr prefix, to the names
+   * used in the file.
+   */
+  private volatile Map<String, String> mChrNames = null;
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -68,6 +89,7 @@ public class ReadCountsFileBam extends ReadCountsFile {
    */
   public ReadCountsFileBam(Path file) {
     mFile = file;
+    mPool = new SamReaderPool(file);
 
     try {
       mReads = SamUtils.getTotalReadsFromIndexedBam(file);
@@ -112,6 +134,252 @@ public class ReadCountsFileBam extends ReadCountsFile {
     return binCounts(getStarts(chr, start, end, window), start, end, window);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region, int window, int[] out, int offset)
+      throws IOException {
+    int[] starts = getStarts(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window);
+
+    return binCounts(starts,
+        starts.length,
+        region.getStart(),
+        region.getEnd(),
+        window,
+        out,
+        offset);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
+
+    SamReader inputSam = mPool.acquire();
+
+    try {
+      for (Entry<Chromosome, List<Integer>> item : groupByChr(regions)
+          .entrySet()) {
+        String name = getSequenceName(inputSam, item.getKey());
+
+        List<Integer> indices = item.getValue();
+
+        int i = 0;
+
+        while (i < indices.size()) {
+          // Merge regions that overlap or touch into one query
+          int s = regions.get(indices.get(i)).getStart();
+          int e = regions.get(indices.get(i)).getEnd();
+
+          int j = i + 1;
+
+          while (j < indices.size()
+              && regions.get(indices.get(j)).getStart() <= e + 1) {
+            int e2 = Math.max(e, regions.get(indices.get(j)).getEnd());
+
+            if ((long) e2 - s + 1 > MAX_MERGE_BASES) {
+              break;
+            }
+
+            e = e2;
+
+            ++j;
+          }
+
+          // Records are sorted by start
+          int[] starts = new int[1024];
+          int[] ends = new int[1024];
+          int n = 0;
+
+          if (name != null) {
+            SAMRecordIterator iter = inputSam.queryOverlapping(name, s, e);
+
+            try {
+              SAMRecord record;
+
+              while (iter.hasNext()) {
+                record = iter.next();
+
+                if (n == starts.length) {
+                  starts = Arrays.copyOf(starts, n * 2);
+                  ends = Arrays.copyOf(ends, n * 2);
+                }
+
+                starts[n] = record.getStart();
+                ends[n] = record.getEnd();
+                ++n;
+              }
+            } finally {
+              iter.close();
+            }
+          }
+
+          for (int k = i; k < j; ++k) {
+            GenomicRegion region = regions.get(indices.get(k));
+
+            ret[indices.get(k)] = binCounts(getContained(starts,
+                ends,
+                n,
+                region.getStart(),
+                region.getEnd()),
+                region.getStart(),
+                region.getEnd(),
+                window);
+          }
+
+          i = j;
+        }
+      }
+    } finally {
+      mPool.release(inputSam);
+    }
+
+    return Arrays.asList(ret);
+  }
+
+  /**
+   * Returns the starts of the reads lying entirely within a region, which
+   * matches the reads returned by a contained query on the region.
+   *
+   * @param starts the sorted read starts
+   * @param ends the read ends
+   * @param n the number of reads
+   * @param start the start
+   * @param end the end
+   * @return the starts
+   */
+  private static int[] getContained(final int[] starts,
+      final int[] ends,
+      int n,
+      int start,
+      int end) {
+    int i = Arrays.binarySearch(starts, 0, n, start);
+
+    if (i < 0) {
+      i = -i - 1;
+    }
+
+    // Step back to the first of any equal starts
+    while (i > 0 && starts[i - 1] >= start) {
+      --i;
+    }
+
+    int[] ret = new int[n - i];
+    int c = 0;
+
+    while (i < n && starts[i] <= end) {
+      if (ends[i] <= end) {
+        ret[c++] = starts[i];
+      }
+
+      ++i;
+    }
+
+    return Arrays.copyOf(ret, c);
+  }
+
+  /**
+   * Returns the name a chromosome is given in the header of the BAM file. In
+   * cases where chromosome are called 1, 2, 3 etc rather than chr1, chr2,
+   * chr3 etc. the names are mapped to one another. The mapping is built once
+   * from the sequence dictionary.
+   *
+   * @param inputSam the input sam
+   * @param chr the chr
+   * @return the sequence name, or null if the chromosome is not in the file.
+   */
+  private String getSequenceName(SamReader inputSam, Chromosome chr) {
+    Map<String, String> names = mChrNames;
+
+    if (names == null) {
+      names = new HashMap<String, String>();
+
+      for (SAMSequenceRecord seq : inputSam.getFileHeader()
+          .getSequenceDictionary().getSequences()) {
+        String name = seq.getSequenceName();
+
+        if (name.startsWith("chr")) {
+          names.put(name.substring(3), name);
+        } else {
+          names.put("chr" + name, name);
+        }
+      }
+
+      // Exact names take precedence over aliases
+      for (SAMSequenceRecord seq : inputSam.getFileHeader()
+          .getSequenceDictionary().getSequences()) {
+        names.put(seq.getSequenceName(), seq.getSequenceName());
+      }
+
+      mChrNames = names;
+    }
+
+    return names.get(chr.toString());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCursor(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int)
+   */
+  @Override
+  public CountCursor getCursor(GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    SamReader inputSam = mPool.acquire();
+
+    String name = getSequenceName(inputSam, region.getChr());
+
+    SAMRecordIterator iter = null;
+
+    if (name != null) {
+      // A single query streams every read of the region so reads spanning
+      // two buffers are counted exactly as by getCounts
+      iter = inputSam.queryContained(name, region.getStart(), region.getEnd());
+    }
+
+    return new BamCursor(inputSam,
+        iter,
+        region.getStart(),
+        region.getEnd(),
+        window,
+        bufferBins);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mFile;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mPool.close();
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -140,45 +408,40 @@ public class ReadCountsFileBam extends ReadCountsFile {
   public int[] getStarts(Chromosome chr, int start, int end, int window)
       throws IOException {
 
-    List<Integer> starts = new ArrayList<Integer>();
-
-    SAMRecordIterator iter = null;
-
-    SamReader inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+    SamReader inputSam = mPool.acquire();
 
     try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+      String name = getSequenceName(inputSam, chr);
 
-      inputSam.close();
+      if (name == null) {
+        return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
+      }
 
-      inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+      int[] starts = new int[1024];
+      int n = 0;
 
-      try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        inputSam.close();
+      SAMRecordIterator iter = inputSam.queryContained(name, start, end);
 
-        return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
-      }
-    }
+      try {
+        SAMRecord record;
 
-    try {
-      SAMRecord record;
+        while (iter.hasNext()) {
+          record = iter.next();
 
-      while (iter.hasNext()) {
-        record = iter.next();
+          if (n == starts.length) {
+            starts = Arrays.copyOf(starts, n * 2);
+          }
 
-        starts.add(record.getStart());
+          starts[n++] = record.getStart();
+        }
+      } finally {
+        iter.close();
       }
+
+      return Arrays.copyOf(starts, n);
     } finally {
-      inputSam.close();
+      mPool.release(inputSam);
     }
-
-    return starts.stream().mapToInt(Integer::intValue).toArray(); //starts.;
   }
 
   /*
@@ -208,51 +471,139 @@ public class ReadCountsFileBam extends ReadCountsFile {
    */
   public Strand[] getStrands(Chromosome chr, int start, int end, int window)
       throws IOException {
-    SAMRecordIterator iter = null;
-
-    SamReader inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+    SamReader inputSam = mPool.acquire();
 
     try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+      String name = getSequenceName(inputSam, chr);
+
+      if (name == null) {
+        return EMPTY_STRAND_ARRAY; //Collections.emptyList();
+      }
 
-      inputSam.close();
+      List<Strand> strands = new ArrayList<Strand>();
 
-      inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+      SAMRecordIterator iter = inputSam.queryContained(name, start, end);
 
       try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        inputSam.close();
+        SAMRecord record;
 
-        return EMPTY_STRAND_ARRAY; //Collections.emptyList();
+        while (iter.hasNext()) {
+          record = iter.next();
+
+          strands.add(SamUtils.strand(record.getFlags()));
+        }
+      } finally {
+        iter.close();
       }
-    }
 
-    SAMRecord record;
+      Strand[] ret = new Strand[strands.size()];
 
-    List<Strand> strands = new ArrayList<Strand>();
+      strands.toArray(ret);
+
+      return ret;
+    } finally {
+      mPool.release(inputSam);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandBits(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public BitSet getStrandBits(GenomicRegion region, int window)
+      throws IOException {
+    SamReader inputSam = mPool.acquire();
 
     try {
-      if (iter != null) {
+      String name = getSequenceName(inputSam, region.getChr());
+
+      BitSet ret = new BitSet();
+
+      if (name == null) {
+        return ret;
+      }
+
+      SAMRecordIterator iter = inputSam
+          .queryContained(name, region.getStart(), region.getEnd());
+
+      try {
+        int i = 0;
+
         while (iter.hasNext()) {
-          record = iter.next();
+          if (iter.next().getReadNegativeStrandFlag()) {
+            ret.set(i);
+          }
 
-          strands.add(SamUtils.strand(record.getFlags()));
+          ++i;
         }
+      } finally {
+        iter.close();
       }
+
+      return ret;
     } finally {
-      inputSam.close();
+      mPool.release(inputSam);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * org.jebtk.bioinformatics.genomic.Strand)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window, Strand strand)
+      throws IOException {
+    if (strand == Strand.NONE) {
+      return getCounts(region, window);
     }
-    
-    Strand[] ret = new Strand[strands.size()];
 
-    strands.toArray(ret);
-    
-    return ret;
+    boolean antisense = strand == Strand.ANTISENSE;
+
+    SamReader inputSam = mPool.acquire();
+
+    try {
+      String name = getSequenceName(inputSam, region.getChr());
+
+      int[] starts = new int[1024];
+      int n = 0;
+
+      if (name != null) {
+        SAMRecordIterator iter = inputSam
+            .queryContained(name, region.getStart(), region.getEnd());
+
+        try {
+          SAMRecord record;
+
+          while (iter.hasNext()) {
+            record = iter.next();
+
+            // Only the starts of reads on the strand are kept
+            if (record.getReadNegativeStrandFlag() == antisense) {
+              if (n == starts.length) {
+                starts = Arrays.copyOf(starts, n * 2);
+              }
+
+              starts[n++] = record.getStart();
+            }
+          }
+        } finally {
+          iter.close();
+        }
+      }
+
+      return binCounts(Arrays.copyOf(starts, n),
+          region.getStart(),
+          region.getEnd(),
+          window);
+    } finally {
+      mPool.release(inputSam);
+    }
   }
 
   /*
@@ -275,44 +626,100 @@ public class ReadCountsFileBam extends ReadCountsFile {
     return mReadLength;
   }
 
-  private static SAMRecordIterator openSam(Path file,
-      Chromosome chr,
-      int start,
-      int end,
-      int window) {
-    SamReader inputSam = SamReaderFactory.makeDefault().open(file.toFile());
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBoundaryBins(int)
+   */
+  @Override
+  public int getBoundaryBins(int window) {
+    // Reads must lie within a region to be counted so the counts of bins
+    // up to a read length from either end depend on the region.
+    return 1 + (Math.max(1, getReadLength()) + window - 1) / window;
+  }
 
-    SAMRecordIterator iter = null;
+  /**
+   * Streams counts from the reads returned by a single query. The reader is
+   * returned to the pool when the cursor is closed.
+   */
+  private class BamCursor extends ReadCountCursor {
+
+    /** The m reader. */
+    private final SamReader mReader;
+
+    /** The m iter, or null if the chromosome is not in the file. */
+    private final SAMRecordIterator mIter;
+
+    /** The m read. */
+    private int mRead;
+
+    /** The m closed. */
+    private boolean mClosed = false;
+
+    /**
+     * Instantiates a new bam cursor.
+     *
+     * @param reader the reader
+     * @param iter the iter
+     * @param start the start
+     * @param end the end
+     * @param window the window
+     * @param bufferBins the number of bins to decode at a time
+     */
+    public BamCursor(SamReader reader, SAMRecordIterator iter, int start,
+        int end, int window, int bufferBins) {
+      super(start, end, window, bufferBins);
+
+      mReader = reader;
+      mIter = iter;
+    }
 
-    try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.ReadCountCursor#nextRead()
+     */
+    @Override
+    protected boolean nextRead() {
+      if (mIter == null || !mIter.hasNext()) {
+        return false;
+      }
 
-      try {
-        inputSam.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+      mRead = mIter.next().getStart();
+
+      return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.ReadCountCursor#getRead()
+     */
+    @Override
+    protected int getRead() {
+      return mRead;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.CountCursor#close()
+     */
+    @Override
+    public void close() {
+      if (mClosed) {
+        return;
       }
 
-      iter = null;
-      inputSam = SamReaderFactory.makeDefault().open(file.toFile());
+      mClosed = true;
 
       try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        try {
-          inputSam.close();
-        } catch (IOException e) {
-          e.printStackTrace();
+        if (mIter != null) {
+          mIter.close();
         }
-
-        iter = null;
+      } finally {
+        mPool.release(mReader);
       }
     }
-
-    return iter;
   }
 }
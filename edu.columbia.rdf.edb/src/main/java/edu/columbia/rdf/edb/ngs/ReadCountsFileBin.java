@@ -29,14 +29,15 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomeService;
-import org.jebtk.core.io.FileUtils;
 import org.jebtk.core.json.Json;
 
 /**
@@ -57,26 +58,34 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
   /**
    * The member file map.
    */
-  protected Map<Chromosome, Path> mFileMap = new HashMap<Chromosome, Path>();
+  protected Map<Chromosome, Path> mFileMap = new ConcurrentHashMap<Chromosome, Path>();
 
   /**
    * The member offset map.
    */
-  protected Map<Chromosome, Integer> mOffsetMap = new HashMap<Chromosome, Integer>();
+  protected Map<Chromosome, Integer> mOffsetMap = new ConcurrentHashMap<Chromosome, Integer>();
 
   /**
    * The member read length map.
    */
-  protected Map<Chromosome, Integer> mReadLengthMap = new HashMap<Chromosome, Integer>();
+  protected Map<Chromosome, Integer> mReadLengthMap = new ConcurrentHashMap<Chromosome, Integer>();
+
+  /**
+   * The member mapped file map.
+   */
+  protected Map<Chromosome, MappedFile> mMappedFileMap = new ConcurrentHashMap<Chromosome, MappedFile>();
+
+  /** Whether chromosome files are memory mapped. */
+  protected volatile boolean mMemoryMapped = false;
 
   /** The m genome. */
-  protected Genome mGenome;
+  protected volatile Genome mGenome;
 
   /** The m meta file. */
   protected Path mMetaFile;
 
   /** The m read length. */
-  private int mReadLength;
+  private volatile int mReadLength;
 
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
@@ -95,6 +104,29 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
     }
   }
 
+  /**
+   * Sets whether each chromosome file should be memory mapped once and
+   * queried from the mapping rather than opened on every query.
+   *
+   * @param memoryMapped the new memory mapped
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    mMemoryMapped = memoryMapped;
+
+    if (!memoryMapped) {
+      mMappedFileMap.clear();
+    }
+  }
+
+  /**
+   * Checks if chromosome files are memory mapped.
+   *
+   * @return true, if is memory mapped
+   */
+  public boolean isMemoryMapped() {
+    return mMemoryMapped;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -124,35 +156,119 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
    * @return the file
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  protected Path getFile(Chromosome chr, int window, String ext)
+  protected Path getFile(final Chromosome chr, int window, final String ext)
       throws IOException {
-    if (!mFileMap.containsKey(chr)) {
-      Path file = mDirectory.resolve(chr + "." + ext);
+    Path file = mFileMap.get(chr);
+
+    if (file != null) {
+      return file;
+    }
 
-      mFileMap.put(chr, file);
+    // The header is read inside computeIfAbsent so that threads racing to
+    // open the same chromosome wait for one read rather than each parse it,
+    // and no thread sees the file before its offset is stored.
+    try {
+      return mFileMap.computeIfAbsent(chr, new Function<Chromosome, Path>() {
+        @Override
+        public Path apply(Chromosome c) {
+          try {
+            return readHeader(c, mDirectory.resolve(c + "." + ext));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
 
-      RandomAccessFile in = FileUtils.newRandomAccess(file);
+  /**
+   * Read the header of a chromosome file, storing its read length, the
+   * offset of its data and, if not yet known, the genome.
+   *
+   * @param chr the chr
+   * @param file the file
+   * @return the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Path readHeader(Chromosome chr, Path file) throws IOException {
+    BinaryReader in = FileHandlePool.getInstance().open(file);
+
+    try {
+      mReadLength = in.readInt(); // mReadLengthMap.put(chr, in.readInt());
+
+      // The second 4 bytes tells us where in the file to go to
+      // find the read data
+      mOffsetMap.put(chr, in.readInt());
+
+      if (mGenome == null) {
+        // Read the genome
+
+        mGenome = readGenome(in);
+      }
+    } finally {
+      in.close();
+    }
 
-      // System.err.println("load file " + file);
+    return file;
+  }
 
-      try {
-        mReadLength = in.readInt(); // mReadLengthMap.put(chr, in.readInt());
+  /**
+   * Returns a reader over a chromosome file. In memory mapped mode the file
+   * is mapped on first use and the mapping is shared by all subsequent
+   * readers, otherwise the file is taken from the {@link FileHandlePool}.
+   * The reader must be closed by the caller.
+   *
+   * @param chr the chr
+   * @param file the file
+   * @return the binary reader
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected BinaryReader newReader(Chromosome chr, Path file)
+      throws IOException {
+    if (mMemoryMapped) {
+      MappedFile mappedFile = mMappedFileMap.get(chr);
 
-        // The second 4 bytes tells us where in the file to go to
-        // find the read data
-        mOffsetMap.put(chr, in.readInt());
+      if (mappedFile == null) {
+        mappedFile = new MappedFile(file);
 
-        if (mGenome == null) {
-          // Read the genome
+        MappedFile current = mMappedFileMap.putIfAbsent(chr, mappedFile);
 
-          mGenome = readGenome(in);
+        if (current != null) {
+          mappedFile = current;
         }
-      } finally {
-        in.close();
       }
+
+      return mappedFile.newReader();
+    } else {
+      return FileHandlePool.getInstance().open(file);
     }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getAsyncPath()
+   */
+  @Override
+  protected Path getAsyncPath() {
+    return mDirectory;
+  }
 
-    return mFileMap.get(chr);
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    // Mappings are released once they are no longer referenced
+    mMappedFileMap.clear();
+
+    for (Path file : mFileMap.values()) {
+      CountMetrics.getInstance().remove(file);
+    }
   }
 
   /**
@@ -163,17 +279,31 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public Genome readGenome(RandomAccessFile in) throws IOException {
-    in.read(GENOME);
+    return readGenome(new FileBinaryReader(in));
+  }
+
+  /**
+   * Read genome.
+   *
+   * @param in the in
+   * @return the string
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Genome readGenome(BinaryReader in) throws IOException {
+    // Each call has its own buffer since readers may run concurrently
+    byte[] genome = new byte[GENOME.length];
+
+    in.readFully(genome, 0, genome.length);
 
     // find the first null
     int c = 0;
 
     while (c < 8) {
-      if (GENOME[c++] == 0) {
+      if (genome[c++] == 0) {
         break;
       }
     }
 
-    return GenomeService.getInstance().guessGenome(new String(GENOME, 0, c));
+    return GenomeService.getInstance().guessGenome(new String(genome, 0, c));
   }
 }
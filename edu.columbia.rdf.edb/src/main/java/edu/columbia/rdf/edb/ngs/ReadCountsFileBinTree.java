@@ -29,7 +29,13 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
 
 /**
  * Decodes values stored at positions in a tree.
@@ -90,6 +96,14 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
   /** The Constant RAW_OFFSET. */
   public static final int RAW_OFFSET = TOTAL_BINS * MULTI_RES_WIDTH_BYTES;
 
+  /** The flag bit set for reads on the antisense strand. */
+  protected static final byte ANTISENSE_FLAG = 1;
+
+  /**
+   * The member index map.
+   */
+  protected Map<Chromosome, BinTreeIndex> mIndexMap = new ConcurrentHashMap<Chromosome, BinTreeIndex>();
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -100,6 +114,134 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
     super(metaFile);
   }
 
+  /**
+   * Returns the decoded tree of a chromosome file, reading it from the file
+   * on first use. Threads racing to load the same tree may each decode it
+   * but all of them then use the first one published.
+   *
+   * @param chr the chr
+   * @param in the in
+   * @return the index
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected BinTreeIndex getIndex(Chromosome chr, BinaryReader in)
+      throws IOException {
+    BinTreeIndex index = mIndexMap.get(chr);
+
+    if (index == null) {
+      index = new BinTreeIndex(in, mOffsetMap.get(chr));
+
+      BinTreeIndex current = mIndexMap.putIfAbsent(chr, index);
+
+      if (current != null) {
+        index = current;
+      }
+    }
+
+    return index;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBin#close()
+   */
+  @Override
+  public void close() {
+    super.close();
+
+    mIndexMap.clear();
+  }
+
+  /**
+   * Converts the flags of a run of reads into a bitset with bit i set if
+   * read i is on the antisense strand.
+   *
+   * @param flags the flags
+   * @return the bit set
+   */
+  protected static BitSet strandBits(byte[] flags) {
+    BitSet ret = new BitSet(flags.length);
+
+    for (int i = 0; i < flags.length; ++i) {
+      if ((flags[i] & ANTISENSE_FLAG) == ANTISENSE_FLAG) {
+        ret.set(i);
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Bins the reads on one strand from a buffer of records, each beginning
+   * with the start followed by the flags byte.
+   *
+   * @param records the records
+   * @param width the width of each record in bytes
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param antisense true to count antisense reads, false for sense reads.
+   * @return the counts
+   */
+  protected static int[] binCounts(ByteBuffer records,
+      int width,
+      int start,
+      int end,
+      int window,
+      boolean antisense) {
+    int[] ret = new int[end / window - start / window + 1];
+
+    binCounts(records, width, start, end, window, antisense, ret);
+
+    return ret;
+  }
+
+  /**
+   * Adds the reads on one strand from a buffer of records, each beginning
+   * with the start followed by the flags byte, to the counts of a region so
+   * that the records of a region can be binned a batch at a time.
+   *
+   * @param records the records
+   * @param width the width of each record in bytes
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param antisense true to count antisense reads, false for sense reads.
+   * @param ret the counts of the region from the bin containing the start
+   */
+  protected static void binCounts(ByteBuffer records,
+      int width,
+      int start,
+      int end,
+      int window,
+      boolean antisense,
+      int[] ret) {
+    int startBin = start / window;
+
+    byte flag = antisense ? ANTISENSE_FLAG : 0;
+
+    int n = records.remaining() / width;
+
+    int p = records.position();
+
+    for (int i = 0; i < n; ++i) {
+      int s = records.getInt(p);
+
+      // Reads on the other strand are skipped before they are binned
+      if ((records.get(p + width - 1) & ANTISENSE_FLAG) == flag && s >= start
+          && s <= end) {
+        int b = s / window - startBin;
+
+        if (b < ret.length) {
+          ++ret[b];
+        }
+      }
+
+      p += width;
+    }
+  }
+
   /**
    * Multi res offset.
    *
@@ -110,6 +252,101 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
     return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
   }
 
+  /**
+   * Returns the multi resolution level that the bins of a window of at least
+   * {@link #MIN_BIN_WIDTH} are summed from. This is the widest level whose
+   * width divides the window, so that windows such as 5000 or 250000 are
+   * read from as few bins as possible, or failing that the widest level no
+   * wider than the window.
+   *
+   * @param window the window
+   * @return the level
+   */
+  public static int getLevel(int window) {
+    int ret = -1;
+
+    for (int level = 0; level <= MIN_BIN_LEVEL; ++level) {
+      int width = BIN_WIDTHS[level];
+
+      if (width <= window) {
+        if (window % width == 0) {
+          return level;
+        }
+
+        if (ret == -1) {
+          ret = level;
+        }
+      }
+    }
+
+    return ret != -1 ? ret : MIN_BIN_LEVEL;
+  }
+
+  /**
+   * Returns the first bin of a level that the bins of a window covering a
+   * region are summed from.
+   *
+   * @param level the level
+   * @param start the start
+   * @param window the window
+   * @return the bin
+   */
+  public static int levelStartBin(int level, int start, int window) {
+    return ResolutionPlanner.getStartBin(start / window,
+        window,
+        BIN_WIDTHS[level]);
+  }
+
+  /**
+   * Returns the number of bins of a level that the bins of a window covering
+   * a region are summed from.
+   *
+   * @param level the level
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the bin count
+   */
+  public static int levelBinCount(int level, int start, int end, int window) {
+    int startBin = start / window;
+
+    return ResolutionPlanner.getBinCount(startBin,
+        end / window - startBin + 1,
+        window,
+        BIN_WIDTHS[level]);
+  }
+
+  /**
+   * Returns the offset from the data offset of the first bin of a level
+   * that a region is summed from.
+   *
+   * @param level the level
+   * @param start the start
+   * @param window the window
+   * @return the offset
+   */
+  public static int levelOffset(int level, int start, int window) {
+    return (CUM_BIN_COUNTS[level] + levelStartBin(level, start, window))
+        * MULTI_RES_WIDTH_BYTES;
+  }
+
+  /**
+   * Returns the number of bytes of the bins of a level that a region is
+   * summed from. Bins past the last bin of the level are not stored.
+   *
+   * @param level the level
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the length in bytes
+   */
+  public static int levelLength(int level, int start, int end, int window) {
+    int bins = Math.min(levelBinCount(level, start, end, window),
+        BIN_COUNTS[level] - levelStartBin(level, start, window));
+
+    return Math.max(0, bins) * MULTI_RES_WIDTH_BYTES;
+  }
+
   /**
    * Gets the data offset.
    *
@@ -137,6 +374,36 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
    */
   public static Block getDataOffset(RandomAccessFile in, int p, int window)
       throws IOException {
+    return getDataOffset(new FileBinaryReader(in), p, window);
+  }
+
+  /**
+   * Gets the data offset.
+   *
+   * @param in the in
+   * @param p the p
+   * @return the data offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Block getDataOffset(BinaryReader in, int p)
+      throws IOException {
+    return getDataOffset(in, p, MIN_BIN_WIDTH);
+  }
+
+  /**
+   * Returns the start and end indices of the closest block of reads to a given
+   * position.
+   *
+   * @param in The reader over the file to scan
+   * @param p a one based genomic position in the chromosome the file
+   *          represents.
+   * @param window the window
+   * @return the data offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @see #getDataOffset(RandomAccessFile, int, int)
+   */
+  public static Block getDataOffset(BinaryReader in, int p, int window)
+      throws IOException {
     boolean found = false;
     int positionBin = -1;
     int bin = -1;
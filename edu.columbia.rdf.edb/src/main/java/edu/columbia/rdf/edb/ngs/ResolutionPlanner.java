@@ -0,0 +1,415 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serves windows that were not precomputed from the windows of a track that
+ * were. A requested window is aggregated from a finer level, whose bins are
+ * summed, or failing that downsampled from the nearest coarser level, so
+ * that any zoom can be drawn without falling back to the reads.
+ * 
+ * Bin b of a window w covers the zero based positions b * w to
+ * (b + 1) * w - 1 in the coordinates of the file, so a finer level whose
+ * width divides the window reproduces the counts of the window exactly.
+ * Otherwise source bins that straddle a boundary are shared in proportion to
+ * their overlap. Levels may be resampled straight from the bytes read from
+ * a file so that nothing but the output is written.
+ *
+ * @author Antony Holmes
+ */
+public class ResolutionPlanner {
+
+  /**
+   * Instantiates a new resolution planner.
+   */
+  private ResolutionPlanner() {
+    // Do nothing
+  }
+
+  /**
+   * Chooses the level to serve a window from. A level of the same width is
+   * used as is. Otherwise finer levels are preferred since they keep the
+   * resolution of the window, those whose width divides the window over
+   * those that do not, and amongst these the level that reads the fewest
+   * bytes. Only if there is no finer level is the nearest coarser level
+   * downsampled.
+   *
+   * @param windows the width of each level
+   * @param bits the bits per bin of each level
+   * @param window the window
+   * @param bins the number of bins of the window to be read
+   * @return the index of the level, or -1 if there are no levels.
+   */
+  public static int plan(int[] windows, int[] bits, int window, int bins) {
+    int ret = -1;
+    boolean divides = false;
+    long bytes = Long.MAX_VALUE;
+
+    int coarse = -1;
+
+    for (int i = 0; i < windows.length; ++i) {
+      int w = windows[i];
+
+      if (w == window) {
+        return i;
+      }
+
+      if (w > window) {
+        if (coarse == -1 || w < windows[coarse]) {
+          coarse = i;
+        }
+
+        continue;
+      }
+
+      boolean d = window % w == 0;
+      long b = getBytes(w, bits[i], window, bins);
+
+      if ((d && !divides) || (d == divides && b < bytes)) {
+        ret = i;
+        divides = d;
+        bytes = b;
+      }
+    }
+
+    return ret != -1 ? ret : coarse;
+  }
+
+  /**
+   * Estimates the bytes read from a level to serve a number of bins of a
+   * window.
+   *
+   * @param level the width of the level
+   * @param bits the bits per bin of the level
+   * @param window the window
+   * @param bins the bins
+   * @return the bytes
+   */
+  private static long getBytes(int level, int bits, int window, int bins) {
+    return ((long) bins * window / level + 1) * bits / 8;
+  }
+
+  /**
+   * Returns the first bin of a level overlapping a bin of a window.
+   *
+   * @param bin the bin
+   * @param window the window
+   * @param level the width of the level
+   * @return the start bin
+   */
+  public static int getStartBin(int bin, int window, int level) {
+    return (int) ((long) bin * window / level);
+  }
+
+  /**
+   * Returns the number of bins of a level overlapping a run of bins of a
+   * window.
+   *
+   * @param bin the first bin
+   * @param bins the number of bins
+   * @param window the window
+   * @param level the width of the level
+   * @return the bin count
+   */
+  public static int getBinCount(int bin, int bins, int window, int level) {
+    return (int) ((((long) bin + bins) * window - 1) / level)
+        - getStartBin(bin, window, level) + 1;
+  }
+
+  /**
+   * Resamples the bins of a level to a window. Counts are shared between
+   * bins in proportion to their overlap so that totals are preserved,
+   * whereas maxima and means of a coarser level are repeated across the
+   * bins they cover.
+   *
+   * @param counts the bins of the level
+   * @param start the bin of the level of the first count
+   * @param level the width of the level
+   * @param bin the first bin of the window
+   * @param bins the number of bins of the window
+   * @param window the window
+   * @param mode how the bins of the level summarize their positions
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  public static int resample(final int[] counts,
+      int start,
+      int level,
+      int bin,
+      int bins,
+      int window,
+      BCMode mode,
+      int[] out,
+      int offset) {
+    if (mode == BCMode.COUNT) {
+      return resampleCounts(counts,
+          null,
+          start,
+          level,
+          bin,
+          bins,
+          window,
+          out,
+          offset);
+    }
+
+    for (int i = 0; i < bins; ++i) {
+      long s = ((long) bin + i) * window;
+      long e = s + window;
+
+      if (mode == BCMode.MAX) {
+        out[offset + i] = max(counts, start, level, s, e);
+      } else {
+        out[offset + i] = mean(counts, start, level, s, e);
+      }
+    }
+
+    return bins;
+  }
+
+  /**
+   * Resamples counts of a level, stored as big endian ints from the position
+   * of a buffer onwards, to a window. Counts are shared between bins in
+   * proportion to their overlap so that totals are preserved. Bins past the
+   * end of the buffer are zero.
+   *
+   * @param buffer the bins of the level
+   * @param start the bin of the level of the first count
+   * @param level the width of the level
+   * @param bin the first bin of the window
+   * @param bins the number of bins of the window
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  public static int resampleCounts(ByteBuffer buffer,
+      int start,
+      int level,
+      int bin,
+      int bins,
+      int window,
+      int[] out,
+      int offset) {
+    return resampleCounts(null,
+        buffer,
+        start,
+        level,
+        bin,
+        bins,
+        window,
+        out,
+        offset);
+  }
+
+  /**
+   * Shares counts between the bins of a window in proportion to their
+   * overlap. Each boundary of the window is visited in turn so the total
+   * count before it is kept as a running sum rather than tabulated. The
+   * counts are either in an array or, if that is null, a buffer of ints.
+   *
+   * @param counts the bins of the level, or null
+   * @param buffer the bins of the level if counts is null
+   * @param start the bin of the level of the first count
+   * @param level the width of the level
+   * @param bin the first bin of the window
+   * @param bins the number of bins of the window
+   * @param window the window
+   * @param out the array to write the counts to
+   * @param offset the index in out of the first count
+   * @return the number of counts written.
+   */
+  private static int resampleCounts(final int[] counts,
+      final ByteBuffer buffer,
+      int start,
+      int level,
+      int bin,
+      int bins,
+      int window,
+      int[] out,
+      int offset) {
+    int n = counts != null ? counts.length : buffer.remaining() / 4;
+    int p = counts != null ? 0 : buffer.position();
+
+    long first = (long) start * level;
+
+    // The total count of the level bins before bin j
+    long total = 0;
+    int j = 0;
+
+    long previous = 0;
+
+    for (int i = 0; i <= bins; ++i) {
+      long b = ((long) bin + i) * window;
+
+      while (j < n && first + (long) (j + 1) * level <= b) {
+        total += counts != null ? counts[j] : buffer.getInt(p + j * 4);
+
+        ++j;
+      }
+
+      long c;
+
+      if (b < first || j == n) {
+        c = total;
+      } else {
+        long count = counts != null ? counts[j] : buffer.getInt(p + j * 4);
+
+        c = total
+            + Math.floorDiv(count * (b - first - (long) j * level), level);
+      }
+
+      if (i > 0) {
+        out[offset + i - 1] = (int) (c - previous);
+      }
+
+      previous = c;
+    }
+
+    return bins;
+  }
+
+  /**
+   * Resamples values of a level, such as the sums of a bin tree, stored as
+   * big endian floats from the position of a buffer onwards, to a window.
+   * Each value is shared between bins in proportion to its overlap so a
+   * finer level whose width divides the window is summed exactly. Bins past
+   * the end of the buffer are zero.
+   *
+   * @param buffer the bins of the level
+   * @param start the bin of the level of the first value
+   * @param level the width of the level
+   * @param bin the first bin of the window
+   * @param bins the number of bins of the window
+   * @param window the window
+   * @param out the array to write the values to
+   * @param offset the index in out of the first value
+   * @return the number of values written.
+   */
+  public static int resampleValues(ByteBuffer buffer,
+      int start,
+      int level,
+      int bin,
+      int bins,
+      int window,
+      double[] out,
+      int offset) {
+    for (int i = 0; i < bins; ++i) {
+      long s = ((long) bin + i) * window;
+
+      out[offset + i] = getValue(buffer, start, level, s, s + window);
+    }
+
+    return bins;
+  }
+
+  /**
+   * Returns the sum of the values of a level, stored as big endian floats
+   * from the position of a buffer onwards, overlapping positions s to e - 1,
+   * each weighted by the fraction of its bin that overlaps.
+   *
+   * @param buffer the bins of the level
+   * @param start the bin of the level of the first value
+   * @param level the width of the level
+   * @param s the zero based start
+   * @param e the zero based end, exclusive
+   * @return the value
+   */
+  public static double getValue(ByteBuffer buffer,
+      int start,
+      int level,
+      long s,
+      long e) {
+    int p = buffer.position();
+    int n = buffer.remaining() / 4;
+
+    int i1 = (int) Math.max(0, s / level - start);
+    int i2 = (int) Math.min(n - 1, (e - 1) / level - start);
+
+    double ret = 0;
+
+    for (int j = i1; j <= i2; ++j) {
+      long bs = ((long) start + j) * level;
+      long overlap = Math.min(e, bs + level) - Math.max(s, bs);
+
+      float v = buffer.getFloat(p + j * 4);
+
+      ret += overlap == level ? v : (double) v * overlap / level;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the largest bin of a level overlapping positions s to e - 1.
+   *
+   * @param counts the counts
+   * @param start the bin of the first count
+   * @param level the width of the level
+   * @param s the zero based start
+   * @param e the zero based end, exclusive
+   * @return the max
+   */
+  private static int max(final int[] counts,
+      int start,
+      int level,
+      long s,
+      long e) {
+    int ret = Integer.MIN_VALUE;
+
+    int i1 = (int) Math.max(0, s / level - start);
+    int i2 = (int) Math.min(counts.length - 1, (e - 1) / level - start);
+
+    for (int i = i1; i <= i2; ++i) {
+      ret = Math.max(ret, counts[i]);
+    }
+
+    return ret != Integer.MIN_VALUE ? ret : 0;
+  }
+
+  /**
+   * Returns the mean of the bins of a level overlapping positions s to e - 1
+   * weighted by their overlap.
+   *
+   * @param counts the counts
+   * @param start the bin of the first count
+   * @param level the width of the level
+   * @param s the zero based start
+   * @param e the zero based end, exclusive
+   * @return the mean
+   */
+  private static int mean(final int[] counts,
+      int start,
+      int level,
+      long s,
+      long e) {
+    long sum = 0;
+
+    int i1 = (int) Math.max(0, s / level - start);
+    int i2 = (int) Math.min(counts.length - 1, (e - 1) / level - start);
+
+    for (int i = i1; i <= i2; ++i) {
+      long bs = ((long) start + i) * level;
+
+      sum += counts[i] * (Math.min(e, bs + level) - Math.max(s, bs));
+    }
+
+    return (int) Math.round((double) sum / (e - s));
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+/**
+ * Keeps open readers for a BAM file so that the header and index are loaded
+ * once rather than on every query. A SamReader can only run one query at a
+ * time so each thread takes a reader from the pool, or opens a new one if
+ * none are free, and returns it when the query is complete.
+ *
+ * @author Antony Holmes
+ */
+public class SamReaderPool {
+
+  /** The maximum number of idle readers kept open. */
+  public static final int MAX_IDLE_READERS =
+      Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /** The m file. */
+  private final Path mFile;
+
+  /** The m readers. */
+  private final Deque<SamReader> mReaders = new ConcurrentLinkedDeque<SamReader>();
+
+  /** The m idle. */
+  private final AtomicInteger mIdle = new AtomicInteger(0);
+
+  /**
+   * Instantiates a new sam reader pool.
+   *
+   * @param file the file
+   */
+  public SamReaderPool(Path file) {
+    mFile = file;
+  }
+
+  /**
+   * Take a reader from the pool. The reader must be returned with
+   * {@link #release(SamReader)} once any iterator over it has been closed.
+   *
+   * @return the sam reader
+   */
+  public SamReader acquire() {
+    SamReader reader = mReaders.pollFirst();
+
+    CountMetrics.getInstance().add(mFile, CountMetrics.Counter.QUERIES, 1);
+
+    if (reader != null) {
+      mIdle.decrementAndGet();
+
+      CountMetrics.getInstance().add(mFile,
+          CountMetrics.Counter.CACHE_HITS,
+          1);
+    } else {
+      reader = SamReaderFactory.makeDefault().open(mFile.toFile());
+    }
+
+    return reader;
+  }
+
+  /**
+   * Return a reader to the pool. If the pool already holds enough idle
+   * readers the reader is closed.
+   *
+   * @param reader the reader
+   */
+  public void release(SamReader reader) {
+    if (mIdle.incrementAndGet() <= MAX_IDLE_READERS) {
+      mReaders.offerFirst(reader);
+    } else {
+      mIdle.decrementAndGet();
+
+      close(reader);
+    }
+  }
+
+  /**
+   * Close all idle readers and discard the metrics of the file.
+   */
+  public void close() {
+    SamReader reader;
+
+    while ((reader = mReaders.pollFirst()) != null) {
+      mIdle.decrementAndGet();
+
+      close(reader);
+    }
+
+    CountMetrics.getInstance().remove(mFile);
+  }
+
+  /**
+   * Close.
+   *
+   * @param reader the reader
+   */
+  private static void close(SamReader reader) {
+    try {
+      reader.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
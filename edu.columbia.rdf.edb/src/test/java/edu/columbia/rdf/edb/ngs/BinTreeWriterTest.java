@@ -0,0 +1,351 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Writes small tracks with {@link BinTreeWriter} and checks what the readers
+ * return against counts worked out directly from the reads. The reads span
+ * several chromosomes, arrive interleaved, pile up on bin boundaries and
+ * are written both in memory and with a memory limit small enough to spill
+ * many runs to disk.
+ *
+ * @author Antony Holmes
+ */
+public class BinTreeWriterTest {
+
+  /** The windows counts are checked at. */
+  private static final int[] WINDOWS =
+      { 1, 100, 1000, 5000, 10000, 100000, 1000000 };
+
+  /** The number of reads held in memory when forcing spills. */
+  private static final int SPILL_READS = 1000;
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-writer");
+
+    mReads.write(mDir.resolve("brt2"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+    mReads.write(mDir.resolve("brt2-spill"),
+        ReadCountsFileBRT2.FILE_EXT,
+        SPILL_READS,
+        false);
+    mReads.write(mDir.resolve("bvt"), ReadCountsFileBVT.FILE_EXT, 0, false);
+    mReads.write(mDir.resolve("bvt-spill"),
+        ReadCountsFileBVT.FILE_EXT,
+        SPILL_READS,
+        true);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Spilling to disk writes the same files as sorting in memory and leaves
+   * no run files behind.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSpill() throws IOException {
+    for (String ext : new String[] { "brt2", "bvt" }) {
+      Path dir = mDir.resolve(ext);
+      Path spill = mDir.resolve(ext + "-spill");
+
+      for (String chr : TestReads.CHRS) {
+        String name = chr + "." + ext;
+
+        assertArrayEquals(name,
+            Files.readAllBytes(dir.resolve(name)),
+            Files.readAllBytes(spill.resolve(name)));
+      }
+
+      Set<String> expected = new TreeSet<String>(list(dir));
+
+      if (ext.equals("bvt")) {
+        for (String chr : TestReads.CHRS) {
+          expected.add(chr + "." + ReadCountsFileBVT.SUMMARY_EXT);
+        }
+      }
+
+      assertEquals(expected, list(spill));
+    }
+  }
+
+  /**
+   * BRT2 counts match the reads at every window, on every chromosome,
+   * including the one without reads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBRT2Counts() throws IOException {
+    ReadCountsFileBRT2 reader = new ReadCountsFileBRT2(
+        mDir.resolve("brt2-spill").resolve("meta.json"));
+
+    try {
+      assertEquals(mReads.size(), reader.getReadCount(null, 1));
+
+      for (GenomicRegion region : regions()) {
+        for (int window : WINDOWS) {
+          if (!fits(region, window)) {
+            continue;
+          }
+
+          assertArrayEquals(region + " window " + window,
+              mReads.counts(region, window, Strand.NONE),
+              reader.getCounts(region, window));
+        }
+      }
+
+      // The read length is read from the header of the first file opened
+      assertEquals(TestReads.READ_LENGTH, reader.getReadLength());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * BRT2 counts of each strand match the reads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBRT2StrandCounts() throws IOException {
+    ReadCountsFileBRT2 reader = new ReadCountsFileBRT2(
+        mDir.resolve("brt2-spill").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        for (int window : WINDOWS) {
+          if (!fits(region, window)) {
+            continue;
+          }
+
+          for (Strand strand : new Strand[] { Strand.SENSE,
+              Strand.ANTISENSE }) {
+            assertArrayEquals(region + " window " + window + " " + strand,
+                mReads.counts(region, window, strand),
+                reader.getCounts(region, window, strand));
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * BRT2 starts and strands match the reads in sorted order.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBRT2Starts() throws IOException {
+    ReadCountsFileBRT2 reader = new ReadCountsFileBRT2(
+        mDir.resolve("brt2-spill").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        assertArrayEquals(region.toString(),
+            mReads.starts(region),
+            reader.getStarts(region, 1));
+
+        assertArrayEquals(region.toString(),
+            mReads.strands(region),
+            reader.getStrands(region, 1));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * BVT values, the sum of the values of the reads in each bin, match the
+   * reads at every window.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBVTValues() throws IOException {
+    ReadCountsFileBVT reader = new ReadCountsFileBVT(
+        mDir.resolve("bvt-spill").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        for (int window : WINDOWS) {
+          if (!fits(region, window)) {
+            continue;
+          }
+
+          double[] expected = mReads.sums(region, window);
+          double[] values = reader.getValues(region, window);
+
+          assertEquals(expected.length, values.length);
+
+          for (int i = 0; i < expected.length; ++i) {
+            // Levels hold float sums so allow for their rounding
+            assertEquals(region + " window " + window + " bin " + i,
+                expected[i],
+                values[i],
+                1e-4 * Math.max(1, expected[i]));
+          }
+        }
+      }
+
+      for (GenomicRegion region : regions()) {
+        assertArrayEquals(region.toString(),
+            mReads.starts(region),
+            reader.getStarts(region, 1));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Genome names are escaped when the meta file is written.
+   */
+  @Test
+  public void testJsonString() {
+    assertEquals("\"hg19\"", BinTreeWriter.toJsonString("hg19"));
+    assertEquals("\"a\\\"b\\\\c\\n\\u0001\"",
+        BinTreeWriter.toJsonString("a\"b\\c\n\u0001"));
+  }
+
+  /**
+   * Returns the regions checked: each whole chromosome, regions starting
+   * and ending on bin boundaries of every window and regions that start
+   * and end anywhere.
+   *
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions() {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    Random rnd = new Random(7);
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      String chr = TestReads.CHRS[c];
+      int size = TestReads.SIZES[c];
+
+      ret.add(TestReads.region(chr, 1, size));
+
+      for (int window : WINDOWS) {
+        for (int i = 0; i < 4; ++i) {
+          int bins = Math.max(1, size / window);
+
+          int s = rnd.nextInt(bins) * window;
+          int e = Math.min(size, s + (1 + rnd.nextInt(20)) * window - 1);
+
+          ret.add(TestReads.region(chr, Math.max(1, s), e));
+        }
+      }
+
+      for (int i = 0; i < 20; ++i) {
+        int s = 1 + rnd.nextInt(size);
+        int e = Math.min(size, s + rnd.nextInt(50000));
+
+        ret.add(TestReads.region(chr, s, e));
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns whether a region can be compared at a window. The multi
+   * resolution levels count whole bins, so at windows of 1kb or more the
+   * region must start on a bin boundary and end at the end of a bin or of
+   * the chromosome.
+   *
+   * @param region the region
+   * @param window the window
+   * @return true, if successful
+   */
+  private static boolean fits(GenomicRegion region, int window) {
+    if (window < ReadCountsFileBinTree.MIN_BIN_WIDTH) {
+      return true;
+    }
+
+    int s = region.getStart();
+    int e = region.getEnd();
+
+    return (s == 1 || s % window == 0)
+        && ((e + 1) % window == 0 || e == TestReads.size(region));
+  }
+
+  /**
+   * List the files in a directory.
+   *
+   * @param dir the dir
+   * @return the file names
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static Set<String> list(Path dir) throws IOException {
+    Set<String> ret = new TreeSet<String>();
+
+    DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+
+    try {
+      for (Path file : stream) {
+        ret.add(file.getFileName().toString());
+      }
+    } finally {
+      stream.close();
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link BoundedExecutor} limits the tasks running at once,
+ * fails rather than drops the tasks its executor rejects, and that
+ * assemblies of the same file share one limit.
+ *
+ * @author Antony Holmes
+ */
+public class BoundedExecutorTest {
+
+  /** How long to wait for a future, in seconds. */
+  private static final long TIMEOUT = 10;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes two copies of a track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    TestReads reads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-executor");
+
+    reads.write(mDir.resolve("a"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+    reads.write(mDir.resolve("b"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * No more than the maximum number of tasks run at once and every task
+   * runs.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLimit() throws Exception {
+    ExecutorService service = Executors.newFixedThreadPool(8);
+
+    try {
+      BoundedExecutor executor = new BoundedExecutor(service, 2);
+
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger max = new AtomicInteger();
+
+      List<CompletableFuture<Integer>> futures =
+          new ArrayList<CompletableFuture<Integer>>();
+
+      for (int i = 0; i < 100; ++i) {
+        final int n = i;
+
+        BoundedExecutor.Task<Integer> task =
+            new BoundedExecutor.Task<Integer>() {
+          @Override
+          protected Integer call() throws InterruptedException {
+            int r = running.incrementAndGet();
+
+            synchronized (max) {
+              max.set(Math.max(max.get(), r));
+            }
+
+            Thread.sleep(1);
+
+            running.decrementAndGet();
+
+            return n;
+          }
+        };
+
+        executor.execute(task);
+
+        futures.add(task.getFuture());
+      }
+
+      for (int i = 0; i < futures.size(); ++i) {
+        assertEquals(i,
+            futures.get(i).get(TIMEOUT, TimeUnit.SECONDS).intValue());
+      }
+
+      assertTrue(max.get() <= 2);
+    } finally {
+      service.shutdown();
+    }
+  }
+
+  /**
+   * When the underlying executor is shut down while tasks are queued, the
+   * running task finishes, the queued tasks fail rather than hang and new
+   * tasks fail straight away.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testShutDownExecutor() throws Exception {
+    ExecutorService service = Executors.newSingleThreadExecutor();
+
+    BoundedExecutor executor = new BoundedExecutor(service, 1);
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    BoundedExecutor.Task<String> first = new BoundedExecutor.Task<String>() {
+      @Override
+      protected String call() throws InterruptedException {
+        started.countDown();
+
+        release.await();
+
+        return "first";
+      }
+    };
+
+    executor.execute(first);
+
+    List<CompletableFuture<String>> queued =
+        new ArrayList<CompletableFuture<String>>();
+
+    for (int i = 0; i < 3; ++i) {
+      BoundedExecutor.Task<String> task = task("queued");
+
+      executor.execute(task);
+
+      queued.add(task.getFuture());
+    }
+
+    started.await();
+
+    service.shutdown();
+
+    release.countDown();
+
+    assertEquals("first", first.getFuture().get(TIMEOUT, TimeUnit.SECONDS));
+
+    for (CompletableFuture<String> future : queued) {
+      assertRejected(future);
+    }
+
+    // The slots are free again, so a new task is passed straight to the
+    // executor, which rejects it
+    BoundedExecutor.Task<String> late = task("late");
+
+    executor.execute(late);
+
+    assertRejected(late.getFuture());
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          // Do nothing
+        }
+      });
+
+      fail("Runnable was not rejected");
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Assemblies of the same track share an executor by default, those of
+   * other tracks do not, and one given its own executor keeps it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testFileExecutor() throws IOException {
+    ReadCountsFileBRT2 a1 =
+        new ReadCountsFileBRT2(mDir.resolve("a").resolve("meta.json"));
+    ReadCountsFileBRT2 a2 = new ReadCountsFileBRT2(
+        mDir.resolve("a").resolve("..").resolve("a").resolve("meta.json"));
+    ReadCountsFileBRT2 b =
+        new ReadCountsFileBRT2(mDir.resolve("b").resolve("meta.json"));
+
+    CountAssembly cached = new CachingCountAssembly(a2);
+
+    try {
+      assertSame(a1.getAsyncExecutor(), a2.getAsyncExecutor());
+      assertSame(a1.getAsyncExecutor(), cached.getAsyncExecutor());
+      assertNotSame(a1.getAsyncExecutor(), b.getAsyncExecutor());
+
+      b.setAsyncExecutor(BoundedExecutor.getDefault(), 1);
+
+      assertEquals(1,
+          ((BoundedExecutor) b.getAsyncExecutor()).getMaxRunning());
+      assertEquals(CountAssembly.DEFAULT_MAX_IN_FLIGHT,
+          ((BoundedExecutor) a1.getAsyncExecutor()).getMaxRunning());
+
+      GenomicRegion region = TestReads.region("chr1", 1, 100000);
+
+      assertEquals(a1.getCounts(region, 1000).length,
+          cached.getCountsAsync(region, 1000).join().length);
+    } finally {
+      a1.close();
+      cached.close();
+      b.close();
+    }
+  }
+
+  /**
+   * Creates a task that returns a value.
+   *
+   * @param value the value
+   * @return the task
+   */
+  private static BoundedExecutor.Task<String> task(final String value) {
+    return new BoundedExecutor.Task<String>() {
+      @Override
+      protected String call() {
+        return value;
+      }
+    };
+  }
+
+  /**
+   * Checks that a future failed because its task was rejected.
+   *
+   * @param future the future
+   * @throws Exception the exception
+   */
+  private static void assertRejected(CompletableFuture<String> future)
+      throws Exception {
+    try {
+      future.get(TIMEOUT, TimeUnit.SECONDS);
+
+      fail("Task was not rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link CachingCountAssembly} stitches regions from tiles
+ * into the same counts and values as the assembly it wraps, at the edges
+ * of tiles and chromosomes, and that it keeps its size in bytes by
+ * evicting the least recently used tiles.
+ *
+ * @author Antony Holmes
+ */
+public class CachingCountAssemblyTest {
+
+  /** The number of bins in a tile, small so regions span many tiles. */
+  private static final int TILE_BINS = 16;
+
+  /** The windows checked. */
+  private static final int[] WINDOWS = { 1, 100, 1000, 10000 };
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    TestReads reads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-cache");
+
+    reads.write(mDir.resolve("brt2"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+    reads.write(mDir.resolve("bvt"), ReadCountsFileBVT.FILE_EXT, 0, false);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Counts read through the cache, both when the tiles are loaded and when
+   * they are reused, match the counts of the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCounts() throws IOException {
+    CountAssembly track = brt2();
+    CachingCountAssembly cache =
+        new CachingCountAssembly(brt2(), Long.MAX_VALUE, TILE_BINS);
+
+    try {
+      for (int window : WINDOWS) {
+        for (int pass = 0; pass < 2; ++pass) {
+          for (GenomicRegion region : regions(track, window)) {
+            assertArrayEquals(region + " window " + window,
+                track.getCounts(region, window),
+                cache.getCounts(region, window));
+          }
+        }
+      }
+
+      assertTrue(cache.getHits() > 0);
+    } finally {
+      track.close();
+      cache.close();
+    }
+  }
+
+  /**
+   * Counts of a batch of regions read through the cache match the counts
+   * of each region read from the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBatch() throws IOException {
+    CountAssembly track = brt2();
+    CachingCountAssembly cache =
+        new CachingCountAssembly(brt2(), Long.MAX_VALUE, TILE_BINS);
+
+    try {
+      for (int window : WINDOWS) {
+        List<GenomicRegion> regions = regions(track, window);
+
+        List<int[]> counts = cache.getCounts(regions, window);
+
+        for (int i = 0; i < regions.size(); ++i) {
+          assertArrayEquals(regions.get(i) + " window " + window,
+              track.getCounts(regions.get(i), window),
+              counts.get(i));
+        }
+      }
+    } finally {
+      track.close();
+      cache.close();
+    }
+  }
+
+  /**
+   * Values read through the cache match the values of the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testValues() throws IOException {
+    CountAssembly track = bvt();
+    CachingCountAssembly cache =
+        new CachingCountAssembly(bvt(), Long.MAX_VALUE, TILE_BINS);
+
+    try {
+      for (int window : WINDOWS) {
+        for (int pass = 0; pass < 2; ++pass) {
+          for (GenomicRegion region : regions(track, window)) {
+            double[] expected = track.getValues(region, window);
+            double[] values = cache.getValues(region, window);
+
+            assertEquals(expected.length, values.length);
+
+            for (int i = 0; i < expected.length; ++i) {
+              assertEquals(region + " window " + window + " bin " + i,
+                  expected[i],
+                  values[i],
+                  0);
+            }
+          }
+        }
+      }
+    } finally {
+      track.close();
+      cache.close();
+    }
+  }
+
+  /**
+   * The cache holds as many tiles as fit in its size, counts the bytes of
+   * each and evicts the least recently used tile first.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testEviction() throws IOException {
+    int window = 1000;
+
+    // Each tile is an array of ints plus a fixed overhead
+    long tileBytes = 96 + 4 * TILE_BINS;
+
+    CachingCountAssembly cache =
+        new CachingCountAssembly(brt2(), 3 * tileBytes, TILE_BINS);
+
+    try {
+      for (int tile = 1; tile <= 3; ++tile) {
+        readTile(cache, tile, window);
+      }
+
+      assertEquals(3 * tileBytes, cache.getBytes());
+      assertEquals(3, cache.getMisses());
+      assertEquals(0, cache.getEvictions());
+
+      // Tile 1 becomes the most recently used, so tile 2 is evicted next
+      readTile(cache, 1, window);
+
+      assertEquals(1, cache.getHits());
+
+      readTile(cache, 4, window);
+
+      assertEquals(3 * tileBytes, cache.getBytes());
+      assertEquals(1, cache.getEvictions());
+
+      readTile(cache, 1, window);
+
+      assertEquals(2, cache.getHits());
+
+      readTile(cache, 2, window);
+
+      assertEquals(5, cache.getMisses());
+      assertEquals(2, cache.getEvictions());
+      assertEquals(3 * tileBytes, cache.getBytes());
+
+      cache.clear();
+
+      assertEquals(0, cache.getBytes());
+    } finally {
+      cache.close();
+    }
+  }
+
+  /**
+   * Reads a region whose bins, apart from the boundary bins the track reads
+   * itself at each end, are exactly one tile.
+   *
+   * @param cache the cache
+   * @param tile the tile
+   * @param window the window
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void readTile(CachingCountAssembly cache,
+      int tile,
+      int window) throws IOException {
+    int k = cache.getBoundaryBins(window);
+
+    GenomicRegion region = cache.getBinRegion(
+        TestReads.region("chr1", 1, 1).getChr(),
+        tile * TILE_BINS - k,
+        TILE_BINS + 2 * k,
+        window);
+
+    cache.getCounts(region, window);
+  }
+
+  /**
+   * Returns the regions checked at a window: regions that start and end
+   * either side of and on tile boundaries, both on and between bin
+   * boundaries, regions that run to the end of each chromosome and each
+   * whole chromosome.
+   *
+   * @param track the track
+   * @param window the window
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions(CountAssembly track,
+      int window) {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      String chr = TestReads.CHRS[c];
+      int size = TestReads.SIZES[c];
+      int bins = size / window;
+
+      ret.add(TestReads.region(chr, 1, size));
+
+      for (int tile = 0; tile < 3; ++tile) {
+        for (int ds = -2; ds <= 1; ++ds) {
+          for (int de = -2; de <= 1; ++de) {
+            int sb = tile * TILE_BINS + ds;
+            int eb = (tile + 2) * TILE_BINS + de;
+
+            if (sb < 0 || eb >= bins) {
+              continue;
+            }
+
+            // Whole bins and bins cut short at each end
+            ret.add(TestReads
+                .region(chr, Math.max(1, sb * window), (eb + 1) * window - 1));
+            ret.add(TestReads.region(chr,
+                sb * window + window / 2,
+                eb * window + window / 2));
+          }
+        }
+      }
+
+      int start = Math.max(1, (bins - 3 * TILE_BINS) * window + window / 2);
+
+      ret.add(TestReads.region(chr, start, size));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Opens the BRT2 track.
+   *
+   * @return the reader
+   */
+  private static CountAssembly brt2() {
+    return new ReadCountsFileBRT2(mDir.resolve("brt2").resolve("meta.json"));
+  }
+
+  /**
+   * Opens the BVT track.
+   *
+   * @return the reader
+   */
+  private static CountAssembly bvt() {
+    return new ReadCountsFileBVT(mDir.resolve("bvt").resolve("meta.json"));
+  }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the BRT2, BC and packed readers return the same counts when
+ * one reader is shared by many threads as when it is read serially. How
+ * their throughput scales is measured by the concurrent read benchmark.
+ *
+ * Each run opens a new reader so that the threads also race to open the
+ * chromosome files.
+ *
+ * @author Antony Holmes
+ */
+public class ConcurrentReadTest {
+
+  /** The thread counts each reader is checked with. */
+  private static final int[] THREADS = { 1, 2, 4, 8 };
+
+  /** The number of regions read at each window. */
+  private static final int REGIONS = 64;
+
+  /** The length of each region. */
+  private static final int REGION_LENGTH = 100000;
+
+  /** The m tracks. */
+  private static TestTracks mTracks;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mTracks = new TestTracks(42);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mTracks.delete();
+  }
+
+  /**
+   * BRT2 counts are the same on any number of threads.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBRT2() throws Exception {
+    for (int window : new int[] { 1, 100, 1000, 10000 }) {
+      assertConcurrent("brt2", window);
+    }
+  }
+
+  /**
+   * BC counts are the same on any number of threads.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBC() throws Exception {
+    for (int power : TestTracks.BC_POWERS) {
+      assertConcurrent("bc", (int) Math.pow(10, power));
+    }
+  }
+
+  /**
+   * Packed counts are the same on any number of threads.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void test32Bit() throws Exception {
+    for (int window : TestTracks.PACKED_WINDOWS) {
+      assertConcurrent("32bit", window);
+    }
+  }
+
+  /**
+   * Checks that a format returns the same counts at a window when read by
+   * 1 to {@link #THREADS} threads as when read serially.
+   *
+   * @param format the format
+   * @param window the window
+   * @throws Exception the exception
+   */
+  private static void assertConcurrent(String format, int window)
+      throws Exception {
+    GenomicRegion[] regions =
+        TestTracks.regions(REGIONS, REGION_LENGTH, window, window);
+
+    int[][] expected = readSerial(open(format), regions, window);
+
+    long total = 0;
+
+    for (int[] counts : expected) {
+      for (int count : counts) {
+        total += count;
+      }
+    }
+
+    assertTrue(format + " read no counts at window " + window, total > 0);
+
+    for (int threads : THREADS) {
+      CountAssembly assembly = open(format);
+
+      List<int[][]> results =
+          readConcurrent(assembly, regions, window, threads, regions.length);
+
+      assembly.close();
+
+      for (int[][] result : results) {
+        for (int i = 0; i < result.length; ++i) {
+          assertArrayEquals(format + " window " + window + " threads "
+              + threads + " region " + regions[i % regions.length],
+              expected[i % regions.length],
+              result[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Open a reader of a format.
+   *
+   * @param format the format
+   * @return the count assembly
+   */
+  private static CountAssembly open(String format) {
+    switch (format) {
+    case "brt2":
+      return mTracks.openBRT2();
+    case "bc":
+      return mTracks.openBC();
+    default:
+      return mTracks.open32Bit();
+    }
+  }
+
+  /**
+   * Read the counts of each region in turn on the calling thread.
+   *
+   * @param assembly the assembly
+   * @param regions the regions
+   * @param window the window
+   * @return the counts of each region
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static int[][] readSerial(CountAssembly assembly,
+      GenomicRegion[] regions,
+      int window) throws IOException {
+    int[][] ret = new int[regions.length][];
+
+    for (int i = 0; i < regions.length; ++i) {
+      ret[i] = assembly.getCounts(regions[i], window);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read regions from one reader on several threads started together. Each
+   * thread makes n queries cycling through the regions, so that query i
+   * reads region i modulo the number of regions.
+   *
+   * @param assembly the assembly
+   * @param regions the regions
+   * @param window the window
+   * @param threads the number of threads
+   * @param n the number of queries each thread makes
+   * @return the counts read by each thread
+   * @throws Exception the exception
+   */
+  private static List<int[][]> readConcurrent(final CountAssembly assembly,
+      final GenomicRegion[] regions,
+      final int window,
+      int threads,
+      final int n) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    final CountDownLatch start = new CountDownLatch(1);
+
+    List<Future<int[][]>> futures = new ArrayList<Future<int[][]>>();
+
+    try {
+      for (int t = 0; t < threads; ++t) {
+        futures.add(executor.submit(new Callable<int[][]>() {
+          @Override
+          public int[][] call() throws Exception {
+            int[][] ret = new int[n][];
+
+            start.await();
+
+            for (int i = 0; i < n; ++i) {
+              ret[i] = assembly.getCounts(regions[i % regions.length], window);
+            }
+
+            return ret;
+          }
+        }));
+      }
+
+      start.countDown();
+
+      List<int[][]> ret = new ArrayList<int[][]>(threads);
+
+      for (Future<int[][]> future : futures) {
+        ret.add(future.get());
+      }
+
+      return ret;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
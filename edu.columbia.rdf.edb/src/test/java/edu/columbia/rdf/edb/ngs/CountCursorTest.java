@@ -0,0 +1,287 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the count cursor of each format yields the same counts as
+ * {@link CountAssembly#getCounts(GenomicRegion, int)}, over whole
+ * chromosomes and over regions cut short at either end, whatever the size
+ * of its buffer.
+ *
+ * @author Antony Holmes
+ */
+public class CountCursorTest {
+
+  /** The buffer sizes whole chromosomes are read with. */
+  private static final int[] BUFFER_BINS =
+      { 7, 1000, CountCursor.DEFAULT_BUFFER_BINS };
+
+  /** The buffer sizes short regions are read with. */
+  private static final int[] SHORT_BUFFER_BINS = { 1, 3, 64 };
+
+  /** The m tracks. */
+  private static TestTracks mTracks;
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mTracks = new TestTracks(42);
+
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-cursor");
+
+    mReads.write(mDir, ReadCountsFileBRT2.FILE_EXT, 0, false);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mTracks.delete();
+
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * The BRT2 cursor matches the counts at raw and multi resolution windows.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBRT2() throws IOException {
+    CountAssembly track = mTracks.openBRT2();
+
+    try {
+      assertCursor(track,
+          TestTracks.CHR,
+          TestTracks.SIZE,
+          new int[] { 1, 100, 1000, 10000 });
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * The packed cursor matches the counts at each packed window.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testPacked() throws IOException {
+    CountAssembly track = mTracks.open32Bit();
+
+    try {
+      assertCursor(track,
+          TestTracks.CHR,
+          TestTracks.SIZE,
+          TestTracks.PACKED_WINDOWS);
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * The default cursor, which BC files use, matches the counts.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBC() throws IOException {
+    CountAssembly track = mTracks.openBC();
+
+    try {
+      assertCursor(track,
+          TestTracks.CHR,
+          TestTracks.SIZE,
+          new int[] { 100, 1000 });
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * The cursors of the caching and metered assemblies match the counts of
+   * the track they wrap on every chromosome, including one without reads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWrapped() throws IOException {
+    CountAssembly[] assemblies = {
+        new CachingCountAssembly(brt2(), Long.MAX_VALUE, 16),
+        new MeteredCountAssembly(brt2()) };
+
+    try {
+      for (CountAssembly assembly : assemblies) {
+        for (int c = 0; c < TestReads.CHRS.length; ++c) {
+          assertCursor(assembly,
+              TestReads.CHRS[c],
+              TestReads.SIZES[c],
+              new int[] { 1, 100, 1000, 10000 });
+        }
+      }
+    } finally {
+      for (CountAssembly assembly : assemblies) {
+        assembly.close();
+      }
+    }
+  }
+
+  /**
+   * Stepping a cursor one bin at a time visits each bin in turn, and the
+   * cursor stays at the end once it is reached.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testNext() throws IOException {
+    CountAssembly track = brt2();
+
+    try {
+      GenomicRegion region = TestReads.region("chr1", 123456, 234567);
+
+      for (int window : new int[] { 1, 100, 1000 }) {
+        int[] counts = track.getCounts(region, window);
+        int bin = track.getStartBin(region, window);
+
+        CountCursor cursor = track.getCursor(region, window, 5);
+
+        try {
+          for (int i = 0; i < counts.length; ++i) {
+            assertTrue(cursor.next());
+            assertEquals(bin + i, cursor.getBin());
+            assertEquals("window " + window + " bin " + i,
+                counts[i],
+                cursor.getCount());
+          }
+
+          assertTrue(!cursor.next());
+          assertTrue(!cursor.next());
+          assertEquals(-1, cursor.read(new int[1], 0, 1));
+        } finally {
+          cursor.close();
+        }
+      }
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * Checks the cursor of an assembly against its counts over a whole
+   * chromosome and over shorter regions.
+   *
+   * @param assembly the assembly
+   * @param chr the chr
+   * @param size the size of the chromosome
+   * @param windows the windows
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertCursor(CountAssembly assembly,
+      String chr,
+      int size,
+      int[] windows) throws IOException {
+    GenomicRegion whole = TestReads.region(chr, 1, size);
+
+    for (int window : windows) {
+      int[] counts = assembly.getCounts(whole, window);
+
+      for (int bufferBins : BUFFER_BINS) {
+        assertArrayEquals(whole + " window " + window + " buffer "
+            + bufferBins,
+            counts,
+            TestReads.cursor(assembly, whole, window, bufferBins));
+      }
+
+      for (GenomicRegion region : regions(chr, size, window)) {
+        counts = assembly.getCounts(region, window);
+
+        for (int bufferBins : SHORT_BUFFER_BINS) {
+          assertArrayEquals(region + " window " + window + " buffer "
+              + bufferBins,
+              counts,
+              TestReads.cursor(assembly, region, window, bufferBins));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns regions of a few hundred bins that start and end on, just
+   * after and just before bin boundaries, and that run to the end of the
+   * chromosome.
+   *
+   * @param chr the chr
+   * @param size the size of the chromosome
+   * @param window the window
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions(String chr,
+      int size,
+      int window) {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    int length = Math.min(size / 2, 300 * window);
+
+    for (int d : new int[] { -1, 0, 1 }) {
+      int start = Math.max(1, size / 3 / window * window + d);
+
+      ret.add(TestReads.region(chr, start, start + length + d));
+    }
+
+    ret.add(TestReads.region(chr, size - length, size));
+
+    return ret;
+  }
+
+  /**
+   * Opens the BRT2 track of the test reads.
+   *
+   * @return the reader
+   */
+  private static CountAssembly brt2() {
+    return new ReadCountsFileBRT2(mDir.resolve("meta.json"));
+  }
+}
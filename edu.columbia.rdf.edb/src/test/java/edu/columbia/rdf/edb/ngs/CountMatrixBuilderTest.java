@@ -0,0 +1,348 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that each cell of a count matrix is the number of reads of a
+ * sample in a region, whatever the number of threads the samples are read
+ * on and wherever the matrix is held.
+ *
+ * @author Antony Holmes
+ */
+public class CountMatrixBuilderTest {
+
+  /** The seed of the reads of each sample. */
+  private static final long[] SEEDS = { 42, 7 };
+
+  /** The reads of each column, the last being the cached first sample. */
+  private static final int[] COLUMN_READS = { 0, 1, 0 };
+
+  /** The m reads of each sample. */
+  private static TestReads[] mReads;
+
+  /** The m dir of each sample. */
+  private static Path[] mDirs;
+
+  /** The m regions. */
+  private static List<GenomicRegion> mRegions;
+
+  /**
+   * Writes the samples and picks regions on every chromosome.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads[SEEDS.length];
+    mDirs = new Path[SEEDS.length];
+
+    for (int i = 0; i < SEEDS.length; ++i) {
+      mReads[i] = new TestReads(SEEDS[i]);
+
+      mDirs[i] = Files.createTempDirectory("edb-matrix");
+
+      mReads[i].write(mDirs[i], ReadCountsFileBRT2.FILE_EXT, 0, false);
+    }
+
+    mRegions = regions(300, 42);
+  }
+
+  /**
+   * Deletes the samples.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    for (Path dir : mDirs) {
+      TestReads.delete(dir);
+    }
+  }
+
+  /**
+   * Each cell is the number of reads starting in the region, with the
+   * regions in no particular order and on and off the heap, whatever the
+   * number of threads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBuild() throws IOException {
+    List<CountAssembly> samples = samples();
+
+    try {
+      for (int threads : new int[] { 1, 3, 8 }) {
+        for (boolean direct : new boolean[] { false, true }) {
+          CountMatrixBuilder builder = new CountMatrixBuilder(samples);
+
+          builder.setThreads(threads);
+          builder.setDirect(direct);
+
+          CountMatrix matrix = builder.build(mRegions, 1);
+
+          assertEquals(mRegions.size(), matrix.getRows());
+          assertEquals(samples.size(), matrix.getColumns());
+          assertEquals(direct, matrix.isDirect());
+
+          for (int r = 0; r < mRegions.size(); ++r) {
+            for (int s = 0; s < samples.size(); ++s) {
+              assertEquals(mRegions.get(r) + " sample " + s + " threads "
+                  + threads + " direct " + direct,
+                  reads(s, mRegions.get(r)),
+                  matrix.get(r, s));
+            }
+          }
+        }
+      }
+    } finally {
+      close(samples);
+    }
+  }
+
+  /**
+   * At a wider window each cell is the sum of the counts of the region
+   * read on its own.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWindow() throws IOException {
+    List<CountAssembly> samples = samples();
+
+    try {
+      for (int window : new int[] { 100, 1000 }) {
+        CountMatrix matrix =
+            new CountMatrixBuilder(samples).build(mRegions, window);
+
+        for (int s = 0; s < samples.size(); ++s) {
+          int[] column = matrix.getColumn(s);
+
+          for (int r = 0; r < mRegions.size(); ++r) {
+            assertEquals(mRegions.get(r) + " sample " + s + " window "
+                + window,
+                sum(samples.get(s).getCounts(mRegions.get(r), window)),
+                column[r]);
+          }
+        }
+      }
+    } finally {
+      close(samples);
+    }
+  }
+
+  /**
+   * The listener hears once from each sample and chromosome pair and last
+   * hears that every pair is done.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testProgress() throws IOException {
+    List<CountAssembly> samples = samples();
+
+    try {
+      final int total = samples.size() * TestReads.CHRS.length;
+
+      final AtomicInteger calls = new AtomicInteger(0);
+      final AtomicInteger max = new AtomicInteger(0);
+
+      CountMatrixBuilder builder = new CountMatrixBuilder(samples);
+
+      builder.setThreads(4);
+      builder.setProgressListener(new CountMatrixBuilder.ProgressListener() {
+        @Override
+        public void progress(int done, int t) {
+          assertEquals(total, t);
+
+          calls.incrementAndGet();
+
+          synchronized (max) {
+            max.set(Math.max(max.get(), done));
+          }
+        }
+      });
+
+      builder.build(mRegions, 1);
+
+      assertEquals(total, calls.get());
+      assertEquals(total, max.get());
+    } finally {
+      close(samples);
+    }
+  }
+
+  /**
+   * Building without regions gives an empty matrix and reads nothing.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testNoRegions() throws IOException {
+    List<CountAssembly> samples = samples();
+
+    try {
+      CountMatrix matrix = new CountMatrixBuilder(samples)
+          .build(Collections.<GenomicRegion>emptyList(), 1);
+
+      assertEquals(0, matrix.getRows());
+      assertEquals(samples.size(), matrix.getColumns());
+    } finally {
+      close(samples);
+    }
+  }
+
+  /**
+   * An I/O error reading a sample is thrown from the build.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testError() throws IOException {
+    CountAssembly broken =
+        new ReadCountsFileBRT2(mDirs[1].resolve("meta.json")) {
+          @Override
+          public List<int[]> getCounts(List<GenomicRegion> regions,
+              int window) throws IOException {
+            throw new IOException("broken sample");
+          }
+        };
+
+    List<CountAssembly> samples = samples();
+
+    samples.add(broken);
+
+    try {
+      new CountMatrixBuilder(samples).build(mRegions, 1);
+
+      fail("The error of a sample was not thrown.");
+    } catch (IOException e) {
+      assertEquals("broken sample", e.getMessage());
+    } finally {
+      close(samples);
+    }
+  }
+
+  /**
+   * Counts the reads of a column starting in a region.
+   *
+   * @param column the column
+   * @param region the region
+   * @return the number of reads
+   */
+  private static int reads(int column, GenomicRegion region) {
+    return sum(mReads[COLUMN_READS[column]].counts(region, 1, Strand.NONE));
+  }
+
+  /**
+   * Sums counts.
+   *
+   * @param counts the counts
+   * @return the sum
+   */
+  private static int sum(int[] counts) {
+    int ret = 0;
+
+    for (int c : counts) {
+      ret += c;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Picks regions of varying length on every chromosome, shuffled so that
+   * the chromosomes are interleaved, with a region repeated and regions
+   * that overlap.
+   *
+   * @param n the number of regions
+   * @param seed the seed
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions(int n, long seed) {
+    Random rnd = new Random(seed);
+
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    for (int i = 0; i < n; ++i) {
+      int c = i % TestReads.CHRS.length;
+      int length = 1 + rnd.nextInt(20000);
+      int start = 1 + rnd.nextInt(TestReads.SIZES[c] - length);
+
+      ret.add(TestReads.region(TestReads.CHRS[c], start, start + length));
+    }
+
+    ret.add(ret.get(0));
+
+    GenomicRegion first = ret.get(1);
+
+    ret.add(TestReads.region(TestReads.CHRS[1],
+        first.getStart() + 10,
+        first.getEnd() + 10));
+
+    Collections.shuffle(ret, rnd);
+
+    return ret;
+  }
+
+  /**
+   * Opens the samples, with the first also read through a cache.
+   *
+   * @return the samples
+   */
+  private static List<CountAssembly> samples() {
+    List<CountAssembly> ret = new ArrayList<CountAssembly>(Arrays.asList(
+        (CountAssembly) new ReadCountsFileBRT2(mDirs[0].resolve("meta.json")),
+        new ReadCountsFileBRT2(mDirs[1].resolve("meta.json"))));
+
+    ret.add(new CachingCountAssembly(
+        new ReadCountsFileBRT2(mDirs[0].resolve("meta.json")),
+        Long.MAX_VALUE,
+        16));
+
+    return ret;
+  }
+
+  /**
+   * Closes the samples.
+   *
+   * @param samples the samples
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void close(List<CountAssembly> samples) throws IOException {
+    for (CountAssembly sample : samples) {
+      sample.close();
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that a thread interrupted while reading a pooled file does not
+ * break the other readers of the file, that closing pooled files keeps
+ * their metrics, and that scratch reads return the right bytes.
+ *
+ * @author Antony Holmes
+ */
+public class FileHandlePoolTest {
+
+  /** The size of the test file. */
+  private static final int SIZE = 4 * 1024 * 1024;
+
+  /** The size of each read. */
+  private static final int CHUNK = 64 * 1024;
+
+  /** How long the readers run for, in milliseconds. */
+  private static final long RUN_TIME = 1000;
+
+  /** The m file. */
+  private static Path mFile;
+
+  /** The m data. */
+  private static byte[] mData;
+
+  /**
+   * Writes a file of random bytes.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mData = new byte[SIZE];
+
+    new Random(42).nextBytes(mData);
+
+    mFile = Files.createTempFile("edb-pool", ".bin");
+
+    Files.write(mFile, mData);
+  }
+
+  /**
+   * Deletes the file.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    FileHandlePool.getInstance().closeIdle();
+
+    Files.deleteIfExists(mFile);
+  }
+
+  /**
+   * One thread is interrupted over and over while it reads the file and
+   * another thread reads the same file throughout. The second thread must
+   * never fail or read the wrong bytes, and the first must read normally
+   * once it is no longer interrupted.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testInterruptedReader() throws Exception {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicInteger reads = new AtomicInteger();
+    final AtomicInteger interrupted = new AtomicInteger();
+
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (running.get()) {
+            readFile();
+
+            reads.incrementAndGet();
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      }
+    });
+
+    Thread victim = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running.get()) {
+          try {
+            readFile();
+          } catch (IOException e) {
+            interrupted.incrementAndGet();
+          }
+
+          // Clear the interrupt before the next read
+          Thread.interrupted();
+        }
+      }
+    });
+
+    reader.start();
+    victim.start();
+
+    long end = System.currentTimeMillis() + RUN_TIME;
+
+    while (System.currentTimeMillis() < end) {
+      victim.interrupt();
+
+      Thread.sleep(1);
+    }
+
+    running.set(false);
+
+    reader.join();
+    victim.join();
+
+    if (error.get() != null) {
+      throw new AssertionError("Reader failed", error.get());
+    }
+
+    assertTrue(reads.get() > 0);
+    assertTrue(interrupted.get() > 0);
+
+    // The interrupted thread has finished, so this thread reads the file on
+    // whatever channel the pool now holds
+    readFile();
+  }
+
+  /**
+   * A read on an interrupted thread fails without closing the channel the
+   * other readers of the file are using.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testReadWhileInterrupted() throws Exception {
+    BinaryReader other = FileHandlePool.getInstance().open(mFile);
+
+    try {
+      Thread.currentThread().interrupt();
+
+      try {
+        readFile();
+      } catch (IOException e) {
+        // Expected
+      } finally {
+        Thread.interrupted();
+      }
+
+      other.seek(SIZE - 4);
+
+      assertEquals(((mData[SIZE - 4] & 0xFF) << 24)
+          | ((mData[SIZE - 3] & 0xFF) << 16) | ((mData[SIZE - 2] & 0xFF) << 8)
+          | (mData[SIZE - 1] & 0xFF), other.readInt());
+    } finally {
+      other.close();
+    }
+  }
+
+  /**
+   * Closing the handle of a file is not the end of its readers, so the
+   * metrics of the file survive the pool closing it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testMetricsOutliveHandle() throws IOException {
+    CountMetrics metrics = CountMetrics.getInstance();
+
+    boolean enabled = metrics.isEnabled();
+
+    metrics.setEnabled(true);
+
+    try {
+      readFile();
+
+      long bytes = metrics.getFileMetrics(mFile).getBytesRead();
+
+      assertTrue(bytes >= SIZE);
+
+      FileHandlePool.getInstance().closeIdle();
+
+      assertTrue(metrics.getFiles().containsKey(mFile));
+      assertEquals(bytes, metrics.getFileMetrics(mFile).getBytesRead());
+    } finally {
+      metrics.remove(mFile);
+      metrics.setEnabled(enabled);
+    }
+  }
+
+  /**
+   * Scratch reads of up to {@link FileHandlePool#MAX_SCRATCH_BYTES} reuse
+   * one buffer across the readers of a thread, growing it as needed, while
+   * larger reads get a buffer of their own. Every read must hold the right
+   * bytes.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReadScratch() throws IOException {
+    int[] offsets = { 0, 17, 1000, 65536, 12345 };
+    int[] lengths = { 1, 100, 5000, 70000, 3 };
+
+    ByteBuffer last = null;
+
+    for (int i = 0; i < offsets.length; ++i) {
+      BinaryReader in = FileHandlePool.getInstance().open(mFile);
+
+      try {
+        in.seek(offsets[i]);
+
+        ByteBuffer buffer = in.readScratch(lengths[i]);
+
+        assertScratch(buffer, offsets[i], lengths[i]);
+
+        // Shorter reads than the last one fit in the same buffer
+        if (last != null && lengths[i] <= last.capacity()) {
+          assertSame(last, buffer);
+        }
+
+        last = buffer;
+      } finally {
+        in.close();
+      }
+    }
+
+    BinaryReader in = FileHandlePool.getInstance().open(mFile);
+
+    try {
+      int l = FileHandlePool.MAX_SCRATCH_BYTES + 1;
+
+      in.seek(1);
+
+      ByteBuffer buffer = in.readScratch(l);
+
+      assertScratch(buffer, 1, l);
+      assertNotSame(last, buffer);
+
+      // The large read leaves the scratch buffer of the thread alone
+      in.seek(2);
+
+      assertSame(last, in.readScratch(10));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Checks that a buffer holds the bytes of the file from an offset.
+   *
+   * @param buffer the buffer
+   * @param offset the offset
+   * @param l the expected length
+   */
+  private static void assertScratch(ByteBuffer buffer, int offset, int l) {
+    assertEquals(0, buffer.position());
+    assertEquals(l, buffer.remaining());
+
+    for (int i = 0; i < l; ++i) {
+      assertEquals(mData[offset + i], buffer.get(i));
+    }
+  }
+
+  /**
+   * Read the whole file in chunks and check its contents.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void readFile() throws IOException {
+    BinaryReader in = FileHandlePool.getInstance().open(mFile);
+
+    try {
+      byte[] b = new byte[SIZE];
+
+      for (int i = 0; i < SIZE; i += CHUNK) {
+        in.seek(i);
+        in.readFully(b, i, CHUNK);
+      }
+
+      assertArrayEquals(mData, b);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that genome reductions match the counts of each chromosome read
+ * whole, however the chromosomes are split into chunks.
+ *
+ * @author Antony Holmes
+ */
+public class GenomeReducerTest {
+
+  /** The chunk sizes reductions are run with. */
+  private static final int[] CHUNK_BINS =
+      { 1, 7, 1000, GenomeReducer.DEFAULT_CHUNK_BINS };
+
+  /** The windows reductions are run at. */
+  private static final int[] WINDOWS = { 100, 1000, 10000 };
+
+  /** The largest count with its own histogram element. */
+  private static final int HISTOGRAM_MAX = 5;
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /** The m pool. */
+  private static ForkJoinPool mPool;
+
+  /**
+   * Writes the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-reducer");
+
+    mReads.write(mDir, ReadCountsFileBRT2.FILE_EXT, 0, false);
+
+    mPool = new ForkJoinPool(4);
+  }
+
+  /**
+   * Deletes the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mPool.shutdown();
+
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Each reducer of each chromosome matches the counts of the chromosome
+   * read whole, including a chromosome without reads, at every chunk size.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReduce() throws IOException {
+    CountAssembly track = brt2();
+
+    try {
+      GenomeReducer engine = new GenomeReducer(track, mPool);
+
+      for (int window : WINDOWS) {
+        for (int chunkBins : CHUNK_BINS) {
+          engine.setChunkBins(chunkBins);
+
+          assertReduce(engine, track, window, chunkBins);
+        }
+      }
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * Reductions at single base resolution match the counts with chunks
+   * that end part way through the chromosomes.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRawWindow() throws IOException {
+    CountAssembly track = brt2();
+
+    try {
+      GenomeReducer engine = new GenomeReducer(track, mPool);
+
+      for (int chunkBins : new int[] { 99991,
+          GenomeReducer.DEFAULT_CHUNK_BINS }) {
+        engine.setChunkBins(chunkBins);
+
+        assertReduce(engine, track, 1, chunkBins);
+      }
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * Reducing the whole genome gives the same results as merging the
+   * reducers of each chromosome.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReduceAll() throws IOException {
+    CountAssembly track = brt2();
+
+    try {
+      GenomeReducer engine = new GenomeReducer(track, mPool);
+
+      for (int window : WINDOWS) {
+        long sum = 0;
+        long nonZero = 0;
+
+        for (int c = 0; c < TestReads.CHRS.length; ++c) {
+          for (int count : counts(track, c, window)) {
+            sum += count;
+
+            if (count != 0) {
+              ++nonZero;
+            }
+          }
+        }
+
+        for (int chunkBins : CHUNK_BINS) {
+          engine.setChunkBins(chunkBins);
+
+          String message = "window " + window + " chunk " + chunkBins;
+
+          assertEquals(message,
+              sum,
+              engine.reduceAll(sizes(), window, new CountReducers.Sum())
+                  .getSum());
+          assertEquals(message,
+              nonZero,
+              engine
+                  .reduceAll(sizes(), window, new CountReducers.NonZero())
+                  .getBins());
+        }
+      }
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * An engine on the common pool, whose reads block through the pool's
+   * managed blocking, gives the same reductions.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCommonPool() throws IOException {
+    CountAssembly track = brt2();
+
+    try {
+      GenomeReducer engine = new GenomeReducer(track);
+
+      engine.setChunkBins(7);
+
+      assertReduce(engine, track, 1000, 7);
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * Checks each reducer of each chromosome against its counts read whole.
+   *
+   * @param engine the engine
+   * @param track the track
+   * @param window the window
+   * @param chunkBins the chunk bins
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertReduce(GenomeReducer engine,
+      CountAssembly track,
+      int window,
+      int chunkBins) throws IOException {
+    Map<Chromosome, CountReducers.Sum> sums =
+        engine.reduce(sizes(), window, new CountReducers.Sum());
+    Map<Chromosome, CountReducers.Max> maxes =
+        engine.reduce(sizes(), window, new CountReducers.Max());
+    Map<Chromosome, CountReducers.Histogram> histograms = engine
+        .reduce(sizes(), window, new CountReducers.Histogram(HISTOGRAM_MAX));
+    Map<Chromosome, CountReducers.NonZero> nonZeros =
+        engine.reduce(sizes(), window, new CountReducers.NonZero());
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      Chromosome chr = chr(c);
+
+      String message =
+          chr + " window " + window + " chunk " + chunkBins;
+
+      int[] counts = counts(track, c, window);
+      int startBin =
+          track.getStartBin(TestReads.region(TestReads.CHRS[c], 1,
+              TestReads.SIZES[c]), window);
+
+      long sum = 0;
+      int max = Integer.MIN_VALUE;
+      int maxBin = -1;
+      long[] histogram = new long[HISTOGRAM_MAX + 1];
+      long nonZero = 0;
+
+      for (int i = 0; i < counts.length; ++i) {
+        sum += counts[i];
+
+        if (counts[i] > max) {
+          max = counts[i];
+          maxBin = startBin + i;
+        }
+
+        ++histogram[Math.min(counts[i], HISTOGRAM_MAX)];
+
+        if (counts[i] != 0) {
+          ++nonZero;
+        }
+      }
+
+      assertEquals(message, sum, sums.get(chr).getSum());
+      assertEquals(message, max, maxes.get(chr).getMax());
+      assertEquals(message, maxBin, maxes.get(chr).getBin());
+      assertArrayEquals(message,
+          histogram,
+          histograms.get(chr).getHistogram());
+      assertEquals(message, nonZero, nonZeros.get(chr).getBins());
+    }
+  }
+
+  /**
+   * Reads the counts of a whole chromosome.
+   *
+   * @param track the track
+   * @param c the index of the chromosome
+   * @param window the window
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static int[] counts(CountAssembly track, int c, int window)
+      throws IOException {
+    return track.getCounts(
+        TestReads.region(TestReads.CHRS[c], 1, TestReads.SIZES[c]),
+        window);
+  }
+
+  /**
+   * Gets the length of each test chromosome.
+   *
+   * @return the sizes
+   */
+  private static Map<Chromosome, Integer> sizes() {
+    Map<Chromosome, Integer> ret = new LinkedHashMap<Chromosome, Integer>();
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      ret.put(chr(c), TestReads.SIZES[c]);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Gets a test chromosome.
+   *
+   * @param c the index of the chromosome
+   * @return the chromosome
+   */
+  private static Chromosome chr(int c) {
+    GenomicRegion region = TestReads.region(TestReads.CHRS[c], 1, 1);
+
+    return region.getChr();
+  }
+
+  /**
+   * Opens the BRT2 track of the test reads.
+   *
+   * @return the reader
+   */
+  private static CountAssembly brt2() {
+    return new ReadCountsFileBRT2(mDir.resolve("meta.json"));
+  }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link PrefetchingCountAssembly} drops the loads queued for
+ * a region once another region is served, keeps a load that was already
+ * running, and counts the prefetched tiles that are then requested.
+ *
+ * @author Antony Holmes
+ */
+public class PrefetchingCountAssemblyTest {
+
+  /** The number of bins in a tile. */
+  private static final int TILE_BINS = 16;
+
+  /** The window regions are read at. */
+  private static final int WINDOW = 1000;
+
+  /** How long to wait for loads, in seconds. */
+  private static final long TIMEOUT = 10;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mDir = Files.createTempDirectory("edb-prefetch");
+
+    new TestReads(42).write(mDir, ReadCountsFileBRT2.FILE_EXT, 0, false);
+  }
+
+  /**
+   * Deletes the track.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * The first load for region A is held while it reads. Serving region B
+   * drops the other loads queued for A. Once released, the held load and
+   * every load for B complete, and reading their tiles counts as prefetches
+   * used, whereas a dropped tile of A is read as a miss.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDropOnNewRegion() throws Exception {
+    GatedTrack track = new GatedTrack(mDir.resolve("meta.json"));
+    CountAssembly plain = new ReadCountsFileBRT2(mDir.resolve("meta.json"));
+
+    PrefetchingCountAssembly cache =
+        new PrefetchingCountAssembly(track, Long.MAX_VALUE, TILE_BINS, 1);
+
+    try {
+      // Tiles 10 and 11 of chr1. Its loads are tiles 9 and 12, tile 1 at
+      // 10kb and the first 16 of tiles 100 to 119 at 100bp.
+      GenomicRegion a = tiles("chr1", 10, 2);
+
+      // Tile 4 of chr2. Its loads are tiles 3 and 5, tile 0 at 10kb and
+      // tiles 40 to 49 at 100bp.
+      GenomicRegion b = tiles("chr2", 4, 1);
+
+      int loadsA = 2 + 1 + 16;
+      int loadsB = 2 + 1 + 10;
+
+      cache.getCounts(a, WINDOW);
+
+      // The single prefetch thread is now reading tile 9 of A
+      assertTrue(track.mEntered.await(TIMEOUT, TimeUnit.SECONDS));
+
+      cache.getCounts(b, WINDOW);
+
+      assertEquals(loadsA - 1, cache.getDropped());
+
+      track.mRelease.countDown();
+
+      long end = System.currentTimeMillis() + TIMEOUT * 1000;
+
+      while (cache.getPrefetched() < 1 + loadsB
+          && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+
+      assertEquals(1 + loadsB, cache.getPrefetched());
+      assertEquals(loadsA - 1, cache.getDropped());
+
+      long misses = cache.getMisses();
+
+      // Tile 12 of A was dropped so must be read
+      GenomicRegion dropped = tiles("chr1", 12, 1);
+
+      assertArrayEquals(plain.getCounts(dropped, WINDOW),
+          cache.getCounts(dropped, WINDOW));
+
+      assertEquals(misses + 1, cache.getMisses());
+      assertEquals(0, cache.getPrefetchUsed());
+
+      // The held load of A and the loads of B were kept
+      GenomicRegion[] kept = { tiles("chr1", 9, 1), tiles("chr2", 3, 1),
+          tiles("chr2", 5, 1) };
+
+      for (GenomicRegion region : kept) {
+        assertArrayEquals(region.toString(),
+            plain.getCounts(region, WINDOW),
+            cache.getCounts(region, WINDOW));
+      }
+
+      assertEquals(misses + 1, cache.getMisses());
+      assertEquals(kept.length, cache.getPrefetchUsed());
+      assertEquals((double) kept.length / cache.getPrefetched(),
+          cache.getPrefetchRatio(),
+          1e-12);
+    } finally {
+      track.mRelease.countDown();
+
+      cache.close();
+      plain.close();
+    }
+  }
+
+  /**
+   * Closing the prefetcher drops its queued loads and lets a running load
+   * finish rather than interrupting it.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testClose() throws Exception {
+    final GatedTrack track = new GatedTrack(mDir.resolve("meta.json"));
+
+    final PrefetchingCountAssembly cache =
+        new PrefetchingCountAssembly(track, Long.MAX_VALUE, TILE_BINS, 1);
+
+    cache.getCounts(tiles("chr1", 10, 2), WINDOW);
+
+    assertTrue(track.mEntered.await(TIMEOUT, TimeUnit.SECONDS));
+
+    Thread closer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        cache.close();
+      }
+    });
+
+    closer.start();
+
+    // Close waits for the running load
+    closer.join(200);
+
+    assertTrue(closer.isAlive());
+
+    track.mRelease.countDown();
+
+    closer.join(TIMEOUT * 1000);
+
+    assertTrue(!closer.isAlive());
+    assertTrue(!track.mInterrupted);
+    assertEquals(2 + 1 + 16 - 1, cache.getDropped());
+  }
+
+  /**
+   * Returns the region of whole tiles of a chromosome.
+   *
+   * @param chr the chr
+   * @param tile the first tile
+   * @param tiles the number of tiles
+   * @return the region
+   */
+  private static GenomicRegion tiles(String chr, int tile, int tiles) {
+    return TestReads.region(chr,
+        tile * TILE_BINS * WINDOW,
+        (tile + tiles) * TILE_BINS * WINDOW - 1);
+  }
+
+  /**
+   * A track whose first read on a prefetch thread waits to be released.
+   */
+  private static class GatedTrack extends ReadCountsFileBRT2 {
+
+    /** Counted down once the first prefetch read is waiting. */
+    private final CountDownLatch mEntered = new CountDownLatch(1);
+
+    /** Counted down to let the prefetch read continue. */
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    /** Whether the held read was interrupted. */
+    private volatile boolean mInterrupted = false;
+
+    /**
+     * Instantiates a new gated track.
+     *
+     * @param metaFile the meta file
+     */
+    public GatedTrack(Path metaFile) {
+      super(metaFile);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#getCounts(org.jebtk.
+     * bioinformatics.genomic.GenomicRegion, int)
+     */
+    @Override
+    public int[] getCounts(GenomicRegion region, int window)
+        throws IOException {
+      if (Thread.currentThread().getName().startsWith("tile-prefetch-")
+          && mEntered.getCount() > 0) {
+        mEntered.countDown();
+
+        try {
+          mRelease.await();
+        } catch (InterruptedException e) {
+          mInterrupted = true;
+        }
+      }
+
+      return super.getCounts(region, window);
+    }
+  }
+}
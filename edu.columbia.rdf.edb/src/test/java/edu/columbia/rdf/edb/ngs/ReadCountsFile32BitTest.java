@@ -0,0 +1,230 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that packed counts of every bit depth decode as unsigned, with the
+ * high bit of each count set or clear, from any start bin including those
+ * starting part way through a byte.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFile32BitTest {
+
+  /** The bit depths counts are packed at. */
+  private static final int[] BITS = { 4, 8, 12, 16, 20, 24, 32 };
+
+  /** The number of bins of each packed file. */
+  private static final int BINS = 1000;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes a packed file of the counts of each bit depth.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mDir = Files.createTempDirectory("edb-packed");
+
+    for (int bits : BITS) {
+      Path dir = Files.createDirectories(mDir.resolve(Integer.toString(bits)));
+
+      Files.write(dir.resolve("chr1.counts.win.1." + bits + "bit"),
+          pack(counts(bits, BINS), bits));
+    }
+  }
+
+  /**
+   * Deletes the files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Runs of every length up to a few words, and to the end of the counts,
+   * decode from each of the first few start bins.
+   */
+  @Test
+  public void testDecode() {
+    for (int bits : BITS) {
+      int[] counts = counts(bits, 200);
+
+      byte[] packed = pack(counts, bits);
+
+      for (int s = 0; s < 8; ++s) {
+        for (int l = 1; l <= counts.length - s; l += l < 40 ? 1 : 37) {
+          assertDecode(packed, counts, bits, s, l);
+        }
+
+        assertDecode(packed, counts, bits, s, counts.length - s);
+      }
+    }
+  }
+
+  /**
+   * Counts read from files of each bit depth match the counts packed into
+   * them, for regions starting on even and odd bins.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testGetCounts() throws IOException {
+    for (int bits : BITS) {
+      int[] counts = counts(bits, BINS);
+
+      ReadCountsFile32Bit track =
+          new ReadCountsFile32Bit(mDir.resolve(Integer.toString(bits)));
+
+      try {
+        for (int start : new int[] { 1, 2, 3, 4, 101, 102, 777 }) {
+          for (int end : new int[] { start, start + 1, start + 2, 999,
+              BINS }) {
+            if (end < start) {
+              continue;
+            }
+
+            GenomicRegion region = TestReads.region("chr1", start, end);
+
+            int s = track.getStartBin(region, 1);
+
+            assertArrayEquals(bits + " bit " + region,
+                Arrays.copyOfRange(counts,
+                    s,
+                    s + track.getBinCount(region, 1)),
+                track.getCounts(region, 1));
+          }
+        }
+      } finally {
+        track.close();
+      }
+    }
+  }
+
+  /**
+   * Checks the decoding of a run of packed counts.
+   *
+   * @param packed the packed counts
+   * @param counts the counts
+   * @param bits the bits
+   * @param s the start bin
+   * @param l the number of bins
+   */
+  private static void assertDecode(byte[] packed,
+      int[] counts,
+      int bits,
+      int s,
+      int l) {
+    int b1 = ReadCountsFile32Bit.getByteStart(bits, s);
+    int b2 = ReadCountsFile32Bit.getByteEnd(bits, s + l - 1);
+
+    byte[] buf = Arrays.copyOfRange(packed, b1, b2 + 1);
+
+    // Decoding at an offset leaves the rest of the array alone
+    int[] out = new int[l + 2];
+
+    Arrays.fill(out, -7);
+
+    assertEquals(l, ReadCountsFile32Bit.decode(bits, buf, s, l, out, 1));
+
+    String message = bits + " bit start " + s + " length " + l;
+
+    assertEquals(message, -7, out[0]);
+    assertEquals(message, -7, out[l + 1]);
+    assertArrayEquals(message,
+        Arrays.copyOfRange(counts, s, s + l),
+        Arrays.copyOfRange(out, 1, l + 1));
+  }
+
+  /**
+   * Returns counts that cycle through the largest count, the high bit on
+   * its own and with the lowest bit, every bit but the high bit and zero,
+   * followed by random counts over the full range of the bit depth.
+   *
+   * @param bits the bits
+   * @param n the number of counts
+   * @return the counts
+   */
+  private static int[] counts(int bits, int n) {
+    long max = bits == 32 ? 0xFFFFFFFFL : (1L << bits) - 1;
+    long high = 1L << (bits - 1);
+
+    long[] edges = { max, high, high | 1, high - 1, 0 };
+
+    Random rnd = new Random(bits);
+
+    int[] ret = new int[n];
+
+    for (int i = 0; i < n; ++i) {
+      long c = i < 50 ? edges[i % edges.length] : rnd.nextLong() & max;
+
+      ret[i] = (int) c;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Pack counts most significant bit first, as they are written to a file.
+   *
+   * @param counts the counts
+   * @param bits the bits
+   * @return the bytes
+   */
+  private static byte[] pack(int[] counts, int bits) {
+    byte[] ret = new byte[(int) (((long) counts.length * bits + 7) / 8)];
+
+    long buffer = 0;
+    int n = 0;
+    int p = 0;
+
+    for (int count : counts) {
+      buffer = (buffer << bits) | (count & 0xFFFFFFFFL);
+      n += bits;
+
+      while (n >= 8) {
+        n -= 8;
+        ret[p++] = (byte) (buffer >>> n);
+      }
+    }
+
+    if (n > 0) {
+      ret[p] = (byte) (buffer << (8 - n));
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that BRTC files decode to the same counts, starts and strands as
+ * BRT2 files of the same reads. The regions start and end on every bit of
+ * a strand bitmap byte, between reads and on reads sharing a start.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBRTCTest {
+
+  /** The number of reads the BRT2 cursor reads at a time. */
+  private static final int CURSOR_BATCH_READS = 8192;
+
+  /** The windows counts are checked at. */
+  private static final int[] WINDOWS = { 1, 10, 100, 1000 };
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /** The m BRT2 reader. */
+  private static ReadCountsFileBRT2 mBRT2;
+
+  /** The m BRTC reader. */
+  private static ReadCountsFileBRTC mBRTC;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-brtc");
+
+    mReads.write(mDir.resolve("brt2"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+    mReads.write(mDir.resolve("brtc"), ReadCountsFileBRTC.FILE_EXT, 0, false);
+
+    mBRT2 = new ReadCountsFileBRT2(mDir.resolve("brt2").resolve("meta.json"));
+    mBRTC = new ReadCountsFileBRTC(mDir.resolve("brtc").resolve("meta.json"));
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mBRT2.close();
+    mBRTC.close();
+
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Counts, starts and strands match BRT2 and the reads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRegions() throws IOException {
+    for (GenomicRegion region : regions()) {
+      String name = region.toString();
+
+      for (int window : WINDOWS) {
+        int[] counts = mBRTC.getCounts(region, window);
+
+        assertArrayEquals(name + " window " + window,
+            mBRT2.getCounts(region, window),
+            counts);
+
+        for (Strand strand : new Strand[] { Strand.SENSE,
+            Strand.ANTISENSE }) {
+          assertArrayEquals(name + " window " + window + " " + strand,
+              mBRT2.getCounts(region, window, strand),
+              mBRTC.getCounts(region, window, strand));
+        }
+
+        if (window < ReadCountsFileBinTree.MIN_BIN_WIDTH) {
+          assertArrayEquals(name + " window " + window,
+              mReads.counts(region, window, Strand.NONE),
+              counts);
+        }
+      }
+
+      assertArrayEquals(name,
+          mReads.starts(region),
+          mBRTC.getStarts(region, 1));
+
+      assertArrayEquals(name,
+          mReads.strands(region),
+          mBRTC.getStrands(region, 1));
+
+      assertEquals(name,
+          mBRT2.getStrandBits(region, 1),
+          mBRTC.getStrandBits(region, 1));
+    }
+  }
+
+  /**
+   * A batch of regions returns the counts of each region.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBatch() throws IOException {
+    List<GenomicRegion> regions = regions();
+
+    for (int window : WINDOWS) {
+      List<int[]> counts = mBRTC.getCounts(regions, window);
+
+      for (int i = 0; i < regions.size(); ++i) {
+        assertArrayEquals(regions.get(i) + " window " + window,
+            mBRT2.getCounts(regions.get(i), window),
+            counts.get(i));
+      }
+    }
+  }
+
+  /**
+   * A cursor reading the start column in batches returns the same counts
+   * as reading the region at once.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCursor() throws IOException {
+    for (GenomicRegion region : regions()) {
+      for (int window : new int[] { 1, 100 }) {
+        for (int bufferBins : new int[] { 1, 1000,
+            CountCursor.DEFAULT_BUFFER_BINS }) {
+          assertArrayEquals(region + " window " + window + " buffer "
+              + bufferBins,
+              mBRTC.getCounts(region, window),
+              TestReads.cursor(mBRTC, region, window, bufferBins));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns regions covering each chromosome, regions starting and ending
+   * on each bit of a bitmap byte, a region spanning a cursor batch
+   * boundary and random regions.
+   *
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions() {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    Random rnd = new Random(11);
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      String chr = TestReads.CHRS[c];
+      int size = TestReads.SIZES[c];
+
+      GenomicRegion all = TestReads.region(chr, 1, size);
+
+      ret.add(all);
+
+      int[] starts = mReads.starts(all);
+
+      if (starts.length == 0) {
+        continue;
+      }
+
+      // Every combination of first and last bit within a bitmap byte
+      for (int i = 0; i < 8; ++i) {
+        for (int j = 0; j < 8; ++j) {
+          int s = Math.min(starts.length - 1, 800 + i);
+          int e = Math.min(starts.length - 1, 816 + j);
+
+          ret.add(TestReads.region(chr, starts[s], starts[e]));
+        }
+      }
+
+      // Between reads
+      ret.add(TestReads.region(chr, starts[100] + 1, starts[200] - 1));
+
+      if (starts.length > CURSOR_BATCH_READS + 10) {
+        ret.add(TestReads.region(chr,
+            starts[CURSOR_BATCH_READS - 10],
+            starts[CURSOR_BATCH_READS + 10]));
+      }
+
+      for (int i = 0; i < 10; ++i) {
+        int s = 1 + rnd.nextInt(size);
+        int e = Math.min(size, s + rnd.nextInt(20000));
+
+        ret.add(TestReads.region(chr, s, e));
+      }
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that BRTZ files decode to the same counts, starts and strands as
+ * BRT2 files of the same reads, with blocks of the default size, of a size
+ * that does not divide the cursor batches and of a few reads each.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBRTZTest {
+
+  /** The block sizes the reads are written with. */
+  private static final int[] BLOCK_READS =
+      { ReadCountsFileBRTZ.DEFAULT_BLOCK_READS, 1000, 7 };
+
+  /** The number of reads the BRT2 cursor reads at a time. */
+  private static final int CURSOR_BATCH_READS = 8192;
+
+  /** The windows counts are checked at. */
+  private static final int[] WINDOWS = { 1, 10, 100, 1000 };
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /** The m BRT2 reader. */
+  private static ReadCountsFileBRT2 mBRT2;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-brtz");
+
+    mReads.write(mDir.resolve("brt2"), ReadCountsFileBRT2.FILE_EXT, 0, false);
+
+    for (int blockReads : BLOCK_READS) {
+      BinTreeWriter writer = mReads.newWriter(
+          mDir.resolve("brtz" + blockReads),
+          ReadCountsFileBRTZ.FILE_EXT);
+
+      writer.setBlockReads(blockReads);
+
+      mReads.add(writer);
+
+      writer.close();
+    }
+
+    mBRT2 = new ReadCountsFileBRT2(mDir.resolve("brt2").resolve("meta.json"));
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mBRT2.close();
+
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Counts, starts and strands match BRT2 and the reads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRegions() throws IOException {
+    for (int blockReads : BLOCK_READS) {
+      ReadCountsFileBRTZ reader = open(blockReads);
+
+      try {
+        for (GenomicRegion region : regions(blockReads)) {
+          String name = blockReads + " " + region;
+
+          for (int window : WINDOWS) {
+            int[] counts = reader.getCounts(region, window);
+
+            assertArrayEquals(name + " window " + window,
+                mBRT2.getCounts(region, window),
+                counts);
+
+            assertArrayEquals(name + " window " + window,
+                mBRT2.getCounts(region, window, Strand.ANTISENSE),
+                reader.getCounts(region, window, Strand.ANTISENSE));
+
+            // Below 1kb the reads are binned from the records themselves
+            if (window < ReadCountsFileBinTree.MIN_BIN_WIDTH) {
+              assertArrayEquals(name + " window " + window,
+                  mReads.counts(region, window, Strand.NONE),
+                  counts);
+            }
+          }
+
+          assertArrayEquals(name,
+              mReads.starts(region),
+              reader.getStarts(region, 1));
+
+          assertArrayEquals(name,
+              mBRT2.getStrands(region, 1),
+              reader.getStrands(region, 1));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * A batch of regions sharing blocks returns the counts of each region.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBatch() throws IOException {
+    for (int blockReads : BLOCK_READS) {
+      ReadCountsFileBRTZ reader = open(blockReads);
+
+      try {
+        List<GenomicRegion> regions = regions(blockReads);
+
+        for (int window : WINDOWS) {
+          List<int[]> counts = reader.getCounts(regions, window);
+
+          for (int i = 0; i < regions.size(); ++i) {
+            assertArrayEquals(blockReads + " " + regions.get(i),
+                mBRT2.getCounts(regions.get(i), window),
+                counts.get(i));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * A cursor reading in batches that cross block boundaries returns the
+   * same counts as reading the region at once.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCursor() throws IOException {
+    for (int blockReads : BLOCK_READS) {
+      ReadCountsFileBRTZ reader = open(blockReads);
+
+      try {
+        for (GenomicRegion region : regions(blockReads)) {
+          for (int window : new int[] { 1, 100 }) {
+            for (int bufferBins : new int[] { 1, 1000,
+                CountCursor.DEFAULT_BUFFER_BINS }) {
+              assertArrayEquals(blockReads + " " + region + " window "
+                  + window + " buffer " + bufferBins,
+                  reader.getCounts(region, window),
+                  TestReads.cursor(reader, region, window, bufferBins));
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * A block whose compressed bytes end early is reported rather than
+   * decoded from whatever follows it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testTruncatedBlock() throws IOException {
+    Path dir = mDir.resolve("truncated");
+
+    Files.createDirectories(dir);
+
+    Path src = mDir.resolve("brtz" + ReadCountsFileBRTZ.DEFAULT_BLOCK_READS);
+
+    Files.copy(src.resolve("meta.json"), dir.resolve("meta.json"));
+
+    Path file = dir.resolve("chr1." + ReadCountsFileBRTZ.FILE_EXT);
+
+    Files.copy(src.resolve(file.getFileName()),
+        file,
+        StandardCopyOption.REPLACE_EXISTING);
+
+    FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    try {
+      ByteBuffer header = ByteBuffer.allocate(8);
+
+      channel.read(header, 0);
+
+      // The block index follows the multi resolution counts: the block
+      // size, the read count and then the offset of each block. Ending
+      // the first block early leaves its stream unfinished.
+      long index = header.getInt(4) + ReadCountsFileBinTree.RAW_OFFSET;
+
+      ByteBuffer offset = ByteBuffer.allocate(8);
+
+      channel.read(offset, index + 16);
+
+      offset.putLong(0, offset.getLong(0) - 8);
+      offset.position(0);
+
+      channel.write(offset, index + 16);
+    } finally {
+      channel.close();
+    }
+
+    ReadCountsFileBRTZ reader =
+        new ReadCountsFileBRTZ(dir.resolve("meta.json"));
+
+    try {
+      reader.getStarts(TestReads.region("chr1", 1, 1000), 1);
+
+      fail("A truncated block was decoded.");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Block 0"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Open the BRTZ track written with a block size.
+   *
+   * @param blockReads the block reads
+   * @return the reader
+   */
+  private static ReadCountsFileBRTZ open(int blockReads) {
+    return new ReadCountsFileBRTZ(
+        mDir.resolve("brtz" + blockReads).resolve("meta.json"));
+  }
+
+  /**
+   * Returns regions covering each chromosome, which ends in a partial
+   * block, regions inside one block, regions spanning a few blocks,
+   * regions spanning a cursor batch boundary and random regions.
+   *
+   * @param blockReads the block reads
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions(int blockReads) {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    Random rnd = new Random(blockReads);
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      String chr = TestReads.CHRS[c];
+      int size = TestReads.SIZES[c];
+
+      GenomicRegion all = TestReads.region(chr, 1, size);
+
+      ret.add(all);
+
+      int[] starts = mReads.starts(all);
+
+      if (starts.length == 0) {
+        continue;
+      }
+
+      // Inside one block, skipping any reads that share a start with the
+      // neighbouring block
+      int b = starts.length / blockReads / 2;
+      int s = b * blockReads + blockReads / 4;
+      int e = Math.min(starts.length - 1, s + Math.max(1, blockReads / 2));
+
+      ret.add(TestReads.region(chr, starts[s], starts[e]));
+
+      // Across several blocks
+      e = Math.min(starts.length - 1, s + 3 * blockReads);
+
+      ret.add(TestReads.region(chr, starts[s], starts[e]));
+
+      // Across a cursor batch, whose reads are grouped by read index
+      if (starts.length > CURSOR_BATCH_READS + 10) {
+        ret.add(TestReads.region(chr,
+            starts[CURSOR_BATCH_READS - 10],
+            starts[CURSOR_BATCH_READS + 10]));
+      }
+
+      // The last reads, which lie in a partial block
+      ret.add(TestReads.region(chr,
+          starts[Math.max(0, starts.length - blockReads / 2 - 1)],
+          size));
+
+      for (int i = 0; i < 10; ++i) {
+        s = 1 + rnd.nextInt(size);
+        e = Math.min(size, s + rnd.nextInt(20000));
+
+        ret.add(TestReads.region(chr, s, e));
+      }
+    }
+
+    return ret;
+  }
+}
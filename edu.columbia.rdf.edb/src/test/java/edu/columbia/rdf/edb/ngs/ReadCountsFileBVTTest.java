@@ -0,0 +1,398 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the statistics of BVT summaries against those worked out directly
+ * from the values of the reads, whether served from the summary levels,
+ * resampled from them for windows the levels do not divide or computed
+ * from the raw values.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBVTTest {
+
+  /** Windows the summary levels divide. */
+  private static final int[] LEVEL_WINDOWS =
+      { 1000, 5000, 10000, 100000, 1000000 };
+
+  /** Windows the summary levels do not divide. */
+  private static final int[] RESAMPLED_WINDOWS =
+      { 1500, 2500, 12345, 250500 };
+
+  /** Windows served from the raw values. */
+  private static final int[] RAW_WINDOWS = { 1, 100, 999 };
+
+  /** The m reads. */
+  private static TestReads mReads;
+
+  /** The m dir. */
+  private static Path mDir;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReads = new TestReads(42);
+
+    mDir = Files.createTempDirectory("edb-bvt");
+
+    mReads.write(mDir.resolve("bvs"), ReadCountsFileBVT.FILE_EXT, 0, true);
+    mReads.write(mDir.resolve("bvt"), ReadCountsFileBVT.FILE_EXT, 0, false);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Summaries at windows the levels divide hold the statistics of every
+   * value in each whole bin.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLevelSummary() throws IOException {
+    ReadCountsFileBVT reader =
+        new ReadCountsFileBVT(mDir.resolve("bvs").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        for (int window : LEVEL_WINDOWS) {
+          check(region, window, reader.getSummary(region, window), false);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Summaries below the smallest level are computed from the values of the
+   * reads in the region.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRawSummary() throws IOException {
+    ReadCountsFileBVT reader =
+        new ReadCountsFileBVT(mDir.resolve("bvs").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        for (int window : RAW_WINDOWS) {
+          check(region, window, reader.getSummary(region, window), true);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Tracks without summary files compute every window from the values of
+   * the reads in the region.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testNoSummaryFile() throws IOException {
+    ReadCountsFileBVT reader =
+        new ReadCountsFileBVT(mDir.resolve("bvt").resolve("meta.json"));
+
+    try {
+      for (GenomicRegion region : regions()) {
+        for (int window : new int[] { 100, 1000, 1500 }) {
+          check(region, window, reader.getSummary(region, window), true);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Summaries at windows the levels do not divide preserve the totals of
+   * a chromosome. Each bin differs from its own values only by the shares
+   * of the level bins straddling its edges, whose minima and maxima bound
+   * the bin.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResampledSummary() throws IOException {
+    ReadCountsFileBVT reader =
+        new ReadCountsFileBVT(mDir.resolve("bvs").resolve("meta.json"));
+
+    try {
+      for (int c = 0; c < TestReads.CHRS.length; ++c) {
+        GenomicRegion region =
+            TestReads.region(TestReads.CHRS[c], 1, TestReads.SIZES[c]);
+
+        for (int window : RESAMPLED_WINDOWS) {
+          checkResampled(region, window, reader.getSummary(region, window));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Checks a summary against the values of the reads in each bin.
+   *
+   * @param region the region
+   * @param window the window
+   * @param summary the summary
+   * @param clip whether the bins are clipped to the region rather than
+   *          whole
+   */
+  private static void check(GenomicRegion region,
+      int window,
+      BinSummary summary,
+      boolean clip) {
+    int startBin = region.getStart() / window;
+    int n = region.getEnd() / window - startBin + 1;
+
+    assertEquals(n, summary.size());
+
+    long s = clip ? region.getStart() : (long) startBin * window;
+    long e = clip ? region.getEnd() : ((long) startBin + n) * window - 1;
+
+    GenomicRegion chr = TestReads
+        .region(region.getChr().toString(), 1, TestReads.size(region));
+
+    int[] starts = mReads.starts(chr);
+    float[] values = mReads.values(chr, 1, TestReads.size(region));
+
+    int[] counts = new int[n];
+    double[] sums = new double[n];
+    double[] squares = new double[n];
+    double[] mins = new double[n];
+    double[] maxs = new double[n];
+
+    for (int i = 0; i < starts.length; ++i) {
+      if (starts[i] < s || starts[i] > e) {
+        continue;
+      }
+
+      int bin = starts[i] / window - startBin;
+      float v = values[i];
+
+      mins[bin] = counts[bin] == 0 ? v : Math.min(mins[bin], v);
+      maxs[bin] = counts[bin] == 0 ? v : Math.max(maxs[bin], v);
+
+      ++counts[bin];
+      sums[bin] += v;
+      squares[bin] += (double) v * v;
+    }
+
+    for (int i = 0; i < n; ++i) {
+      String name = region + " window " + window + " bin " + i;
+
+      assertEquals(name, counts[i], summary.getCount(i));
+
+      if (counts[i] == 0) {
+        continue;
+      }
+
+      assertEquals(name, mins[i], summary.getMin(i), 0);
+      assertEquals(name, maxs[i], summary.getMax(i), 0);
+      assertEquals(name, sums[i], summary.getSum(i), 1e-9 * sums[i]);
+      assertEquals(name,
+          squares[i],
+          summary.getSumSquares(i),
+          1e-9 * squares[i]);
+    }
+  }
+
+  /**
+   * Checks a summary resampled from a level against the values of the
+   * reads of a whole chromosome.
+   *
+   * @param region the region
+   * @param window the window
+   * @param summary the summary
+   */
+  private static void checkResampled(GenomicRegion region,
+      int window,
+      BinSummary summary) {
+    int width = ReadCountsFileBinTree.BIN_WIDTHS[ReadCountsFileBinTree
+        .getLevel(window)];
+
+    assertTrue(window % width != 0);
+
+    int count = 0;
+    double sum = 0;
+    double squares = 0;
+
+    for (int i = 0; i < summary.size(); ++i) {
+      String name = region + " window " + window + " bin " + i;
+
+      long s = (long) i * window;
+      long e = s + window - 1;
+
+      // The level bins straddling the edges of the bin
+      long ls = s / width * width;
+      long le = (e / width + 1) * width - 1;
+
+      float[] values = mReads.values(region, s, e);
+      float[] outer = mReads.values(region, ls, le);
+      float[] inner = mReads.values(region,
+          s == ls ? s : ls + width,
+          e == le ? e : le - width);
+
+      assertTrue(name, summary.getCount(i) >= inner.length);
+      assertTrue(name, summary.getCount(i) <= outer.length);
+
+      for (float v : values) {
+        assertTrue(name, summary.getMin(i) <= v);
+        assertTrue(name, summary.getMax(i) >= v);
+      }
+
+      if (summary.getCount(i) > 0) {
+        assertTrue(name, summary.getMin(i) >= min(outer));
+        assertTrue(name, summary.getMax(i) <= max(outer));
+      }
+
+      sum += summary.getSum(i);
+      squares += summary.getSumSquares(i);
+      count += summary.getCount(i);
+    }
+
+    // The level bins inside the bins are shared out in full and the one
+    // straddling the end of the last bin in proportion to its overlap
+    long end = (long) summary.size() * window;
+    long last = end / width * width;
+
+    float[] values = mReads.values(region, 0, last - 1);
+    float[] straddling = mReads.values(region, last, last + width - 1);
+
+    double f = (double) (end - last) / width;
+
+    double expected = sum(values, 1) + f * sum(straddling, 1);
+    double expectedSquares = sum(values, 2) + f * sum(straddling, 2);
+
+    String name = region + " window " + window;
+
+    assertEquals(name,
+        values.length + straddling.length * (end - last) / width,
+        count);
+    assertEquals(name, expected, sum, 1e-9 * expected);
+    assertEquals(name, expectedSquares, squares, 1e-9 * expectedSquares);
+  }
+
+  /**
+   * Returns the sum of the powers of some values.
+   *
+   * @param values the values
+   * @param power the power, 1 or 2
+   * @return the sum
+   */
+  private static double sum(float[] values, int power) {
+    double ret = 0;
+
+    for (float v : values) {
+      ret += power == 1 ? v : (double) v * v;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the smallest of some values.
+   *
+   * @param values the values
+   * @return the min
+   */
+  private static float min(float[] values) {
+    float ret = Float.MAX_VALUE;
+
+    for (float v : values) {
+      ret = Math.min(ret, v);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the largest of some values.
+   *
+   * @param values the values
+   * @return the max
+   */
+  private static float max(float[] values) {
+    float ret = -Float.MAX_VALUE;
+
+    for (float v : values) {
+      ret = Math.max(ret, v);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the regions checked: each whole chromosome and regions that
+   * start and end anywhere.
+   *
+   * @return the regions
+   */
+  private static List<GenomicRegion> regions() {
+    List<GenomicRegion> ret = new ArrayList<GenomicRegion>();
+
+    Random rnd = new Random(7);
+
+    for (int c = 0; c < TestReads.CHRS.length; ++c) {
+      String chr = TestReads.CHRS[c];
+      int size = TestReads.SIZES[c];
+
+      ret.add(TestReads.region(chr, 1, size));
+
+      for (int i = 0; i < 10; ++i) {
+        int s = 1 + rnd.nextInt(size);
+        int e = Math.min(size, s + rnd.nextInt(200000));
+
+        ret.add(TestReads.region(chr, s, e));
+      }
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the choice of level to serve a window from, that resampled counts
+ * keep their totals and match the finer counts a dividing level sums, and
+ * that tracks serve windows they did not write from those they did.
+ *
+ * @author Antony Holmes
+ */
+public class ResolutionPlannerTest {
+
+  /** Windows that no level of the test tracks divides. */
+  private static final int[] UNEVEN_WINDOWS = { 150, 1500, 12345, 250500 };
+
+  /** The m tracks. */
+  private static TestTracks mTracks;
+
+  /**
+   * Writes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mTracks = new TestTracks(42);
+  }
+
+  /**
+   * Deletes the tracks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mTracks.delete();
+  }
+
+  /**
+   * A level of the same width is used as is, then finer levels that divide
+   * the window, then other finer levels, reading the fewest bytes, and
+   * only then the nearest coarser level.
+   */
+  @Test
+  public void testPlan() {
+    int[] windows = { 1, 100, 1000 };
+    int[] bits = { 32, 32, 32 };
+
+    assertEquals(1, ResolutionPlanner.plan(windows, bits, 100, 10));
+    assertEquals(1, ResolutionPlanner.plan(windows, bits, 2500, 10));
+    assertEquals(2, ResolutionPlanner.plan(windows, bits, 5000, 10));
+    assertEquals(0, ResolutionPlanner.plan(windows, bits, 150, 10));
+    assertEquals(0, ResolutionPlanner.plan(windows, bits, 50, 10));
+
+    // A dividing level is preferred even if it reads more
+    assertEquals(0,
+        ResolutionPlanner.plan(new int[] { 1, 300 },
+            new int[] { 32, 32 },
+            1000,
+            10));
+
+    // Amongst dividing levels the fewest bytes wins, not the coarsest
+    assertEquals(1,
+        ResolutionPlanner.plan(new int[] { 1, 10 },
+            new int[] { 8, 32 },
+            100,
+            10));
+    assertEquals(0,
+        ResolutionPlanner.plan(new int[] { 1, 10 },
+            new int[] { 4, 64 },
+            100,
+            10));
+
+    // Without a dividing level the fewest bytes wins
+    assertEquals(1,
+        ResolutionPlanner.plan(new int[] { 300, 700 },
+            new int[] { 32, 32 },
+            1000,
+            10));
+
+    // Without a finer level the nearest coarser level is downsampled
+    assertEquals(1,
+        ResolutionPlanner.plan(new int[] { 100000, 1000 },
+            new int[] { 32, 32 },
+            50,
+            10));
+
+    assertEquals(-1,
+        ResolutionPlanner.plan(new int[0], new int[0], 1000, 10));
+  }
+
+  /**
+   * The level bins overlapping a run of window bins run from the bin
+   * holding its first position to the bin holding its last.
+   */
+  @Test
+  public void testBins() {
+    assertEquals(7, ResolutionPlanner.getStartBin(3, 2500, 1000));
+    assertEquals(6, ResolutionPlanner.getBinCount(3, 2, 2500, 1000));
+
+    assertEquals(12, ResolutionPlanner.getStartBin(3, 4000, 1000));
+    assertEquals(8, ResolutionPlanner.getBinCount(3, 2, 4000, 1000));
+
+    assertEquals(0, ResolutionPlanner.getStartBin(3, 250, 1000));
+    assertEquals(1, ResolutionPlanner.getBinCount(0, 4, 250, 1000));
+
+    // Positions past the range of an int
+    assertEquals(4000000, ResolutionPlanner.getStartBin(4000000, 1000, 1000));
+  }
+
+  /**
+   * Resampled counts add up to the counts of the level for windows that
+   * do not divide it and windows finer than it, and a dividing window
+   * sums whole level bins.
+   */
+  @Test
+  public void testResampleCounts() {
+    Random rnd = new Random(42);
+
+    int level = 1000;
+    int start = 5;
+
+    int[] counts = new int[200];
+    long total = 0;
+
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] = rnd.nextInt(50);
+      total += counts[i];
+    }
+
+    for (int window : new int[] { 250, 333, 700, 1500, 2500, 12345 }) {
+      int[] out = resample(counts, start, level, window);
+
+      long sum = 0;
+
+      for (int c : out) {
+        sum += c;
+      }
+
+      assertEquals("window " + window, total, sum);
+    }
+
+    int window = 5000;
+    int[] out = resample(counts, start, level, window);
+
+    // The level starts at window bin 1 and each window bin holds 5 of its
+    // bins
+    for (int i = 0; i < counts.length / 5; ++i) {
+      int sum = 0;
+
+      for (int j = 0; j < 5; ++j) {
+        sum += counts[i * 5 + j];
+      }
+
+      assertEquals("bin " + i, sum, out[i]);
+    }
+  }
+
+  /**
+   * Counts read from a buffer, which may start part way through, resample
+   * to the same bins as counts in an array, and bins past the end of the
+   * buffer are zero.
+   */
+  @Test
+  public void testResampleBuffer() {
+    Random rnd = new Random(7);
+
+    int[] counts = new int[100];
+
+    ByteBuffer buffer = ByteBuffer.allocate(8 + counts.length * 4);
+
+    buffer.putLong(-1);
+
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] = rnd.nextInt(1000);
+
+      buffer.putInt(counts[i]);
+    }
+
+    buffer.position(8);
+
+    for (int window : new int[] { 250, 1000, 1500, 3000 }) {
+      int bin = 10 * 1000 / window;
+      int bins = 100000 / window + 5;
+
+      int[] expected = new int[bins];
+      int[] out = new int[bins + 2];
+
+      ResolutionPlanner.resample(counts,
+          10,
+          1000,
+          bin,
+          bins,
+          window,
+          BCMode.COUNT,
+          expected,
+          0);
+
+      assertEquals(bins,
+          ResolutionPlanner
+              .resampleCounts(buffer, 10, 1000, bin, bins, window, out, 2));
+
+      assertEquals(8, buffer.position());
+
+      for (int i = 0; i < bins; ++i) {
+        assertEquals("window " + window + " bin " + i,
+            expected[i],
+            out[i + 2]);
+      }
+
+      assertEquals(0, out[bins + 1]);
+    }
+  }
+
+  /**
+   * Maxima of a coarser level repeat across the bins they cover and maxima
+   * of a finer level are the largest overlapping bin. Means are weighted by
+   * their overlap.
+   */
+  @Test
+  public void testResampleMaxMean() {
+    int[] counts = { 4, 8, 2, 6 };
+    int[] out = new int[8];
+
+    ResolutionPlanner.resample(counts, 0, 1000, 0, 8, 500, BCMode.MAX, out, 0);
+
+    assertArrayEquals(new int[] { 4, 4, 8, 8, 2, 2, 6, 6 }, out);
+
+    out = new int[3];
+
+    ResolutionPlanner
+        .resample(counts, 0, 1000, 0, 3, 1500, BCMode.MAX, out, 0);
+
+    assertArrayEquals(new int[] { 8, 8, 6 }, out);
+
+    ResolutionPlanner
+        .resample(counts, 0, 1000, 0, 2, 1500, BCMode.MEAN, out, 0);
+
+    // (4 * 1000 + 8 * 500) / 1500 and (8 * 500 + 2 * 1000) / 1500
+    assertEquals(5, out[0]);
+    assertEquals(4, out[1]);
+  }
+
+  /**
+   * Values are weighted by the fraction of their bin that overlaps, so a
+   * dividing window sums whole bins and totals are kept for windows that
+   * do not divide.
+   */
+  @Test
+  public void testResampleValues() {
+    float[] values = { 1.5f, 2f, 0.25f, 4f, 8f, 3f };
+
+    ByteBuffer buffer = ByteBuffer.allocate(4 + values.length * 4);
+
+    buffer.putFloat(-1f);
+
+    for (float v : values) {
+      buffer.putFloat(v);
+    }
+
+    buffer.position(4);
+
+    // Level bins 2 to 7 at width 1000 cover positions 2000 to 7999
+    assertEquals(1.5, ResolutionPlanner.getValue(buffer, 2, 1000, 2000, 3000),
+        1e-9);
+    assertEquals(0.75,
+        ResolutionPlanner.getValue(buffer, 2, 1000, 2000, 2500),
+        1e-9);
+    assertEquals(0.75 + 1,
+        ResolutionPlanner.getValue(buffer, 2, 1000, 2500, 3500),
+        1e-9);
+    assertEquals(0, ResolutionPlanner.getValue(buffer, 2, 1000, 9000, 9500),
+        1e-9);
+
+    double[] out = new double[4];
+
+    ResolutionPlanner.resampleValues(buffer, 2, 1000, 1, 4, 2000, out, 0);
+
+    assertArrayEquals(new double[] { 3.5, 4.25, 11, 0 }, out, 1e-9);
+
+    double total = 0;
+
+    for (float v : values) {
+      total += v;
+    }
+
+    out = new double[6];
+
+    ResolutionPlanner.resampleValues(buffer, 2, 1000, 0, 6, 1500, out, 0);
+
+    double sum = 0;
+
+    for (double v : out) {
+      sum += v;
+    }
+
+    assertEquals(total, sum, 1e-6);
+    assertEquals(4, buffer.position());
+  }
+
+  /**
+   * The packed track serves windows it did not write from a level that
+   * divides them, so the counts are exact.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testPacked() throws IOException {
+    CountAssembly track = mTracks.open32Bit();
+
+    try {
+      assertDivided(track, 1, new int[] { 50, 150, 2500, 5000, 12345 });
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * The BC track serves windows its levels divide exactly and keeps the
+   * total count of the chromosome at windows they do not divide.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBC() throws IOException {
+    CountAssembly track = mTracks.openBC();
+
+    try {
+      assertDivided(track, 100, new int[] { 200, 2500, 5000, 100000 });
+
+      assertTotals(track, UNEVEN_WINDOWS);
+      assertTotals(track, new int[] { 10, 50 });
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * The bin tree keeps the total count of the chromosome at windows its
+   * levels do not divide.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBinTree() throws IOException {
+    CountAssembly track = mTracks.openBRT2();
+
+    try {
+      assertTotals(track, UNEVEN_WINDOWS);
+    } finally {
+      track.close();
+    }
+  }
+
+  /**
+   * Checks the counts of a chromosome at windows that a finer window
+   * divides against the finer counts summed.
+   *
+   * @param track the track
+   * @param fine the finer window
+   * @param windows the windows
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertDivided(CountAssembly track,
+      int fine,
+      int[] windows) throws IOException {
+    GenomicRegion region = chr();
+
+    int[] counts = track.getCounts(region, fine);
+    long startBin = track.getStartBin(region, fine);
+
+    for (int window : windows) {
+      int[] expected = new int[track.getBinCount(region, window)];
+      long bin = track.getStartBin(region, window);
+
+      for (int i = 0; i < counts.length; ++i) {
+        expected[(int) ((startBin + i) * fine / window - bin)] += counts[i];
+      }
+
+      assertArrayEquals("window " + window,
+          expected,
+          track.getCounts(region, window));
+    }
+  }
+
+  /**
+   * Checks that the counts of a chromosome add up to the number of reads.
+   * The region is rounded up to whole bins since the BC format drops a
+   * last bin that the region only partly covers.
+   *
+   * @param track the track
+   * @param windows the windows
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertTotals(CountAssembly track, int[] windows)
+      throws IOException {
+    for (int window : windows) {
+      GenomicRegion region = TestReads
+          .region(TestTracks.CHR, 1, (TestTracks.SIZE / window + 1) * window);
+
+      long sum = 0;
+
+      for (int c : track.getCounts(region, window)) {
+        sum += c;
+      }
+
+      assertEquals("window " + window, TestTracks.READS, sum);
+    }
+  }
+
+  /**
+   * Resamples the whole of a level to a window.
+   *
+   * @param counts the counts
+   * @param start the bin of the level of the first count
+   * @param level the width of the level
+   * @param window the window
+   * @return the counts of the window
+   */
+  private static int[] resample(int[] counts,
+      int start,
+      int level,
+      int window) {
+    int bin = ResolutionPlanner.getStartBin(start, level, window);
+    int bins = (int) (((long) start + counts.length) * level / window) - bin
+        + 1;
+
+    int[] ret = new int[bins];
+
+    ResolutionPlanner.resample(counts,
+        start,
+        level,
+        bin,
+        bins,
+        window,
+        BCMode.COUNT,
+        ret,
+        0);
+
+    return ret;
+  }
+
+  /**
+   * The whole chromosome of the test tracks.
+   *
+   * @return the region
+   */
+  private static GenomicRegion chr() {
+    return TestReads.region(TestTracks.CHR, 1, TestTracks.SIZE);
+  }
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomeService;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+/**
+ * Simulated reads on three chromosomes for the writer and reader tests,
+ * with the counts, sums and starts a reader should return for them worked
+ * out directly. The first two chromosomes hold random reads plus reads
+ * piled on the boundaries of the 1kb to 1Mb bins. The third has no reads.
+ *
+ * @author Antony Holmes
+ */
+class TestReads {
+
+  /** The chromosomes. */
+  public static final String[] CHRS = { "chr1", "chr2", "chr3" };
+
+  /** The chromosome sizes. */
+  public static final int[] SIZES = { 1200000, 250000, 50000 };
+
+  /** The number of random reads on each chromosome. */
+  private static final int[] READS = { 20000, 3000, 0 };
+
+  /** The genome written to the track headers. */
+  public static final String GENOME = "hg19";
+
+  /** The read length. */
+  public static final int READ_LENGTH = 50;
+
+  /** The m starts of each chromosome, sorted. */
+  private final int[][] mStarts = new int[CHRS.length][];
+
+  /** The m strands of each chromosome, in the order of the starts. */
+  private final boolean[][] mAntisense = new boolean[CHRS.length][];
+
+  /** The m values of each chromosome, in the order of the starts. */
+  private final float[][] mValues = new float[CHRS.length][];
+
+  /** The m size. */
+  private int mSize = 0;
+
+  /**
+   * Simulate the reads.
+   *
+   * @param seed the random seed
+   */
+  public TestReads(long seed) {
+    Random rnd = new Random(seed);
+
+    for (int c = 0; c < CHRS.length; ++c) {
+      List<long[]> reads = new ArrayList<long[]>();
+
+      for (int i = 0; i < READS[c]; ++i) {
+        reads.add(read(1 + rnd.nextInt(SIZES[c]), rnd));
+      }
+
+      if (READS[c] > 0) {
+        // Pile reads either side of and on the bin boundaries
+        for (int width = 1000; width < SIZES[c]; width *= 10) {
+          for (int b = width; b < SIZES[c]; b += width * 7) {
+            for (int p = b - 1; p <= b + 1; ++p) {
+              for (int j = 0; j < 3; ++j) {
+                reads.add(read(p, rnd));
+              }
+            }
+          }
+        }
+
+        reads.add(read(1, rnd));
+        reads.add(read(SIZES[c], rnd));
+      }
+
+      // Order as the writer does: by start, value and then strand
+      Collections.sort(reads, new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+          for (int i = 0; i < a.length; ++i) {
+            int x = Long.compare(a[i], b[i]);
+
+            if (x != 0) {
+              return x;
+            }
+          }
+
+          return 0;
+        }
+      });
+
+      int n = reads.size();
+
+      mStarts[c] = new int[n];
+      mAntisense[c] = new boolean[n];
+      mValues[c] = new float[n];
+
+      for (int i = 0; i < n; ++i) {
+        long[] read = reads.get(i);
+
+        mStarts[c][i] = (int) read[0];
+        mValues[c][i] = Float.intBitsToFloat((int) read[1]);
+        mAntisense[c][i] = read[2] == 1;
+      }
+
+      mSize += n;
+    }
+  }
+
+  /**
+   * Create a read as its start, value bits and strand.
+   *
+   * @param start the start
+   * @param rnd the rnd
+   * @return the read
+   */
+  private static long[] read(int start, Random rnd) {
+    // Positive floats order the same way as their bits
+    float value = 0.01f + rnd.nextInt(1000) / 100f;
+
+    return new long[] { start, Float.floatToRawIntBits(value),
+        rnd.nextBoolean() ? 1 : 0 };
+  }
+
+  /**
+   * Returns the total number of reads.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Write the reads as a track, adding the chromosomes interleaved rather
+   * than one after another.
+   *
+   * @param dir the dir
+   * @param ext the file extension of the format
+   * @param maxReads the most reads held in memory, or 0 for the default
+   * @param summaries whether to write BVT summary files
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void write(Path dir, String ext, int maxReads, boolean summaries)
+      throws IOException {
+    BinTreeWriter writer = newWriter(dir, ext);
+
+    if (maxReads > 0) {
+      writer.setMaxReadsInMemory(maxReads);
+    }
+
+    writer.setSummaries(summaries);
+
+    add(writer);
+
+    writer.close();
+  }
+
+  /**
+   * Create a writer with the read length and chromosome sizes set.
+   *
+   * @param dir the dir
+   * @param ext the ext
+   * @return the bin tree writer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinTreeWriter newWriter(Path dir, String ext) throws IOException {
+    BinTreeWriter writer =
+        new BinTreeWriter(Files.createDirectories(dir), GENOME, ext);
+
+    writer.setReadLength(READ_LENGTH);
+
+    for (int c = 0; c < CHRS.length; ++c) {
+      writer.setSize(CHRS[c], SIZES[c]);
+    }
+
+    return writer;
+  }
+
+  /**
+   * Add every read to a writer in a shuffled order.
+   *
+   * @param writer the writer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(BinTreeWriter writer) throws IOException {
+    List<int[]> order = new ArrayList<int[]>(mSize);
+
+    for (int c = 0; c < CHRS.length; ++c) {
+      for (int i = 0; i < mStarts[c].length; ++i) {
+        order.add(new int[] { c, i });
+      }
+    }
+
+    Collections.shuffle(order, new Random(mSize));
+
+    for (int[] read : order) {
+      int c = read[0];
+      int i = read[1];
+
+      writer.add(CHRS[c], mStarts[c][i], mAntisense[c][i], mValues[c][i]);
+    }
+  }
+
+  /**
+   * Returns the number of reads on a strand starting in each bin of a
+   * region.
+   *
+   * @param region the region
+   * @param window the window
+   * @param strand the strand, or NONE for both
+   * @return the counts
+   */
+  public int[] counts(GenomicRegion region, int window, Strand strand) {
+    int c = index(region);
+    int s = region.getStart();
+    int e = region.getEnd();
+
+    int[] ret = new int[e / window - s / window + 1];
+
+    for (int i = 0; i < mStarts[c].length; ++i) {
+      int p = mStarts[c][i];
+
+      if (p >= s && p <= e && (strand == Strand.NONE
+          || mAntisense[c][i] == (strand == Strand.ANTISENSE))) {
+        ++ret[p / window - s / window];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the sum of the values of the reads starting in each bin of a
+   * region.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the sums
+   */
+  public double[] sums(GenomicRegion region, int window) {
+    int c = index(region);
+    int s = region.getStart();
+    int e = region.getEnd();
+
+    double[] ret = new double[e / window - s / window + 1];
+
+    for (int i = 0; i < mStarts[c].length; ++i) {
+      int p = mStarts[c][i];
+
+      if (p >= s && p <= e) {
+        ret[p / window - s / window] += mValues[c][i];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the values of the reads starting in a range of positions.
+   *
+   * @param region the region
+   * @param s the first position
+   * @param e the last position
+   * @return the values
+   */
+  public float[] values(GenomicRegion region, long s, long e) {
+    int c = index(region);
+
+    float[] ret = new float[mStarts[c].length];
+    int n = 0;
+
+    for (int i = 0; i < mStarts[c].length; ++i) {
+      int p = mStarts[c][i];
+
+      if (p >= s && p <= e) {
+        ret[n++] = mValues[c][i];
+      }
+    }
+
+    return Arrays.copyOf(ret, n);
+  }
+
+  /**
+   * Returns the sorted starts of the reads in a region.
+   *
+   * @param region the region
+   * @return the starts
+   */
+  public int[] starts(GenomicRegion region) {
+    int c = index(region);
+
+    int[] ret = new int[mStarts[c].length];
+    int n = 0;
+
+    for (int p : mStarts[c]) {
+      if (p >= region.getStart() && p <= region.getEnd()) {
+        ret[n++] = p;
+      }
+    }
+
+    return Arrays.copyOf(ret, n);
+  }
+
+  /**
+   * Returns the strands of the reads in a region in the order a reader of
+   * a format without values returns them: by start, then sense before
+   * antisense.
+   *
+   * @param region the region
+   * @return the strands
+   */
+  public Strand[] strands(GenomicRegion region) {
+    int c = index(region);
+
+    List<Strand> ret = new ArrayList<Strand>();
+
+    int i = 0;
+
+    while (i < mStarts[c].length) {
+      int p = mStarts[c][i];
+      int j = i;
+      int antisense = 0;
+
+      while (j < mStarts[c].length && mStarts[c][j] == p) {
+        if (mAntisense[c][j]) {
+          ++antisense;
+        }
+
+        ++j;
+      }
+
+      if (p >= region.getStart() && p <= region.getEnd()) {
+        for (int k = 0; k < j - i; ++k) {
+          ret.add(k < j - i - antisense ? Strand.SENSE : Strand.ANTISENSE);
+        }
+      }
+
+      i = j;
+    }
+
+    return ret.toArray(new Strand[ret.size()]);
+  }
+
+  /**
+   * Read every count of a region through a cursor.
+   *
+   * @param assembly the assembly
+   * @param region the region
+   * @param window the window
+   * @param bufferBins the number of bins the cursor decodes at a time
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static int[] cursor(CountAssembly assembly,
+      GenomicRegion region,
+      int window,
+      int bufferBins) throws IOException {
+    int[] ret = new int[assembly.getBinCount(region, window)];
+
+    CountCursor cursor = assembly.getCursor(region, window, bufferBins);
+
+    try {
+      int n = 0;
+      int r;
+
+      while (n < ret.length
+          && (r = cursor.read(ret, n, ret.length - n)) > 0) {
+        n += r;
+      }
+
+      if (n != ret.length) {
+        throw new IOException("The cursor of " + region + " returned " + n
+            + " bins, not " + ret.length + ".");
+      }
+
+      if (cursor.next()) {
+        throw new IOException("The cursor of " + region
+            + " returned more than " + ret.length + " bins.");
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a region of a chromosome.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @return the genomic region
+   */
+  public static GenomicRegion region(String chr, int start, int end) {
+    Genome genome = GenomeService.getInstance().guessGenome(GENOME);
+
+    return GenomicRegion.parse(genome, chr + ":" + start + "-" + end);
+  }
+
+  /**
+   * Returns the size of the chromosome of a region.
+   *
+   * @param region the region
+   * @return the size
+   */
+  public static int size(GenomicRegion region) {
+    return SIZES[index(region)];
+  }
+
+  /**
+   * Returns the index of the chromosome of a region.
+   *
+   * @param region the region
+   * @return the index
+   */
+  private static int index(GenomicRegion region) {
+    return Arrays.asList(CHRS).indexOf(region.getChr().toString());
+  }
+
+  /**
+   * Delete a directory and everything in it.
+   *
+   * @param dir the dir
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void delete(Path dir) throws IOException {
+    FileHandlePool.getInstance().closeIdle();
+
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
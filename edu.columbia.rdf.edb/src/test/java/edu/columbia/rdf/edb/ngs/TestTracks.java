@@ -0,0 +1,268 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomeService;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * Writes a small simulated chromosome as BRT2, packed and BC tracks for the
+ * reader tests. Reads are spread uniformly with a few dense peaks so that
+ * both sparse and crowded regions are read.
+ *
+ * @author Antony Holmes
+ */
+class TestTracks {
+
+  /** The name of the simulated chromosome. */
+  public static final String CHR = "chr1";
+
+  /** The genome written to the track headers. */
+  public static final String GENOME = "hg19";
+
+  /** The read length. */
+  public static final int READ_LENGTH = 50;
+
+  /** The chromosome size. */
+  public static final int SIZE = 2000000;
+
+  /** The number of reads. */
+  public static final int READS = 100000;
+
+  /** The windows the packed count files are written for. */
+  public static final int[] PACKED_WINDOWS = { 1, 100, 1000 };
+
+  /** The bit depth of the packed count files. */
+  public static final int PACKED_BITS = 32;
+
+  /** The BC powers, each power p holding bins of width 10^p. */
+  public static final int[] BC_POWERS = { 2, 3 };
+
+  /** The m dir. */
+  private final Path mDir;
+
+  /**
+   * Writes the tracks to a new temporary directory.
+   *
+   * @param seed the random seed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public TestTracks(long seed) throws IOException {
+    mDir = Files.createTempDirectory("edb-test");
+
+    Random rnd = new Random(seed);
+
+    int[] starts = new int[READS];
+    int maxStart = SIZE - READ_LENGTH + 1;
+
+    for (int i = 0; i < READS; ++i) {
+      if (i % 5 == 0) {
+        // Pile a fifth of the reads into 20 peaks
+        starts[i] = 1 + (1 + i % 20) * (maxStart / 21) + rnd.nextInt(500);
+      } else {
+        starts[i] = 1 + rnd.nextInt(maxStart);
+      }
+    }
+
+    Arrays.sort(starts);
+
+    writeBRT2(starts, rnd);
+
+    for (int window : PACKED_WINDOWS) {
+      writePacked(binCounts(starts, window, 1), window);
+    }
+
+    for (int power : BC_POWERS) {
+      int window = (int) Math.pow(10, power);
+
+      writeBC(binCounts(starts, window, 0), window, power);
+    }
+  }
+
+  /**
+   * Open the BRT2 track.
+   *
+   * @return the reader
+   */
+  public ReadCountsFileBRT2 openBRT2() {
+    return new ReadCountsFileBRT2(mDir.resolve("brt2").resolve("meta.json"));
+  }
+
+  /**
+   * Open the BC track.
+   *
+   * @return the reader
+   */
+  public ReadCountsFileBC openBC() {
+    return new ReadCountsFileBC(mDir.resolve("bc").resolve("reads.bci"));
+  }
+
+  /**
+   * Open the packed track.
+   *
+   * @return the reader
+   */
+  public ReadCountsFile32Bit open32Bit() {
+    return new ReadCountsFile32Bit(
+        mDir.resolve("bit").resolve(Integer.toString(PACKED_BITS)));
+  }
+
+  /**
+   * Returns random regions of a fixed length along the chromosome, each
+   * starting on a bin boundary of the window so that every format returns
+   * the same bins.
+   *
+   * @param n the number of regions
+   * @param length the length
+   * @param window the window
+   * @param seed the seed
+   * @return the regions
+   */
+  public static GenomicRegion[] regions(int n,
+      int length,
+      int window,
+      long seed) {
+    Genome genome = GenomeService.getInstance().guessGenome(GENOME);
+
+    GenomicRegion chr = GenomicRegion.parse(genome, CHR + ":1-" + SIZE);
+
+    Random rnd = new Random(seed);
+
+    GenomicRegion[] ret = new GenomicRegion[n];
+
+    for (int i = 0; i < n; ++i) {
+      int start = 1 + rnd.nextInt((SIZE - length) / window) * window;
+
+      ret[i] = new GenomicRegion(chr.getChr(), start, start + length - 1);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Delete the tracks and release the handles held on them.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void delete() throws IOException {
+    TestReads.delete(mDir);
+  }
+
+  /**
+   * Writes the reads as a BRT2 track with {@link BinTreeWriter}.
+   *
+   * @param starts the starts
+   * @param rnd the rnd
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBRT2(int[] starts, Random rnd) throws IOException {
+    BinTreeWriter writer = new BinTreeWriter(
+        Files.createDirectories(mDir.resolve("brt2")), GENOME, "brt2");
+
+    writer.setReadLength(READ_LENGTH);
+    writer.setSize(CHR, SIZE);
+
+    for (int start : starts) {
+      writer.add(CHR, start, rnd.nextBoolean(), 1);
+    }
+
+    writer.close();
+  }
+
+  /**
+   * Returns the number of reads starting in each bin of a window.
+   *
+   * @param starts the starts
+   * @param window the window
+   * @param origin the position of the first base of bin 0
+   * @return the counts
+   */
+  private static int[] binCounts(int[] starts, int window, int origin) {
+    int[] counts = new int[(SIZE - origin) / window + 1];
+
+    for (int start : starts) {
+      ++counts[(start - origin) / window];
+    }
+
+    return counts;
+  }
+
+  /**
+   * Writes the counts of a window packed most significant bit first.
+   *
+   * @param counts the counts
+   * @param window the window
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writePacked(int[] counts, int window) throws IOException {
+    Path dir = Files.createDirectories(
+        mDir.resolve("bit").resolve(Integer.toString(PACKED_BITS)));
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(dir.resolve(CHR
+            + ".counts.win." + window + "." + PACKED_BITS + "bit"))));
+
+    try {
+      for (int count : counts) {
+        out.writeInt(count);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the counts of a window as a BC file of 4 byte bins.
+   *
+   * @param counts the counts
+   * @param window the window
+   * @param power the power
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBC(int[] counts, int window, int power)
+      throws IOException {
+    Path dir = Files.createDirectories(mDir.resolve("bc"));
+
+    OutputStream file = Files.newOutputStream(
+        dir.resolve(CHR + "." + power + "bw.bc"));
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(file));
+
+    try {
+      out.writeInt(42);
+      out.writeByte(4);
+      out.writeInt(window);
+      out.writeInt(counts.length);
+
+      for (int count : counts) {
+        out.writeInt(count);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}